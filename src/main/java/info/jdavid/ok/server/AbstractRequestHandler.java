@@ -1,5 +1,7 @@
 package info.jdavid.ok.server;
 
+import java.util.concurrent.CompletableFuture;
+
 import javax.annotation.Nullable;
 
 import info.jdavid.ok.server.header.Connection;
@@ -12,46 +14,68 @@ import okio.Buffer;
  * Abstract implementation of a request handler with sensible (and overridable) defaults.
  */
 @SuppressWarnings({ "WeakerAccess" })
-public abstract class AbstractRequestHandler implements RequestHandler {
+public abstract class AbstractRequestHandler implements AsyncRequestHandler {
 
   @Override
   public final Response handle(final String clientIp,
                                final boolean secure, final boolean insecureOnly, final boolean http2,
-                               final String method, final HttpUrl url, final Headers requestHeaders,
-                               @Nullable final Buffer requestBody) {
+                               final String method, final RequestTarget target,
+                               final Headers requestHeaders, @Nullable final Buffer requestBody) {
     if (acceptClientIp(clientIp)) {
+      final Response limited = rateLimit(clientIp, method, target, requestHeaders);
+      if (limited != null) return limited;
       if (secure) {
-        return handle(clientIp, http2, method, url, requestHeaders, requestBody);
+        return handle(clientIp, http2, method, target, requestHeaders, requestBody);
       }
       else {
-        if (isAcmeChallenge(method, url, requestHeaders)) {
-          return handleAcmeChallenge(clientIp, method, url, requestHeaders, requestBody);
+        if (isAcmeChallenge(method, target, requestHeaders)) {
+          return handleAcmeChallenge(clientIp, method, target, requestHeaders, requestBody);
         }
-        else if (allowInsecure(method, url, requestHeaders, insecureOnly)) {
-          return handle(clientIp, http2, method, url, requestHeaders, requestBody);
+        else if (allowInsecure(method, target, requestHeaders, insecureOnly)) {
+          return handle(clientIp, http2, method, target, requestHeaders, requestBody);
         }
         else {
-          return handleDisallowedInsecureRequest(method, url, insecureOnly);
+          return handleDisallowedInsecureRequest(method, target, insecureOnly);
         }
       }
     }
     else {
-      return handleBlockedClientIp(method, url);
+      return handleBlockedClientIp(method, target);
+    }
+  }
+
+  @Override
+  public final CompletableFuture<Response> handleAsync(final String clientIp,
+                                                       final boolean secure, final boolean insecureOnly,
+                                                       final boolean http2,
+                                                       final String method, final RequestTarget target,
+                                                       final Headers requestHeaders,
+                                                       @Nullable final Buffer requestBody) {
+    if (acceptClientIp(clientIp) &&
+        (secure || (!isAcmeChallenge(method, target, requestHeaders) &&
+                    allowInsecure(method, target, requestHeaders, insecureOnly)))) {
+      final Response limited = rateLimit(clientIp, method, target, requestHeaders);
+      if (limited != null) return CompletableFuture.completedFuture(limited);
+      return handleAsync(clientIp, http2, method, target, requestHeaders, requestBody);
     }
+    // Blocked ips, acme challenges and disallowed insecure requests are handled synchronously.
+    return CompletableFuture.completedFuture(
+      handle(clientIp, secure, insecureOnly, http2, method, target, requestHeaders, requestBody)
+    );
   }
 
   /**
    * Handles an acme challenge request.
    * @param clientIp the request client ip.
    * @param method the request method.
-   * @param url the challenge request url.
+   * @param target the challenge request target.
    * @param requestHeaders the challenge request headers.
    * @param requestBody the challenge request body.
    * @return the challenge response.
    */
   protected abstract Response handleAcmeChallenge(final String clientIp,
                                                   final String method,
-                                                  final HttpUrl url,
+                                                  final RequestTarget target,
                                                   final Headers requestHeaders,
                                                   @Nullable final Buffer requestBody);
 
@@ -60,17 +84,37 @@ public abstract class AbstractRequestHandler implements RequestHandler {
    * @param clientIp the request client ip.
    * @param http2 true if the request is using http 2 (h2).
    * @param method the request method.
-   * @param url the request url.
+   * @param target the request target.
    * @param requestHeaders the request headers.
    * @param requestBody the request body.
    * @return the response.
    */
   protected abstract Response handle(final String clientIp, final boolean http2,
-                                     final String method, final HttpUrl url,
+                                     final String method, final RequestTarget target,
                                      final Headers requestHeaders,
                                      @Nullable final Buffer requestBody);
 
 
+  /**
+   * Handles a request asynchronously once the request validation has been performed. The default
+   * implementation calls the synchronous handle method.
+   * @param clientIp the request client ip.
+   * @param http2 true if the request is using http 2 (h2).
+   * @param method the request method.
+   * @param target the request target.
+   * @param requestHeaders the request headers.
+   * @param requestBody the request body.
+   * @return the future response.
+   */
+  protected CompletableFuture<Response> handleAsync(final String clientIp, final boolean http2,
+                                                    final String method, final RequestTarget target,
+                                                    final Headers requestHeaders,
+                                                    @Nullable final Buffer requestBody) {
+    return CompletableFuture.completedFuture(
+      handle(clientIp, http2, method, target, requestHeaders, requestBody)
+    );
+  }
+
   private static final Response FORBIDDEN =
     new Response.Builder().
       statusLine(StatusLines.FORBIDDEN).
@@ -96,55 +140,91 @@ public abstract class AbstractRequestHandler implements RequestHandler {
   /**
    * Creates the response for blacklisted client ips. (403 FORBIDDEN by default).
    * @param method the request method (get, post, ...).
-   * @param url the request url.
+   * @param target the request target.
    * @return the response.
    */
   @SuppressWarnings("unused")
-  protected Response handleBlockedClientIp(final String method, final HttpUrl url) {
+  protected Response handleBlockedClientIp(final String method, final RequestTarget target) {
     return FORBIDDEN;
   }
 
 
+  /**
+   * Returns the rate limiter for the requests of the clients that are allowed (none by default).
+   * @return the rate limiter, or null.
+   */
+  protected @Nullable RateLimiter rateLimiter() {
+    return null;
+  }
+
+  /**
+   * Creates the response for the requests that exceed the rate limit. (429 TOO MANY REQUESTS with a
+   * Retry-After header by default).
+   * @param method the request method (get, post, ...).
+   * @param target the request target.
+   * @param retryAfterSecs the number of seconds after which the request would be allowed.
+   * @return the response.
+   */
+  @SuppressWarnings("unused")
+  protected Response handleRateLimited(final String method, final RequestTarget target,
+                                       final long retryAfterSecs) {
+    return new Response.Builder().
+      statusLine(StatusLines.TOO_MANY_REQUESTS).
+      header("Retry-After", String.valueOf(retryAfterSecs)).
+      noBody().
+      build();
+  }
+
+  private @Nullable Response rateLimit(final String clientIp, final String method, final RequestTarget target,
+                                       final Headers requestHeaders) {
+    final RateLimiter limiter = rateLimiter();
+    if (limiter == null) return null;
+    final long retryAfterSecs = limiter.acquire(clientIp, target, requestHeaders);
+    return retryAfterSecs == 0 ? null : handleRateLimited(method, target, retryAfterSecs);
+  }
+
   /**
    * Returns whether the request is allowed to be insecure (http rather than https) or not.
    * @param method the request method (get, post, ...).
-   * @param url the request url.
+   * @param target the request target.
    * @param requestHeaders the request headers.
    * @param insecureOnly whether the server accepts only insecure connections or whether https is enabled.
    * @return whether the insecure request is allowed or not.
    */
-  protected boolean allowInsecure(final String method, final HttpUrl url, final Headers requestHeaders,
-                                  final boolean insecureOnly) {
-    return insecureOnly || isAcmeChallenge(method, url, requestHeaders);
+  protected boolean allowInsecure(final String method, final RequestTarget target,
+                                  final Headers requestHeaders, final boolean insecureOnly) {
+    return insecureOnly || isAcmeChallenge(method, target, requestHeaders);
   }
 
   /**
    * Returns whether the request is an acme challenge (domain owner verification for certificates like
    * let's encrypt).
    * @param method the request method.
-   * @param url the request url.
+   * @param target the request target.
    * @param requestHeaders the request headers.
    * @return true if the url is for an acme challenge, false if it isn't.
    */
   @SuppressWarnings("unused")
-  protected boolean isAcmeChallenge(final String method, final HttpUrl url, final Headers requestHeaders) {
-    return "GET".equals(method) && url.encodedPath().startsWith("/.well-known/acme-challenge/");
+  protected boolean isAcmeChallenge(final String method, final RequestTarget target,
+                                    final Headers requestHeaders) {
+    return "GET".equals(method) && target.encodedPath().startsWith("/.well-known/acme-challenge/");
   }
 
   /**
    * Creates the response for disallowed insecure requests.
    * @param method the request method (get, post, ...).
-   * @param url the request url.
+   * @param target the request target.
    * @param insecureOnly whether the server accepts only insecure connections or whether https is enabled.
    * @return the response.
    */
   @SuppressWarnings("unused")
-  protected Response handleDisallowedInsecureRequest(final String method, final HttpUrl url,
+  protected Response handleDisallowedInsecureRequest(final String method, final RequestTarget target,
                                                      final boolean insecureOnly) {
     if (insecureOnly) {
       return FORBIDDEN;
     }
     else {
+      final HttpUrl url = target.url();
       final HttpUrl.Builder urlBuilder = url.newBuilder().scheme("https");
       if (url.port() == 8080) {
         urlBuilder.port(8181);
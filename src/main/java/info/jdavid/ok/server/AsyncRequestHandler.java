@@ -0,0 +1,39 @@
+package info.jdavid.ok.server;
+
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.Nullable;
+
+import okhttp3.Headers;
+import okio.Buffer;
+
+
+/**
+ * Request handler that can create the response asynchronously. The connection waits for the future to
+ * complete without calling the handler again, and cancels it if the client disconnects in the meantime.
+ * The synchronous handle method is still used for the responses that can't wait (http 2 push promises).
+ * This needs CompletableFuture (Android API 24+), and the synchronous method is used when it's missing.
+ */
+@SuppressWarnings("WeakerAccess")
+public interface AsyncRequestHandler extends RequestHandler {
+
+  /**
+   * Creates the server response for a given request asynchronously.
+   * @param clientIp the client ip.
+   * @param secure whether the request is secure (over https) or not.
+   * @param insecureOnly whether the server accepts only insecure connections or whether https is enabled.
+   * @param http2 whether the request protocol is HTTP 2 (h2) rather than an HTTP 1.1.
+   * @param method the request method (get, post, ...).
+   * @param target the request target (path, query and authority).
+   * @param requestHeaders the request headers.
+   * @param requestBody the request body.
+   * @return the future response for the request.
+   */
+  public CompletableFuture<Response> handleAsync(final String clientIp,
+                                                 final boolean secure, final boolean insecureOnly,
+                                                 final boolean http2,
+                                                 final String method, final RequestTarget target,
+                                                 final Headers requestHeaders,
+                                                 @Nullable final Buffer requestBody);
+
+}
@@ -0,0 +1,73 @@
+package info.jdavid.ok.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Pool of direct byte buffers. Direct buffers are expensive to allocate and are only released by the
+ * garbage collector, so the buffers used by the TLS connections for wrapping and unwrapping are recycled
+ * rather than allocated per connection.
+ */
+@SuppressWarnings({ "WeakerAccess" })
+final class BufferPool {
+
+  private final int maxPooled;
+  private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooled = new AtomicInteger();
+
+  /**
+   * @param maxPooled the maximum number of idle buffers kept in the pool.
+   */
+  BufferPool(final int maxPooled) {
+    this.maxPooled = maxPooled;
+  }
+
+  /**
+   * Returns a cleared buffer from the pool, or a new one if the pool is empty. Pooled buffers that are too
+   * small are discarded.
+   * @param capacity the minimum capacity.
+   * @return the buffer.
+   */
+  ByteBuffer acquire(final int capacity) {
+    while (true) {
+      final ByteBuffer buffer = buffers.poll();
+      if (buffer == null) return ByteBuffer.allocateDirect(capacity);
+      pooled.decrementAndGet();
+      if (buffer.capacity() >= capacity) {
+        buffer.clear();
+        return buffer;
+      }
+    }
+  }
+
+  /**
+   * Returns a buffer to the pool. The buffer should not be used after this call.
+   * @param buffer the buffer.
+   */
+  void release(final ByteBuffer buffer) {
+    if (!buffer.isDirect()) return;
+    if (pooled.incrementAndGet() > maxPooled) {
+      pooled.decrementAndGet();
+      return;
+    }
+    buffers.offer(buffer);
+  }
+
+  /**
+   * Replaces a buffer with a larger one, keeping its content. Both buffers are expected to be in write
+   * mode (the content is between 0 and the position).
+   * @param buffer the buffer to grow.
+   * @param capacity the minimum capacity of the new buffer.
+   * @return the new buffer.
+   */
+  ByteBuffer grow(final ByteBuffer buffer, final int capacity) {
+    final ByteBuffer grown = acquire(Math.max(capacity, buffer.capacity() * 2));
+    buffer.flip();
+    grown.put(buffer);
+    release(buffer);
+    return grown;
+  }
+
+}
@@ -0,0 +1,181 @@
+package info.jdavid.ok.server;
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.StandardConstants;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+
+/**
+ * Server key manager that holds the keys for all the hosts, possibly with several key types (ECDSA and RSA)
+ * per host.<br>
+ * The JDK asks for an alias for each key type that the client can accept (following the client signature
+ * algorithms for TLS 1.3, and the cipher suites for TLS 1.2), so ECDSA keys are used for the clients that
+ * support them and RSA keys for the others.<br>
+ * The host is taken from the SNI extension of the handshake session, and is looked up in an index built
+ * once: exact host names first, then wildcards (*.example.com matches a.example.com, but neither
+ * example.com nor a.b.example.com), and then the default (primary) keys.
+ */
+@SuppressWarnings({ "WeakerAccess" })
+final class CertificateKeyManager extends X509ExtendedKeyManager {
+
+  static final class Key {
+    final String alias;
+    final PrivateKey privateKey;
+    final X509Certificate[] chain;
+
+    Key(final String alias, final PrivateKey privateKey, final X509Certificate[] chain) {
+      this.alias = alias;
+      this.privateKey = privateKey;
+      this.chain = chain;
+    }
+
+    String keyType() {
+      return privateKey.getAlgorithm();
+    }
+  }
+
+  private final Map<String, Key> aliases = new HashMap<>();
+  private final Map<String, Key[]> exact = new HashMap<>();
+  private final Map<String, Key[]> wildcards = new HashMap<>();
+  private final @Nullable Key[] defaults;
+
+  /**
+   * @param defaults the keys for the primary certificates (used when no host matches).
+   * @param hosts the keys for each host name (or wildcard host name).
+   */
+  CertificateKeyManager(final List<Key> defaults, final Map<String, List<Key>> hosts) {
+    this.defaults = defaults.isEmpty() ? null : index(defaults);
+    for (final Map.Entry<String, List<Key>> entry: hosts.entrySet()) {
+      final String host = entry.getKey().toLowerCase(Locale.US);
+      final Key[] keys = index(entry.getValue());
+      if (host.startsWith("*.")) {
+        wildcards.put(host.substring(2), keys);
+      }
+      else {
+        exact.put(host, keys);
+      }
+    }
+  }
+
+  private Key[] index(final List<Key> keys) {
+    for (final Key key: keys) {
+      aliases.put(key.alias, key);
+    }
+    return keys.toArray(new Key[keys.size()]);
+  }
+
+  /**
+   * Checks that the host name is either a plain name or a wildcard for a whole subdomain (*.example.com).
+   * @param hostname the host name.
+   * @throws IllegalArgumentException if the host name is not valid.
+   */
+  static void validate(final String hostname) {
+    final int wildcard = hostname.lastIndexOf('*');
+    if (wildcard == -1) return;
+    if (wildcard != 0 || !hostname.startsWith("*.") || hostname.length() < 3 ||
+        hostname.indexOf('.', 2) == -1) {
+      throw new IllegalArgumentException("Invalid wildcard host name \"" + hostname + "\".");
+    }
+  }
+
+  /**
+   * Returns the keys for a host name.
+   * @param hostname the host name (from SNI).
+   * @return the keys, or null if there are none.
+   */
+  @Nullable Key[] keys(@Nullable final String hostname) {
+    if (hostname == null) return defaults;
+    final String host = hostname.toLowerCase(Locale.US);
+    final Key[] keys = exact.get(host);
+    if (keys != null) return keys;
+    final int dot = host.indexOf('.');
+    if (dot > 0) {
+      final Key[] wildcardKeys = wildcards.get(host.substring(dot + 1));
+      if (wildcardKeys != null) return wildcardKeys;
+    }
+    return defaults;
+  }
+
+  /**
+   * Returns the alias of the key of the given type for a host name.
+   * @param keyType the key algorithm requested by the JDK (EC, RSA, ...).
+   * @param hostname the host name (from SNI).
+   * @return the alias, or null if there's no key of that type for the host.
+   */
+  @Nullable String alias(final String keyType, @Nullable final String hostname) {
+    final Key[] keys = keys(hostname);
+    if (keys == null) return null;
+    // TLS 1.2 static ECDH key types are "EC_EC" and "EC_RSA".
+    final int separator = keyType.indexOf('_');
+    final String algorithm = separator == -1 ? keyType : keyType.substring(0, separator);
+    for (final Key key: keys) {
+      if (algorithm.equals(key.keyType())) return key.alias;
+    }
+    return null;
+  }
+
+  private static @Nullable String hostname(@Nullable final SSLSession session) {
+    if (!(session instanceof ExtendedSSLSession)) return null;
+    for (final SNIServerName name: ((ExtendedSSLSession)session).getRequestedServerNames()) {
+      if (name.getType() == StandardConstants.SNI_HOST_NAME) {
+        return ((SNIHostName)name).getAsciiName();
+      }
+    }
+    return null;
+  }
+
+  @Override public @Nullable String chooseServerAlias(final String keyType, final Principal[] issuers,
+                                                      @Nullable final Socket socket) {
+    final SSLSession session = socket instanceof SSLSocket ? ((SSLSocket)socket).getHandshakeSession() : null;
+    return alias(keyType, hostname(session));
+  }
+
+  @Override public @Nullable String chooseEngineServerAlias(final String keyType, final Principal[] issuers,
+                                                            @Nullable final SSLEngine engine) {
+    return alias(keyType, hostname(engine == null ? null : engine.getHandshakeSession()));
+  }
+
+  @Override public @Nullable String[] getServerAliases(final String keyType, final Principal[] issuers) {
+    final List<String> list = new ArrayList<>();
+    for (final Key key: aliases.values()) {
+      if (keyType.equals(key.keyType())) list.add(key.alias);
+    }
+    return list.isEmpty() ? null : list.toArray(new String[list.size()]);
+  }
+
+  @Override public @Nullable X509Certificate[] getCertificateChain(final String alias) {
+    final Key key = aliases.get(alias);
+    return key == null ? null : key.chain.clone();
+  }
+
+  @Override public @Nullable PrivateKey getPrivateKey(final String alias) {
+    final Key key = aliases.get(alias);
+    return key == null ? null : key.privateKey;
+  }
+
+  @Override public @Nullable String[] getClientAliases(final String keyType, final Principal[] issuers) {
+    return null;
+  }
+
+  @Override public @Nullable String chooseClientAlias(final String[] keyTypes, final Principal[] issuers,
+                                                      final Socket socket) {
+    return null;
+  }
+
+}
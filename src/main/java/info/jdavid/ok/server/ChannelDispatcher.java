@@ -0,0 +1,476 @@
+package info.jdavid.ok.server;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLHandshakeException;
+
+import static info.jdavid.ok.server.Logger.logger;
+
+
+/**
+ * Dispatcher based on NIO channels.<br>
+ * Plain http connections are handed over to the worker thread pool as soon as they are accepted. For https
+ * connections, the TLS handshake is performed with an SSLEngine by a single selector thread: each handshake
+ * step runs when the socket becomes readable (or writable), so that slow clients don't hold a worker thread
+ * while the handshake is in progress. The tasks delegated by the SSLEngine (the handshake crypto) run on the
+ * worker thread pool, so that a slow handshake doesn't stall the other connections on the selector thread.
+ * Established connections are then handed over to the worker thread pool.<br>
+ * The sockets of https connections don't support SO_TIMEOUT (getSoTimeout() always returns 0): the read and
+ * keep-alive timeouts rely on the okio timeouts, whose watchdog closes the socket when they expire.<br>
+ * ALPN relies on SSLEngine.setHandshakeApplicationProtocolSelector (JDK 9+ or JDK 8u252+). On older
+ * platforms, https connections are limited to http/1.1.
+ */
+@SuppressWarnings({ "WeakerAccess" })
+public class ChannelDispatcher extends Dispatcher<ServerSocketChannel> {
+
+  private ExecutorService mExecutors = null;
+  private final List<HandshakeLoop> mHandshakeLoops = new ArrayList<>(1);
+  private final AtomicBoolean mShutdown = new AtomicBoolean();
+
+  /**
+   * Creates the thread pool that will be used to handle the server requests. By default, it is a
+   * CachedThreadPool.
+   * @return the thread pool.
+   */
+  protected ExecutorService createThreadPool() {
+    return Executors.newCachedThreadPool();
+  }
+
+  /**
+   * Returns the maximum amount of time allowed for the TLS handshake. Connections that haven't completed
+   * their handshake by then are closed. The default is 10 seconds.
+   * @return the timeout in milliseconds.
+   */
+  protected long handshakeTimeoutMillis() {
+    return 10000L;
+  }
+
+  @Override public void start() {
+    mShutdown.set(false);
+    mExecutors = createThreadPool();
+  }
+
+  @Override public void shutdown() {
+    if (mShutdown.getAndSet(true)) return;
+    synchronized (mHandshakeLoops) {
+      for (final HandshakeLoop handshakeLoop: mHandshakeLoops) {
+        handshakeLoop.close();
+      }
+      mHandshakeLoops.clear();
+    }
+    mExecutors.shutdownNow();
+    try {
+      if (!mExecutors.awaitTermination(15, TimeUnit.SECONDS)) {
+        throw new RuntimeException("Failed to stop request handler.");
+      }
+    }
+    catch (final InterruptedException ignore) {}
+    mExecutors = null;
+  }
+
+  @Override
+  protected void initSockets(final int insecurePort, final int securePort, final @Nullable Https https,
+                             final @Nullable InetAddress address) throws IOException {
+    if (insecurePort > 0) {
+      try {
+        insecureSocket = open(insecurePort, address);
+      }
+      catch (final BindException e) {
+        logger.warn("Could not bind to port " + insecurePort + ".", e);
+      }
+    }
+    if (securePort > 0 && https != null) {
+      try {
+        secureSocket = open(securePort, address);
+      }
+      catch (final BindException e) {
+        logger.warn("Could not bind to port " + securePort + ".", e);
+      }
+    }
+  }
+
+  private static ServerSocketChannel open(final int port, final @Nullable InetAddress address) throws IOException {
+    final ServerSocketChannel channel = ServerSocketChannel.open();
+    try {
+      channel.socket().setReuseAddress(true);
+      channel.socket().bind(new InetSocketAddress(address, port));
+      return channel;
+    }
+    catch (final IOException e) {
+      try { channel.close(); } catch (final IOException ignore) {}
+      throw e;
+    }
+  }
+
+  @Override
+  protected void loop(final ServerSocketChannel socket,
+                      final boolean secure, final boolean insecureOnly,
+                      final @Nullable Https https,
+                      final @Nullable String hostname,
+                      final long maxRequestSize,
+                      final KeepAliveStrategy keepAliveStrategy,
+                      final RequestHandler requestHandler) {
+    final HandshakeLoop handshakeLoop;
+    if (secure) {
+      assert https != null;
+      try {
+        handshakeLoop = new HandshakeLoop(https, hostname, maxRequestSize, keepAliveStrategy, requestHandler);
+      }
+      catch (final IOException e) {
+        logger.error(e.getMessage(), e);
+        close(socket);
+        return;
+      }
+      synchronized (mHandshakeLoops) {
+        mHandshakeLoops.add(handshakeLoop);
+      }
+      new Thread(handshakeLoop).start();
+    }
+    else {
+      handshakeLoop = null;
+    }
+    new Thread(new Runnable() {
+      @Override public void run() {
+        try {
+          while (true) {
+            try {
+              if (Thread.currentThread().isInterrupted()) break;
+              final SocketChannel channel = socket.accept();
+              if (!acceptAddress(channel.socket().getInetAddress())) {
+                try { channel.close(); } catch (final IOException ignore) {}
+                continue;
+              }
+              if (handshakeLoop == null) {
+                dispatch(channel.socket(), insecureOnly, maxRequestSize, keepAliveStrategy, requestHandler);
+              }
+              else {
+                handshakeLoop.register(channel);
+              }
+            }
+            catch (final IOException e) {
+              if (!socket.isOpen()) break;
+              logger.warn(secure ? "HTTPS" : "HTTP", e);
+            }
+          }
+        }
+        finally {
+          close(socket);
+          if (handshakeLoop != null) handshakeLoop.close();
+        }
+      }
+    }).start();
+  }
+
+  private void dispatch(final Socket socket, final boolean insecureOnly,
+                        final long maxRequestSize,
+                        final KeepAliveStrategy keepAliveStrategy,
+                        final RequestHandler requestHandler) throws IOException {
+    execute(socket, new Runnable() {
+      @Override public void run() {
+        try {
+          Http11.serve(socket, false, insecureOnly, maxRequestSize, keepAliveStrategy, requestHandler);
+        }
+        catch (final SocketTimeoutException ignore) {}
+        catch (final Exception e) {
+          logger.warn(e.getMessage(), e);
+        }
+      }
+    });
+  }
+
+  private void execute(final Socket socket, final Runnable runnable) throws IOException {
+    final ExecutorService executors = mExecutors;
+    try {
+      if (executors == null) throw new RejectedExecutionException();
+      executors.execute(runnable);
+    }
+    catch (final RejectedExecutionException e) {
+      socket.close();
+    }
+  }
+
+  private final class HandshakeLoop implements Runnable {
+
+    private static final long EXPIRY_INTERVAL_MILLIS = 250L;
+
+    private final Https https;
+    private final @Nullable String hostname;
+    private final long maxRequestSize;
+    private final KeepAliveStrategy keepAliveStrategy;
+    private final RequestHandler requestHandler;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+    // Connections whose delegated tasks are done.
+    private final ConcurrentLinkedQueue<SelectionKey> resumed = new ConcurrentLinkedQueue<>();
+    private final List<Connection> established = new ArrayList<>();
+    private long nextExpiry = 0L;
+
+    HandshakeLoop(final Https https,
+                  final @Nullable String hostname,
+                  final long maxRequestSize,
+                  final KeepAliveStrategy keepAliveStrategy,
+                  final RequestHandler requestHandler) throws IOException {
+      this.https = https;
+      this.hostname = hostname;
+      this.maxRequestSize = maxRequestSize;
+      this.keepAliveStrategy = keepAliveStrategy;
+      this.requestHandler = requestHandler;
+      this.selector = Selector.open();
+    }
+
+    void register(final SocketChannel channel) {
+      accepted.add(channel);
+      selector.wakeup();
+    }
+
+    void close() {
+      try { selector.close(); } catch (final IOException ignore) {}
+    }
+
+    @Override public void run() {
+      try {
+        while (selector.isOpen()) {
+          selector.select(1000L);
+          registerAccepted();
+          SelectionKey resumedKey;
+          while ((resumedKey = resumed.poll()) != null) {
+            if (resumedKey.isValid()) step(resumedKey);
+          }
+          final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+          while (iterator.hasNext()) {
+            final SelectionKey key = iterator.next();
+            iterator.remove();
+            if (key.isValid()) step(key);
+          }
+          expire();
+          dispatchEstablished();
+        }
+      }
+      catch (final ClosedSelectorException ignore) {}
+      catch (final IOException e) {
+        logger.warn(e.getMessage(), e);
+      }
+      finally {
+        try {
+          for (final SelectionKey key: selector.keys()) {
+            ((Connection)key.attachment()).close();
+          }
+        }
+        catch (final ClosedSelectorException ignore) {}
+        close();
+        SocketChannel channel;
+        while ((channel = accepted.poll()) != null) {
+          try { channel.close(); } catch (final IOException ignore) {}
+        }
+      }
+    }
+
+    private void registerAccepted() {
+      final long deadline = System.currentTimeMillis() + handshakeTimeoutMillis();
+      SocketChannel channel;
+      while ((channel = accepted.poll()) != null) {
+        final Connection connection = new Connection(channel, deadline);
+        try {
+          channel.configureBlocking(false);
+          final SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+          // The ClientHello is usually already there.
+          step(key);
+        }
+        catch (final IOException e) {
+          connection.close();
+        }
+      }
+    }
+
+    private void step(final SelectionKey key) {
+      final Connection connection = (Connection)key.attachment();
+      try {
+        final int ops = connection.step();
+        if (ops == 0) {
+          key.cancel();
+          established.add(connection);
+        }
+        else if (ops < 0) {
+          key.cancel();
+          connection.close();
+        }
+        else if (ops == SSLEngineSocket.NEED_TASK) {
+          key.interestOps(0);
+          runDelegatedTasks(key, connection);
+        }
+        else {
+          key.interestOps(ops);
+        }
+      }
+      catch (final SSLHandshakeException e) {
+        key.cancel();
+        connection.logCipherSuites();
+        logger.warn(e.getMessage(), e);
+        connection.close();
+      }
+      catch (final IOException e) {
+        key.cancel();
+        connection.close();
+      }
+    }
+
+    private void runDelegatedTasks(final SelectionKey key, final Connection connection) throws IOException {
+      final SSLEngineSocket socket = connection.socket;
+      assert socket != null;
+      connection.task = true;
+      execute(socket, new Runnable() {
+        @Override public void run() {
+          try {
+            socket.runDelegatedTasks();
+          }
+          finally {
+            connection.task = false;
+            resumed.add(key);
+            selector.wakeup();
+          }
+        }
+      });
+    }
+
+    // The deadlines are checked at most once per interval rather than after each event.
+    private void expire() {
+      final long now = System.currentTimeMillis();
+      if (now < nextExpiry) return;
+      nextExpiry = now + EXPIRY_INTERVAL_MILLIS;
+      for (final SelectionKey key: selector.keys()) {
+        final Connection connection = (Connection)key.attachment();
+        // Connections with delegated tasks in flight are left alone: closing them would close the SSLEngine
+        // under the task. They are checked again on a later pass, once the task is done.
+        if (key.isValid() && !connection.task && connection.deadline < now) {
+          key.cancel();
+          connection.close();
+        }
+      }
+    }
+
+    private void dispatchEstablished() throws IOException {
+      if (established.isEmpty()) return;
+      // Flushes the cancelled keys so that the channels can be switched back to blocking mode.
+      selector.selectNow();
+      for (final Connection connection: established) {
+        final SSLEngineSocket socket = connection.socket;
+        assert socket != null;
+        try {
+          connection.channel.configureBlocking(true);
+          final boolean http2 = socket.http2();
+          final String hostname = connection.hostname == null ?
+                                  this.hostname == null ? "localhost" : this.hostname :
+                                  connection.hostname;
+          execute(socket, new Runnable() {
+            @Override public void run() {
+              try {
+                if (http2) {
+                  Http2.serve(socket, hostname, maxRequestSize, keepAliveStrategy, requestHandler);
+                }
+                else {
+                  Http11.serve(socket, true, false, maxRequestSize, keepAliveStrategy, requestHandler);
+                }
+              }
+              catch (final SocketTimeoutException ignore) {}
+              catch (final Exception e) {
+                logger.warn(e.getMessage(), e);
+              }
+            }
+          });
+        }
+        catch (final IOException e) {
+          connection.close();
+        }
+      }
+      established.clear();
+    }
+
+    private final class Connection {
+      final SocketChannel channel;
+      final long deadline;
+      // Set while the delegated tasks of the handshake run on the worker pool.
+      volatile boolean task = false;
+      @Nullable Handshake handshake = new Handshake();
+      @Nullable String hostname = null;
+      @Nullable SSLEngineSocket socket = null;
+
+      Connection(final SocketChannel channel, final long deadline) {
+        this.channel = channel;
+        this.deadline = deadline;
+      }
+
+      /**
+       * Advances the ClientHello sniffing and then the handshake.
+       * @return the interest set to wait for, 0 once the handshake is complete, or -1 if the connection
+       * should be closed.
+       * @throws IOException if the handshake failed.
+       */
+      int step() throws IOException {
+        SSLEngineSocket socket = this.socket;
+        if (socket == null) {
+          final Handshake handshake = this.handshake;
+          assert handshake != null;
+          final int needed = handshake.read(channel);
+          if (needed < 0) return -1;
+          if (needed > 0) return SelectionKey.OP_READ;
+          hostname = handshake.hostname;
+          socket = this.socket = new SSLEngineSocket(channel, https, handshake);
+        }
+        final int ops = socket.handshake();
+        if (ops == 0) handshake = null;
+        return ops;
+      }
+
+      void logCipherSuites() {
+        final Handshake handshake = this.handshake;
+        if (handshake == null) return;
+        final StringBuilder s = new StringBuilder();
+        boolean addSeparator = false;
+        for (final String value: handshake.getCipherSuites()) {
+          if (addSeparator) {
+            s.append(' ');
+          }
+          else {
+            addSeparator = true;
+          }
+          s.append(value);
+        }
+        logger.info(s.toString());
+      }
+
+      void close() {
+        try {
+          if (socket == null) {
+            channel.close();
+          }
+          else {
+            socket.close();
+          }
+        }
+        catch (final IOException ignore) {}
+      }
+    }
+
+  }
+
+}
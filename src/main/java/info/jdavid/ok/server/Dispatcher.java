@@ -3,6 +3,7 @@ package info.jdavid.ok.server;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -20,6 +21,9 @@ public abstract class Dispatcher<T extends Closeable> {
 
   private final Lock serverSocketLock = new ReentrantLock();
 
+  // Shared with the server, so that the filter can be replaced while the server is running.
+  AtomicReference<IpFilter> ipFilter = new AtomicReference<>();
+
   /**
    * Starts the dispatcher.
    */
@@ -46,6 +50,17 @@ public abstract class Dispatcher<T extends Closeable> {
     }
   }
 
+  /**
+   * Returns whether a newly accepted connection from the specified address should be served, according to
+   * the server ip filter. Connections that are not accepted should be closed right away.
+   * @param address the client address.
+   * @return true if the connection should be served, false if it should be closed.
+   */
+  protected final boolean acceptAddress(final InetAddress address) {
+    final IpFilter filter = ipFilter.get();
+    return filter == null || filter.accept(address);
+  }
+
   protected abstract void loop(final T socket, final boolean secure, final boolean insecureOnly,
                                final @Nullable Https https, final @Nullable String hostname,
                                final long maxRequestSize,
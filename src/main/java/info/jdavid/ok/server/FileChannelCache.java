@@ -0,0 +1,145 @@
+package info.jdavid.ok.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Reference counted cache of open read-only file channels. Concurrent responses for the same file (and E-Tag),
+ * like the ranges of a multipart response or the range requests of a video player, share a single channel
+ * and read it with positional reads, rather than each opening the file and reading it through their own
+ * buffer.<br>
+ * Channels that are not in use anymore are kept open for the next requests, up to a limit; the ones that have
+ * been idle the longest are closed first.<br>
+ * File channels are interruptible: a thread interrupted while reading a shared channel closes it for all the
+ * other readers. Those get a ClosedChannelException; the response bodies then release the closed channel
+ * and acquire a new one (closed channels are replaced) to resume from where they were.
+ */
+@SuppressWarnings({ "WeakerAccess" })
+public final class FileChannelCache {
+
+  static final class Channel {
+    final String key;
+    final FileChannel channel;
+    int references = 1;
+
+    Channel(final String key, final FileChannel channel) {
+      this.key = key;
+      this.channel = channel;
+    }
+  }
+
+  private final int maxIdle;
+  private final Map<String, Channel> channels = new HashMap<>();
+  // Insertion ordered, so that iteration starts with the channel that has been idle the longest.
+  private final Map<String, Channel> idle = new LinkedHashMap<>();
+
+  /**
+   * Creates a cache that keeps up to 16 idle channels open.
+   */
+  public FileChannelCache() {
+    this(16);
+  }
+
+  /**
+   * @param maxIdle the maximum number of channels kept open when they're not in use.
+   */
+  public FileChannelCache(final int maxIdle) {
+    if (maxIdle < 0) throw new IllegalArgumentException();
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * Returns the number of open channels (in use or idle).
+   * @return the number of channels.
+   */
+  public int size() {
+    synchronized (channels) {
+      return channels.size();
+    }
+  }
+
+  /**
+   * Returns the channel for the file version, opening the file if it isn't already. The channel must be
+   * released once it's not needed anymore.
+   * @param file the file.
+   * @param etag the file E-Tag (identifies the file version).
+   * @return the channel.
+   * @throws IOException if the file can't be opened.
+   */
+  Channel acquire(final File file, final String etag) throws IOException {
+    final String key = file.getPath() + '\n' + etag;
+    synchronized (channels) {
+      final Channel channel = channels.get(key);
+      // Channels are closed when a thread is interrupted while reading them.
+      if (channel != null && channel.channel.isOpen()) {
+        if (channel.references++ == 0) idle.remove(key);
+        return channel;
+      }
+    }
+    // The file is opened outside of the lock because it can be slow (network file systems).
+    final FileChannel opened = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    final Channel result;
+    Channel stale = null;
+    synchronized (channels) {
+      final Channel channel = channels.get(key);
+      if (channel != null && channel.channel.isOpen()) {
+        // Another thread opened the file in the mean time.
+        if (channel.references++ == 0) idle.remove(key);
+        result = channel;
+      }
+      else {
+        if (channel != null && idle.remove(key) != null) stale = channel;
+        result = new Channel(key, opened);
+        channels.put(key, result);
+      }
+    }
+    if (result.channel != opened) opened.close();
+    if (stale != null) close(stale);
+    return result;
+  }
+
+  /**
+   * Releases a channel acquired earlier.
+   * @param channel the channel.
+   */
+  void release(final Channel channel) {
+    final List<Channel> closed = new ArrayList<>(1);
+    synchronized (channels) {
+      if (--channel.references == 0) {
+        if (channels.get(channel.key) == channel && channel.channel.isOpen()) {
+          idle.put(channel.key, channel);
+          final Iterator<Channel> iterator = idle.values().iterator();
+          while (idle.size() > maxIdle && iterator.hasNext()) {
+            final Channel oldest = iterator.next();
+            iterator.remove();
+            channels.remove(oldest.key);
+            closed.add(oldest);
+          }
+        }
+        else {
+          closed.add(channel);
+        }
+      }
+    }
+    for (final Channel c: closed) {
+      close(c);
+    }
+  }
+
+  private static void close(final Channel channel) {
+    try {
+      channel.channel.close();
+    }
+    catch (final IOException ignore) {}
+  }
+
+}
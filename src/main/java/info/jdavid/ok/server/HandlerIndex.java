@@ -0,0 +1,162 @@
+package info.jdavid.ok.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import info.jdavid.ok.server.handler.Handler;
+import info.jdavid.ok.server.handler.IndexedHandler;
+
+
+/**
+ * Dispatch index for a chain of handlers, compiled from the hints of the handlers that implement
+ * IndexedHandler. The candidates for a request are found by method and then by the longest literal path
+ * prefix. Only the candidates are asked whether they accept the request, still in the order of the chain.
+ */
+final class HandlerIndex {
+
+  static final class Match {
+    final Handler handler;
+    final String[] params;
+
+    Match(final Handler handler, final String[] params) {
+      this.handler = handler;
+      this.params = params;
+    }
+  }
+
+  private static final class Node {
+    char[] keys = new char[0];
+    Node[] next = new Node[0];
+    // The handlers whose prefix ends at this node.
+    int[] own = new int[0];
+    // The handlers whose prefix ends at this node or at one of its ancestors, in chain order.
+    int[] candidates = new int[0];
+
+    @Nullable Node child(final char c) {
+      final char[] keys = this.keys;
+      for (int i=0; i<keys.length; ++i) {
+        if (keys[i] == c) return next[i];
+      }
+      return null;
+    }
+  }
+
+  private final Handler[] handlers;
+  private final String[] hosts;
+  private final Map<String, Node> roots = new HashMap<>();
+  private final Node anyMethod;
+
+  HandlerIndex(final List<Handler> chain) {
+    final int n = chain.size();
+    handlers = chain.toArray(new Handler[n]);
+    hosts = new String[n];
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    final Collection<String>[] methods = new Collection[n];
+    final String[] prefixes = new String[n];
+    final Set<String> allMethods = new LinkedHashSet<>();
+    for (int i=0; i<n; ++i) {
+      final Handler handler = handlers[i];
+      if (handler instanceof IndexedHandler) {
+        final IndexedHandler indexed = (IndexedHandler)handler;
+        methods[i] = indexed.acceptedMethods();
+        prefixes[i] = indexed.acceptedPathPrefix();
+        hosts[i] = indexed.acceptedHost();
+        if (methods[i] != null) allMethods.addAll(methods[i]);
+      }
+      else {
+        prefixes[i] = "";
+      }
+    }
+    anyMethod = build(methods, prefixes, null);
+    for (final String method: allMethods) {
+      roots.put(method, build(methods, prefixes, method));
+    }
+  }
+
+  private static Node build(final Collection<String>[] methods, final String[] prefixes,
+                            @Nullable final String method) {
+    final Node root = new Node();
+    for (int i=0; i<prefixes.length; ++i) {
+      if (methods[i] != null && (method == null || !methods[i].contains(method))) continue;
+      final String prefix = prefixes[i];
+      Node node = root;
+      for (int j=0; j<prefix.length(); ++j) {
+        final char c = prefix.charAt(j);
+        Node child = node.child(c);
+        if (child == null) {
+          child = new Node();
+          final int k = node.keys.length;
+          final char[] keys = new char[k + 1];
+          System.arraycopy(node.keys, 0, keys, 0, k);
+          keys[k] = c;
+          final Node[] next = new Node[k + 1];
+          System.arraycopy(node.next, 0, next, 0, k);
+          next[k] = child;
+          node.keys = keys;
+          node.next = next;
+        }
+        node = child;
+      }
+      final int[] own = new int[node.own.length + 1];
+      System.arraycopy(node.own, 0, own, 0, node.own.length);
+      own[node.own.length] = i;
+      node.own = own;
+    }
+    propagate(root, new int[0]);
+    return root;
+  }
+
+  private static void propagate(final Node node, final int[] inherited) {
+    // Both arrays are sorted: merge them to keep the chain order.
+    final int[] own = node.own;
+    final int[] candidates = new int[inherited.length + own.length];
+    int i = 0;
+    int j = 0;
+    int k = 0;
+    while (i < inherited.length && j < own.length) {
+      candidates[k++] = inherited[i] < own[j] ? inherited[i++] : own[j++];
+    }
+    while (i < inherited.length) candidates[k++] = inherited[i++];
+    while (j < own.length) candidates[k++] = own[j++];
+    node.candidates = candidates;
+    for (final Node child: node.next) {
+      propagate(child, candidates);
+    }
+  }
+
+  /**
+   * Returns the first handler in the chain that accepts the request.
+   * @param method the request method.
+   * @param target the request target.
+   * @return the handler and the parameters it returned, or null if the request wasn't accepted.
+   */
+  @Nullable Match match(final String method, final RequestTarget target) {
+    final String path = target.encodedPath();
+    Node node = roots.get(method);
+    if (node == null) node = anyMethod;
+    for (int i=0; i<path.length(); ++i) {
+      final Node child = node.child(path.charAt(i));
+      if (child == null) break;
+      node = child;
+    }
+    String host = null;
+    for (final int i: node.candidates) {
+      final String acceptedHost = hosts[i];
+      if (acceptedHost != null) {
+        if (host == null) host = target.host();
+        if (!acceptedHost.equalsIgnoreCase(host)) continue;
+      }
+      final Handler handler = handlers[i];
+      final String[] params = handler.matches(method, target);
+      if (params != null) return new Match(handler, params);
+    }
+    return null;
+  }
+
+}
@@ -1,9 +1,12 @@
 package info.jdavid.ok.server;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
-import java.net.SocketImpl;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -11,28 +14,64 @@ import java.util.Map;
 
 import javax.annotation.Nullable;
 
-import okio.Buffer;
-import okio.BufferedSource;
-import okio.Okio;
-
 
+/**
+ * Peeks at the TLS ClientHello to find the SNI host name and whether h2 is offered (ALPN) before the
+ * SSLSocket is created. The parser only looks up the offsets it needs in the bytes read from the socket,
+ * and those bytes are then handed over to the SSLSocket (as consumed data) rather than pushed back into
+ * the socket stream.<br>
+ * Instances returned by {@link #read(Socket)} are reused by the thread that reads the handshake, and are
+ * only valid until the next call on the same thread. Non-blocking readers create their own instance and
+ * feed it with {@link #read(ReadableByteChannel)}.
+ */
 @SuppressWarnings({ "WeakerAccess" })
 final class Handshake {
 
-  final byte[] cipherSuites;
-  String hostname = null;
-  boolean http2 = false;
+  static final int RECORD_HEADER_SIZE = 5;
+  // Upper bound for the ClientHello records (headers included).
+  static final int MAX_SIZE = 16384 + RECORD_HEADER_SIZE * 4;
+  static final int MAX_RECORDS = 16;
+  static final int TLS12 = 0x0303;
+  static final int TLS13 = 0x0304;
+
+  private static final Charset ASCII = Charset.forName("ASCII");
 
-  Handshake(final byte[] cipherSuites) {
-    this.cipherSuites = cipherSuites;
+  private static final ThreadLocal<Handshake> HANDSHAKES = new ThreadLocal<Handshake>() {
+    @Override protected Handshake initialValue() {
+      return new Handshake();
+    }
+  };
+
+  byte[] bytes = new byte[2048];
+  int size = 0;
+  // raw offset of the payload of each record and logical (handshake message) offset of its end.
+  private final int[] recordOffsets = new int[MAX_RECORDS];
+  private final int[] recordEnds = new int[MAX_RECORDS];
+  private int recordCount = 0;
+  private int cipherSuitesOffset = 0;
+  private int cipherSuitesLength = 0;
+
+  @Nullable String hostname = null;
+  boolean http2 = false;
+  // The highest TLS version offered by the client: the supported_versions extension (TLS 1.3 clients) takes
+  // precedence over the legacy_version field. 0 if the ClientHello couldn't be parsed.
+  int version = 0;
+
+  Handshake() {}
+
+  /**
+   * Returns the bytes that were read from the socket, so that they can be replayed to the SSLSocket.
+   * @return the consumed bytes.
+   */
+  InputStream consumed() {
+    return new ByteArrayInputStream(bytes, 0, size);
   }
 
   String[] getCipherSuites() {
-    final Buffer buffer = new Buffer();
-    buffer.write(cipherSuites);
-    final List<String> list = new ArrayList<>(cipherSuites.length / 2);
-    while (buffer.size() > 0) {
-      final String name = CIPHER_SUITES.get(buffer.readShort());
+    final List<String> list = new ArrayList<>(cipherSuitesLength / 2);
+    final int end = cipherSuitesOffset + cipherSuitesLength;
+    for (int i=cipherSuitesOffset; i+1<end; i+=2) {
+      final String name = CIPHER_SUITES.get((short)u16(i));
       if (name != null) {
         list.add(name);
       }
@@ -42,319 +81,224 @@ final class Handshake {
 
   static final Map<Short, String> CIPHER_SUITES = createCipherSuitesMap();
 
-  static int int24(final byte[] bytes) {
-    return ((bytes[0] & 0xff) << 16) | ((bytes[1] & 0xff) << 8) | (bytes[2] & 0xff);
-  }
-
-  @SuppressWarnings("unused")
+  /**
+   * Reads the ClientHello. All the bytes read from the socket are kept and should be replayed with
+   * {@link #consumed()}. The host name and the protocols are only set if the ClientHello could be parsed.
+   * @param socket the socket.
+   * @return the handshake, or null if the connection was closed or if it doesn't start with a TLS handshake.
+   * @throws IOException if reading from the socket failed.
+   */
   static @Nullable Handshake read(final Socket socket) throws IOException {
-    final InputStream inputStream = socket.getInputStream();
-    if (!inputStream.markSupported()) throw new IOException();
-    inputStream.mark(4096);
-    try {
-      final BufferedSource source = Okio.buffer(Okio.source(inputStream));
-
-      int size = 0;
-
-      final byte recordType = source.readByte();
-      ++size;
-      if (recordType != 0x16) return null; // handshake
-
-      final byte major = source.readByte();
-      ++size;
-      final byte minor = source.readByte();
-      ++size;
-
-      final short recordLength = source.readShort();
-      size += 2;
-
-      final byte hello = source.readByte();
-      size += 2;
-      if (hello != 0x01) return null;
-
-      final byte[] lengthBytes = source.readByteArray(3);
-      size += 3;
-      final int handshakeLength = int24(lengthBytes);
-      if (handshakeLength < recordLength - 4) return null; // Handshake record is longer than TLS record
-      if (handshakeLength < 40) return null;
-
-      final byte helloMajor = source.readByte();
-      ++size;
-      final byte helloMinor = source.readByte();
-      ++size;
-
-      final byte[] random = source.readByteArray(32);
-      size += 32;
-
-      final byte sessionIdLength = source.readByte();
-      size += 1;
-      final byte[] sessionId = source.readByteArray(sessionIdLength);
-      size += sessionIdLength;
-
-      final short cipherSuitesLength = source.readShort();
-      size += 2;
-      final byte[] cipherSuites = source.readByteArray(cipherSuitesLength);
-      size += cipherSuitesLength;
-
-      final byte compressionMethodsLength = source.readByte();
-      size += 1;
-      final byte[] compressionMethods = source.readByteArray(compressionMethodsLength);
-      size += compressionMethodsLength;
-
-      final Handshake handshake = new Handshake(cipherSuites);
-
-      if (size < handshakeLength + 9) {
-
-        final short extensionsLength = source.readShort();
-        size += 2;
-        int len = extensionsLength;
-
-        while (len > 0) {
-
-          final short extensionType = source.readShort();
-          size += 2;
-          final short extensionLength = source.readShort();
-          size += 2;
-
-          final byte[] extension = source.readByteArray(extensionLength);
-          size += extensionLength;
-
-          len -= extensionLength + 4;
-
-          switch (extensionType) {
-
-            case 0x0000: // server_name RFC6066
-              if (extensionLength > 3) {
-                final Buffer b = new Buffer();
-                b.write(extension);
-                while (b.size() > 0) {
-                  b.readShort(); // list_length, ignored since list always has one element.
-                  final byte nameType = b.readByte();
-                  final short nameLength = b.readShort();
-                  final String name = b.readUtf8(nameLength);
-                  if (nameType == 0x00) { // host_name
-                    handshake.hostname = name;
-                    break;
-                  }
-                }
-              }
-              break;
-
-            case 0x0001: // max_fragment_length
-              break;
-
-            case 0x0002: // client_certificate_url
-              break;
-
-            case 0x0003: // trusted_ca_keys
-              break;
-
-            case 0x0004: // truncated_hmac
-              break;
-
-            case 0x0005: // status_request
-              break;
-
-            case 0x0006: // user_mapping
-              break;
-
-            case 0x0007: // client_authz
-              break;
-
-            case 0x0008: // server_authz
-              break;
-
-            case 0x0009: // cert_type
-              break;
-
-            case 0x000a: // supported_groups (elliptic_curves)
-              break;
-
-            case 0x000b: // ec_point_formats
-              break;
-
-            case 0x000c: // srp
-              break;
-
-            case 0x000d: // signature_algorithms
-              break;
-
-            case 0x000e: // use_srtp
-              break;
-
-            case 0x000f: // heartbeat
-              break;
-
-            case 0x0010: // application_layer_protocol_negotiation (alpn)
-              if (extensionLength > 3) {
-                final Buffer b = new Buffer();
-                b.write(extension);
-                b.readShort(); // list_length, ignored
-                while (b.size() > 0) {
-                  final short protocolNameLength = b.readByte();
-                  final String protocolName = b.readUtf8(protocolNameLength);
-                  if ("h2".equals(protocolName)) handshake.http2 = true;
-                }
-              }
-              break;
-
-            case 0x0011: // status_request_v2
-              break;
-
-            case 0x0012: // signed_certificate_timestamp
-              break;
-
-            case 0x0013: // client_certificate_type
-              break;
-
-            case 0x0014: // server_certificate_type
-              break;
-
-            case 0x0015: // padding
-              break;
-
-            case 0x0016: // encrypt_then_mac
-              break;
-
-            case 0x0017: // extended_master_secret
-              break;
-
-            case 0x0018: // token_binding
-              break;
-
-            case 0x0019: // cached_info
-              break;
-
-            case 0x0023: // SessionTicket TLS
-              break;
-
-            case -0xff: // renegotiation_info
-              break;
-
-            default:
-              break;
-
-          }
-        }
+    final Handshake handshake = HANDSHAKES.get();
+    handshake.reset();
+    final InputStream in = socket.getInputStream();
+    while (true) {
+      final int needed = handshake.scan();
+      if (needed < 0) return null;
+      if (needed == 0) return handshake;
+      if (!handshake.fill(in, handshake.size + needed)) {
+        return handshake.size < RECORD_HEADER_SIZE ? null : handshake;
       }
-
-      return handshake;
-    }
-    finally {
-      inputStream.reset();
     }
   }
 
-  static class HandshakeSocket extends Socket {
-
-    private InputStream mBuffered = null;
-
-    HandshakeSocket() throws IOException {
-      super((SocketImpl)null);
+  /**
+   * Reads the ClientHello bytes that are currently available from a non-blocking channel. This should be
+   * called again each time the channel becomes readable, until it returns 0. The instance should not be
+   * shared (it should be created with the package-private constructor rather than retrieved from
+   * {@link #read(Socket)}).
+   * @param channel the non-blocking channel.
+   * @return the number of bytes still needed (&gt; 0), 0 once the ClientHello has been read (or if it can't
+   * be parsed), or -1 if the connection was closed or if it doesn't start with a TLS handshake.
+   * @throws IOException if reading from the channel failed.
+   */
+  int read(final ReadableByteChannel channel) throws IOException {
+    while (true) {
+      final int needed = scan();
+      if (needed <= 0) return needed;
+      ensureCapacity(size + needed);
+      final int n = channel.read(ByteBuffer.wrap(bytes, size, needed));
+      if (n == -1) return -1;
+      if (n == 0) return needed;
+      size += n;
     }
+  }
 
-    @Override public InputStream getInputStream() throws IOException {
-      return mBuffered == null ? mBuffered = new InputStream(super.getInputStream()) : mBuffered;
-    }
+  private void reset() {
+    if (bytes.length > 2048) bytes = new byte[2048];
+    size = 0;
+    recordCount = 0;
+    cipherSuitesOffset = 0;
+    cipherSuitesLength = 0;
+    hostname = null;
+    http2 = false;
+    version = 0;
+  }
 
-    @Override
-    public synchronized void close() throws IOException {
-      mBuffered = null;
-      super.close();
+  private void ensureCapacity(final int target) {
+    if (target > bytes.length) {
+      final byte[] grown = new byte[Math.min(MAX_SIZE, Math.max(target, bytes.length * 2))];
+      System.arraycopy(bytes, 0, grown, 0, size);
+      bytes = grown;
     }
+  }
 
-    static class InputStream extends java.io.InputStream {
-
-      private final java.io.InputStream mDelegate;
-      private final byte mBuffer[] = new byte[4096];
-      private int mBufferPosition = 0;
-      private int mBufferSize = 0;
-      private boolean mReset = false;
+  private boolean fill(final InputStream in, final int target) throws IOException {
+    ensureCapacity(target);
+    while (size < target) {
+      final int n = in.read(bytes, size, target - size);
+      if (n == -1) return false;
+      size += n;
+    }
+    return true;
+  }
 
-      InputStream(final java.io.InputStream inputStream) {
-        super();
-        this.mDelegate = inputStream;
+  /**
+   * Looks at the records read so far.
+   * @return the number of bytes needed to complete the next record, 0 if the ClientHello is complete (it is
+   * then parsed) or if it can't be parsed, or -1 if the data doesn't start with a TLS handshake record.
+   */
+  private int scan() {
+    if (size < RECORD_HEADER_SIZE) return RECORD_HEADER_SIZE - size;
+    if (bytes[0] != 0x16) return -1; // handshake
+    recordCount = 0;
+    int end = -1; // logical end of the ClientHello message.
+    int available = 0; // logical length of the handshake data read so far.
+    int offset = 0;
+    while (true) {
+      if (recordCount == MAX_RECORDS) return 0;
+      if (size < offset + RECORD_HEADER_SIZE) return offset + RECORD_HEADER_SIZE - size;
+      if (bytes[offset] != 0x16) return 0;
+      final int recordLength = ((bytes[offset + 3] & 0xff) << 8) | (bytes[offset + 4] & 0xff);
+      if (recordLength == 0) return 0;
+      final int next = offset + RECORD_HEADER_SIZE + recordLength;
+      if (next > MAX_SIZE) return 0;
+      if (size < next) return next - size;
+      recordOffsets[recordCount] = offset + RECORD_HEADER_SIZE;
+      recordEnds[recordCount] = available += recordLength;
+      ++recordCount;
+      offset = next;
+      if (end == -1 && available >= 4) {
+        if (u8(0) != 0x01) return 0; // client_hello
+        end = 4 + ((u8(1) << 16) | u16(2));
+        if (end > MAX_SIZE) return 0;
       }
-
-      @Override public int read() throws IOException {
-        if (mReset) {
-          if (mBufferPosition == mBufferSize) {
-            return mDelegate.read();
-          }
-          else {
-            return mBuffer[mBufferPosition++] & 0xff;
-          }
-        }
-        else {
-          if (mBuffer.length == mBufferSize) throw new IOException();
-          final int n = mDelegate.read(mBuffer, mBufferSize, 1);
-          if (n == -1) return -1;
-          final byte b = mBuffer[mBufferPosition];
-          mBufferPosition += n;
-          mBufferSize += n;
-          return b & 0xff;
-        }
+      if (end != -1 && available >= end) {
+        parse(end);
+        return 0;
       }
+    }
+  }
 
-      @Override public int read(final byte[] b) throws IOException {
-        return read(b, 0, b.length);
+  private void parse(final int end) {
+    int p = 4 + 2 + 32; // header, legacy_version, random
+    if (p + 1 > end) return;
+    version = u16(4);
+    p += 1 + u8(p); // legacy_session_id
+    if (p + 2 > end) return;
+    cipherSuitesLength = u16(p);
+    cipherSuitesOffset = p + 2;
+    p += 2 + cipherSuitesLength;
+    if (p + 1 > end) return;
+    p += 1 + u8(p); // legacy_compression_methods
+    if (p + 2 > end) return;
+    final int extensionsEnd = Math.min(end, p + 2 + u16(p));
+    p += 2;
+    while (p + 4 <= extensionsEnd) {
+      final int type = u16(p);
+      final int length = u16(p + 2);
+      p += 4;
+      if (p + length > extensionsEnd) return;
+      switch (type) {
+        case 0x0000: // server_name RFC6066
+          serverName(p, p + length);
+          break;
+        case 0x0010: // application_layer_protocol_negotiation (alpn)
+          alpn(p, p + length);
+          break;
+        case 0x002b: // supported_versions RFC8446
+          supportedVersions(p, p + length);
+          break;
+        default:
+          break;
       }
+      p += length;
+    }
+  }
 
-      @Override public int read(final byte[] b, final int off, final int len) throws IOException {
-        if (mReset) {
-          if (mBufferPosition == mBufferSize) {
-            return mDelegate.read(b, off, len);
-          }
-          else {
-            final int n = Math.min(len, mBuffer.length - mBufferSize);
-            System.arraycopy(mBuffer, mBufferPosition, b, off, n);
-            mBufferPosition += n;
-            return n;
-          }
-        }
-        else {
-          if (mBuffer.length == mBufferSize) throw new IOException();
-          final int n = mDelegate.read(mBuffer, mBufferPosition, Math.min(len, mBuffer.length - mBufferSize));
-          if (n == -1) return -1;
-          System.arraycopy(mBuffer, mBufferPosition, b, off, n);
-          mBufferPosition += n;
-          mBufferSize += n;
-          return n;
-        }
+  private void serverName(final int start, final int end) {
+    if (start + 2 > end) return;
+    final int listEnd = Math.min(end, start + 2 + u16(start));
+    int p = start + 2;
+    while (p + 3 <= listEnd) {
+      final int nameType = u8(p);
+      final int nameLength = u16(p + 1);
+      p += 3;
+      if (p + nameLength > listEnd) return;
+      if (nameType == 0x00) { // host_name
+        hostname = ascii(p, nameLength);
+        return;
       }
+      p += nameLength;
+    }
+  }
 
-      @Override public int available() throws IOException {
-        if (mReset) {
-          if (mBufferPosition == mBufferSize) {
-            return mDelegate.available();
-          }
-          else {
-            return mBufferSize - mBufferPosition;
-          }
-        }
-        else {
-          return mDelegate.available();
-        }
+  private void alpn(final int start, final int end) {
+    if (start + 2 > end) return;
+    final int listEnd = Math.min(end, start + 2 + u16(start));
+    int p = start + 2;
+    while (p + 1 <= listEnd) {
+      final int length = u8(p++);
+      if (p + length > listEnd) return;
+      if (length == 2 && u8(p) == 'h' && u8(p + 1) == '2') {
+        http2 = true;
+        return;
       }
+      p += length;
+    }
+  }
 
-      @Override public void close() throws IOException {
-        mDelegate.close();
-      }
+  private void supportedVersions(final int start, final int end) {
+    if (start + 1 > end) return;
+    final int listEnd = Math.min(end, start + 1 + u8(start));
+    int max = 0;
+    for (int p=start+1; p+2<=listEnd; p+=2) {
+      final int v = u16(p);
+      // GREASE values (RFC8701) are ignored.
+      if ((v & 0x0f0f) != 0x0a0a && v > max) max = v;
+    }
+    if (max != 0) version = max;
+  }
 
-      @Override public synchronized void mark(final int readlimit) {}
+  private int raw(final int position) {
+    if (recordCount == 1) return RECORD_HEADER_SIZE + position;
+    int start = 0;
+    for (int i=0; i<recordCount; ++i) {
+      final int recordEnd = recordEnds[i];
+      if (position < recordEnd) return recordOffsets[i] + position - start;
+      start = recordEnd;
+    }
+    throw new IndexOutOfBoundsException();
+  }
 
-      @Override public synchronized void reset() throws IOException {
-        if (mReset) throw new IOException();
-        mBufferPosition = 0;
-        mReset = true;
-      }
+  private int u8(final int position) {
+    return bytes[raw(position)] & 0xff;
+  }
 
-      @Override public boolean markSupported() {
-        return true;
-      }
+  private int u16(final int position) {
+    return (u8(position) << 8) | u8(position + 1);
+  }
 
+  private String ascii(final int position, final int length) {
+    final int start = raw(position);
+    if (length == 0 || raw(position + length - 1) == start + length - 1) {
+      return new String(bytes, start, length, ASCII);
     }
-
+    final StringBuilder s = new StringBuilder(length);
+    for (int i=0; i<length; ++i) {
+      s.append((char)u8(position + i));
+    }
+    return s.toString();
   }
 
   static Map<Short, String> createCipherSuitesMap() {
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
@@ -64,12 +65,42 @@ class Http11 {
     }
   }
 
+  /**
+   * Checks if the client closed the connection, by trying to read with a very short timeout. Pipelined
+   * requests are left in the buffer. SSLEngine sockets don't support read timeouts, and are checked with a
+   * non-blocking read on their channel instead.
+   */
+  static boolean disconnected(final Socket socket, final BufferedSource in) throws IOException {
+    if (socket.isClosed()) return true;
+    if (in.getBuffer().size() > 0) return false;
+    if (socket instanceof SSLEngineSocket) return ((SSLEngineSocket)socket).peerClosed();
+    final int soTimeout = socket.getSoTimeout();
+    socket.setSoTimeout(1);
+    try {
+      return !in.request(1L);
+    }
+    catch (final SocketTimeoutException ignore) {
+      return false;
+    }
+    finally {
+      if (!socket.isClosed()) socket.setSoTimeout(soTimeout);
+    }
+  }
+
   static void serve(final Socket socket, final boolean secure, final boolean insecureOnly,
                     final long maxRequestSize,
                     final KeepAliveStrategy keepAliveStrategy,
                     final RequestHandler requestHandler) throws IOException {
     final BufferedSource in = Okio.buffer(Okio.source(socket));
     final BufferedSink out = Okio.buffer(Okio.sink(socket));
+    // Sockets accepted from a channel can send file bodies without copying them (sendfile).
+    final WritableByteChannel channel = secure ? null : socket.getChannel();
+    final RequestHandler.Helper.Client client = new RequestHandler.Helper.Client() {
+      @Override public boolean disconnected() throws IOException {
+        return Http11.disconnected(socket, in);
+      }
+    };
+    boolean detached = false;
     try {
       final String clientIp = socket.getInetAddress().getHostAddress();
       int reuseCounter = 0;
@@ -166,7 +197,8 @@ class Http11 {
                   if (length == 0) {
                     response = RequestHandler.Helper.handle(requestHandler, clientIp,
                                                             secure, insecureOnly, false,
-                                                            method, path, headersBuilder.build(), null);
+                                                            method, path, headersBuilder.build(), null,
+                                                            client);
                   }
                   else if (length < 0 || "chunked".equals(headersBuilder.get("Transfer-Encoding"))) {
                     if (useBody) {
@@ -238,13 +270,15 @@ class Http11 {
                       else {
                         response = RequestHandler.Helper.handle(requestHandler, clientIp,
                                                                 secure, insecureOnly, false,
-                                                                method, path, headersBuilder.build(), body);
+                                                                method, path, headersBuilder.build(), body,
+                                                                client);
                       }
                     }
                     else {
                       response = RequestHandler.Helper.handle(requestHandler, clientIp,
                                                               secure, insecureOnly, false,
-                                                              method, path, headersBuilder.build(), null);
+                                                              method, path, headersBuilder.build(), null,
+                                                              client);
                     }
                   }
                   else { // length > 0
@@ -254,12 +288,14 @@ class Http11 {
                       body.flush();
                       response = RequestHandler.Helper.handle(requestHandler, clientIp,
                                                               secure, insecureOnly, false,
-                                                              method, path, headersBuilder.build(), body);
+                                                              method, path, headersBuilder.build(), body,
+                                                              client);
                     }
                     else {
                       response = RequestHandler.Helper.handle(requestHandler, clientIp,
                                                               secure, insecureOnly, false,
-                                                              method, path, headersBuilder.build(), null);
+                                                              method, path, headersBuilder.build(), null,
+                                                              client);
                     }
                   }
                 }
@@ -267,6 +303,7 @@ class Http11 {
             }
           }
         }
+        if (response == null) break; // the client disconnected while waiting for an async response.
 
         out.writeUtf8(response.protocol().toString().toUpperCase(Locale.US));
         out.writeUtf8(" ");
@@ -285,9 +322,14 @@ class Http11 {
         out.writeUtf8("\r\n");
         out.flush();
 
-        response.writeBody(in, out);
+        if (channel == null || !response.transferBody(channel)) response.writeBody(in, out);
+        if (response.detach(socket)) {
+          detached = true;
+          break;
+        }
 
-        if (Connection.CLOSE.equalsIgnoreCase(response.header(Connection.HEADER))) break;
+        if (!response.delimited() ||
+            Connection.CLOSE.equalsIgnoreCase(response.header(Connection.HEADER))) break;
       }
     }
     catch (final SocketTimeoutException ignore) {}
@@ -296,9 +338,11 @@ class Http11 {
       throw new IOException(e);
     }
     finally {
-      try { in.close(); } catch (final IOException ignore) {}
-      try { out.close(); } catch (final IOException ignore) {}
-      try { socket.close(); } catch (final IOException ignore) {}
+      if (!detached) {
+        try { in.close(); } catch (final IOException ignore) {}
+        try { out.close(); } catch (final IOException ignore) {}
+        try { socket.close(); } catch (final IOException ignore) {}
+      }
     }
   }
 
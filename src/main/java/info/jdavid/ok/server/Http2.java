@@ -1,6 +1,7 @@
 package info.jdavid.ok.server;
 
 import java.io.IOException;
+import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
@@ -9,11 +10,11 @@ import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
-import javax.net.ssl.SSLSocket;
 
 import info.jdavid.ok.server.header.ETag;
 import okhttp3.*;
 import okhttp3.internal.Util;
+import okhttp3.internal.http2.ErrorCode;
 import okhttp3.internal.http2.Http2Connection;
 import okhttp3.internal.http2.Http2Stream;
 import okhttp3.internal.http2.Header;
@@ -35,7 +36,7 @@ import static okhttp3.internal.http2.Header.TARGET_SCHEME;
 @SuppressWarnings({ "WeakerAccess" })
 class Http2 {
 
-  static void serve(final SSLSocket socket, final String hostname,
+  static void serve(final Socket socket, final String hostname,
                     final long maxRequestSize,
                     final KeepAliveStrategy keepAliveStrategy,
                     final RequestHandler requestHandler) throws IOException {
@@ -84,6 +85,8 @@ class Http2 {
       new Header(Header.RESPONSE_STATUS, ByteString.encodeUtf8(String.valueOf(response.code())))
     );
     for (int i=0; i<size; ++i) {
+      // Connection specific headers are not allowed in h2 (the body is sent as data frames).
+      if ("Transfer-Encoding".equalsIgnoreCase(headers.name(i))) continue;
       final ByteString name = ByteString.encodeUtf8(headers.name(i));
       final ByteString value = ByteString.encodeUtf8(headers.value(i));
       responseHeaders.add(new Header(name.toAsciiLowercase(), value));
@@ -128,16 +131,16 @@ class Http2 {
       for (int i = 0; i<requestHeaderList.size(); ++i) {
         final String name = requestHeaderList.name(i);
         if (name.length() > 0 && name.charAt(0) == ':') {
-          if (Header.TARGET_METHOD.equals(name)) {
+          if (Header.TARGET_METHOD_UTF8.equals(name)) {
             method = requestHeaderList.value(i);
           }
-          else if (Header.TARGET_SCHEME.equals(name)) {
+          else if (Header.TARGET_SCHEME_UTF8.equals(name)) {
             scheme = requestHeaderList.value(i);
           }
-          else if (Header.TARGET_AUTHORITY.equals(name)) {
+          else if (Header.TARGET_AUTHORITY_UTF8.equals(name)) {
             authority = requestHeaderList.value(i);
           }
-          else if (Header.TARGET_PATH.equals(name)) {
+          else if (Header.TARGET_PATH_UTF8.equals(name)) {
             path = requestHeaderList.value(i);
           }
         }
@@ -146,11 +149,17 @@ class Http2 {
         }
       }
 
-      final HttpUrl requestUrl = url(scheme, authority, path);
+      final RequestTarget requestTarget = target(scheme, authority, path);
       final BufferedSource source = Okio.buffer(stream.getSource());
+      final RequestHandler.Helper.Client client = new RequestHandler.Helper.Client() {
+        @Override public boolean disconnected() {
+          // The error code is set when the stream is reset by the client or the connection is closed.
+          return stream.getErrorCode() != null;
+        }
+      };
 
       final Response response;
-      if (method == null || requestUrl == null) {
+      if (method == null || requestTarget == null) {
         response = new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody().build();
       }
       else if ("100-continue".equals(requestHeaders.get("Expect"))) {
@@ -166,16 +175,18 @@ class Http2 {
         }
         else {
           if (length == 0) {
-            response = handler.handle(clientIp, true, false,true, method, requestUrl,
-                                      requestHeaders.build(), null);
+            response = RequestHandler.Helper.handle(handler, clientIp, true, false, true,
+                                                    method, requestTarget, requestHeaders.build(), null,
+                                                    client);
           }
           else if (length < 0) {
             if (useBody) {
               response = new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody().build();
             }
             else {
-              response = handler.handle(clientIp, true, false,true,
-                                        method, requestUrl, requestHeaders.build(), null);
+              response = RequestHandler.Helper.handle(handler, clientIp, true, false, true,
+                                                      method, requestTarget, requestHeaders.build(), null,
+                                                      client);
             }
           }
           else {
@@ -183,23 +194,36 @@ class Http2 {
               final Buffer body = new Buffer();
               if (stream.isOpen()) source.readFully(body, length);
               body.flush();
-              response = handler.handle(clientIp, true, false,true,
-                                        method, requestUrl, requestHeaders.build(), body);
+              response = RequestHandler.Helper.handle(handler, clientIp, true, false, true,
+                                                      method, requestTarget, requestHeaders.build(), body,
+                                                      client);
             }
             else {
-              response = handler.handle(clientIp, true, false,true,
-                                        method, requestUrl, requestHeaders.build(), null);
+              response = RequestHandler.Helper.handle(handler, clientIp, true, false, true,
+                                                      method, requestTarget, requestHeaders.build(), null,
+                                                      client);
             }
           }
         }
       }
 
+      if (response == null) { // the client cancelled the stream while waiting for an async response.
+        source.close();
+        stream.close(ErrorCode.CANCEL, null);
+        return;
+      }
       final List<Header> responseHeaders = responseHeaders(response);
       source.close();
-      stream.writeHeaders(responseHeaders, true,true);
+      final boolean noBody = "0".equals(response.header("Content-Length"));
+      stream.writeHeaders(responseHeaders, noBody, true);
       final BufferedSink sink = Okio.buffer(stream.getSink());
+      boolean detached = false;
       try {
-        response.writeBody(source, sink);
+        if (!noBody) {
+          response.writeHttp2Body(source, sink);
+          // Closing the sink ends the stream, and is left to the response if it keeps writing.
+          detached = response.detach(sink);
+        }
         requestHeaders.removeAll(ETag.IF_NONE_MATCH);
 
         final Http2Connection connection = stream.getConnection();
@@ -221,39 +245,35 @@ class Http2 {
               pushHeaderList.add(new Header(name, headers.value(i)));
             }
             final Response pushResponse =
-              handler.handle(clientIp, true, false,true, method, push,
+              handler.handle(clientIp, true, false,true, method, RequestTarget.create(push),
                              requestHeaders.build(), null);
             final Http2Stream pushStream = connection.pushStream(stream.getId(), pushHeaderList, true);
-            pushStream.writeHeaders(responseHeaders(pushResponse), true,true);
-            final BufferedSink pushSink = Okio.buffer(pushStream.getSink());
-            try {
-              pushResponse.writeBody(null, pushSink);
-            }
-            finally {
-              pushSink.close();
+            final boolean pushNoBody = "0".equals(pushResponse.header("Content-Length"));
+            pushStream.writeHeaders(responseHeaders(pushResponse), pushNoBody, true);
+            if (!pushNoBody) {
+              final BufferedSink pushSink = Okio.buffer(pushStream.getSink());
+              try {
+                pushResponse.writeHttp2Body(null, pushSink);
+              }
+              finally {
+                pushSink.close();
+              }
             }
           }
         }
       }
       finally {
-        sink.close();
+        if (!detached) sink.close();
       }
     }
   }
 
-  private static @Nullable HttpUrl url(@Nullable final String scheme,
-                                       @Nullable final String authority,
-                                       @Nullable final String path) {
+  private static @Nullable RequestTarget target(@Nullable final String scheme,
+                                                @Nullable final String authority,
+                                                @Nullable final String path) {
     if (scheme == null || authority == null || path == null) return null;
-    final int i = authority.indexOf(':');
-    final String host = i == -1 ? authority : authority.substring(0, i);
-    final int port = i == -1 ? 0 : Integer.valueOf(authority.substring(i+1));
-
-    final HttpUrl.Builder url = new HttpUrl.Builder().
-      scheme(scheme).host(host).
-      addEncodedPathSegments(path.indexOf('/') == 0 ? path.substring(1) : path);
-    if (port > 0) url.port(port);
-    return url.build();
+    if (path.isEmpty() || path.charAt(0) != '/') return null;
+    return new RequestTarget("https".equals(scheme), authority, path);
   }
 
 }
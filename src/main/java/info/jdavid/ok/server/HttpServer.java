@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.BindException;
 import java.net.InetAddress;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
 
@@ -22,10 +23,11 @@ public class HttpServer {
   int securePort = 8181; // 443
   String hostname = null;
   long maxRequestSize = 65536;
-  Dispatcher dispatcher = null;
+  Dispatcher<?> dispatcher = null;
   KeepAliveStrategy keepAliveStrategy = KeepAliveStrategy.DEFAULT;
   RequestHandler requestHandler = null;
   Https https = null;
+  final AtomicReference<IpFilter> ipFilter = new AtomicReference<>();
 
   /**
    * Sets the port number for the server. You can use 0 for "none" (to disable the port binding).
@@ -177,14 +179,14 @@ public class HttpServer {
    * @throws IllegalArgumentException if the dispatcher is not suitable.
    */
   @SuppressWarnings("unused")
-  protected void validateDispatcher(final Dispatcher dispatcher) {}
+  protected void validateDispatcher(final Dispatcher<?> dispatcher) {}
 
   /**
    * Sets a custom dispatcher.
    * @param dispatcher the dispatcher responsible for distributing the connection requests.
    * @return this
    */
-  public final HttpServer dispatcher(final Dispatcher dispatcher) {
+  public final HttpServer dispatcher(final Dispatcher<?> dispatcher) {
     if (started.get()) {
       throw new IllegalStateException("The dispatcher cannot be changed while the server is running.");
     }
@@ -215,8 +217,28 @@ public class HttpServer {
     return this;
   }
 
-  private Dispatcher dispatcher() {
-    Dispatcher dispatcher = this.dispatcher;
+  /**
+   * Sets the filter for the client addresses. Connections from addresses that are not allowed are closed as
+   * soon as they are accepted. Unlike the other settings, the filter can be replaced while the server is
+   * running; connections that are already established are not affected.
+   * @param filter the ip filter, or null to accept all clients.
+   * @return this
+   */
+  public final HttpServer ipFilter(@Nullable final IpFilter filter) {
+    ipFilter.set(filter);
+    return this;
+  }
+
+  /**
+   * Returns the filter for the client addresses.
+   * @return the ip filter, or null if all clients are accepted.
+   */
+  public final @Nullable IpFilter ipFilter() {
+    return ipFilter.get();
+  }
+
+  private Dispatcher<?> dispatcher() {
+    Dispatcher<?> dispatcher = this.dispatcher;
     if (dispatcher == null) {
       dispatcher = this.dispatcher = new SocketDispatcher.Default();
     }
@@ -268,7 +290,8 @@ public class HttpServer {
       if (handler instanceof AbstractRequestHandler) {
         ((AbstractRequestHandler)handler).init();
       }
-      final Dispatcher dispatcher = dispatcher();
+      final Dispatcher<?> dispatcher = dispatcher();
+      dispatcher.ipFilter = ipFilter;
       dispatcher.start();
       final InetAddress address;
       if (hostname == null) {
@@ -5,18 +5,28 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
 import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.security.KeyStore;
+import java.security.PrivateKey;
 import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
-import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
@@ -34,27 +44,30 @@ import static info.jdavid.ok.server.Logger.logger;
 public final class Https {
 
   final SSLContext context;
-  final Map<String, SSLContext> additionalContexts;
+  final CertificateKeyManager keyManager;
   final Platform platform;
   final String[] protocols;
   final String[] cipherSuites;
   final boolean http2;
+  private final AtomicLong fullHandshakes = new AtomicLong();
+  private final AtomicLong abbreviatedHandshakes = new AtomicLong();
 
-  private Https(@Nullable final byte[] cert,
-                @Nullable final Map<String, byte[]> additionalCerts,
+  private Https(final List<byte[]> certs,
+                final Map<String, List<byte[]>> additionalCerts,
                 @Nullable final List<String> protocols,
                 @Nullable final List<String> cipherSuites,
-                final boolean http2) {
-    context = createSSLContext(cert);
-    final Platform platform = this.platform = Platform.findPlatform();
-    additionalContexts =
-      new HashMap<>(additionalCerts == null ? 0 : additionalCerts.size());
-    if (additionalCerts != null) {
-      for (final Map.Entry<String, byte[]> entry : additionalCerts.entrySet()) {
-        final SSLContext additionalContext = createSSLContext(entry.getValue());
-        if (additionalContext != null) additionalContexts.put(entry.getKey(), additionalContext);
-      }
+                final boolean http2,
+                final int sessionCacheSize, final int sessionTimeout) {
+    final List<CertificateKeyManager.Key> defaultKeys = loadKeys("", certs);
+    final Map<String, List<CertificateKeyManager.Key>> hostKeys = new HashMap<>(additionalCerts.size());
+    for (final Map.Entry<String, List<byte[]>> entry: additionalCerts.entrySet()) {
+      final List<CertificateKeyManager.Key> keys = loadKeys(entry.getKey(), entry.getValue());
+      if (!keys.isEmpty()) hostKeys.put(entry.getKey(), keys);
     }
+    keyManager = new CertificateKeyManager(defaultKeys, hostKeys);
+    context = createSSLContext(keyManager);
+    configureSessions(context, sessionCacheSize, sessionTimeout);
+    final Platform platform = this.platform = Platform.findPlatform();
     final List<String> protos = protocols == null ? platform.defaultProtocols() : protocols;
     this.protocols = protos.toArray(new String[protos.size()]);
     final List<String> ciphers = cipherSuites == null ? platform.defaultCipherSuites() : cipherSuites;
@@ -62,40 +75,144 @@ public final class Https {
     this.http2 = http2 && platform.supportsHttp2();
   }
 
-  SSLContext getContext(@Nullable final String host) {
-    if (host == null) return context;
-    final SSLContext additionalContext = additionalContexts.get(host);
-    return additionalContext == null ? context : additionalContext;
-  }
-
-  SSLSocket createSSLSocket(final Socket socket,
-                            @Nullable final String hostname, final boolean http2) throws IOException {
-    final SSLSocketFactory sslFactory = getContext(hostname).getSocketFactory();
-    final SSLSocket sslSocket = (SSLSocket)sslFactory.createSocket(socket, null, socket.getPort(), true);
+  SSLSocket createSSLSocket(final Socket socket, final InputStream consumed,
+                            final boolean http2) throws IOException {
+    final SSLSocketFactory sslFactory = context.getSocketFactory();
+    // The bytes already read from the socket (the ClientHello) are replayed by the SSLSocket itself.
+    final SSLSocket sslSocket = (SSLSocket)sslFactory.createSocket(socket, consumed, true);
     platform.setupSSLSocket(sslSocket, http2);
     sslSocket.setUseClientMode(false);
     sslSocket.setEnabledProtocols(protocols);
     sslSocket.setEnabledCipherSuites(cipherSuites);
+    final SSLParameters parameters = sslSocket.getSSLParameters();
+    parameters.setUseCipherSuitesOrder(true);
+    sslSocket.setSSLParameters(parameters);
+    final long start = System.currentTimeMillis();
     sslSocket.startHandshake();
+    handshakeCompleted(sslSocket.getSession(), start);
     return sslSocket;
   }
 
-  private static SSLContext createSSLContext(@Nullable final byte[] certificate) {
-    if (certificate == null) return null;
-    final InputStream cert = new ByteArrayInputStream(certificate);
+  /**
+   * Creates a server SSLEngine. ALPN is handled by the engine itself (h2 is selected when it is enabled and
+   * offered by the client).
+   * @return the engine.
+   */
+  SSLEngine createSSLEngine() {
+    final SSLEngine engine = context.createSSLEngine();
+    engine.setUseClientMode(false);
+    engine.setEnabledProtocols(protocols);
+    engine.setEnabledCipherSuites(cipherSuites);
+    final SSLParameters parameters = engine.getSSLParameters();
+    parameters.setUseCipherSuitesOrder(true);
+    engine.setSSLParameters(parameters);
+    platform.setupSSLEngine(engine, http2);
+    return engine;
+  }
+
+  /**
+   * Updates the handshake counters.
+   * @param session the session after the handshake.
+   * @param start the time at which the handshake started.
+   */
+  void handshakeCompleted(final SSLSession session, final long start) {
+    // A resumed session keeps the creation time of the session it was resumed from.
+    if (session.getCreationTime() < start) {
+      abbreviatedHandshakes.incrementAndGet();
+    }
+    else {
+      fullHandshakes.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the number of full handshakes (new sessions) performed so far.
+   * @return the full handshake count.
+   */
+  public long fullHandshakeCount() {
+    return fullHandshakes.get();
+  }
+
+  /**
+   * Returns the number of abbreviated handshakes (resumed sessions, either from the server session cache or
+   * from a session ticket) performed so far.
+   * @return the abbreviated handshake count.
+   */
+  public long abbreviatedHandshakeCount() {
+    return abbreviatedHandshakes.get();
+  }
+
+  private static void configureSessions(@Nullable final SSLContext context,
+                                        final int sessionCacheSize, final int sessionTimeout) {
+    if (context == null) return;
+    final SSLSessionContext sessionContext = context.getServerSessionContext();
+    if (sessionContext == null) return;
+    if (sessionCacheSize >= 0) sessionContext.setSessionCacheSize(sessionCacheSize);
+    if (sessionTimeout >= 0) sessionContext.setSessionTimeout(sessionTimeout);
+  }
+
+  /**
+   * Loads the private keys and their certificate chains. There should be at most one key per key type
+   * (EC, RSA, ...) for a given host.
+   * @param hostname the host name, or an empty string for the primary certificates.
+   * @param certificates the certificates (pkcs12).
+   * @return the keys.
+   * @throws IllegalStateException if there are several keys of the same type.
+   */
+  private static List<CertificateKeyManager.Key> loadKeys(final String hostname,
+                                                          final List<byte[]> certificates) {
+    final List<CertificateKeyManager.Key> keys = new ArrayList<>(certificates.size());
+    for (final byte[] certificate: certificates) {
+      final InputStream cert = new ByteArrayInputStream(certificate);
+      try {
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(cert, new char[0]);
+        for (final String alias: Collections.list(keyStore.aliases())) {
+          if (!keyStore.isKeyEntry(alias)) continue;
+          final Key key = keyStore.getKey(alias, new char[0]);
+          final Certificate[] chain = keyStore.getCertificateChain(alias);
+          if (!(key instanceof PrivateKey) || chain == null) continue;
+          final X509Certificate[] x509Chain = new X509Certificate[chain.length];
+          for (int i=0; i<chain.length; ++i) {
+            x509Chain[i] = (X509Certificate)chain[i];
+          }
+          for (final CertificateKeyManager.Key k: keys) {
+            if (k.keyType().equals(key.getAlgorithm())) {
+              throw new IllegalStateException(
+                "Several " + key.getAlgorithm() + " certificates for " +
+                (hostname.isEmpty() ? "the primary host." : "host \"" + hostname + "\".")
+              );
+            }
+          }
+          keys.add(new CertificateKeyManager.Key(hostname + ":" + key.getAlgorithm(),
+                                                 (PrivateKey)key, x509Chain));
+        }
+      }
+      catch (final GeneralSecurityException e) {
+        logger.warn("Failed to load SSL certificate.", e);
+      }
+      catch (final IOException e) {
+        logger.warn("Failed to load SSL certificate.", e);
+      }
+      finally {
+        try {
+          cert.close();
+        }
+        catch (final IOException ignore) {}
+      }
+    }
+    return keys;
+  }
+
+  private static @Nullable SSLContext createSSLContext(final CertificateKeyManager keyManager) {
     try {
-      final KeyStore keyStore = KeyStore.getInstance("PKCS12");
-      keyStore.load(cert, new char[0]);
-      final KeyManagerFactory kmf =
-        KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-      kmf.init(keyStore, new char[0]);
       final KeyStore trustStore = KeyStore.getInstance("JKS");
       trustStore.load(null, null);
       final TrustManagerFactory tmf =
         TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
       tmf.init(trustStore);
       final SSLContext context = SSLContext.getInstance("TLS");
-      context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), new SecureRandom());
+      context.init(new KeyManager[] { keyManager }, tmf.getTrustManagers(), new SecureRandom());
       return context;
     }
     catch (final GeneralSecurityException e) {
@@ -103,20 +220,14 @@ public final class Https {
       return null;
     }
     catch (final IOException e) {
-      logger.warn("Failed to load SSL certificate.", e);
+      logger.warn("Failed to create SSL context.", e);
       return null;
     }
-    finally {
-      try {
-        cert.close();
-      }
-      catch (final IOException ignore) {}
-    }
   }
 
   @SuppressWarnings({ "WeakerAccess", "unused" })
   public enum Protocol {
-    SSL_3("SSLv3"), TLS_1("TLSv1"), TLS_1_1("TLSv1.1"), TLS_1_2("TLSv1.2");
+    SSL_3("SSLv3"), TLS_1("TLSv1"), TLS_1_1("TLSv1.1"), TLS_1_2("TLSv1.2"), TLS_1_3("TLSv1.3");
 
     final String name;
 
@@ -135,8 +246,10 @@ public final class Https {
     private boolean mHttp2 = false;
     private List<String> mProtocols = null;
     private List<String> mCipherSuites = null;
-    private byte[] mCertificate = null;
-    private final Map<String, byte[]> mAdditionalCertificates = new HashMap<>(4);
+    private final List<byte[]> mCertificates = new ArrayList<>(2);
+    private final Map<String, List<byte[]>> mAdditionalCertificates = new HashMap<>(4);
+    private int mSessionCacheSize = -1;
+    private int mSessionTimeout = -1;
 
     public Builder() {}
 
@@ -156,23 +269,41 @@ public final class Https {
      * @return this.
      */
     public Builder certificate(final byte[] bytes, final boolean allowHttp2) {
-      if (mCertificate != null) throw new IllegalStateException("Main certificate already set.");
-      mCertificate = bytes;
+      if (!mCertificates.isEmpty()) throw new IllegalStateException("Main certificate already set.");
+      mCertificates.add(bytes);
       mHttp2 = allowHttp2;
       return this;
     }
 
     /**
-     * Adds an additional hostname certificate.
+     * Adds a primary certificate with a different key type (an ECDSA certificate alongside an RSA one for
+     * instance). The key type used for a connection depends on what the client supports.
+     * @param bytes the certificate (pkcs12).
+     * @return this.
+     */
+    public Builder alternateCertificate(final byte[] bytes) {
+      if (mCertificates.isEmpty()) throw new IllegalStateException("Main certificate not set.");
+      mCertificates.add(bytes);
+      return this;
+    }
+
+    /**
+     * Adds an additional hostname certificate. This can be called more than once for the same host name
+     * with certificates of different key types (ECDSA and RSA). The host name can be a wildcard for a
+     * subdomain (*.example.com).
      * @param hostname the hostname.
      * @param bytes the certificate (pkcs12).
      * @return this.
      */
     public Builder addCertificate(final String hostname, final byte[] bytes) {
-      if (mAdditionalCertificates.containsKey(hostname)) {
-        throw new IllegalStateException("Certificate for host \"" + hostname + "\" has already been set.");
+      CertificateKeyManager.validate(hostname);
+      final String host = hostname.toLowerCase(Locale.US);
+      List<byte[]> list = mAdditionalCertificates.get(host);
+      if (list == null) {
+        list = new ArrayList<>(2);
+        mAdditionalCertificates.put(host, list);
       }
-      mAdditionalCertificates.put(hostname, bytes);
+      list.add(bytes);
       return this;
     }
 
@@ -210,15 +341,40 @@ public final class Https {
       return this;
     }
 
+    /**
+     * Sets the maximum number of sessions kept in the server session cache (for all certificates).
+     * The JDK default is used if this is not set.
+     * @param size the cache size (0 means no limit).
+     * @return this.
+     */
+    public Builder sessionCacheSize(final int size) {
+      if (size < 0) throw new IllegalArgumentException("The session cache size should not be negative.");
+      mSessionCacheSize = size;
+      return this;
+    }
+
+    /**
+     * Sets the lifetime of the sessions kept in the server session cache (for all certificates).
+     * The JDK default is used if this is not set.
+     * @param secs the timeout in seconds (0 means no limit).
+     * @return this.
+     */
+    public Builder sessionTimeout(final int secs) {
+      if (secs < 0) throw new IllegalArgumentException("The session timeout should not be negative.");
+      mSessionTimeout = secs;
+      return this;
+    }
+
     /**
      * Creates the Https instance.
      * @return the Https instance.
      */
     public Https build() {
-      if (mCertificate == null && mAdditionalCertificates.isEmpty()) {
+      if (mCertificates.isEmpty() && mAdditionalCertificates.isEmpty()) {
         throw new IllegalStateException("At least one certificate should be specified.");
       }
-      return new Https(mCertificate, mAdditionalCertificates, mProtocols, mCipherSuites, mHttp2);
+      return new Https(mCertificates, mAdditionalCertificates, mProtocols, mCipherSuites, mHttp2,
+                       mSessionCacheSize, mSessionTimeout);
     }
 
   }
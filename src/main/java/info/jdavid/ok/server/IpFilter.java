@@ -0,0 +1,273 @@
+package info.jdavid.ok.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+
+/**
+ * Client address filter made of CIDR allow and deny rules.<br>
+ * The rules are compiled into a binary trie over the address bits (one for IPv4 and one for IPv6), and the
+ * most specific rule that matches an address wins. Lookups use the raw address bytes, so that connections can
+ * be filtered as soon as they are accepted, before the TLS handshake and before the address is formatted.
+ * IPv4-mapped IPv6 addresses are matched against the IPv4 rules.<br>
+ * Filters are immutable: to change the rules, build a new filter and set it on the server (see
+ * {@link HttpServer#ipFilter(IpFilter)}), which replaces the previous one atomically.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class IpFilter {
+
+  private static final byte NONE = 0;
+  private static final byte ALLOW = 1;
+  private static final byte DENY = 2;
+
+  private static final class Trie {
+    // Children of node n are at 2n (bit 0) and 2n+1 (bit 1). Node 0 is the root, so 0 also means no child.
+    int[] children = new int[32];
+    byte[] actions = new byte[16];
+    int size = 1;
+
+    void add(final byte[] address, final int offset, final int prefixLength, final byte action) {
+      int node = 0;
+      for (int i=0; i<prefixLength; ++i) {
+        final int slot = node * 2 + bit(address, offset, i);
+        int child = children[slot];
+        if (child == 0) {
+          if (size == actions.length) {
+            actions = Arrays.copyOf(actions, size * 2);
+            children = Arrays.copyOf(children, size * 4);
+          }
+          child = children[slot] = size++;
+        }
+        node = child;
+      }
+      actions[node] = action;
+    }
+
+    byte match(final byte[] address, final int offset, final int bitCount) {
+      int node = 0;
+      byte action = actions[0];
+      for (int i=0; i<bitCount; ++i) {
+        node = children[node * 2 + bit(address, offset, i)];
+        if (node == 0) break;
+        final byte a = actions[node];
+        if (a != NONE) action = a;
+      }
+      return action;
+    }
+
+    void trim() {
+      actions = Arrays.copyOf(actions, size);
+      children = Arrays.copyOf(children, size * 2);
+    }
+
+    private static int bit(final byte[] address, final int offset, final int index) {
+      return (address[offset + (index >>> 3)] >>> (7 - (index & 7))) & 1;
+    }
+  }
+
+  private final Trie ipv4;
+  private final Trie ipv6;
+  private final boolean allowByDefault;
+  private final int ruleCount;
+
+  private IpFilter(final Trie ipv4, final Trie ipv6, final boolean allowByDefault, final int ruleCount) {
+    this.ipv4 = ipv4;
+    this.ipv6 = ipv6;
+    this.allowByDefault = allowByDefault;
+    this.ruleCount = ruleCount;
+  }
+
+  /**
+   * Returns the number of rules.
+   * @return the rule count.
+   */
+  public int ruleCount() {
+    return ruleCount;
+  }
+
+  /**
+   * Returns whether connections from the specified address are allowed.
+   * @param address the client address.
+   * @return true if the address is allowed, false if it is denied.
+   */
+  public boolean accept(final InetAddress address) {
+    return accept(address.getAddress());
+  }
+
+  /**
+   * Returns whether connections from the specified address are allowed.
+   * @param address the client address bytes (4 bytes for IPv4, or 16 bytes for IPv6).
+   * @return true if the address is allowed, false if it is denied.
+   */
+  public boolean accept(final byte[] address) {
+    final byte action;
+    if (address.length == 4) {
+      action = ipv4.match(address, 0, 32);
+    }
+    else if (address.length == 16) {
+      action = isIpv4Mapped(address) ? ipv4.match(address, 12, 32) : ipv6.match(address, 0, 128);
+    }
+    else {
+      return false;
+    }
+    return action == NONE ? allowByDefault : action == ALLOW;
+  }
+
+  private static boolean isIpv4Mapped(final byte[] address) {
+    for (int i=0; i<10; ++i) {
+      if (address[i] != 0) return false;
+    }
+    return address[10] == (byte)0xff && address[11] == (byte)0xff;
+  }
+
+  /**
+   * Builder for the IpFilter class.
+   */
+  @SuppressWarnings("unused")
+  public static final class Builder {
+
+    private static final class Rule {
+      final byte[] address;
+      final int prefixLength;
+      final byte action;
+
+      Rule(final byte[] address, final int prefixLength, final byte action) {
+        this.address = address;
+        this.prefixLength = prefixLength;
+        this.action = action;
+      }
+    }
+
+    private final List<Rule> mRules = new ArrayList<>();
+    private boolean mAllowByDefault = true;
+
+    public Builder() {}
+
+    /**
+     * Allows the addresses in the specified range.
+     * @param cidr the address range, in CIDR notation (192.168.0.0/16, 2001:db8::/32), or a single address.
+     * @return this.
+     */
+    public Builder allow(final String cidr) {
+      mRules.add(parse(cidr, ALLOW));
+      return this;
+    }
+
+    /**
+     * Denies the addresses in the specified range.
+     * @param cidr the address range, in CIDR notation (192.168.0.0/16, 2001:db8::/32), or a single address.
+     * @return this.
+     */
+    public Builder deny(final String cidr) {
+      mRules.add(parse(cidr, DENY));
+      return this;
+    }
+
+    /**
+     * Sets whether the addresses that don't match any rule are allowed (true by default).
+     * @param allow true to allow them, false to deny them.
+     * @return this.
+     */
+    public Builder allowByDefault(final boolean allow) {
+      mAllowByDefault = allow;
+      return this;
+    }
+
+    /**
+     * Creates the IpFilter instance. When two rules have the same range, the last one is used.
+     * @return the IpFilter instance.
+     */
+    public IpFilter build() {
+      final Trie ipv4 = new Trie();
+      final Trie ipv6 = new Trie();
+      for (final Rule rule: mRules) {
+        (rule.address.length == 4 ? ipv4 : ipv6).add(rule.address, 0, rule.prefixLength, rule.action);
+      }
+      ipv4.trim();
+      ipv6.trim();
+      return new IpFilter(ipv4, ipv6, mAllowByDefault, mRules.size());
+    }
+
+    /**
+     * Parses an IPv4 address in the dotted-quad notation (four decimal numbers between 0 and 255).
+     * @param host the address.
+     * @return the address bytes, or null if the address is invalid.
+     */
+    static @Nullable byte[] ipv4(final String host) {
+      final byte[] address = new byte[4];
+      final int length = host.length();
+      int part = 0;
+      int value = 0;
+      int digits = 0;
+      for (int i=0; i<length; ++i) {
+        final char c = host.charAt(i);
+        if (c == '.') {
+          if (digits == 0 || part == 3) return null;
+          address[part++] = (byte)value;
+          value = 0;
+          digits = 0;
+        }
+        else if (c >= '0' && c <= '9') {
+          if (++digits > 3) return null;
+          value = value * 10 + (c - '0');
+          if (value > 255) return null;
+        }
+        else {
+          return null;
+        }
+      }
+      if (digits == 0 || part != 3) return null;
+      address[3] = (byte)value;
+      return address;
+    }
+
+    private static Rule parse(final String cidr, final byte action) {
+      final int slash = cidr.indexOf('/');
+      final String host = slash == -1 ? cidr : cidr.substring(0, slash);
+      // Only literal addresses are accepted, so that parsing never triggers a name lookup: IPv4 addresses are
+      // parsed here, and InetAddress always parses strings with a colon as IPv6 literals.
+      byte[] address;
+      if (host.indexOf(':') == -1) {
+        address = ipv4(host);
+        if (address == null) throw new IllegalArgumentException("Invalid address: " + cidr);
+      }
+      else {
+        if (!host.matches("[0-9a-fA-F:.]+")) throw new IllegalArgumentException("Invalid address: " + cidr);
+        try {
+          address = InetAddress.getByName(host).getAddress();
+        }
+        catch (final UnknownHostException e) {
+          throw new IllegalArgumentException("Invalid address: " + cidr, e);
+        }
+      }
+      int bitCount = address.length * 8;
+      if (address.length == 16 && isIpv4Mapped(address)) {
+        address = Arrays.copyOfRange(address, 12, 16);
+        bitCount = 32;
+      }
+      final int prefixLength;
+      if (slash == -1) {
+        prefixLength = bitCount;
+      }
+      else {
+        try {
+          prefixLength = Integer.parseInt(cidr.substring(slash + 1));
+        }
+        catch (final NumberFormatException e) {
+          throw new IllegalArgumentException("Invalid prefix length: " + cidr, e);
+        }
+        if (prefixLength < 0 || prefixLength > bitCount) {
+          throw new IllegalArgumentException("Invalid prefix length: " + cidr);
+        }
+      }
+      return new Rule(address, prefixLength, action);
+    }
+
+  }
+
+}
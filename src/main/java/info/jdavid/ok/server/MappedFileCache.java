@@ -0,0 +1,210 @@
+package info.jdavid.ok.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Reference counted cache of read-only file mappings. Concurrent responses for the same file (and E-Tag)
+ * share a single mapping rather than opening the file and reading it through their own buffer. Mappings that
+ * are not in use anymore are kept for the next requests, up to a limit; the ones that have been idle the
+ * longest are dropped first (the pages are unmapped when the buffer is garbage collected).<br>
+ * Only files at least as large as the threshold are mapped, because mapping small files costs more than
+ * reading them.
+ */
+@SuppressWarnings({ "WeakerAccess" })
+public final class MappedFileCache {
+
+  static final class Mapping {
+    final String key;
+    final ByteBuffer buffer;
+    int references = 0;
+
+    Mapping(final String key, final ByteBuffer buffer) {
+      this.key = key;
+      this.buffer = buffer;
+    }
+
+    /**
+     * Returns an independent view of a region of the mapping.
+     * @param start the start byte index.
+     * @param length the byte size of the region.
+     * @return the view.
+     * @throws IOException if the region is outside the mapping (the file has been truncated).
+     */
+    ByteBuffer slice(final long start, final long length) throws IOException {
+      if (start + length > buffer.capacity()) throw new IOException("The file has been modified.");
+      final ByteBuffer slice = buffer.duplicate();
+      slice.limit((int)(start + length));
+      slice.position((int)start);
+      return slice;
+    }
+  }
+
+  private final long threshold;
+  private final int maxIdle;
+  private final Map<String, Mapping> mappings = new HashMap<>();
+  // Insertion ordered, so that iteration starts with the mapping that has been idle the longest.
+  private final Map<String, Mapping> idle = new LinkedHashMap<>();
+  private final Map<String, FutureTask<ByteBuffer>> loading = new HashMap<>();
+
+  /**
+   * Creates a cache that keeps up to 16 idle mappings.
+   * @param threshold the minimum size (in bytes) of the files that should be mapped.
+   */
+  public MappedFileCache(final long threshold) {
+    this(threshold, 16);
+  }
+
+  /**
+   * @param threshold the minimum size (in bytes) of the files that should be mapped.
+   * @param maxIdle the maximum number of mappings kept when they're not in use.
+   */
+  public MappedFileCache(final long threshold, final int maxIdle) {
+    if (threshold < 0) throw new IllegalArgumentException();
+    if (maxIdle < 0) throw new IllegalArgumentException();
+    this.threshold = threshold;
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * Finds out if a file with the given size should be mapped.
+   * @param fileLength the file size in bytes.
+   * @return true if the file should be mapped, false if it should be read.
+   */
+  public boolean accepts(final long fileLength) {
+    return fileLength >= threshold && fileLength > 0 && fileLength <= Integer.MAX_VALUE;
+  }
+
+  /**
+   * Returns the number of mappings (in use or idle).
+   * @return the number of mappings.
+   */
+  public int size() {
+    synchronized (mappings) {
+      return mappings.size();
+    }
+  }
+
+  /**
+   * Returns the mapping for the file version, mapping the file if it isn't already. The mapping must be
+   * released once it's not needed anymore.
+   * @param file the file.
+   * @param etag the file E-Tag (identifies the file version).
+   * @return the mapping.
+   * @throws IOException if the file can't be mapped.
+   */
+  Mapping acquire(final File file, final String etag) throws IOException {
+    final String key = file.getPath() + '\n' + etag;
+    final FutureTask<ByteBuffer> task;
+    final boolean owner;
+    synchronized (mappings) {
+      final Mapping mapping = mappings.get(key);
+      if (mapping != null) {
+        if (mapping.references++ == 0) idle.remove(key);
+        return mapping;
+      }
+      final FutureTask<ByteBuffer> pending = loading.get(key);
+      if (pending == null) {
+        //noinspection Convert2Lambda
+        task = new FutureTask<>(new Callable<ByteBuffer>() {
+          @Override public ByteBuffer call() throws IOException {
+            return map(file);
+          }
+        });
+        loading.put(key, task);
+        owner = true;
+      }
+      else {
+        task = pending;
+        owner = false;
+      }
+    }
+    // The file is opened and mapped outside of the lock because it can be slow (network file systems).
+    // Concurrent requests for the same file wait for the first one.
+    if (owner) task.run();
+    final ByteBuffer buffer;
+    try {
+      buffer = get(task);
+    }
+    finally {
+      if (owner) {
+        synchronized (mappings) {
+          loading.remove(key);
+        }
+      }
+    }
+    synchronized (mappings) {
+      Mapping mapping = mappings.get(key);
+      if (mapping == null) {
+        mapping = new Mapping(key, buffer);
+        mappings.put(key, mapping);
+      }
+      else if (mapping.references == 0) {
+        idle.remove(key);
+      }
+      ++mapping.references;
+      return mapping;
+    }
+  }
+
+  private static ByteBuffer map(final File file) throws IOException {
+    final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      final FileChannel channel = randomAccessFile.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    finally {
+      randomAccessFile.close();
+    }
+  }
+
+  private static ByteBuffer get(final FutureTask<ByteBuffer> task) throws IOException {
+    try {
+      return task.get();
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Releases a mapping acquired earlier.
+   * @param mapping the mapping.
+   */
+  void release(final Mapping mapping) {
+    synchronized (mappings) {
+      if (--mapping.references == 0 && mappings.get(mapping.key) == mapping) {
+        // Kept for the next requests rather than mapped again, since the pages are only unmapped when the
+        // buffer is garbage collected.
+        idle.put(mapping.key, mapping);
+        final Iterator<Mapping> iterator = idle.values().iterator();
+        while (idle.size() > maxIdle && iterator.hasNext()) {
+          final Mapping oldest = iterator.next();
+          iterator.remove();
+          mappings.remove(oldest.key);
+        }
+      }
+    }
+  }
+
+}
@@ -1,16 +1,23 @@
 package info.jdavid.ok.server;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.BiFunction;
 
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
 
+import com.sun.management.HotSpotDiagnosticMXBean;
+
 import static info.jdavid.ok.server.Logger.logger;
 
 
@@ -36,6 +43,20 @@ abstract class Platform {
 
   abstract void setupSSLSocket(final SSLSocket socket, final boolean http2) throws IOException;
 
+  /**
+   * Sets up the application protocol negotiation (ALPN) for a server SSLEngine.
+   * @param engine the engine.
+   * @param http2 whether h2 should be selected when the client offers it.
+   */
+  abstract void setupSSLEngine(final SSLEngine engine, final boolean http2);
+
+  /**
+   * Returns the application protocol negotiated by a server SSLEngine.
+   * @param engine the engine (after the handshake).
+   * @return the protocol, or null if no protocol was negotiated or if it isn't supported.
+   */
+  abstract @Nullable String applicationProtocol(final SSLEngine engine);
+
   static Platform findPlatform() {
     final Platform jdk9 = Jdk9Platform.buildIfSupported();
     if (jdk9 != null) return jdk9;
@@ -60,16 +81,18 @@ abstract class Platform {
     return null;
   }
 
-  private static Method findApplicationProtocolsMethod() {
+  private static final String[] protocols = new String[] { "h2", "http/1.1" };
+
+  private static boolean hasStandardAlpn() {
     try {
-      return SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+      SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+      return true;
+    }
+    catch (final NoSuchMethodException ignore) {
+      return false;
     }
-    catch (final NoSuchMethodException ignore) {}
-    return null;
   }
 
-  private static final String[] protocols = new String[] { "h2", "http/1.1" };
-
   private static void setHttp2Protocol(final SSLSocket socket, final Field field) {
     try {
       field.set(socket, protocols);
@@ -79,17 +102,154 @@ abstract class Platform {
     }
   }
 
-  private static void setHttp2Protocol(final SSLSocket socket, final Method method) {
-    final SSLParameters parameters = socket.getSSLParameters();
+  private static final String[] HTTP1_PROTOCOLS = new String[] { "http/1.1" };
+
+  /**
+   * Sets the ALPN protocols with the standard API (JDK 9+ and JDK 8u252+).
+   * @param socket the socket.
+   * @param http2 whether h2 should be offered.
+   * @return false if the standard API isn't available.
+   */
+  private static boolean setApplicationProtocols(final SSLSocket socket, final boolean http2) {
     try {
-      method.invoke(parameters, new Object[] { protocols });
+      final SSLParameters parameters = socket.getSSLParameters();
+      parameters.setApplicationProtocols(http2 ? protocols : HTTP1_PROTOCOLS);
       socket.setSSLParameters(parameters);
+      return true;
+    }
+    catch (final NoSuchMethodError ignore) { // JDK 8 before 8u252
+      return false;
+    }
+  }
+
+  private static final List<String> PROTOCOLS = Arrays.asList("TLSv1.3", "TLSv1.2");
+
+  // TLS 1.3 suites, then forward secret AEAD TLS 1.2 suites, and finally the older suites for legacy clients.
+  private static final List<String> AES_FIRST_CIPHER_SUITES = Arrays.asList(
+    "TLS_AES_128_GCM_SHA256",
+    "TLS_AES_256_GCM_SHA384",
+    "TLS_CHACHA20_POLY1305_SHA256",
+    "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+    "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+    "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+    "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+    "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+    "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256",
+    "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256",
+    "TLS_RSA_WITH_AES_128_GCM_SHA256",
+    "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256",
+    "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
+    "TLS_DHE_RSA_WITH_AES_128_CBC_SHA256",
+    "TLS_RSA_WITH_AES_128_CBC_SHA"
+  );
+
+  private static final List<String> CHACHA20_FIRST_CIPHER_SUITES = Arrays.asList(
+    "TLS_CHACHA20_POLY1305_SHA256",
+    "TLS_AES_128_GCM_SHA256",
+    "TLS_AES_256_GCM_SHA384",
+    "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+    "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256",
+    "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+    "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+    "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+    "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+    "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256",
+    "TLS_RSA_WITH_AES_128_GCM_SHA256",
+    "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256",
+    "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
+    "TLS_DHE_RSA_WITH_AES_128_CBC_SHA256",
+    "TLS_RSA_WITH_AES_128_CBC_SHA"
+  );
+
+  /**
+   * Returns the protocols and cipher suites supported by the running JDK.
+   * @return the supported parameters, or null if they couldn't be found.
+   */
+  private static @Nullable SSLParameters supportedParameters() {
+    try {
+      return SSLContext.getDefault().getSupportedSSLParameters();
     }
-    catch (final IllegalAccessException e1) {
-      throw new RuntimeException(e1);
+    catch (final NoSuchAlgorithmException e) {
+      logger.warn("Failed to probe the TLS capabilities.", e);
+      return null;
     }
-    catch (final InvocationTargetException e2) {
-      throw new RuntimeException(e2);
+  }
+
+  /**
+   * Keeps the preferred values that are supported, in the order of preference.
+   * @param preferred the preferred values.
+   * @param supported the supported values, or null if they are unknown.
+   * @return the preferred values that are supported.
+   */
+  static List<String> supported(final List<String> preferred, @Nullable final String[] supported) {
+    if (supported == null) return preferred;
+    final List<String> supportedList = Arrays.asList(supported);
+    final List<String> list = new ArrayList<>(preferred.size());
+    for (final String value: preferred) {
+      if (supportedList.contains(value)) list.add(value);
+    }
+    return list;
+  }
+
+  /**
+   * Returns whether AES is accelerated by the cpu (AES-NI on x86, the crypto extensions on arm), in which
+   * case AES-GCM is faster than ChaCha20-Poly1305. HotSpot only enables its AES intrinsics when the cpu
+   * supports it.
+   * @return true if AES is accelerated.
+   */
+  static boolean hasAesIntrinsics() {
+    try {
+      final HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+      if (bean != null) return Boolean.parseBoolean(bean.getVMOption("UseAESIntrinsics").getValue());
+    }
+    catch (final Exception ignore) {}
+    catch (final LinkageError ignore) {}
+    // Not HotSpot: assume that the mainstream 64bit cpus have AES instructions.
+    final String arch = System.getProperty("os.arch");
+    return "amd64".equals(arch) || "x86_64".equals(arch) || "aarch64".equals(arch);
+  }
+
+  /**
+   * ALPN selector for SSLEngine.setHandshakeApplicationProtocolSelector (JDK 9+ and JDK 8u252+).
+   */
+  private static final class ApplicationProtocolSelector
+    implements BiFunction<SSLEngine, List<String>, String> {
+    static final ApplicationProtocolSelector HTTP2 = new ApplicationProtocolSelector(true);
+    static final ApplicationProtocolSelector HTTP1 = new ApplicationProtocolSelector(false);
+
+    private final boolean http2;
+
+    private ApplicationProtocolSelector(final boolean http2) {
+      this.http2 = http2;
+    }
+
+    @Override public String apply(final SSLEngine engine, final List<String> offered) {
+      if (http2 && offered.contains("h2")) return "h2";
+      if (offered.contains("http/1.1")) return "http/1.1";
+      // An empty string means that ALPN is not used, rather than failing the handshake.
+      return "";
+    }
+  }
+
+  private static boolean setApplicationProtocolSelector(final SSLEngine engine, final boolean http2) {
+    try {
+      engine.setHandshakeApplicationProtocolSelector(
+        http2 ? ApplicationProtocolSelector.HTTP2 : ApplicationProtocolSelector.HTTP1
+      );
+      return true;
+    }
+    catch (final NoSuchMethodError ignore) { // JDK 8 before 8u252
+      return false;
+    }
+  }
+
+  private static @Nullable String getApplicationProtocol(final SSLEngine engine) {
+    try {
+      final String protocol = engine.getApplicationProtocol();
+      return protocol == null || protocol.isEmpty() ? null : protocol;
+    }
+    catch (final NoSuchMethodError ignore) { // JDK 8 before 8u252
+      return null;
     }
   }
 
@@ -99,33 +259,38 @@ abstract class Platform {
       return Float.parseFloat(JAVA_SPEC_VERSION) >= 9 ? new Jdk9Platform() : null;
     }
 
-    private final Method applicationProtocols;
+    private final List<String> protocols;
+    private final List<String> cipherSuites;
 
     private Jdk9Platform() {
       super();
       logger.info("JDK9 Platform");
-      applicationProtocols = findApplicationProtocolsMethod();
+      final SSLParameters supported = supportedParameters();
+      protocols = supported(PROTOCOLS, supported == null ? null : supported.getProtocols());
+      cipherSuites = supported(
+        hasAesIntrinsics() ? AES_FIRST_CIPHER_SUITES : CHACHA20_FIRST_CIPHER_SUITES,
+        supported == null ? null : supported.getCipherSuites()
+      );
     }
 
     @Override List<String> defaultProtocols() {
-      return Collections.singletonList("TLSv1.2");
+      return protocols;
     }
 
     @Override List<String> defaultCipherSuites() {
-      return Arrays.asList(
-        "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
-        "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
-        "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256",
-        "TLS_RSA_WITH_AES_128_GCM_SHA256",
-        "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256",
-        "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
-        "TLS_DHE_RSA_WITH_AES_128_CBC_SHA256",
-        "TLS_RSA_WITH_AES_128_CBC_SHA"
-      );
+      return cipherSuites;
     }
 
     @Override void setupSSLSocket(final SSLSocket socket, final boolean http2) throws IOException {
-      Platform.setHttp2Protocol(socket, applicationProtocols);
+      Platform.setApplicationProtocols(socket, http2);
+    }
+
+    @Override void setupSSLEngine(final SSLEngine engine, final boolean http2) {
+      Platform.setApplicationProtocolSelector(engine, http2);
+    }
+
+    @Override @Nullable String applicationProtocol(final SSLEngine engine) {
+      return Platform.getApplicationProtocol(engine);
     }
 
     @Override boolean supportsHttp2() {
@@ -141,36 +306,45 @@ abstract class Platform {
     }
 
     private final Field applicationProtocols;
+    private final List<String> protocols;
+    private final List<String> cipherSuites;
 
     private Jdk8Platform() {
       super();
       logger.info("JDK8 Platform");
       applicationProtocols = findApplicationProtocolsField();
+      // TLS 1.3 (and the standard ALPN API) have been backported to 8u261 (8u252 for ALPN).
+      final SSLParameters supported = supportedParameters();
+      protocols = supported(PROTOCOLS, supported == null ? null : supported.getProtocols());
+      cipherSuites = supported(
+        hasAesIntrinsics() ? AES_FIRST_CIPHER_SUITES : CHACHA20_FIRST_CIPHER_SUITES,
+        supported == null ? null : supported.getCipherSuites()
+      );
     }
 
     @Override List<String> defaultProtocols() {
-      return Collections.singletonList("TLSv1.2");
+      return protocols;
     }
 
     @Override List<String> defaultCipherSuites() {
-      return Arrays.asList(
-        "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
-        "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
-        "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256",
-        "TLS_RSA_WITH_AES_128_GCM_SHA256",
-        "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256",
-        "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
-        "TLS_DHE_RSA_WITH_AES_128_CBC_SHA256",
-        "TLS_RSA_WITH_AES_128_CBC_SHA"
-      );
+      return cipherSuites;
     }
 
     @Override void setupSSLSocket(final SSLSocket socket, final boolean http2) throws IOException {
-      if (http2) Platform.setHttp2Protocol(socket, applicationProtocols);
+      if (Platform.setApplicationProtocols(socket, http2)) return;
+      if (http2 && applicationProtocols != null) Platform.setHttp2Protocol(socket, applicationProtocols);
+    }
+
+    @Override void setupSSLEngine(final SSLEngine engine, final boolean http2) {
+      Platform.setApplicationProtocolSelector(engine, http2);
+    }
+
+    @Override @Nullable String applicationProtocol(final SSLEngine engine) {
+      return Platform.getApplicationProtocol(engine);
     }
 
     @Override boolean supportsHttp2() {
-      return applicationProtocols != null;
+      return applicationProtocols != null || hasStandardAlpn();
     }
 
   }
@@ -206,6 +380,12 @@ abstract class Platform {
       if (http2) Platform.setHttp2Protocol(socket, applicationProtocols);
     }
 
+    @Override void setupSSLEngine(final SSLEngine engine, final boolean http2) {}
+
+    @Override @Nullable String applicationProtocol(final SSLEngine engine) {
+      return null;
+    }
+
     @Override boolean supportsHttp2() {
       return applicationProtocols != null;
     }
@@ -261,6 +441,12 @@ abstract class Platform {
 
     @Override void setupSSLSocket(final SSLSocket socket, final boolean http2) throws IOException {}
 
+    @Override void setupSSLEngine(final SSLEngine engine, final boolean http2) {}
+
+    @Override @Nullable String applicationProtocol(final SSLEngine engine) {
+      return null;
+    }
+
     @Override boolean supportsHttp2() {
       return false;
     }
@@ -0,0 +1,278 @@
+package info.jdavid.ok.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import okhttp3.Headers;
+
+
+/**
+ * Per-client rate limiter, with a token bucket per client and per route.<br>
+ * A bucket is a single number (the time at which it will be full again) that is updated with a
+ * compare-and-set, so that clients don't contend with each other, and refills are computed when a request
+ * arrives rather than by a timer. Buckets are in a concurrent map per route; the buckets that are full again
+ * are forgotten (this doesn't change the behaviour), and when the map grows over the limit, buckets are
+ * evicted (the idle ones first) down to 90% of the limit, so that the cost of the sweeps is spread over many
+ * new clients.<br>
+ * Clients are identified by their ip, or by the value of a request header (when the server is behind a
+ * proxy for instance).
+ */
+@SuppressWarnings("WeakerAccess")
+public final class RateLimiter {
+
+  private static final class Route {
+    final @Nullable String prefix;
+    // Time between two requests, in nanoseconds.
+    final long interval;
+    // Burst tolerance (capacity times interval), in nanoseconds.
+    final long tolerance;
+    final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    final AtomicBoolean sweeping = new AtomicBoolean();
+    volatile long lastSweep = System.nanoTime();
+
+    Route(@Nullable final String prefix, final long capacity, final double perSecond) {
+      this.prefix = prefix;
+      this.interval = Math.max(1L, (long)(TimeUnit.SECONDS.toNanos(1L) / perSecond));
+      this.tolerance = interval * capacity;
+    }
+  }
+
+  private final Route[] routes;
+  private final @Nullable Route defaultRoute;
+  private final @Nullable String keyHeader;
+  private final int maxKeys;
+  private final long idleNanos;
+  private final LongAdder rejected = new LongAdder();
+
+  private RateLimiter(final List<Route> routes, @Nullable final Route defaultRoute,
+                      @Nullable final String keyHeader, final int maxKeys, final long idleNanos) {
+    this.routes = routes.toArray(new Route[0]);
+    this.defaultRoute = defaultRoute;
+    this.keyHeader = keyHeader;
+    this.maxKeys = maxKeys;
+    this.idleNanos = idleNanos;
+  }
+
+  /**
+   * Returns the number of requests that were rejected.
+   * @return the number of rejected requests.
+   */
+  public long rejectedCount() {
+    return rejected.sum();
+  }
+
+  /**
+   * Returns the number of buckets currently tracked (all routes together).
+   * @return the number of buckets.
+   */
+  public int keyCount() {
+    int count = defaultRoute == null ? 0 : defaultRoute.buckets.size();
+    for (final Route route: routes) {
+      count += route.buckets.size();
+    }
+    return count;
+  }
+
+  /**
+   * Takes a token from the bucket of the client for the request route.
+   * @param clientIp the client ip.
+   * @param target the request target.
+   * @param requestHeaders the request headers.
+   * @return 0 if the request is allowed, or the number of seconds after which it would be allowed.
+   */
+  public long acquire(final String clientIp, final RequestTarget target, final Headers requestHeaders) {
+    return acquire(clientIp, target.encodedPath(), requestHeaders, System.nanoTime());
+  }
+
+  long acquire(final String clientIp, final String path, final Headers requestHeaders, final long now) {
+    final Route route = route(path);
+    if (route == null) return 0L;
+    final String headerKey = keyHeader == null ? null : requestHeaders.get(keyHeader);
+    final String key = headerKey == null ? clientIp : headerKey;
+    final ConcurrentHashMap<String, AtomicLong> buckets = route.buckets;
+    AtomicLong bucket = buckets.get(key);
+    boolean created = false;
+    if (bucket == null) {
+      final AtomicLong newBucket = new AtomicLong(now);
+      bucket = buckets.putIfAbsent(key, newBucket);
+      if (bucket == null) {
+        bucket = newBucket;
+        created = true;
+      }
+    }
+    final long wait = take(route, bucket, now);
+    if (created) {
+      if (buckets.size() > maxKeys || now - route.lastSweep > idleNanos) sweep(route, now);
+    }
+    else if (buckets.get(key) != bucket) {
+      // A concurrent sweep evicted the bucket while it was being updated. It is put back, so that the next
+      // request of the client doesn't get a new (full) bucket.
+      restore(buckets, key, bucket);
+    }
+    return wait;
+  }
+
+  private static void restore(final ConcurrentHashMap<String, AtomicLong> buckets,
+                              final String key, final AtomicLong bucket) {
+    final AtomicLong current = buckets.putIfAbsent(key, bucket);
+    if (current == null) return;
+    // Another request already created a new bucket: it gets the latest of the two full times.
+    final long full = bucket.get();
+    while (true) {
+      final long value = current.get();
+      if (value - full >= 0 || current.compareAndSet(value, full)) return;
+    }
+  }
+
+  private long take(final Route route, final AtomicLong bucket, final long now) {
+    // Generic cell rate algorithm: the bucket value is the time at which the bucket is full again.
+    while (true) {
+      final long full = bucket.get();
+      final long next = Math.max(full - now, 0L) + route.interval;
+      if (next > route.tolerance) {
+        rejected.increment();
+        final long wait = next - route.tolerance;
+        final long second = TimeUnit.SECONDS.toNanos(1L);
+        return Math.max(1L, (wait + second - 1) / second);
+      }
+      if (bucket.compareAndSet(full, now + next)) return 0L;
+    }
+  }
+
+  private @Nullable Route route(final String path) {
+    for (final Route route: routes) {
+      assert route.prefix != null;
+      if (path.startsWith(route.prefix)) return route;
+    }
+    return defaultRoute;
+  }
+
+  private void sweep(final Route route, final long now) {
+    if (!route.sweeping.compareAndSet(false, true)) return;
+    try {
+      route.lastSweep = now;
+      final Iterator<Map.Entry<String, AtomicLong>> iterator = route.buckets.entrySet().iterator();
+      // Buckets that are full again are the same as new buckets.
+      while (iterator.hasNext()) {
+        if (now - iterator.next().getValue().get() >= 0) iterator.remove();
+      }
+      // Evicts down to a low-water mark, so that the next new clients don't trigger another full sweep.
+      final int lowWater = maxKeys - maxKeys / 10;
+      if (route.buckets.size() > lowWater) {
+        // Then the ones that are the closest to being full.
+        final long threshold = now + route.tolerance / 2;
+        final Iterator<Map.Entry<String, AtomicLong>> it = route.buckets.entrySet().iterator();
+        while (it.hasNext() && route.buckets.size() > lowWater) {
+          if (threshold - it.next().getValue().get() >= 0) it.remove();
+        }
+        final Iterator<Map.Entry<String, AtomicLong>> all = route.buckets.entrySet().iterator();
+        while (all.hasNext() && route.buckets.size() > lowWater) {
+          all.next();
+          all.remove();
+        }
+      }
+    }
+    finally {
+      route.sweeping.set(false);
+    }
+  }
+
+  /**
+   * Builder for the RateLimiter class.
+   */
+  @SuppressWarnings("unused")
+  public static final class Builder {
+
+    private final List<Route> mRoutes = new ArrayList<>();
+    private Route mDefaultRoute = null;
+    private String mKeyHeader = null;
+    private int mMaxKeys = 100000;
+    private long mIdleMillis = 60000L;
+
+    public Builder() {}
+
+    /**
+     * Sets the budget for the requests that don't match any route (no limit by default).
+     * @param capacity the maximum number of requests in a burst.
+     * @param perSecond the number of requests per second after a burst.
+     * @return this.
+     */
+    public Builder limit(final long capacity, final double perSecond) {
+      mDefaultRoute = newRoute(null, capacity, perSecond);
+      return this;
+    }
+
+    /**
+     * Adds a budget for the requests whose path starts with the specified prefix. Routes are tried in the
+     * order they were added, and each route has its own bucket for each client.
+     * @param pathPrefix the path prefix.
+     * @param capacity the maximum number of requests in a burst.
+     * @param perSecond the number of requests per second after a burst.
+     * @return this.
+     */
+    public Builder route(final String pathPrefix, final long capacity, final double perSecond) {
+      mRoutes.add(newRoute(pathPrefix, capacity, perSecond));
+      return this;
+    }
+
+    private static Route newRoute(@Nullable final String prefix,
+                                  final long capacity, final double perSecond) {
+      if (capacity < 1) throw new IllegalArgumentException("The capacity should be at least 1.");
+      if (!(perSecond > 0)) throw new IllegalArgumentException("The rate should be positive.");
+      return new Route(prefix, capacity, perSecond);
+    }
+
+    /**
+     * Identifies the clients by the value of the specified request header rather than by their ip. The ip is
+     * still used for requests without that header.
+     * @param name the header name.
+     * @return this.
+     */
+    public Builder keyHeader(@Nullable final String name) {
+      mKeyHeader = name;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of clients tracked per route (100000 by default).
+     * @param maxKeys the maximum number of keys.
+     * @return this.
+     */
+    public Builder maxKeys(final int maxKeys) {
+      if (maxKeys < 1) throw new IllegalArgumentException("The maximum number of keys should be positive.");
+      mMaxKeys = maxKeys;
+      return this;
+    }
+
+    /**
+     * Sets how often the idle clients are forgotten (every minute by default).
+     * @param millis the interval in milliseconds.
+     * @return this.
+     */
+    public Builder idleTimeout(final long millis) {
+      if (millis < 0) throw new IllegalArgumentException("The idle timeout should not be negative.");
+      mIdleMillis = millis;
+      return this;
+    }
+
+    /**
+     * Creates the RateLimiter instance.
+     * @return the RateLimiter instance.
+     */
+    public RateLimiter build() {
+      return new RateLimiter(mRoutes, mDefaultRoute, mKeyHeader, mMaxKeys,
+                             TimeUnit.MILLISECONDS.toNanos(mIdleMillis));
+    }
+
+  }
+
+}
@@ -1,10 +1,16 @@
 package info.jdavid.ok.server;
 
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import javax.annotation.Nullable;
 
 import info.jdavid.ok.server.header.Connection;
 import okhttp3.Headers;
-import okhttp3.HttpUrl;
 import okio.Buffer;
 
 
@@ -21,23 +27,48 @@ public interface RequestHandler {
    * @param insecureOnly whether the server accepts only insecure connections or whether https is enabled.
    * @param http2 whether the request protocol is HTTP 2 (h2) rather than an HTTP 1.1.
    * @param method the request method (get, post, ...).
-   * @param url the request url.
+   * @param target the request target (path, query and authority).
    * @param requestHeaders the request headers.
    * @param requestBody the request body.
    * @return the response for the request.
    */
   public Response handle(final String clientIp,
                          final boolean secure, final boolean insecureOnly, final boolean http2,
-                         final String method, final HttpUrl url,
+                         final String method, final RequestTarget target,
                          final Headers requestHeaders, @Nullable final Buffer requestBody);
 
   static class Helper {
 
-    static Response handle(final RequestHandler handler,
-                           final String clientIp,
-                           final boolean secure, final boolean insecureOnly, final boolean http2,
-                           final String method, final String path,
-                           final Headers requestHeaders, @Nullable final Buffer requestBody) {
+    /**
+     * Checks if the client has gone away while the response is being created.
+     */
+    interface Client {
+      boolean disconnected() throws IOException;
+    }
+
+    private static final boolean ASYNC = async();
+
+    private static boolean async() {
+      try {
+        Class.forName("java.util.concurrent.CompletableFuture");
+        return true;
+      }
+      catch (final ClassNotFoundException ignore) {
+        return false;
+      }
+    }
+
+    /**
+     * How often (in milliseconds) the connection is checked while waiting for an asynchronous response.
+     */
+    static final long POLL_INTERVAL = 100L;
+
+    static @Nullable Response handle(final RequestHandler handler,
+                                     final String clientIp,
+                                     final boolean secure, final boolean insecureOnly, final boolean http2,
+                                     final String method, final String path,
+                                     final Headers requestHeaders, @Nullable final Buffer requestBody,
+                                     final Client client) throws IOException {
       final String h = requestHeaders.get("Host");
       if (h == null) {
         return new Response.Builder().
@@ -45,18 +76,67 @@ public interface RequestHandler {
           header(Connection.HEADER, Connection.CLOSE).
           noBody().build();
       }
-      final int i = h.indexOf(':');
-      final String host = i == -1 ? h : h.substring(0, i);
-      final int port = i == -1 ? 0 : Integer.valueOf(h.substring(i+1));
-
-      final HttpUrl localhostUrl = HttpUrl.parse("http://localhost" + path);
-      assert(localhostUrl != null);
-      final HttpUrl.Builder url = localhostUrl.newBuilder().
-        scheme(secure ? "https" : "http").
-        host(host);
-      if (port > 0) url.port(port);
+      if (path.isEmpty() || path.charAt(0) != '/') {
+        return new Response.Builder().
+          statusLine(StatusLines.BAD_REQUEST).
+          header(Connection.HEADER, Connection.CLOSE).
+          noBody().build();
+      }
+      return handle(handler, clientIp, secure, insecureOnly, http2,
+                    method, new RequestTarget(secure, h, path), requestHeaders, requestBody, client);
+    }
+
+    /**
+     * Calls the handler, and waits for the response if the handler is asynchronous.
+     * @return the response, or null if the client disconnected before it was ready.
+     */
+    static @Nullable Response handle(final RequestHandler handler,
+                                     final String clientIp,
+                                     final boolean secure, final boolean insecureOnly, final boolean http2,
+                                     final String method, final RequestTarget target,
+                                     final Headers requestHeaders, @Nullable final Buffer requestBody,
+                                     final Client client) throws IOException {
+      if (ASYNC && handler instanceof AsyncRequestHandler) {
+        return await(
+          ((AsyncRequestHandler)handler).handleAsync(clientIp, secure, insecureOnly, http2,
+                                                     method, target, requestHeaders, requestBody),
+          client
+        );
+      }
       return handler.handle(clientIp, secure, insecureOnly, http2,
-                            method, url.build(), requestHeaders, requestBody);
+                            method, target, requestHeaders, requestBody);
+    }
+
+    // The connection thread waits for the response like it waits for the next request on a kept-alive
+    // connection, but the handler work runs wherever the future is completed. The connection is checked
+    // between the waits, so that the future is cancelled as soon as the client goes away.
+    private static @Nullable Response await(final CompletableFuture<Response> future,
+                                            final Client client) throws IOException {
+      while (true) {
+        try {
+          return future.get(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        catch (final TimeoutException ignore) {
+          if (client.disconnected()) {
+            future.cancel(true);
+            return null;
+          }
+        }
+        catch (final InterruptedException ignore) {
+          future.cancel(true);
+          Thread.currentThread().interrupt();
+          return null;
+        }
+        catch (final CancellationException ignore) {
+          return null;
+        }
+        catch (final ExecutionException e) {
+          final Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+          if (cause instanceof Error) throw (Error)cause;
+          throw new RuntimeException(cause);
+        }
+      }
     }
 
   }
@@ -3,29 +3,43 @@ package info.jdavid.ok.server;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import javax.annotation.Nullable;
 
 import info.jdavid.ok.server.handler.AcmeChallengeHandler;
+import info.jdavid.ok.server.handler.AsyncHandler;
 import info.jdavid.ok.server.handler.FileHandler;
 import info.jdavid.ok.server.handler.Handler;
 import info.jdavid.ok.server.handler.Request;
 import info.jdavid.ok.server.header.Connection;
+import info.jdavid.ok.server.header.ETag;
 import info.jdavid.ok.server.header.Preload;
 import okhttp3.Headers;
 import okhttp3.HttpUrl;
+import okhttp3.ResponseBody;
+import okio.AsyncTimeout;
 import okio.Buffer;
 import okio.BufferedSource;
+import okio.ByteString;
 import okio.Okio;
 
+import static info.jdavid.ok.server.Logger.logger;
+
 
 /**
  * A RequestHandler that uses a chain of Handlers to try to satisfy a request. The handlers are tried one by
- * one until one of them accepts the request.
+ * one until one of them accepts the request.<br>
+ * When the server starts, the hints of the handlers that implement IndexedHandler are compiled into an index,
+ * so that only the handlers that could accept a request are tried.
  */
 @SuppressWarnings({ "WeakerAccess" })
 public class RequestHandlerChain extends AbstractRequestHandler {
@@ -168,6 +182,8 @@ public class RequestHandlerChain extends AbstractRequestHandler {
 
   final Handler acmeHandler;
   final List<Handler> chain = new LinkedList<>();
+  @Nullable HandlerIndex index = null;
+  @Nullable ResponseCache cache = null;
 
   /**
    * Creates the default chain: a file handler serving the current directory.
@@ -218,24 +234,53 @@ public class RequestHandlerChain extends AbstractRequestHandler {
    */
   public RequestHandlerChain add(final Handler handler) {
     chain.add(handler.setup());
+    // Handlers added after the server has started are only found by trying them all.
+    index = null;
+    return this;
+  }
+
+  /**
+   * Sets the cache for the responses created by the handlers of the chain (none by default).
+   * @param cache the response cache, or null to disable caching.
+   * @return this.
+   */
+  public RequestHandlerChain cache(@Nullable final ResponseCache cache) {
+    this.cache = cache;
     return this;
   }
 
   @Override
-  protected Response handleAcmeChallenge(final String clientIp, final String method, final HttpUrl url,
+  protected void init() {
+    super.init();
+    index = new HandlerIndex(chain);
+  }
+
+  private @Nullable HandlerIndex.Match accept(final String method, final RequestTarget target) {
+    final HandlerIndex index = this.index;
+    if (index != null) return index.match(method, target);
+    for (final Handler handler: chain) {
+      final String[] params = handler.matches(method, target);
+      if (params != null) return new HandlerIndex.Match(handler, params);
+    }
+    return null;
+  }
+
+  @Override
+  protected Response handleAcmeChallenge(final String clientIp, final String method,
+                                         final RequestTarget target,
                                          final Headers requestHeaders, @Nullable final Buffer requestBody) {
     final Response.Builder responseBuilder;
     final String[] params;
-    if (acmeHandler == null || (params = acmeHandler.matches(method, url)) == null) {
-      responseBuilder = handleNotAccepted(clientIp, method, url, requestHeaders);
+    if (acmeHandler == null || (params = acmeHandler.matches(method, target)) == null) {
+      responseBuilder = handleNotAccepted(clientIp, method, target, requestHeaders);
     }
     else {
       responseBuilder = acmeHandler.handle(
-        new Request(clientIp, false, method, url, requestHeaders, requestBody),
+        new Request(clientIp, false, method, target, requestHeaders, requestBody),
         params
       );
     }
-    decorateResponse(responseBuilder, clientIp, false, method, url, requestHeaders);
+    decorateResponse(responseBuilder, clientIp, false, method, target, requestHeaders);
     if (Connection.CLOSE.equalsIgnoreCase(requestHeaders.get(Connection.HEADER))) {
       responseBuilder.header(Connection.HEADER, Connection.CLOSE);
     }
@@ -244,42 +289,242 @@ public class RequestHandlerChain extends AbstractRequestHandler {
 
   @Override
   protected final Response handle(final String clientIp, final boolean http2,
-                                  final String method, final HttpUrl url,
+                                  final String method, final RequestTarget target,
                                   final Headers requestHeaders, @Nullable final Buffer requestBody) {
-    for (final Handler handler: chain) {
-      final String[] params = handler.matches(method, url);
-      if (params != null) {
-        final Response.Builder responseBuilder =
-         handler.handle(new Request(clientIp, http2, method, url, requestHeaders, requestBody), params);
-        decorateResponse(responseBuilder, clientIp, http2, method, url, requestHeaders);
-        if (Connection.CLOSE.equalsIgnoreCase(requestHeaders.get(Connection.HEADER))) {
-          responseBuilder.header(Connection.HEADER, Connection.CLOSE);
+    final ResponseCache cache = this.cache;
+    if (cache != null) {
+      final ResponseCache.Hit hit = cache.get(method, target, requestHeaders);
+      if (hit != null) {
+        if (hit.revalidate()) revalidate(cache, hit, clientIp, http2, method, target, requestHeaders);
+        return respond(hit.response, clientIp, http2, method, target, requestHeaders);
+      }
+    }
+    final HandlerIndex.Match match = accept(method, target);
+    if (match != null) {
+      final Response.Builder responseBuilder = match.handler.handle(
+        new Request(clientIp, http2, method, target, requestHeaders, requestBody), match.params
+      );
+      if (cache != null) cache.put(method, target, requestHeaders, responseBuilder);
+      return respond(responseBuilder, clientIp, http2, method, target, requestHeaders);
+    }
+    final Response.Builder responseBuilder = handleNotAccepted(clientIp, method, target, requestHeaders);
+    return respond(responseBuilder, clientIp, http2, method, target, requestHeaders);
+  }
+
+  @Override
+  protected final CompletableFuture<Response> handleAsync(final String clientIp, final boolean http2,
+                                                          final String method, final RequestTarget target,
+                                                          final Headers requestHeaders,
+                                                          @Nullable final Buffer requestBody) {
+    final ResponseCache cache = this.cache;
+    if (cache != null) {
+      final ResponseCache.Hit hit = cache.get(method, target, requestHeaders);
+      if (hit != null) {
+        if (hit.revalidate()) revalidate(cache, hit, clientIp, http2, method, target, requestHeaders);
+        return CompletableFuture.completedFuture(
+          respond(hit.response, clientIp, http2, method, target, requestHeaders)
+        );
+      }
+    }
+    final HandlerIndex.Match match = accept(method, target);
+    if (match != null) {
+      final Handler handler = match.handler;
+      final String[] params = match.params;
+      final Request request = new Request(clientIp, http2, method, target, requestHeaders, requestBody);
+      if (handler instanceof AsyncHandler) {
+        return respond(((AsyncHandler)handler).handleAsync(request, params),
+                       clientIp, http2, method, target, requestHeaders);
+      }
+      final Response.Builder responseBuilder = handler.handle(request, params);
+      if (cache != null) cache.put(method, target, requestHeaders, responseBuilder);
+      return CompletableFuture.completedFuture(
+        respond(responseBuilder, clientIp, http2, method, target, requestHeaders)
+      );
+    }
+    final Response.Builder responseBuilder = handleNotAccepted(clientIp, method, target, requestHeaders);
+    return CompletableFuture.completedFuture(
+      respond(responseBuilder, clientIp, http2, method, target, requestHeaders)
+    );
+  }
+
+  /**
+   * Creates a fresh response for a stale cache entry in the background, and stores it in the cache.
+   */
+  private void revalidate(final ResponseCache cache, final ResponseCache.Hit hit,
+                          final String clientIp, final boolean http2,
+                          final String method, final RequestTarget target, final Headers requestHeaders) {
+    //noinspection Convert2Lambda
+    final boolean scheduled = cache.execute(new Runnable() {
+      @Override public void run() {
+        boolean pending = false;
+        try {
+          final HandlerIndex.Match match = accept(method, target);
+          if (match == null) return;
+          final Request request = new Request(clientIp, http2, method, target, requestHeaders, null);
+          if (match.handler instanceof AsyncHandler) {
+            //noinspection Convert2Lambda
+            ((AsyncHandler)match.handler).handleAsync(request, match.params).whenComplete(
+              new BiConsumer<Response.Builder, Throwable>() {
+                @Override public void accept(@Nullable final Response.Builder responseBuilder,
+                                             @Nullable final Throwable error) {
+                  try {
+                    if (responseBuilder != null) {
+                      store(cache, method, target, requestHeaders, responseBuilder);
+                    }
+                  }
+                  finally {
+                    hit.done();
+                  }
+                }
+              }
+            );
+            pending = true;
+          }
+          else {
+            store(cache, method, target, requestHeaders, match.handler.handle(request, match.params));
+          }
+        }
+        catch (final RuntimeException e) {
+          logger.warn("Could not revalidate " + target + ".", e);
+        }
+        finally {
+          if (!pending) hit.done();
         }
-        return responseBuilder.build();
       }
+    });
+    if (!scheduled) hit.done();
+  }
+
+  private static void store(final ResponseCache cache,
+                            final String method, final RequestTarget target, final Headers requestHeaders,
+                            final Response.Builder responseBuilder) {
+    if (!cache.put(method, target, requestHeaders, responseBuilder)) {
+      // The response is not sent, so the resources of its body have to be released.
+      final ResponseBody body = responseBuilder.body;
+      if (body != null) body.close();
     }
-    final Response.Builder responseBuilder = handleNotAccepted(clientIp, method, url, requestHeaders);
-    decorateResponse(responseBuilder, clientIp, http2, method, url, requestHeaders);
+  }
+
+  private Response respond(final Response.Builder responseBuilder,
+                           final String clientIp, final boolean http2,
+                           final String method, final RequestTarget target,
+                           final Headers requestHeaders) {
+    decorateResponse(responseBuilder, clientIp, http2, method, target, requestHeaders);
     if (Connection.CLOSE.equalsIgnoreCase(requestHeaders.get(Connection.HEADER))) {
       responseBuilder.header(Connection.HEADER, Connection.CLOSE);
     }
     return responseBuilder.build();
   }
 
+  private CompletableFuture<Response> respond(final CompletableFuture<Response.Builder> future,
+                                              final String clientIp, final boolean http2,
+                                              final String method, final RequestTarget target,
+                                              final Headers requestHeaders) {
+    final CompletableFuture<Response> response = new CompletableFuture<>();
+    final long timeout = asyncTimeoutMillis();
+    final AsyncTimeout watchdog;
+    if (timeout > 0) {
+      //noinspection Convert2Lambda
+      final Runnable timeoutResponse = new Runnable() {
+        @Override public void run() {
+          if (response.isDone()) return;
+          try {
+            final Response.Builder responseBuilder =
+              handleAsyncTimeout(clientIp, method, target, requestHeaders);
+            final Response r = respond(responseBuilder, clientIp, http2, method, target, requestHeaders);
+            if (response.complete(r)) future.cancel(true);
+          }
+          catch (final RuntimeException e) {
+            if (response.completeExceptionally(e)) future.cancel(true);
+          }
+        }
+      };
+      watchdog = new AsyncTimeout() {
+        // This runs on the okio watchdog thread, which is shared by all the timeouts of the process: the
+        // response (with the user decorations) is created by another thread.
+        @Override protected void timedOut() {
+          if (!response.isDone()) CompletableFuture.runAsync(timeoutResponse);
+        }
+      };
+      watchdog.timeout(timeout, TimeUnit.MILLISECONDS);
+      watchdog.enter();
+    }
+    else {
+      watchdog = null;
+    }
+    //noinspection Convert2Lambda
+    future.whenComplete(new BiConsumer<Response.Builder, Throwable>() {
+      @Override public void accept(@Nullable final Response.Builder responseBuilder,
+                                   @Nullable final Throwable error) {
+        if (watchdog != null) watchdog.exit();
+        if (response.isDone()) return;
+        if (error == null && responseBuilder != null) {
+          try {
+            final ResponseCache cache = RequestHandlerChain.this.cache;
+            if (cache != null) cache.put(method, target, requestHeaders, responseBuilder);
+            response.complete(respond(responseBuilder, clientIp, http2, method, target, requestHeaders));
+          }
+          catch (final RuntimeException e) {
+            response.completeExceptionally(e);
+          }
+        }
+        else if (error instanceof CancellationException) {
+          response.cancel(false);
+        }
+        else {
+          response.completeExceptionally(error == null ? new NullPointerException() : error);
+        }
+      }
+    });
+    //noinspection Convert2Lambda
+    response.whenComplete(new BiConsumer<Response, Throwable>() {
+      @Override public void accept(@Nullable final Response r, @Nullable final Throwable error) {
+        // The server cancels the response when the client disconnects.
+        if (response.isCancelled()) future.cancel(true);
+      }
+    });
+    return response;
+  }
+
+  /**
+   * Returns the maximum amount of time that an AsyncHandler has to create its response. The future is
+   * cancelled when it takes longer.
+   * @return the timeout in milliseconds, or 0 for no limit.
+   */
+  protected long asyncTimeoutMillis() {
+    return 30000L;
+  }
+
+  /**
+   * Creates the response for the requests whose asynchronous response wasn't ready in time.
+   * The default behaviour is to return an empty 503 SERVICE UNAVAILABLE response.
+   * @param clientIp the client ip address.
+   * @param method the request method.
+   * @param target the request target.
+   * @param requestHeaders the request headers.
+   * @return the response builder object.
+   */
+  @SuppressWarnings({ "unused" })
+  protected Response.Builder handleAsyncTimeout(final String clientIp, final String method,
+                                                final RequestTarget target, final Headers requestHeaders) {
+    return new Response.Builder().statusLine(StatusLines.SERVICE_UNAVAILABLE).noBody();
+  }
+
   /**
    * Entry point that can be used to decorate (add headers for instance) the response before sending it.
    * @param responseBuilder the response builder object.
    * @param clientIp the client ip address.
    * @param http2 whether the connection is using http2 (h2) rather than http1.1.
    * @param method the request method.
-   * @param url the request url.
+   * @param target the request target.
    * @param requestHeaders the request headers.
    */
   @SuppressWarnings({ "unused" })
   protected void decorateResponse(final Response.Builder responseBuilder,
                                   final String clientIp, final boolean http2,
-                                  final String method, final HttpUrl url,
+                                  final String method, final RequestTarget target,
                                   final Headers requestHeaders) {
+    if (!autoETag(responseBuilder, method, requestHeaders)) return;
     final int code = responseBuilder.code();
     if (code >= 200 && code < 300) {
       if (http2) {
@@ -290,18 +535,82 @@ public class RequestHandlerChain extends AbstractRequestHandler {
     }
   }
 
+  /**
+   * Returns the maximum body size of the responses that get an automatic ETag. Responses to GET and HEAD
+   * requests with a 200 status, an in-memory body under that size and no ETag get a strong ETag computed
+   * from the body, and the conditional requests whose If-None-Match matches the ETag (automatic or not) get
+   * a 304 (Not Modified) response without a body.
+   * The default is 0 (disabled).
+   * @return the maximum body size in bytes, or 0 to disable automatic ETags.
+   */
+  protected long autoETagMaxBytes() {
+    return 0L;
+  }
+
+  /**
+   * Adds the automatic ETag to the response, and converts it to a 304 if the request ETag matches.
+   * @return false if the response was converted to a 304.
+   */
+  private boolean autoETag(final Response.Builder responseBuilder, final String method,
+                           final Headers requestHeaders) {
+    final long maxBytes = autoETagMaxBytes();
+    if (maxBytes <= 0 || responseBuilder.code() != 200) return true;
+    if (!"GET".equals(method) && !"HEAD".equals(method)) return true;
+    String etag = responseBuilder.header(ETag.HEADER);
+    if (etag == null) {
+      // File bodies are written from the file (with sendfile if possible) and shouldn't be buffered.
+      if (responseBuilder.body instanceof Response.FileBody) return true;
+      final Response.Snapshot snapshot = responseBuilder.snapshot(maxBytes);
+      if (snapshot == null || snapshot.body == null) return true;
+      etag = etag(snapshot.body);
+      responseBuilder.etag(etag);
+    }
+    final String ifNoneMatch = requestHeaders.get(ETag.IF_NONE_MATCH);
+    if (ifNoneMatch == null || !matches(ifNoneMatch, etag)) return true;
+    responseBuilder.statusLine(StatusLines.NOT_MODIFIED).noBody().removeHeader("Content-Type");
+    return false;
+  }
+
+  /**
+   * Computes a strong ETag from the bytes of a body, with the 64-bit FNV-1a hash (fast, but not
+   * cryptographic) and the byte count.
+   */
+  static String etag(final ByteString bytes) {
+    final ByteBuffer buffer = bytes.asByteBuffer();
+    long hash = 0xcbf29ce484222325L;
+    for (int i=0, n=buffer.limit(); i<n; ++i) {
+      hash ^= buffer.get(i) & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return "\"" + Long.toHexString(hash) + "-" + Integer.toHexString(bytes.size()) + "\"";
+  }
+
+  /**
+   * Compares an ETag with the value of an If-None-Match header (a list of ETags, or *), with the weak
+   * comparison function.
+   */
+  static boolean matches(final String ifNoneMatch, final String etag) {
+    final String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+    for (final String it: ifNoneMatch.split(",")) {
+      final String value = it.trim();
+      if (value.equals("*")) return true;
+      if ((value.startsWith("W/") ? value.substring(2) : value).equals(opaque)) return true;
+    }
+    return false;
+  }
+
   /**
    * Handles the requests that were not accepted by any Handler in the chain.
    * The default behaviour is to return an empty 404 NOT FOUND response.
    * @param clientIp the client ip address.
    * @param method the request method.
-   * @param url the request url.
+   * @param target the request target.
    * @param requestHeaders the request headers.
    * @return the response builder object.
    */
   @SuppressWarnings({ "unused" })
   protected Response.Builder handleNotAccepted(final String clientIp, final String method,
-                                               final HttpUrl url,final Headers requestHeaders) {
+                                               final RequestTarget target, final Headers requestHeaders) {
     return new Response.Builder().statusLine(StatusLines.NOT_FOUND).noBody();
   }
 
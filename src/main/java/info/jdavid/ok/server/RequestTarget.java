@@ -0,0 +1,215 @@
+package info.jdavid.ok.server;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import okhttp3.HttpUrl;
+import okhttp3.internal.Util;
+import okhttp3.internal.http.RequestLine;
+
+
+/**
+ * Lightweight representation of a request target (the path and query from the request line, plus the
+ * authority from the Host header or the :authority pseudo header).<br>
+ * The path and the query are served straight from the raw request target when it is already in canonical
+ * form. The full HttpUrl is only built when it is asked for (or when the raw target needs to be
+ * canonicalized).
+ */
+@SuppressWarnings({ "WeakerAccess" })
+public final class RequestTarget {
+
+  final boolean https;
+  final String authority;
+  final String target;
+  // index of the end of the path in the raw target, or -1 if the raw target is not canonical.
+  private final int pathEnd;
+  private String path = null;
+  private HttpUrl url;
+
+  RequestTarget(final boolean https, final String authority, final String target) {
+    this.https = https;
+    this.authority = authority;
+    this.target = target;
+    this.pathEnd = canonicalPathEnd(target);
+    this.url = null;
+  }
+
+  private RequestTarget(final HttpUrl url) {
+    this.https = url.isHttps();
+    this.authority = Util.hostHeader(url, false);
+    this.target = RequestLine.requestPath(url);
+    this.pathEnd = -1;
+    this.url = url;
+  }
+
+  /**
+   * Creates a request target from an existing url.
+   * @param url the url.
+   * @return the request target.
+   */
+  public static RequestTarget create(final HttpUrl url) {
+    return new RequestTarget(url);
+  }
+
+  /**
+   * Returns whether the scheme is https or http.
+   * @return true for https, false for http.
+   */
+  public boolean isHttps() {
+    return https;
+  }
+
+  /**
+   * Returns the scheme (http or https).
+   * @return the scheme.
+   */
+  public String scheme() {
+    return https ? "https" : "http";
+  }
+
+  /**
+   * Returns the host name (without the port).
+   * @return the host.
+   */
+  public String host() {
+    if (url == null && isSimpleAuthority(authority)) {
+      final int i = authority.indexOf(':');
+      return i == -1 ? authority : authority.substring(0, i);
+    }
+    return url().host();
+  }
+
+  /**
+   * Returns the port, either explicitly specified in the authority, or the default port for the scheme.
+   * @return the port.
+   */
+  public int port() {
+    if (url == null && isSimpleAuthority(authority)) {
+      final int i = authority.indexOf(':');
+      if (i == -1) return https ? 443 : 80;
+      try {
+        return Integer.parseInt(authority.substring(i + 1));
+      }
+      catch (final NumberFormatException ignore) {}
+    }
+    return url().port();
+  }
+
+  /**
+   * Returns the (percent-encoded) path, starting with a "/".
+   * @return the encoded path.
+   */
+  public String encodedPath() {
+    final String p = path;
+    if (p != null) return p;
+    final int end = pathEnd;
+    if (end < 0) {
+      return path = url().encodedPath();
+    }
+    else {
+      return path = end == target.length() ? target : target.substring(0, end);
+    }
+  }
+
+  /**
+   * Returns the (percent-encoded) query string, without the leading "?", or null if there is none.
+   * @return the encoded query.
+   */
+  public @Nullable String encodedQuery() {
+    final int end = pathEnd;
+    if (end < 0) return url().encodedQuery();
+    return end == target.length() ? null : target.substring(end + 1);
+  }
+
+  /**
+   * Returns the (decoded) path segments. This requires the creation of the full url.
+   * @return the list of path segments.
+   */
+  public List<String> pathSegments() {
+    return url().pathSegments();
+  }
+
+  /**
+   * Returns the full request url. It is only built on the first call.
+   * @return the url.
+   * @throws IllegalArgumentException if the request target or the authority is invalid.
+   */
+  public HttpUrl url() {
+    HttpUrl u = url;
+    if (u == null) {
+      u = HttpUrl.parse((https ? "https://" : "http://") + authority + target);
+      if (u == null) {
+        throw new IllegalArgumentException("Invalid request target: " + authority + target);
+      }
+      url = u;
+    }
+    return u;
+  }
+
+  /**
+   * Returns the scheme, authority and raw request target. The url isn't built, so that this doesn't throw for
+   * invalid targets (it's used for logging).
+   * @return the string representation.
+   */
+  @Override public String toString() {
+    return (https ? "https://" : "http://") + authority + target;
+  }
+
+  private static boolean isSimpleAuthority(final String authority) {
+    final int n = authority.length();
+    if (n == 0) return false;
+    for (int i=0; i<n; ++i) {
+      final char c = authority.charAt(i);
+      if ((c < 'a' || c > 'z') && (c < '0' || c > ':') && c != '.' && c != '-') return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the index of the end of the path in the raw target (the index of the "?", or the target
+   * length), or -1 if the target needs to be canonicalized (dot segments, characters that need to be
+   * percent-encoded, percent-encoded sequences, fragment).
+   * @param target the raw request target.
+   * @return the path end index or -1.
+   */
+  static int canonicalPathEnd(final String target) {
+    final int n = target.length();
+    if (n == 0 || target.charAt(0) != '/') return -1;
+    int pathEnd = n;
+    int segmentStart = 1;
+    for (int i=1; i<n; ++i) {
+      final char c = target.charAt(i);
+      if (c <= ' ' || c >= 0x7f) return -1;
+      switch (c) {
+        case '"': case '<': case '>': case '^': case '`': case '{': case '}': case '|':
+        case '\\': case '%': case '#': case '\'':
+          return -1;
+        case '/':
+          if (pathEnd == n) {
+            if (isDotSegment(target, segmentStart, i)) return -1;
+            segmentStart = i + 1;
+          }
+          break;
+        case '?':
+          if (pathEnd == n) {
+            if (isDotSegment(target, segmentStart, i)) return -1;
+            pathEnd = i;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    if (pathEnd == n && isDotSegment(target, segmentStart, n)) return -1;
+    return pathEnd;
+  }
+
+  private static boolean isDotSegment(final String target, final int start, final int end) {
+    final int length = end - start;
+    if (length == 1) return target.charAt(start) == '.';
+    if (length == 2) return target.charAt(start) == '.' && target.charAt(start + 1) == '.';
+    return false;
+  }
+
+}
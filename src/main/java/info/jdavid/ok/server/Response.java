@@ -1,17 +1,33 @@
 package info.jdavid.ok.server;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.annotation.Nullable;
 
@@ -27,6 +43,11 @@ import okhttp3.internal.http.StatusLine;
 import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+import okio.Sink;
+import okio.Source;
+import okio.Timeout;
 
 
 /**
@@ -140,6 +161,48 @@ public abstract class Response {
 
   abstract void writeBody(@Nullable final BufferedSource in, final BufferedSink out) throws IOException;
 
+  /**
+   * Writes the body to an http 2 stream. The stream has its own framing, so the http 1.1 chunked framing
+   * must not be used.
+   * @param in the request stream source.
+   * @param out the response stream sink.
+   * @throws IOException if the body could not be written.
+   */
+  void writeHttp2Body(@Nullable final BufferedSource in, final BufferedSink out) throws IOException {
+    writeBody(in, out);
+  }
+
+  /**
+   * Hands the connection over to the response once the body has been written, for responses that keep
+   * writing from another thread (SSE responses with a writer pool). The caller should then neither use nor
+   * close the connection anymore.
+   * @param connection the connection (closed by the response when it ends).
+   * @return true if the connection was handed over, false if the caller still owns it.
+   */
+  boolean detach(final Closeable connection) {
+    return false;
+  }
+
+  /**
+   * Tells whether the client can find the end of the body (from the content length or the chunked encoding).
+   * The connection can't be reused after a body that isn't delimited.
+   * @return false if the connection should be closed after the body.
+   */
+  boolean delimited() {
+    return true;
+  }
+
+  /**
+   * Writes the body directly to the channel (with sendfile if the platform supports it) when the body is a
+   * file region. The headers must have been flushed already.
+   * @param channel the connection channel.
+   * @return true if the body was written, false if it should be written with writeBody instead.
+   * @throws IOException if the file could not be read or if the connection was closed.
+   */
+  boolean transferBody(final WritableByteChannel channel) throws IOException {
+    return false;
+  }
+
   @Override public String toString() {
     return "Response{protocol="
            + protocol
@@ -169,10 +232,14 @@ public abstract class Response {
     String message = null;
     ResponseBody body = null;
     private ResponseBody[] chunks = null;
+    private StreamWriter stream = null;
+    private long streamFlushBytes = 0L;
+    private long streamFlushMillis = 0L;
     private EventSource eventSource = null;
     private int sseRetrySecs = 5;
+    private String sseLastEventId = null;
     private List<HttpUrl> push = null;
-    private Headers.Builder headers = new Headers.Builder();
+    Headers.Builder headers = new Headers.Builder();
 
     /**
      * Creates a new Builder.
@@ -593,6 +660,20 @@ public abstract class Response {
       return body(new BufferResponse(contentType, source, size));
     }
 
+    /**
+     * Sets a response body backed by a region of a file. On plain (non tls) http 1.1 connections that have
+     * a socket channel, the region is transferred to the socket without copying the bytes to the heap.
+     * @param contentType the media type.
+     * @param file the file.
+     * @param start the start byte index of the region.
+     * @param length the byte size of the region.
+     * @return this
+     */
+    public Builder body(final MediaType contentType, final File file, final long start, final long length) {
+      if (start < 0 || length < 0) throw new IllegalArgumentException();
+      return body(new FileBody(contentType, file, start, length));
+    }
+
     /**
      * Sets the response chunks.
      * @param contentType the media type.
@@ -672,6 +753,52 @@ public abstract class Response {
       return chunks(false, contentType, bodies);
     }
 
+    /**
+     * Sets a streamed response body: the writer is called once the headers have been sent, and writes the
+     * body as it's produced. The body is sent with the chunked transfer encoding (http 1.1) or as data
+     * frames (h2). The data emitted by the writer is flushed to the network once 64KB are pending or when
+     * a second has elapsed since the last flush.
+     * @param contentType the media type.
+     * @param writer the body writer.
+     * @return this
+     */
+    public Builder stream(final MediaType contentType, @Nullable final StreamWriter writer) {
+      return stream(contentType, writer, 65536L, 1000L);
+    }
+
+    /**
+     * Sets a streamed response body: the writer is called once the headers have been sent, and writes the
+     * body as it's produced. The body is sent with the chunked transfer encoding (http 1.1) or as data
+     * frames (h2).<br>
+     * The sink given to the writer buffers its data until a segment (8KB) is complete, or until emit() or
+     * flush() is called. Emitted data is flushed to the network when the byte or time threshold is reached,
+     * and flush() flushes it immediately. Writes block when the client doesn't keep up.
+     * @param contentType the media type.
+     * @param writer the body writer.
+     * @param flushBytes the number of emitted bytes that triggers a flush (0 to flush on every emit).
+     * @param flushMillis the time since the last flush that triggers a flush on the next emit (0 to flush on
+     * every emit).
+     * @return this
+     */
+    public Builder stream(final MediaType contentType, @Nullable final StreamWriter writer,
+                          final long flushBytes, final long flushMillis) {
+      if (flushBytes < 0 || flushMillis < 0) throw new IllegalArgumentException();
+      if (writer == null) {
+        this.stream = null;
+        removeHeader(TRANSFER_ENCODING);
+        removeHeader(CONTENT_TYPE);
+      }
+      else {
+        this.stream = writer;
+        this.streamFlushBytes = flushBytes;
+        this.streamFlushMillis = flushMillis;
+        headers.set(TRANSFER_ENCODING, "chunked");
+        removeHeader(CONTENT_LENGTH);
+        contentType(contentType);
+      }
+      return this;
+    }
+
     /**
      * Sets the response event source (SSE response).
      * @param eventSource the event source.
@@ -689,9 +816,24 @@ public abstract class Response {
      * @return this.
      */
     public Builder sse(@Nullable final EventSource eventSource, final int clientReconnectDelayInSeconds) {
+      return sse(eventSource, clientReconnectDelayInSeconds, null);
+    }
+
+    /**
+     * Sets the response event source (SSE response) for a client that is reconnecting. The events that the
+     * client missed are sent first if they are still in the event source history. Otherwise, a "reset" event
+     * is sent first, to let the client know that it should fetch the whole state again.
+     * @param eventSource the event source.
+     * @param clientReconnectDelayInSeconds the reconnect delay in seconds for connected clients.
+     * @param lastEventId the value of the Last-Event-ID request header.
+     * @return this.
+     */
+    public Builder sse(@Nullable final EventSource eventSource, final int clientReconnectDelayInSeconds,
+                       @Nullable final String lastEventId) {
       if (code == -1) statusLine(StatusLines.OK);
       this.eventSource = eventSource;
       sseRetrySecs = clientReconnectDelayInSeconds;
+      sseLastEventId = lastEventId;
       return this;
     }
 
@@ -729,9 +871,15 @@ public abstract class Response {
       if (chunks != null && body != null) {
         throw new IllegalStateException("Both body and chunks were specified.");
       }
+      if (stream != null && (body != null || chunks != null || eventSource != null)) {
+        throw new IllegalStateException("A streamed body can't be combined with a body, chunks or an event source.");
+      }
       if (chunks != null) {
         return new ChunkedResponse(this);
       }
+      if (stream != null) {
+        return new StreamResponse(this, stream, streamFlushBytes, streamFlushMillis);
+      }
       if (eventSource != null) {
         if (code != 200) {
           throw new IllegalStateException("SSE response should have a status code of 200 (OK).");
@@ -775,6 +923,45 @@ public abstract class Response {
       return new SyncResponse(this);
     }
 
+    /**
+     * Reads the body into memory so that the response can be sent any number of times, and returns a
+     * snapshot of the status line, headers and body. The body of this builder is replaced by the in-memory
+     * copy. Responses with chunks, a stream, an event source or push promises can't be replayed, and neither
+     * can bodies of unknown length or larger than the limit. If the body can't be read (it is shorter than its
+     * length, or the read fails), this builder is turned into an empty 500 response, since the original body
+     * has been consumed.
+     * @param maxBodyBytes the maximum size of the body.
+     * @return the snapshot, or null if the response can't be replayed.
+     */
+    public @Nullable Snapshot snapshot(final long maxBodyBytes) {
+      if (chunks != null || stream != null || eventSource != null || push != null) return null;
+      if (protocol == null || code < 0 || message == null) return null;
+      final ResponseBody data = body;
+      if (data == null) return new Snapshot(protocol, code, message, headers.build(), null, null);
+      final long length = data.contentLength();
+      if (length < 0 || length > maxBodyBytes) return null;
+      final MediaType contentType = data.contentType();
+      final ByteString bytes;
+      if (data instanceof ByteStringBody) {
+        bytes = ((ByteStringBody)data).bytes;
+      }
+      else {
+        try {
+          bytes = data.source().readByteString(length);
+        }
+        catch (final IOException ignore) {
+          headers = new Headers.Builder();
+          statusLine(StatusLines.INTERNAL_SERVER_ERROR).noBody();
+          return null;
+        }
+        finally {
+          data.close();
+        }
+        body = new ByteStringBody(contentType, bytes);
+      }
+      return new Snapshot(protocol, code, message, headers.build(), contentType, bytes);
+    }
+
     private static String join(final List<String> list) {
       final StringBuilder str = new StringBuilder();
       boolean first = true;
@@ -793,26 +980,183 @@ public abstract class Response {
   }
 
   /**
-   * Event Source for an SSE Response.
+   * Event Source for an SSE Response.<br>
+   * Each message is encoded once, and the encoded bytes are shared by all the subscribers. Every subscriber has
+   * its own bounded queue of pending messages, and all the messages that are pending when its connection is
+   * ready are sent together. The overflow policy tells what happens when a subscriber falls behind and its
+   * queue is full.<br>
+   * Messages are given ids, and the most recent ones are kept (within count and byte limits) so that they can
+   * be sent again to clients that reconnect with the Last-Event-ID header.
    */
   public static final class EventSource {
 
-    private final Lock lock = new ReentrantLock();
-    final List<SSE> responses = new ArrayList<>();
+    /**
+     * Policy for subscribers that don't keep up with the messages.
+     */
+    public enum Overflow {
+      /**
+       * The new message is not sent to the subscriber.
+       */
+      DROP,
+      /**
+       * The pending messages are discarded, and only the new message is sent to the subscriber.
+       */
+      COALESCE,
+      /**
+       * The subscriber is disconnected (the client will reconnect after the retry delay).
+       */
+      DISCONNECT
+    }
 
-    public EventSource() {}
+    static final class Event {
+      final long id;
+      final ByteString bytes;
 
-    EventSource connect(final SSE sse) {
-      lock.lock();
-      try {
+      Event(final long id, final ByteString bytes) {
+        this.id = id;
+        this.bytes = bytes;
+      }
+    }
+
+    static final ByteString RESET = ByteString.encodeUtf8("event: reset\ndata\n\n");
+
+    final int capacity;
+    final Overflow overflow;
+    final int historySize;
+    final long historyBytes;
+    final SSEWriterPool writers;
+    // The ids are prefixed so that ids given by another event source are not mistaken for ours.
+    final String idPrefix = Integer.toString(new Random().nextInt() & Integer.MAX_VALUE, 36) + "-";
+    final Set<SSE> responses = Collections.newSetFromMap(new ConcurrentHashMap<SSE, Boolean>());
+    final AtomicLong overflowCount = new AtomicLong();
+    final ArrayDeque<Event> history = new ArrayDeque<>();
+    long historyByteCount = 0L;
+    long lastId = 0L;
+    volatile boolean closed = false;
+
+    /**
+     * Creates an event source that can queue up to 1024 messages per subscriber, and that disconnects the
+     * subscribers that fall further behind. Messages don't get ids, and are not kept for the clients that
+     * reconnect.
+     */
+    public EventSource() {
+      this(1024, Overflow.DISCONNECT);
+    }
+
+    /**
+     * Creates an event source that detaches the connections of its subscribers from the connection threads,
+     * and has their messages written by the given writer pool. Messages don't get ids, and are not kept for the
+     * clients that reconnect.
+     * @param writers the writer pool.
+     */
+    public EventSource(final SSEWriterPool writers) {
+      this(1024, Overflow.DISCONNECT, 0, 0L, writers);
+    }
+
+    /**
+     * Creates an event source whose messages don't get ids, and are not kept for the clients that reconnect.
+     * @param capacity the maximum number of messages that can be pending for a subscriber.
+     * @param overflow the policy for the subscribers that have too many pending messages.
+     */
+    public EventSource(final int capacity, final Overflow overflow) {
+      this(capacity, overflow, 0, 0L);
+    }
+
+    /**
+     * Creates an event source.
+     * @param capacity the maximum number of messages that can be pending for a subscriber.
+     * @param overflow the policy for the subscribers that have too many pending messages.
+     * @param historySize the maximum number of messages kept for the clients that reconnect (0 to disable
+     * message ids and replays).
+     * @param historyBytes the maximum total byte size of the messages kept for the clients that reconnect.
+     */
+    public EventSource(final int capacity, final Overflow overflow,
+                       final int historySize, final long historyBytes) {
+      this(capacity, overflow, historySize, historyBytes, null);
+    }
+
+    /**
+     * Creates an event source.
+     * @param capacity the maximum number of messages that can be pending for a subscriber.
+     * @param overflow the policy for the subscribers that have too many pending messages.
+     * @param historySize the maximum number of messages kept for the clients that reconnect (0 to disable
+     * message ids and replays).
+     * @param historyBytes the maximum total byte size of the messages kept for the clients that reconnect.
+     * @param writers the pool that writes the messages (null to write them from the connection threads).
+     */
+    public EventSource(final int capacity, final Overflow overflow,
+                       final int historySize, final long historyBytes,
+                       @Nullable final SSEWriterPool writers) {
+      if (capacity < 1 || historySize < 0 || historyBytes < 0) throw new IllegalArgumentException();
+      //noinspection ConstantConditions
+      if (overflow == null) throw new NullPointerException();
+      this.capacity = capacity;
+      this.overflow = overflow;
+      this.historySize = historySize;
+      this.historyBytes = historyBytes;
+      this.writers = writers;
+    }
+
+    EventSource connect(final SSE sse, @Nullable final String lastEventId) {
+      if (historySize == 0) {
         responses.add(sse);
+        return this;
       }
-      finally {
-        lock.unlock();
+      synchronized (history) {
+        sse.after = lastId;
+        if (lastEventId != null) {
+          final long last = parseId(lastEventId);
+          final Event oldest = history.peekFirst();
+          if (last == lastId) {
+            sse.replay = Collections.emptyList();
+          }
+          else if (oldest != null && last >= oldest.id - 1 && last < lastId) {
+            final List<ByteString> replay = new ArrayList<>((int)(lastId - last));
+            for (final Event event: history) {
+              if (event.id > last) replay.add(event.bytes);
+            }
+            sse.replay = replay;
+          }
+          else {
+            // The missed events are not available anymore.
+            sse.replay = Collections.singletonList(
+              new Buffer().writeUtf8("id: ").writeUtf8(idPrefix).writeDecimalLong(lastId).writeByte('\n').
+                write(RESET).readByteString()
+            );
+          }
+        }
+        // The subscriber is added while holding the lock, so that it can't miss an event sent concurrently.
+        responses.add(sse);
       }
       return this;
     }
 
+    private long parseId(final String id) {
+      if (!id.startsWith(idPrefix)) return -1L;
+      try {
+        return Long.parseLong(id.substring(idPrefix.length()));
+      }
+      catch (final NumberFormatException ignore) {
+        return -1L;
+      }
+    }
+
+    /**
+     * Returns the number of connected subscribers.
+     * @return the number of subscribers.
+     */
+    public int subscriberCount() {
+      return responses.size();
+    }
+
+    /**
+     * Returns the number of times a subscriber queue was full when a message was sent.
+     * @return the number of overflows.
+     */
+    public long overflowCount() {
+      return overflowCount.get();
+    }
+
     /**
      * Sends a message with the specified data.
      * @param data the message data.
@@ -822,88 +1166,116 @@ public abstract class Response {
     }
 
     /**
-     * Sends a message with the specified metadata and the specified data.
+     * Sends a message with the specified metadata and the specified data. The metadata can't include an id
+     * when the event source keeps a history, because it sets the ids itself.
      * @param data the message data.
      * @param metadata the message metadata.
      */
     public void send(@Nullable final String data, @Nullable final Map<String, String> metadata) {
       if (data == null) throw new NullPointerException("The message data cannot be null.");
+      final Buffer buffer = new Buffer();
       if (metadata != null) {
         for (final Map.Entry<String, String> entry: metadata.entrySet()) {
           final String key = entry.getKey();
           if (key == null) throw new NullPointerException("The metadata key cannot be null.");
+          if (historySize > 0 && "id".equals(key)) {
+            throw new IllegalArgumentException("The message id is set by the event source.");
+          }
           final int n = key.length();
           for (int i=0; i<n; ++i) {
             final char c = key.charAt(i);
             if (c == ':' || c == '\n' || c == '\t') throw new IllegalArgumentException();
           }
+          final String value = entry.getValue();
+          if (value == null) throw new NullPointerException("The metadata value cannot be null.");
+          if (value.indexOf('\n') != -1) throw new IllegalArgumentException();
+          buffer.writeUtf8(key).writeUtf8(": ").writeUtf8(value).writeByte('\n');
         }
       }
-      lock.lock();
-      try {
-        final List<SSE> responses = this.responses;
-        for (final SSE sse: responses)  {
-          sse.lock.lock();
-          try {
-            sse.queue.add(new SSE.Message(data, metadata));
-            sse.isReady.signal();
-          }
-          finally {
-            sse.lock.unlock();
+      // Multi-line data is sent as multiple data fields.
+      int start = 0;
+      while (true) {
+        final int end = data.indexOf('\n', start);
+        buffer.writeUtf8("data: ");
+        if (end == -1) {
+          buffer.writeUtf8(data, start, data.length()).writeByte('\n');
+          break;
+        }
+        buffer.writeUtf8(data, start, end).writeByte('\n');
+        start = end + 1;
+      }
+      buffer.writeByte('\n');
+      if (closed) return;
+      final ByteString body = buffer.readByteString();
+      final Event event;
+      if (historySize == 0) {
+        event = new Event(0L, body);
+      }
+      else {
+        synchronized (history) {
+          final long id = ++lastId;
+          final ByteString bytes = new Buffer().
+            writeUtf8("id: ").writeUtf8(idPrefix).writeDecimalLong(id).writeByte('\n').
+            write(body).readByteString();
+          event = new Event(id, bytes);
+          history.addLast(event);
+          historyByteCount += bytes.size();
+          while (history.size() > historySize || historyByteCount > historyBytes) {
+            historyByteCount -= history.removeFirst().bytes.size();
           }
         }
       }
-      finally {
-        lock.unlock();
+      for (final SSE sse: responses) {
+        // Events sent before the subscriber connected have been replayed already.
+        if (event.id > sse.after) sse.offer(event.bytes);
       }
     }
 
+    /**
+     * Ends the streams once the pending messages have been sent.
+     */
     public void close() {
-      lock.lock();
-      try {
-        final List<SSE> responses = this.responses;
-        for (final SSE sse: responses)  {
-          sse.lock.lock();
-          try {
-            sse.queue.add(null);
-            sse.isReady.signal();
-          }
-          finally {
-            sse.lock.unlock();
-          }
-        }
-      }
-      finally {
-        lock.unlock();
+      closed = true;
+      for (final SSE sse: responses) {
+        sse.wake();
       }
     }
 
     void disconnect(final SSE sse) {
-      lock.lock();
-      try {
-        responses.remove(sse);
-      }
-      finally {
-        lock.unlock();
-      }
+      responses.remove(sse);
     }
 
   }
 
-  private static class SSE extends Response {
-
-    private final Lock lock = new ReentrantLock();
-    private final Condition isReady = lock.newCondition();
-    final List<Message> queue = new LinkedList<>();
-
-    static class Message {
-      final String data;
-      final Map<String, String> metadata;
-      public Message(final String data, @Nullable final Map<String, String> metadata) {
-        this.data = data;
-        this.metadata = metadata;
+  private static class SSE extends Response implements SSEWriterPool.Subscriber {
+
+    static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(10L);
+
+    final Queue<ByteString> queue = new ConcurrentLinkedQueue<>();
+    final AtomicInteger pending = new AtomicInteger();
+    volatile boolean overflowed = false;
+    volatile Thread writer = null;
+    long after = -1L;
+    List<ByteString> replay = null;
+
+    // Only used when the connection is detached and the messages are written by the writer pool.
+    final AtomicInteger scheduled = new AtomicInteger();
+    final AtomicBoolean ended = new AtomicBoolean();
+    volatile BufferedSink out = null;
+    volatile Closeable connection = null;
+    volatile boolean heartbeat = false;
+    volatile long lastWrite = 0L;
+    //noinspection Convert2Lambda
+    final Runnable drain = new Runnable() {
+      @Override public void run() {
+        int missed = scheduled.get();
+        while (true) {
+          drain();
+          missed = scheduled.addAndGet(-missed);
+          if (missed == 0) break;
+        }
       }
-    }
+    };
 
     final int retry;
     final EventSource eventSource;
@@ -911,46 +1283,189 @@ public abstract class Response {
     SSE(final Response.Builder builder) {
       super(builder);
       retry = builder.sseRetrySecs;
-      eventSource = builder.eventSource.connect(this);
+      eventSource = builder.eventSource.connect(this, builder.sseLastEventId);
+    }
+
+    @Override
+    boolean delimited() {
+      return false;
+    }
+
+    void offer(final ByteString message) {
+      if (pending.incrementAndGet() > eventSource.capacity) {
+        pending.decrementAndGet();
+        eventSource.overflowCount.incrementAndGet();
+        switch (eventSource.overflow) {
+          case DROP:
+            return;
+          case COALESCE:
+            while (queue.poll() != null) pending.decrementAndGet();
+            pending.incrementAndGet();
+            queue.offer(message);
+            break;
+          default:
+            overflowed = true;
+            eventSource.disconnect(this);
+        }
+      }
+      else {
+        queue.offer(message);
+      }
+      wake();
+    }
+
+    void wake() {
+      if (connection != null) {
+        schedule();
+      }
+      else {
+        final Thread thread = writer;
+        if (thread != null) LockSupport.unpark(thread);
+      }
+    }
+
+    private void schedule() {
+      final SSEWriterPool writers = eventSource.writers;
+      assert writers != null;
+      if (scheduled.getAndIncrement() == 0 && !writers.execute(drain)) close();
     }
 
     @Override
     void writeBody(@Nullable final BufferedSource in, final BufferedSink out) throws IOException {
-      out.writeUtf8("retry: " + retry + "\n").flush();
+      final SSEWriterPool writers = eventSource.writers;
+      if (writers != null) {
+        try {
+          writePreamble(out);
+        }
+        catch (final IOException e) {
+          eventSource.disconnect(this);
+          throw e;
+        }
+        lastWrite = System.nanoTime();
+        // The pool takes over once the connection is detached.
+        this.out = out;
+        return;
+      }
+      writer = Thread.currentThread();
       try {
-        while (true) {
-          lock.lock();
-          try {
-            if (queue.size() > 0 || isReady.await(10000L, TimeUnit.MILLISECONDS)) {
-              if (queue.size() == 0) continue;
-              final Message message = queue.remove(0);
-              if (message == null) break;
-              final Map<String, String> metadata = message.metadata;
-              if (metadata != null) {
-                for (final Map.Entry<String, String> entry : metadata.entrySet()) {
-                  out.writeUtf8(entry.getKey() + ": " + entry.getValue() + "\n\n");
-                }
-              }
-              final String data = message.data;
-              out.writeUtf8("data: " + data + "\n\n").flush();
-            }
-            else {
-              out.writeUtf8(":\n\n").flush();
-            }
+        writePreamble(out);
+        long lastWrite = System.nanoTime();
+        while (!overflowed) {
+          // The closed flag is read before draining the queue, so that no message sent before close is lost.
+          final boolean closed = eventSource.closed;
+          boolean written = false;
+          ByteString message;
+          while ((message = queue.poll()) != null) {
+            pending.decrementAndGet();
+            out.write(message);
+            written = true;
           }
-          catch (final InterruptedException ignore) {
-            break;
+          final long now = System.nanoTime();
+          if (written) {
+            out.flush();
+            lastWrite = now;
+          }
+          if (closed) break;
+          final long wait = HEARTBEAT_NANOS - (now - lastWrite);
+          if (wait <= 0L) {
+            out.writeUtf8(":\n\n").flush();
+            lastWrite = now;
           }
-          finally {
-            lock.unlock();
+          else if (queue.isEmpty()) {
+            LockSupport.parkNanos(this, wait);
+            if (Thread.interrupted()) break;
           }
         }
       }
       finally {
+        writer = null;
         eventSource.disconnect(this);
       }
     }
 
+    private void writePreamble(final BufferedSink out) throws IOException {
+      out.writeUtf8("retry: " + retry + "\n");
+      final List<ByteString> replay = this.replay;
+      if (replay != null) {
+        for (final ByteString message: replay) {
+          out.write(message);
+        }
+        this.replay = null;
+      }
+      out.flush();
+    }
+
+    @Override
+    boolean detach(final Closeable connection) {
+      final SSEWriterPool writers = eventSource.writers;
+      final BufferedSink out = this.out;
+      if (writers == null || out == null) return false;
+      out.timeout().timeout(writers.writeTimeoutMillis, TimeUnit.MILLISECONDS);
+      this.connection = connection;
+      writers.attach(this);
+      // Sends the messages that were queued before the connection was detached (or ends the response if the
+      // event source is already closed).
+      schedule();
+      return true;
+    }
+
+    private void drain() {
+      if (ended.get()) return;
+      final BufferedSink out = this.out;
+      if (overflowed) {
+        close();
+        return;
+      }
+      final boolean closed = eventSource.closed;
+      try {
+        boolean written = false;
+        ByteString message;
+        while ((message = queue.poll()) != null) {
+          pending.decrementAndGet();
+          out.write(message);
+          written = true;
+        }
+        if (heartbeat) {
+          heartbeat = false;
+          if (!written) {
+            out.writeUtf8(":\n\n");
+            written = true;
+          }
+        }
+        if (written) {
+          out.flush();
+          lastWrite = System.nanoTime();
+        }
+      }
+      catch (final IOException ignore) {
+        // The client disconnected, or didn't read its messages before the write timeout.
+        close();
+        return;
+      }
+      if (closed) close();
+    }
+
+    @Override
+    public void heartbeat(final long now) {
+      if (now - lastWrite >= HEARTBEAT_NANOS) {
+        heartbeat = true;
+        schedule();
+      }
+    }
+
+    @Override
+    public void close() {
+      if (!ended.compareAndSet(false, true)) return;
+      final SSEWriterPool writers = eventSource.writers;
+      if (writers != null) writers.detach(this);
+      eventSource.disconnect(this);
+      queue.clear();
+      final Closeable connection = this.connection;
+      if (connection != null) {
+        try { connection.close(); } catch (final IOException ignore) {}
+      }
+    }
+
   }
 
   private static class SyncResponse extends Response {
@@ -961,9 +1476,16 @@ public abstract class Response {
 
     @Override
     void writeBody(@Nullable final BufferedSource in, final BufferedSink out) throws IOException {
-      //noinspection EmptyFinallyBlock
+      final ResponseBody data = body();
+      if (data instanceof ByteStringBody) {
+        final ByteString bytes = ((ByteStringBody)data).bytes;
+        if (bytes.size() > 0) {
+          out.write(bytes);
+          out.flush();
+        }
+        return;
+      }
       try {
-        final ResponseBody data = body();
         if (data != null) {
           final long length = data.contentLength();
           if (length > 0) {
@@ -983,12 +1505,22 @@ public abstract class Response {
         }
       }
       finally {
+        // Releases the file (or file mapping) the body was read from.
+        if (data != null) data.close();
 //        try { in.close(); } catch (final IOException ignore) {}
 //        try { out.close(); } catch (final IOException ignore) {}
 //        try { socket.close(); } catch (final IOException ignore) {}
       }
     }
 
+    @Override
+    boolean transferBody(final WritableByteChannel channel) throws IOException {
+      final ResponseBody data = body();
+      if (!(data instanceof FileBody)) return false;
+      ((FileBody)data).transferTo(channel);
+      return true;
+    }
+
   }
 
   private static class ChunkedResponse extends Response {
@@ -1003,21 +1535,20 @@ public abstract class Response {
       try {
         final ResponseBody[] chunks = chunks();
         if (chunks != null) {
+          // The chunks are all available, so they are sent together rather than with a flush each.
           for (final ResponseBody chunk: chunks) {
             final long length = chunk.contentLength();
+            // An empty chunk would mark the end of the body.
+            if (length == 0) continue;
             out.writeUtf8(Long.toHexString(length).toUpperCase(Locale.US));
             //out.writeUtf8("chunk-ext");
             out.writeUtf8("\r\n");
-            if (length > 0) {
-              out.write(chunk.source(), length);
-            }
+            out.write(chunk.source(), length);
             out.writeUtf8("\r\n");
-            out.flush();
           }
           out.writeUtf8("0");
           //out.writeUtf8("chunk-ext");
           out.writeUtf8("\r\n");
-          out.flush();
           //out.writeUtf8("trailer-part");
           out.writeUtf8("\r\n");
           out.flush();
@@ -1030,6 +1561,124 @@ public abstract class Response {
       }
     }
 
+    @Override
+    void writeHttp2Body(@Nullable final BufferedSource in, final BufferedSink out) throws IOException {
+      final ResponseBody[] chunks = chunks();
+      if (chunks != null) {
+        for (final ResponseBody chunk: chunks) {
+          final long length = chunk.contentLength();
+          if (length > 0) {
+            out.write(chunk.source(), length);
+          }
+        }
+        out.flush();
+      }
+    }
+
+  }
+
+  /**
+   * Writer for a streamed response body.
+   */
+  public interface StreamWriter {
+
+    /**
+     * Writes the response body. The sink doesn't need to be closed.
+     * @param sink the response body sink.
+     * @throws IOException if the connection was closed or if the writer failed.
+     */
+    public void write(final BufferedSink sink) throws IOException;
+
+  }
+
+  private static class StreamResponse extends Response {
+
+    final StreamWriter writer;
+    final long flushBytes;
+    final long flushNanos;
+
+    StreamResponse(final Builder builder, final StreamWriter writer,
+                   final long flushBytes, final long flushMillis) {
+      super(builder);
+      this.writer = writer;
+      this.flushBytes = flushBytes;
+      this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+    }
+
+    @Override
+    void writeBody(@Nullable final BufferedSource in, final BufferedSink out) throws IOException {
+      write(out, true);
+    }
+
+    @Override
+    void writeHttp2Body(@Nullable final BufferedSource in, final BufferedSink out) throws IOException {
+      write(out, false);
+    }
+
+    private void write(final BufferedSink out, final boolean chunked) throws IOException {
+      final BufferedSink sink = Okio.buffer(new StreamSink(out, chunked, flushBytes, flushNanos));
+      writer.write(sink);
+      sink.close();
+    }
+
+  }
+
+  /**
+   * Sink that frames the data as chunks (for http 1.1) and that flushes the connection according to the
+   * flush policy. The data is written to the connection sink right away, so that the memory use doesn't
+   * grow with the body size, and so that slow clients block the writer.
+   */
+  private static final class StreamSink implements Sink {
+
+    final BufferedSink out;
+    final boolean chunked;
+    final long flushBytes;
+    final long flushNanos;
+    long pending = 0L;
+    long lastFlush = System.nanoTime();
+    boolean closed = false;
+
+    StreamSink(final BufferedSink out, final boolean chunked, final long flushBytes, final long flushNanos) {
+      this.out = out;
+      this.chunked = chunked;
+      this.flushBytes = flushBytes;
+      this.flushNanos = flushNanos;
+    }
+
+    @Override public void write(final Buffer source, final long byteCount) throws IOException {
+      if (closed) throw new IllegalStateException("closed");
+      if (byteCount == 0L) return;
+      if (chunked) {
+        out.writeHexadecimalUnsignedLong(byteCount);
+        out.writeUtf8("\r\n");
+        out.write(source, byteCount);
+        out.writeUtf8("\r\n");
+      }
+      else {
+        out.write(source, byteCount);
+      }
+      pending += byteCount;
+      if (pending >= flushBytes || System.nanoTime() - lastFlush >= flushNanos) flush();
+    }
+
+    @Override public void flush() throws IOException {
+      if (closed) return;
+      out.flush();
+      pending = 0L;
+      lastFlush = System.nanoTime();
+    }
+
+    @Override public Timeout timeout() {
+      return out.timeout();
+    }
+
+    @Override public void close() throws IOException {
+      if (closed) return;
+      if (chunked) out.writeUtf8("0\r\n\r\n");
+      out.flush();
+      closed = true;
+    }
+
   }
 
   static final class BufferResponse extends ResponseBody {
@@ -1052,4 +1701,409 @@ public abstract class Response {
 
   }
 
+  /**
+   * Immutable copy of a response (status line, headers and in-memory body), that can be sent any number of
+   * times.
+   * @see Builder#snapshot(long)
+   */
+  public static final class Snapshot {
+
+    final Protocol protocol;
+    final int code;
+    final String message;
+    final Headers headers;
+    final @Nullable MediaType contentType;
+    final @Nullable ByteString body;
+
+    Snapshot(final Protocol protocol, final int code, final String message, final Headers headers,
+             @Nullable final MediaType contentType, @Nullable final ByteString body) {
+      this.protocol = protocol;
+      this.code = code;
+      this.message = message;
+      this.headers = headers;
+      this.contentType = contentType;
+      this.body = body;
+    }
+
+    /**
+     * Creates a new builder with the status line, headers and body of the snapshot.
+     * @return the builder.
+     */
+    public Builder newBuilder() {
+      final Builder builder = new Builder();
+      builder.protocol = protocol;
+      builder.code = code;
+      builder.message = message;
+      builder.headers(headers);
+      if (body != null) builder.body = new ByteStringBody(contentType, body);
+      return builder;
+    }
+
+    /**
+     * Returns the approximate size of the snapshot in bytes (headers and body).
+     * @return the size.
+     */
+    public long byteCount() {
+      return headers.byteCount() + (body == null ? 0 : body.size());
+    }
+
+  }
+
+  /**
+   * Response body backed by bytes that can be written any number of times (cached responses).
+   */
+  static final class ByteStringBody extends ResponseBody {
+
+    final @Nullable MediaType contentType;
+    final ByteString bytes;
+
+    ByteStringBody(@Nullable final MediaType contentType, final ByteString bytes) {
+      this.contentType = contentType;
+      this.bytes = bytes;
+    }
+    @Override public @Nullable MediaType contentType() { return contentType; }
+    @Override public long contentLength() { return bytes.size(); }
+    @Override public BufferedSource source() { return new Buffer().write(bytes); }
+
+  }
+
+  /**
+   * Response body backed by a region of a file. The file is only opened when the body is written. When a
+   * mapped file cache is specified, the region is read from a mapping of the file that is shared with the
+   * other responses for the same file.
+   */
+  public static final class FileBody extends ResponseBody {
+
+    final @Nullable MediaType contentType;
+    final File file;
+    final long start;
+    final long length;
+    final @Nullable MappedFileCache mappings;
+    final @Nullable FileChannelCache channels;
+    final @Nullable String etag;
+    private @Nullable BufferedSource source = null;
+
+    /**
+     * @param contentType the media type.
+     * @param file the file.
+     * @param start the start byte index of the region.
+     * @param length the byte size of the region.
+     */
+    public FileBody(@Nullable final MediaType contentType, final File file,
+                    final long start, final long length) {
+      this(contentType, file, start, length, null, null);
+    }
+
+    /**
+     * @param contentType the media type.
+     * @param file the file.
+     * @param start the start byte index of the region.
+     * @param length the byte size of the region.
+     * @param mappings the mapped file cache (null to read the file without mapping it).
+     * @param etag the file E-Tag, used as the mapping key (null to read the file without mapping it).
+     */
+    public FileBody(@Nullable final MediaType contentType, final File file,
+                    final long start, final long length,
+                    @Nullable final MappedFileCache mappings, @Nullable final String etag) {
+      this(contentType, file, start, length, mappings, null, etag);
+    }
+
+    /**
+     * @param contentType the media type.
+     * @param file the file.
+     * @param start the start byte index of the region.
+     * @param length the byte size of the region.
+     * @param mappings the mapped file cache (null to read the file without mapping it).
+     * @param channels the shared file channel cache, used when the file isn't mapped (null to open the file
+     * for this body only).
+     * @param etag the file E-Tag, used as the mapping and channel key (null to open the file for this body
+     * only).
+     */
+    public FileBody(@Nullable final MediaType contentType, final File file,
+                    final long start, final long length,
+                    @Nullable final MappedFileCache mappings, @Nullable final FileChannelCache channels,
+                    @Nullable final String etag) {
+      this.contentType = contentType;
+      this.file = file;
+      this.start = start;
+      this.length = length;
+      this.mappings = etag == null ? null : mappings;
+      this.channels = etag == null ? null : channels;
+      this.etag = etag;
+    }
+
+    @Override public @Nullable MediaType contentType() { return contentType; }
+    @Override public long contentLength() { return length; }
+
+    @Override public BufferedSource source() {
+      if (source == null) {
+        //noinspection ConstantConditions
+        source = Okio.buffer(mappings != null ? new MappedSource(mappings, file, etag, start, length) :
+                             channels != null ? new ChannelSource(channels, file, etag, start, length) :
+                             new FileRegionSource(file, start, length));
+      }
+      return source;
+    }
+
+    void transferTo(final WritableByteChannel channel) throws IOException {
+      if (mappings != null) {
+        //noinspection ConstantConditions
+        final MappedFileCache.Mapping mapping = mappings.acquire(file, etag);
+        try {
+          final ByteBuffer slice = mapping.slice(start, length);
+          while (slice.hasRemaining()) {
+            channel.write(slice);
+          }
+        }
+        finally {
+          mappings.release(mapping);
+        }
+        return;
+      }
+      if (channels != null) {
+        //noinspection ConstantConditions
+        FileChannelCache.Channel shared = channels.acquire(file, etag);
+        try {
+          long position = start;
+          long remaining = length;
+          while (remaining > 0) {
+            final long n;
+            try {
+              n = shared.channel.transferTo(position, remaining, channel);
+            }
+            catch (final ClosedChannelException e) {
+              if (!closedByAnotherReader(e, shared.channel)) throw e;
+              final FileChannelCache.Channel closed = shared;
+              shared = null;
+              channels.release(closed);
+              shared = channels.acquire(file, etag);
+              continue;
+            }
+            if (n <= 0 && position >= shared.channel.size()) throw new IOException("Unexpected end of file.");
+            position += n;
+            remaining -= n;
+          }
+        }
+        finally {
+          if (shared != null) channels.release(shared);
+        }
+        return;
+      }
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try {
+        transferTo(randomAccessFile.getChannel(), start, length, channel);
+      }
+      finally {
+        randomAccessFile.close();
+      }
+    }
+
+    private static void transferTo(final FileChannel fileChannel, final long start, final long length,
+                                   final WritableByteChannel channel) throws IOException {
+      // Positional transfers don't change the file channel position, so the channel can be shared.
+      long position = start;
+      long remaining = length;
+      while (remaining > 0) {
+        final long n = fileChannel.transferTo(position, remaining, channel);
+        if (n <= 0 && position >= fileChannel.size()) throw new IOException("Unexpected end of file.");
+        position += n;
+        remaining -= n;
+      }
+    }
+
+  }
+
+  private static final class MappedSource implements Source {
+
+    final Timeout timeout = new Timeout();
+    final MappedFileCache mappings;
+    final File file;
+    final String etag;
+    final long start;
+    final long length;
+    @Nullable MappedFileCache.Mapping mapping = null;
+    @Nullable ByteBuffer slice = null;
+
+    MappedSource(final MappedFileCache mappings, final File file, final String etag,
+                 final long start, final long length) {
+      this.mappings = mappings;
+      this.file = file;
+      this.etag = etag;
+      this.start = start;
+      this.length = length;
+    }
+
+    @Override
+    public long read(final Buffer sink, final long byteCount) throws IOException {
+      ByteBuffer slice = this.slice;
+      if (slice == null) {
+        if (length == 0) return -1L;
+        final MappedFileCache.Mapping mapping = this.mapping = mappings.acquire(file, etag);
+        slice = this.slice = mapping.slice(start, length);
+      }
+      final int remaining = slice.remaining();
+      if (remaining == 0) {
+        close();
+        return -1L;
+      }
+      final int n = (int)Math.min(remaining, Math.min(byteCount, 65536L));
+      final int limit = slice.limit();
+      slice.limit(slice.position() + n);
+      sink.write(slice);
+      slice.limit(limit);
+      return n;
+    }
+
+    @Override
+    public Timeout timeout() {
+      return timeout;
+    }
+
+    @Override
+    public void close() {
+      final MappedFileCache.Mapping mapping = this.mapping;
+      this.mapping = null;
+      if (mapping != null) {
+        slice = EMPTY;
+        mappings.release(mapping);
+      }
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  }
+
+  /**
+   * Returns whether a shared file channel was closed because another thread was interrupted while reading it
+   * (file channels are interruptible), rather than because this thread was, or because the other channel of
+   * a transfer was closed. In that case, the channel should be acquired again.
+   * @param e the exception.
+   * @param channel the shared file channel.
+   * @return true if the read can be retried with a new channel.
+   */
+  private static boolean closedByAnotherReader(final ClosedChannelException e, final FileChannel channel) {
+    return !(e instanceof ClosedByInterruptException) && !channel.isOpen();
+  }
+
+  private static final class ChannelSource implements Source {
+
+    final Timeout timeout = new Timeout();
+    final FileChannelCache channels;
+    final File file;
+    final String etag;
+    long position;
+    long remaining;
+    @Nullable FileChannelCache.Channel channel = null;
+    // Reused for every read, the file channel copies into it and the sink copies from it.
+    @Nullable ByteBuffer buffer = null;
+
+    ChannelSource(final FileChannelCache channels, final File file, final String etag,
+                  final long start, final long length) {
+      this.channels = channels;
+      this.file = file;
+      this.etag = etag;
+      this.position = start;
+      this.remaining = length;
+    }
+
+    @Override
+    public long read(final Buffer sink, final long byteCount) throws IOException {
+      if (remaining == 0) {
+        close();
+        return -1L;
+      }
+      ByteBuffer buffer = this.buffer;
+      if (buffer == null) buffer = this.buffer = ByteBuffer.allocate(8192);
+      final int count = (int)Math.min(remaining, Math.min(byteCount, buffer.capacity()));
+      int n;
+      while (true) {
+        FileChannelCache.Channel channel = this.channel;
+        if (channel == null) channel = this.channel = channels.acquire(file, etag);
+        buffer.clear();
+        buffer.limit(count);
+        try {
+          // Positional read: the position of the shared channel is left untouched.
+          n = channel.channel.read(buffer, position);
+          break;
+        }
+        catch (final ClosedChannelException e) {
+          this.channel = null;
+          channels.release(channel);
+          if (!closedByAnotherReader(e, channel.channel)) throw e;
+        }
+      }
+      if (n <= 0) throw new IOException("Unexpected end of file.");
+      buffer.flip();
+      sink.write(buffer);
+      position += n;
+      remaining -= n;
+      return n;
+    }
+
+    @Override
+    public Timeout timeout() {
+      return timeout;
+    }
+
+    @Override
+    public void close() {
+      final FileChannelCache.Channel channel = this.channel;
+      this.channel = null;
+      if (channel != null) {
+        remaining = 0;
+        channels.release(channel);
+      }
+    }
+
+  }
+
+  private static final class FileRegionSource implements Source {
+
+    final Timeout timeout = new Timeout();
+    final File file;
+    final long start;
+    long remaining;
+    @Nullable RandomAccessFile randomAccessFile = null;
+    @Nullable InputStream stream = null;
+
+    FileRegionSource(final File file, final long start, final long length) {
+      this.file = file;
+      this.start = start;
+      this.remaining = length;
+    }
+
+    @Override
+    public long read(final Buffer sink, final long byteCount) throws IOException {
+      if (remaining == 0) {
+        close();
+        return -1L;
+      }
+      if (stream == null) {
+        randomAccessFile = new RandomAccessFile(file, "r");
+        final FileChannel channel = randomAccessFile.getChannel();
+        channel.position(start);
+        stream = Channels.newInputStream(channel);
+      }
+      // Reads straight into the buffer segments.
+      final long n = Math.min(remaining, Math.min(byteCount, 65536L));
+      sink.readFrom(stream, n);
+      remaining -= n;
+      return n;
+    }
+
+    @Override
+    public Timeout timeout() {
+      return timeout;
+    }
+
+    @Override
+    public void close() throws IOException {
+      final RandomAccessFile file = randomAccessFile;
+      randomAccessFile = null;
+      stream = null;
+      if (file != null) file.close();
+    }
+
+  }
+
 }
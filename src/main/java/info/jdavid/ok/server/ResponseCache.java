@@ -0,0 +1,422 @@
+package info.jdavid.ok.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import info.jdavid.ok.server.header.CacheControl;
+import okhttp3.Headers;
+
+
+/**
+ * In-memory cache for the responses of a RequestHandlerChain, that behaves like a shared (proxy) cache.<br>
+ * Responses to GET requests are stored when their Cache-Control header has a max-age or s-maxage directive,
+ * and no private, no-cache or no-store directive. Entries are keyed by url and by the values of the request
+ * headers named in the Vary response header. The bodies are kept as immutable bytes that are written as-is
+ * for each hit, without calling the handler again.<br>
+ * When the response also has a stale-while-revalidate directive (and no must-revalidate directive), a stale
+ * entry is still used for that long, while the handler creates a fresh response in the background.<br>
+ * The total size of the entries is bounded, and the least recently used urls are evicted first.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class ResponseCache {
+
+  static final class Entry {
+    final Response.Snapshot snapshot;
+    final String[] varyNames;
+    final String[] varyValues;
+    final long storedAt;
+    final long freshUntil;
+    final long staleUntil;
+    final long weight;
+    final AtomicBoolean revalidating = new AtomicBoolean();
+
+    Entry(final Response.Snapshot snapshot, final String[] varyNames, final String[] varyValues,
+          final long storedAt, final long freshUntil, final long staleUntil, final long weight) {
+      this.snapshot = snapshot;
+      this.varyNames = varyNames;
+      this.varyValues = varyValues;
+      this.storedAt = storedAt;
+      this.freshUntil = freshUntil;
+      this.staleUntil = staleUntil;
+      this.weight = weight;
+    }
+
+    boolean matches(final Headers requestHeaders) {
+      for (int i=0; i<varyNames.length; ++i) {
+        final String value = headerValue(requestHeaders, varyNames[i]);
+        if (value == null ? varyValues[i] != null : !value.equals(varyValues[i])) return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Cached response found for a request.
+   */
+  static final class Hit {
+    final Response.Builder response;
+    private final @Nullable Entry revalidate;
+
+    Hit(final Response.Builder response, @Nullable final Entry revalidate) {
+      this.response = response;
+      this.revalidate = revalidate;
+    }
+
+    /**
+     * Returns whether the entry is stale and the caller should create a fresh response in the background.
+     * @return true if the caller is responsible for the revalidation.
+     */
+    boolean revalidate() {
+      return revalidate != null;
+    }
+
+    /**
+     * Signals that the revalidation has ended (whether the fresh response was stored or not).
+     */
+    void done() {
+      if (revalidate != null) revalidate.revalidating.set(false);
+    }
+  }
+
+  private static final class Directives {
+    boolean noStore = false;
+    boolean noCache = false;
+    boolean priv = false;
+    boolean pub = false;
+    boolean mustRevalidate = false;
+    long maxAge = -1L;
+    long sMaxAge = -1L;
+    long staleWhileRevalidate = 0L;
+
+    Directives(final List<String> values) {
+      for (final String value: values) {
+        for (final String it: value.split(",")) {
+          final String directive = it.trim().toLowerCase(Locale.US);
+          if (directive.equals(CacheControl.Directive.NO_STORE)) noStore = true;
+          else if (directive.startsWith(CacheControl.Directive.NO_CACHE)) noCache = true;
+          else if (directive.startsWith(CacheControl.Directive.PRIVATE)) priv = true;
+          else if (directive.equals(CacheControl.Directive.PUBLIC)) pub = true;
+          else if (directive.equals(CacheControl.Directive.MUST_REVALIDATE) ||
+                   directive.equals(CacheControl.Directive.PROXY_REVALIDATE)) mustRevalidate = true;
+          else if (directive.startsWith(CacheControl.Directive.MAX_AGE_EQUALS)) {
+            maxAge = seconds(directive, CacheControl.Directive.MAX_AGE_EQUALS.length());
+          }
+          else if (directive.startsWith(CacheControl.Directive.S_MAX_AGE_EQUALS)) {
+            sMaxAge = seconds(directive, CacheControl.Directive.S_MAX_AGE_EQUALS.length());
+          }
+          else if (directive.startsWith(CacheControl.Directive.STALE_WHILE_REVALIDATE_EQUALS)) {
+            final int start = CacheControl.Directive.STALE_WHILE_REVALIDATE_EQUALS.length();
+            staleWhileRevalidate = Math.max(0L, seconds(directive, start));
+          }
+        }
+      }
+    }
+
+    private static long seconds(final String directive, final int start) {
+      try {
+        return Long.parseLong(directive.substring(start).replace("\"", ""));
+      }
+      catch (final NumberFormatException ignore) {
+        return -1L;
+      }
+    }
+  }
+
+  private static final String GET = "GET";
+  private static final String AGE = "Age";
+  private static final String VARY = "Vary";
+  private static final String SET_COOKIE = "Set-Cookie";
+  private static final String AUTHORIZATION = "Authorization";
+  private static final String PRAGMA = "Pragma";
+  private static final int MAX_VARIANTS = 8;
+  private static final String[] NONE = new String[0];
+
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  // Url -> variants, in access order.
+  private final LinkedHashMap<String, Entry[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long size = 0L;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Creates a cache of 32MB, for bodies up to 1MB.
+   */
+  public ResponseCache() {
+    this(32 * 1024 * 1024L, 1024 * 1024L);
+  }
+
+  /**
+   * Creates a cache.
+   * @param maxBytes the maximum total size of the entries.
+   * @param maxEntryBytes the maximum size of a response body.
+   */
+  public ResponseCache(final long maxBytes, final long maxEntryBytes) {
+    if (maxBytes < 0 || maxEntryBytes < 0) throw new IllegalArgumentException();
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.min(maxBytes, maxEntryBytes);
+    //noinspection Convert2Lambda
+    final ThreadFactory threadFactory = new ThreadFactory() {
+      @Override public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "response-cache-revalidation");
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    executor = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                      threadFactory);
+    // The thread only runs while there are revalidations.
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the total size of the entries (approximately, in bytes).
+   * @return the size.
+   */
+  public long size() {
+    synchronized (entries) {
+      return size;
+    }
+  }
+
+  /**
+   * Returns the number of requests that were satisfied from the cache.
+   * @return the hit count.
+   */
+  public long hitCount() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of cacheable requests that were not satisfied from the cache.
+   * @return the miss count.
+   */
+  public long missCount() {
+    return misses.get();
+  }
+
+  /**
+   * Removes all the entries.
+   */
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+      size = 0L;
+    }
+  }
+
+  /**
+   * Finds the cached response for a request.
+   * @param method the request method.
+   * @param target the request target.
+   * @param requestHeaders the request headers.
+   * @return the cached response, or null.
+   */
+  @Nullable Hit get(final String method, final RequestTarget target, final Headers requestHeaders) {
+    if (!GET.equals(method)) return null;
+    if (requestHeaders.get(CacheControl.HEADER) != null || requestHeaders.get(PRAGMA) != null) {
+      final Directives directives = new Directives(requestHeaders.values(CacheControl.HEADER));
+      if (directives.noStore || directives.noCache ||
+          CacheControl.Directive.NO_CACHE.equalsIgnoreCase(requestHeaders.get(PRAGMA))) {
+        return null;
+      }
+    }
+    final String key = key(target);
+    final long now = System.nanoTime();
+    Entry entry = null;
+    synchronized (entries) {
+      final Entry[] variants = entries.get(key);
+      if (variants != null) {
+        for (final Entry variant: variants) {
+          if (variant.matches(requestHeaders)) {
+            entry = variant;
+            break;
+          }
+        }
+      }
+    }
+    if (entry == null || now - entry.staleUntil >= 0) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    final boolean stale = now - entry.freshUntil >= 0;
+    final Response.Builder response = entry.snapshot.newBuilder();
+    response.header(AGE, String.valueOf(TimeUnit.NANOSECONDS.toSeconds(now - entry.storedAt)));
+    return new Hit(response, stale && entry.revalidating.compareAndSet(false, true) ? entry : null);
+  }
+
+  /**
+   * Stores the response for a request if it is cacheable. The response body is then replaced by an in-memory
+   * copy.
+   * @param method the request method.
+   * @param target the request target.
+   * @param requestHeaders the request headers.
+   * @param response the response.
+   * @return whether the response was stored.
+   */
+  boolean put(final String method, final RequestTarget target, final Headers requestHeaders,
+              final Response.Builder response) {
+    if (!GET.equals(method) || !isCacheable(response.code)) return false;
+    if (response.header(SET_COOKIE) != null) return false;
+    final List<String> cacheControl = response.headers(CacheControl.HEADER);
+    if (cacheControl.isEmpty()) return false;
+    final Directives directives = new Directives(cacheControl);
+    if (directives.noStore || directives.noCache || directives.priv) return false;
+    final long maxAge = directives.sMaxAge >= 0 ? directives.sMaxAge : directives.maxAge;
+    if (maxAge <= 0) return false;
+    if (requestHeaders.get(AUTHORIZATION) != null && !directives.pub && directives.sMaxAge < 0) return false;
+    if (requestHeaders.get(CacheControl.HEADER) != null &&
+        new Directives(requestHeaders.values(CacheControl.HEADER)).noStore) return false;
+
+    final String[] varyNames;
+    final List<String> vary = response.headers(VARY);
+    if (vary.isEmpty()) {
+      varyNames = NONE;
+    }
+    else {
+      final StringBuilder names = new StringBuilder();
+      for (final String value: vary) {
+        if (names.length() > 0) names.append(',');
+        names.append(value);
+      }
+      final String[] split = names.toString().split(",");
+      varyNames = new String[split.length];
+      for (int i=0; i<split.length; ++i) {
+        final String name = split[i].trim();
+        if (name.equals("*")) return false;
+        varyNames[i] = name;
+      }
+    }
+    final String[] varyValues = new String[varyNames.length];
+    for (int i=0; i<varyNames.length; ++i) {
+      varyValues[i] = headerValue(requestHeaders, varyNames[i]);
+    }
+
+    // File bodies are served from the file (or a shared mapping) already.
+    if (response.body instanceof Response.FileBody) return false;
+    final Response.Snapshot snapshot = response.snapshot(maxEntryBytes);
+    if (snapshot == null) return false;
+    long weight = snapshot.byteCount() + 256L;
+    for (final String value: varyValues) {
+      if (value != null) weight += value.length();
+    }
+    if (weight > maxBytes) return false;
+    final long now = System.nanoTime();
+    final long freshUntil = now + TimeUnit.SECONDS.toNanos(maxAge);
+    final long staleUntil = directives.mustRevalidate ?
+      freshUntil : freshUntil + TimeUnit.SECONDS.toNanos(directives.staleWhileRevalidate);
+    final Entry entry = new Entry(snapshot, varyNames, varyValues, now, freshUntil, staleUntil, weight);
+    final String key = key(target);
+    synchronized (entries) {
+      final Entry[] variants = entries.get(key);
+      final Entry[] updated;
+      if (variants == null) {
+        updated = new Entry[] { entry };
+      }
+      else {
+        int index = -1;
+        for (int i=0; i<variants.length; ++i) {
+          if (variants[i].matches(requestHeaders)) {
+            index = i;
+            break;
+          }
+        }
+        if (index == -1 && variants.length == MAX_VARIANTS) index = 0;
+        if (index == -1) {
+          updated = new Entry[variants.length + 1];
+          System.arraycopy(variants, 0, updated, 0, variants.length);
+          updated[variants.length] = entry;
+        }
+        else {
+          // The replaced variant is removed, and the new one is added last.
+          size -= variants[index].weight;
+          updated = new Entry[variants.length];
+          System.arraycopy(variants, 0, updated, 0, index);
+          System.arraycopy(variants, index + 1, updated, index, variants.length - index - 1);
+          updated[variants.length - 1] = entry;
+        }
+      }
+      entries.put(key, updated);
+      size += weight;
+      final Iterator<Map.Entry<String, Entry[]>> iterator = entries.entrySet().iterator();
+      while (size > maxBytes && iterator.hasNext()) {
+        final Map.Entry<String, Entry[]> eldest = iterator.next();
+        if (eldest.getKey().equals(key)) continue;
+        for (final Entry it: eldest.getValue()) {
+          size -= it.weight;
+        }
+        iterator.remove();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs a revalidation task in the background.
+   * @param task the task.
+   * @return false if the task could not be scheduled.
+   */
+  boolean execute(final Runnable task) {
+    try {
+      executor.execute(task);
+      return true;
+    }
+    catch (final RuntimeException ignore) {
+      return false;
+    }
+  }
+
+  private static boolean isCacheable(final int code) {
+    switch (code) {
+      case 200:
+      case 203:
+      case 204:
+      case 300:
+      case 301:
+      case 308:
+      case 404:
+      case 405:
+      case 410:
+      case 414:
+      case 501:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static String key(final RequestTarget target) {
+    return (target.https ? "https://" : "http://") + target.authority.toLowerCase(Locale.US) + target.target;
+  }
+
+  private static @Nullable String headerValue(final Headers headers, final String name) {
+    final List<String> values = headers.values(name);
+    switch (values.size()) {
+      case 0:
+        return null;
+      case 1:
+        return values.get(0);
+      default:
+        final StringBuilder value = new StringBuilder();
+        for (final String it: values) {
+          if (value.length() > 0) value.append(", ");
+          value.append(it);
+        }
+        return value.toString();
+    }
+  }
+
+}
@@ -0,0 +1,121 @@
+package info.jdavid.ok.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Small pool of threads that writes the messages of SSE responses. The connections of the SSE responses for
+ * an event source that uses a writer pool are detached from the dispatcher threads once the headers have been
+ * sent, so that the number of subscribers is not limited by the number of threads.<br>
+ * Messages are written when they are sent, and heartbeats are scheduled by a shared timer. Subscribers are
+ * removed when a write fails (or times out, when the client doesn't read fast enough).
+ */
+@SuppressWarnings("WeakerAccess")
+public final class SSEWriterPool {
+
+  /**
+   * Subscriber driven by the pool.
+   */
+  interface Subscriber {
+
+    /**
+     * Sends a heartbeat if nothing has been sent for a while.
+     * @param now the current time (System.nanoTime()).
+     */
+    void heartbeat(final long now);
+
+    /**
+     * Ends the response and closes the connection.
+     */
+    void close();
+
+  }
+
+  private final ScheduledThreadPoolExecutor executor;
+  final long writeTimeoutMillis;
+  final Set<Subscriber> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+
+  /**
+   * Creates a pool with 2 threads, and with a write timeout of 10 seconds.
+   */
+  public SSEWriterPool() {
+    this(2, 10000L);
+  }
+
+  /**
+   * Creates a pool.
+   * @param threadCount the number of writer threads.
+   * @param writeTimeoutMillis the time after which a subscriber that doesn't read its messages is dropped.
+   */
+  public SSEWriterPool(final int threadCount, final long writeTimeoutMillis) {
+    if (threadCount < 1 || writeTimeoutMillis < 0) throw new IllegalArgumentException();
+    this.writeTimeoutMillis = writeTimeoutMillis;
+    final AtomicInteger counter = new AtomicInteger();
+    //noinspection Convert2Lambda
+    executor = new ScheduledThreadPoolExecutor(threadCount, new ThreadFactory() {
+      @Override public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "sse-writer-" + counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    //noinspection Convert2Lambda
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override public void run() {
+        final long now = System.nanoTime();
+        for (final Subscriber subscriber: subscribers) {
+          subscriber.heartbeat(now);
+        }
+      }
+    }, 1L, 1L, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Returns the number of subscribers currently driven by the pool.
+   * @return the number of subscribers.
+   */
+  public int subscriberCount() {
+    return subscribers.size();
+  }
+
+  /**
+   * Stops the writer threads and closes the connections of all the subscribers.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+    for (final Subscriber subscriber: subscribers) {
+      subscriber.close();
+    }
+  }
+
+  void attach(final Subscriber subscriber) {
+    subscribers.add(subscriber);
+  }
+
+  void detach(final Subscriber subscriber) {
+    subscribers.remove(subscriber);
+  }
+
+  /**
+   * Runs a write task on one of the writer threads.
+   * @param task the task.
+   * @return false if the pool has been shut down.
+   */
+  boolean execute(final Runnable task) {
+    if (executor.isShutdown()) return false;
+    try {
+      executor.execute(task);
+      return true;
+    }
+    catch (final RuntimeException ignore) {
+      return false;
+    }
+  }
+
+}
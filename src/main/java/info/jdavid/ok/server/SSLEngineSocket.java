@@ -0,0 +1,542 @@
+package info.jdavid.ok.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+
+/**
+ * Socket view of a TLS connection handled by an SSLEngine over a SocketChannel.<br>
+ * The handshake runs with the channel in non-blocking mode, one step at a time: {@link #handshake()} is
+ * called each time the channel becomes ready, and returns the readiness it is waiting for. Once the
+ * handshake is complete, the channel is switched to blocking mode and the socket streams unwrap and wrap the
+ * application data, so that the connection can be served by Http11 or Http2 like any other socket.<br>
+ * The network and application buffers are direct buffers taken from a shared pool, and returned to it when
+ * the socket is closed. There is no SO_TIMEOUT: read timeouts are enforced by the okio watchdog, which closes
+ * the socket.
+ */
+@SuppressWarnings({ "WeakerAccess" })
+final class SSLEngineSocket extends Socket {
+
+  /**
+   * Returned by {@link #handshake()} when the engine has delegated tasks to run. They should be run with
+   * {@link #runDelegatedTasks()} on another thread, and then the handshake resumed.
+   */
+  static final int NEED_TASK = 0x100;
+
+  private static final BufferPool POOL = new BufferPool(256);
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final SocketChannel channel;
+  private final Https https;
+  private final SSLEngine engine;
+  private final long start;
+  private final ReentrantLock readLock = new ReentrantLock();
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private final InputStream in = new In();
+  private final OutputStream out = new Out();
+  // received data that hasn't been unwrapped yet (write mode).
+  private @Nullable ByteBuffer netIn;
+  // wrapped data that hasn't been sent yet (write mode).
+  private @Nullable ByteBuffer netOut;
+  // unwrapped data that hasn't been read yet (read mode once the handshake is complete).
+  private @Nullable ByteBuffer appIn;
+
+  /**
+   * Creates the engine and feeds it the ClientHello bytes that were read from the channel.
+   * @param channel the non-blocking channel.
+   * @param https the https settings.
+   * @param handshake the ClientHello read from the channel.
+   * @throws IOException if the handshake could not be started.
+   */
+  SSLEngineSocket(final SocketChannel channel, final Https https,
+                  final Handshake handshake) throws IOException {
+    super((SocketImpl)null);
+    this.channel = channel;
+    this.https = https;
+    engine = https.createSSLEngine();
+    start = System.currentTimeMillis();
+    engine.beginHandshake();
+    final int packetSize = engine.getSession().getPacketBufferSize();
+    final ByteBuffer netIn = this.netIn = POOL.acquire(Math.max(packetSize, handshake.size));
+    netIn.put(handshake.bytes, 0, handshake.size);
+    netOut = POOL.acquire(packetSize);
+    appIn = POOL.acquire(engine.getSession().getApplicationBufferSize());
+  }
+
+  /**
+   * Advances the handshake as far as possible without blocking.
+   * @return the channel readiness (SelectionKey.OP_READ or SelectionKey.OP_WRITE) the handshake is waiting
+   * for, {@link #NEED_TASK} if it is waiting for the delegated tasks, or 0 once the handshake is complete.
+   * @throws IOException if the handshake failed or if the connection was closed.
+   */
+  int handshake() throws IOException {
+    try {
+      if (!flush()) return SelectionKey.OP_WRITE;
+      while (true) {
+        switch (engine.getHandshakeStatus()) {
+          case FINISHED:
+          case NOT_HANDSHAKING: {
+            https.handshakeCompleted(engine.getSession(), start);
+            buffer(appIn).flip();
+            return 0;
+          }
+          case NEED_TASK: {
+            // The tasks (the handshake crypto) are slow, and shouldn't hold the caller (the selector thread).
+            return NEED_TASK;
+          }
+          case NEED_WRAP: {
+            final SSLEngineResult result = engine.wrap(EMPTY, buffer(netOut));
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+              netOut = POOL.grow(buffer(netOut), engine.getSession().getPacketBufferSize());
+            }
+            else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+              flush();
+              throw new SSLException("The connection was closed during the handshake.");
+            }
+            if (!flush()) return SelectionKey.OP_WRITE;
+            break;
+          }
+          default: {
+            final ByteBuffer netIn = buffer(this.netIn);
+            netIn.flip();
+            final SSLEngineResult result;
+            try {
+              result = engine.unwrap(netIn, buffer(appIn));
+            }
+            finally {
+              netIn.compact();
+            }
+            switch (result.getStatus()) {
+              case BUFFER_UNDERFLOW:
+                if (netIn.position() == netIn.capacity()) {
+                  this.netIn = POOL.grow(netIn, engine.getSession().getPacketBufferSize());
+                }
+                final int n = channel.read(buffer(this.netIn));
+                if (n == -1) throw new EOFException();
+                if (n == 0) return SelectionKey.OP_READ;
+                break;
+              case BUFFER_OVERFLOW:
+                appIn = POOL.grow(buffer(appIn), engine.getSession().getApplicationBufferSize());
+                break;
+              case CLOSED:
+                flush();
+                throw new SSLException("The connection was closed during the handshake.");
+              default:
+                break;
+            }
+          }
+        }
+      }
+    }
+    catch (final SSLException e) {
+      // Try to send the alert, if any.
+      engine.closeOutbound();
+      try {
+        engine.wrap(EMPTY, buffer(netOut));
+        flush();
+      }
+      catch (final IOException ignore) {}
+      throw e;
+    }
+  }
+
+  /**
+   * Returns whether h2 was negotiated (ALPN) during the handshake.
+   * @return true for h2, false for http/1.1.
+   */
+  boolean http2() {
+    return "h2".equals(https.platform.applicationProtocol(engine));
+  }
+
+  private static ByteBuffer buffer(final @Nullable ByteBuffer buffer) throws SocketException {
+    if (buffer == null) throw new SocketException("Socket closed");
+    return buffer;
+  }
+
+  /**
+   * Runs the tasks that the engine delegated.
+   */
+  void runDelegatedTasks() {
+    Runnable task;
+    while ((task = engine.getDelegatedTask()) != null) {
+      task.run();
+    }
+  }
+
+  /**
+   * Sends the pending wrapped data.
+   * @return true if everything was sent, false if the (non-blocking) channel couldn't take it all.
+   * @throws IOException if writing to the channel failed.
+   */
+  private boolean flush() throws IOException {
+    final ByteBuffer netOut = buffer(this.netOut);
+    netOut.flip();
+    try {
+      while (netOut.hasRemaining()) {
+        if (channel.write(netOut) == 0) return false;
+      }
+      return true;
+    }
+    finally {
+      netOut.compact();
+    }
+  }
+
+  // Should be called with the write lock held.
+  private void wrap(final ByteBuffer src) throws IOException {
+    while (true) {
+      final SSLEngineResult result = engine.wrap(src, buffer(netOut));
+      switch (result.getStatus()) {
+        case BUFFER_OVERFLOW:
+          flush();
+          if (buffer(netOut).position() == 0) {
+            netOut = POOL.grow(buffer(netOut), engine.getSession().getPacketBufferSize());
+          }
+          break;
+        case CLOSED:
+          flush();
+          if (src.hasRemaining()) throw new SocketException("Socket closed");
+          return;
+        default:
+          flush();
+          final SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+          if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+          }
+          else if (status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP && result.bytesProduced() == 0 &&
+                   src.hasRemaining()) {
+            throw new SSLException("Renegotiation is not supported.");
+          }
+          return;
+      }
+    }
+  }
+
+  // Should be called with the read lock held. Returns false at the end of the stream.
+  private boolean unwrap() throws IOException {
+    final ByteBuffer appIn = buffer(this.appIn);
+    appIn.clear();
+    try {
+      while (true) {
+        final ByteBuffer netIn = buffer(this.netIn);
+        netIn.flip();
+        final SSLEngineResult result;
+        try {
+          result = engine.unwrap(netIn, buffer(this.appIn));
+        }
+        finally {
+          netIn.compact();
+        }
+        switch (result.getStatus()) {
+          case BUFFER_UNDERFLOW:
+            if (netIn.position() == netIn.capacity()) {
+              this.netIn = POOL.grow(netIn, engine.getSession().getPacketBufferSize());
+            }
+            if (channel.read(buffer(this.netIn)) == -1) return false;
+            break;
+          case BUFFER_OVERFLOW:
+            this.appIn = POOL.grow(buffer(this.appIn), engine.getSession().getApplicationBufferSize());
+            break;
+          case CLOSED:
+            return buffer(this.appIn).position() > 0;
+          default:
+            postHandshake(result.getHandshakeStatus());
+            if (buffer(this.appIn).position() > 0) return true;
+        }
+      }
+    }
+    finally {
+      if (this.appIn != null) this.appIn.flip();
+    }
+  }
+
+  // Post-handshake messages (TLS 1.3 key updates for instance) that require an answer.
+  private void postHandshake(final SSLEngineResult.HandshakeStatus handshakeStatus) throws IOException {
+    SSLEngineResult.HandshakeStatus status = handshakeStatus;
+    while (true) {
+      switch (status) {
+        case NEED_TASK:
+          runDelegatedTasks();
+          status = engine.getHandshakeStatus();
+          break;
+        case NEED_WRAP:
+          writeLock.lock();
+          try {
+            wrap(EMPTY);
+          }
+          finally {
+            writeLock.unlock();
+          }
+          status = engine.getHandshakeStatus();
+          break;
+        default:
+          return;
+      }
+    }
+  }
+
+  /**
+   * Checks, without blocking, whether the peer closed the connection (or sent a close_notify alert). Data
+   * received in the mean time (a pipelined request for instance) is kept for the next reads. This should only
+   * be called when no other thread is using the socket.
+   * @return true if the peer closed the connection.
+   * @throws IOException if reading from the channel failed.
+   */
+  boolean peerClosed() throws IOException {
+    if (closed.get()) return true;
+    if (!readLock.tryLock()) return false;
+    try {
+      final ByteBuffer appIn = buffer(this.appIn);
+      if (appIn.hasRemaining()) return false;
+      if (engine.isInboundDone()) return true;
+      final int n;
+      try {
+        channel.configureBlocking(false);
+        try {
+          n = channel.read(buffer(netIn));
+        }
+        finally {
+          channel.configureBlocking(true);
+        }
+      }
+      catch (final ClosedChannelException ignore) {
+        return true;
+      }
+      if (n == -1) return true;
+      final ByteBuffer netIn = buffer(this.netIn);
+      if (netIn.position() == 0) return false;
+      appIn.clear();
+      final SSLEngineResult result;
+      netIn.flip();
+      try {
+        result = engine.unwrap(netIn, appIn);
+      }
+      finally {
+        netIn.compact();
+        appIn.flip();
+      }
+      if (result.getStatus() == SSLEngineResult.Status.CLOSED) return !appIn.hasRemaining();
+      if (result.getStatus() == SSLEngineResult.Status.OK) postHandshake(result.getHandshakeStatus());
+      return false;
+    }
+    finally {
+      if (closed.get()) releaseReadBuffers();
+      readLock.unlock();
+    }
+  }
+
+  private int read(final byte[] b, final int off, final int len) throws IOException {
+    if (len == 0) return 0;
+    readLock.lock();
+    try {
+      if (closed.get()) throw new SocketException("Socket closed");
+      final ByteBuffer appIn = buffer(this.appIn);
+      if (!appIn.hasRemaining() && !unwrap()) return -1;
+      final ByteBuffer unwrapped = buffer(this.appIn);
+      final int n = Math.min(len, unwrapped.remaining());
+      unwrapped.get(b, off, n);
+      return n;
+    }
+    finally {
+      if (closed.get()) releaseReadBuffers();
+      readLock.unlock();
+    }
+  }
+
+  private void write(final byte[] b, final int off, final int len) throws IOException {
+    writeLock.lock();
+    try {
+      if (closed.get()) throw new SocketException("Socket closed");
+      final ByteBuffer src = ByteBuffer.wrap(b, off, len);
+      while (src.hasRemaining()) {
+        wrap(src);
+      }
+    }
+    finally {
+      if (closed.get()) releaseWriteBuffers();
+      writeLock.unlock();
+    }
+  }
+
+  // Should be called with the read lock held.
+  private void releaseReadBuffers() {
+    final ByteBuffer netIn = this.netIn;
+    if (netIn != null) {
+      this.netIn = null;
+      POOL.release(netIn);
+    }
+    final ByteBuffer appIn = this.appIn;
+    if (appIn != null) {
+      this.appIn = null;
+      POOL.release(appIn);
+    }
+  }
+
+  // Should be called with the write lock held.
+  private void releaseWriteBuffers() {
+    final ByteBuffer netOut = this.netOut;
+    if (netOut != null) {
+      this.netOut = null;
+      POOL.release(netOut);
+    }
+  }
+
+  @Override public void close() throws IOException {
+    if (closed.getAndSet(true)) return;
+    try {
+      // A thread blocked on a write keeps the lock: the buffers are then released by that thread once the
+      // channel is closed.
+      if (writeLock.tryLock()) {
+        try {
+          engine.closeOutbound();
+          if (netOut != null) {
+            try {
+              wrap(EMPTY); // close_notify
+            }
+            catch (final IOException ignore) {}
+          }
+          releaseWriteBuffers();
+        }
+        finally {
+          writeLock.unlock();
+        }
+      }
+    }
+    finally {
+      channel.close();
+      if (readLock.tryLock()) {
+        try {
+          releaseReadBuffers();
+        }
+        finally {
+          readLock.unlock();
+        }
+      }
+    }
+  }
+
+  @Override public boolean isClosed() {
+    return closed.get();
+  }
+
+  @Override public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  @Override public boolean isBound() {
+    return true;
+  }
+
+  @Override public boolean isInputShutdown() {
+    return closed.get();
+  }
+
+  @Override public boolean isOutputShutdown() {
+    return closed.get();
+  }
+
+  @Override public void shutdownInput() throws IOException {
+    close();
+  }
+
+  @Override public void shutdownOutput() throws IOException {
+    close();
+  }
+
+  @Override public InputStream getInputStream() throws IOException {
+    if (closed.get()) throw new SocketException("Socket closed");
+    return in;
+  }
+
+  @Override public OutputStream getOutputStream() throws IOException {
+    if (closed.get()) throw new SocketException("Socket closed");
+    return out;
+  }
+
+  @Override public InetAddress getInetAddress() {
+    return channel.socket().getInetAddress();
+  }
+
+  @Override public int getPort() {
+    return channel.socket().getPort();
+  }
+
+  @Override public InetAddress getLocalAddress() {
+    return channel.socket().getLocalAddress();
+  }
+
+  @Override public int getLocalPort() {
+    return channel.socket().getLocalPort();
+  }
+
+  @Override public SocketAddress getRemoteSocketAddress() {
+    return channel.socket().getRemoteSocketAddress();
+  }
+
+  @Override public SocketAddress getLocalSocketAddress() {
+    return channel.socket().getLocalSocketAddress();
+  }
+
+  @Override public void setTcpNoDelay(final boolean on) throws SocketException {
+    channel.socket().setTcpNoDelay(on);
+  }
+
+  @Override public boolean getTcpNoDelay() throws SocketException {
+    return channel.socket().getTcpNoDelay();
+  }
+
+  @Override public void setSoTimeout(final int timeout) {}
+
+  @Override public int getSoTimeout() {
+    return 0;
+  }
+
+  @Override public String toString() {
+    return "SSLEngineSocket[" + channel.socket().getRemoteSocketAddress() + "]";
+  }
+
+  private final class In extends InputStream {
+    @Override public int read() throws IOException {
+      final byte[] b = new byte[1];
+      return SSLEngineSocket.this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+    @Override public int read(final byte[] b, final int off, final int len) throws IOException {
+      return SSLEngineSocket.this.read(b, off, len);
+    }
+    @Override public void close() throws IOException {
+      SSLEngineSocket.this.close();
+    }
+  }
+
+  private final class Out extends OutputStream {
+    @Override public void write(final int b) throws IOException {
+      SSLEngineSocket.this.write(new byte[] { (byte)b }, 0, 1);
+    }
+    @Override public void write(final byte[] b, final int off, final int len) throws IOException {
+      SSLEngineSocket.this.write(b, off, len);
+    }
+    @Override public void close() throws IOException {
+      SSLEngineSocket.this.close();
+    }
+  }
+
+}
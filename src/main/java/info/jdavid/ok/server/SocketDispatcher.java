@@ -1,22 +1,26 @@
 package info.jdavid.ok.server;
 
-import java.io.Closeable;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLSocket;
 
+import okio.AsyncTimeout;
+
 import static info.jdavid.ok.server.Logger.logger;
 
 public abstract class SocketDispatcher extends Dispatcher<ServerSocket> {
@@ -58,7 +62,12 @@ public abstract class SocketDispatcher extends Dispatcher<ServerSocket> {
     while (true) {
       try {
         if (!Thread.currentThread().isInterrupted()) {
-          dispatch(new Request(socket.accept(), secure, insecureOnly, https, hostname,
+          final Socket accepted = socket.accept();
+          if (!acceptAddress(accepted.getInetAddress())) {
+            try { accepted.close(); } catch (final IOException ignore) {}
+            continue;
+          }
+          dispatch(new Request(accepted, secure, insecureOnly, https, hostname,
                                maxRequestSize, keepAliveStrategy, requestHandler));
         }
       }
@@ -85,7 +94,7 @@ public abstract class SocketDispatcher extends Dispatcher<ServerSocket> {
     }
     if (securePort > 0 && https != null) {
       try {
-        secureSocket = new SecureServerSocket(securePort, address);
+        secureSocket = new ServerSocket(securePort, address);
         secureSocket.setReuseAddress(true);
       }
       catch (final BindException e) {
@@ -94,28 +103,19 @@ public abstract class SocketDispatcher extends Dispatcher<ServerSocket> {
     }
   }
 
-  private static class SecureServerSocket extends ServerSocket implements Closeable {
-    SecureServerSocket(final int port, @Nullable final InetAddress address) throws IOException {
-      super(port, address);
-    }
-    @Override public Socket accept() throws IOException {
-      if (isClosed()) throw new SocketException("Socket is closed");
-      if (!isBound()) throw new SocketException("Socket is not bound yet");
-      final Handshake.HandshakeSocket s = new Handshake.HandshakeSocket();
-      implAccept(s);
-      return s;
-    }
-  }
-
   public static final class Request {
     private final Socket socket;
-    private final boolean secure;
+    final boolean secure;
     private final boolean insecureOnly;
     private final Https https;
     private final String hostname;
     private final long maxRequestSize;
     private final KeepAliveStrategy keepAliveStrategy;
     private final RequestHandler requestHandler;
+    private final long acceptedNanos = System.nanoTime();
+    private @Nullable SSLSocket connection = null;
+    private @Nullable String connectionHostname = null;
+    private boolean http2 = false;
 
     private Request(final Socket socket,
                     final boolean secure, final boolean insecureOnly,
@@ -134,63 +134,103 @@ public abstract class SocketDispatcher extends Dispatcher<ServerSocket> {
       this.requestHandler = requestHandler;
     }
 
+    /**
+     * Performs the TLS handshake (for secure connections) and then serves the connection.
+     */
     public void serve() {
-      if (secure) {
-        assert https != null;
-        boolean http2 = false;
-        String hostname = null;
-        SSLSocket sslSocket = null;
-        try {
-          final Handshake handshake = Handshake.read(socket);
-          if (handshake != null) {
-            hostname = handshake.hostname;
-            http2 = handshake.http2 && https.http2;
-            try {
-              sslSocket = https.createSSLSocket(socket, hostname, http2);
+      if (handshake(0L)) serveConnection();
+    }
+
+    /**
+     * Returns when the connection was accepted.
+     * @return the accept time, in nanoseconds (System.nanoTime()).
+     */
+    long acceptedNanos() {
+      return acceptedNanos;
+    }
+
+    /**
+     * Reads the ClientHello and performs the TLS handshake. This does nothing for insecure connections.
+     * @param timeoutMillis the maximum amount of time allowed for the handshake, or 0 for no limit.
+     * @return true if the connection is established and should be served, false if it was closed.
+     */
+    boolean handshake(final long timeoutMillis) {
+      if (!secure) return true;
+      assert https != null;
+      final AsyncTimeout timeout = new AsyncTimeout() {
+        @Override protected void timedOut() {
+          try { socket.close(); } catch (final IOException ignore) {}
+        }
+      };
+      timeout.timeout(timeoutMillis, TimeUnit.MILLISECONDS);
+      timeout.enter();
+      SSLSocket sslSocket = null;
+      Handshake handshake = null;
+      Exception error = null;
+      try {
+        handshake = Handshake.read(socket);
+        if (handshake != null) {
+          connectionHostname = handshake.hostname;
+          http2 = handshake.http2 && https.http2;
+          sslSocket = https.createSSLSocket(socket, handshake.consumed(), http2);
+        }
+      }
+      catch (final SocketTimeoutException ignore) {}
+      catch (final Exception e) {
+        error = e;
+      }
+      // When the handshake times out, the socket is closed and the resulting error isn't worth logging.
+      final boolean timedOut = timeout.exit();
+      if (!timedOut && error != null) {
+        if (error instanceof SSLHandshakeException && handshake != null) {
+          final String[] cipherSuites = handshake.getCipherSuites();
+          final StringBuilder s = new StringBuilder();
+          boolean addSeparator = false;
+          for (final String value: cipherSuites) {
+            if (addSeparator) {
+              s.append(' ');
             }
-            catch (final SSLHandshakeException e) {
-              final String[] cipherSuites = handshake.getCipherSuites();
-              final StringBuilder s = new StringBuilder();
-              boolean addSeparator = false;
-              for (final String value: cipherSuites) {
-                if (addSeparator) {
-                  s.append(' ');
-                }
-                else {
-                  addSeparator = true;
-                }
-                s.append(value);
-              }
-              logger.info(s.toString());
-              throw new IOException(e);
+            else {
+              addSeparator = true;
             }
+            s.append(value);
           }
+          logger.info(s.toString());
         }
-        catch (final SocketTimeoutException ignore) {}
-        catch (final Exception e) {
-          logger.warn(e.getMessage(), e);
+        logger.warn(error.getMessage(), error);
+      }
+      if (timedOut || sslSocket == null) {
+        try {
+          socket.close();
         }
-        if (sslSocket == null) {
-          try {
-            socket.close();
+        catch (final IOException ignore) {}
+        return false;
+      }
+      connection = sslSocket;
+      return true;
+    }
+
+    /**
+     * Serves an established connection (after {@link #handshake(long)} for secure connections).
+     */
+    void serveConnection() {
+      if (secure) {
+        final SSLSocket sslSocket = connection;
+        assert sslSocket != null;
+        if (http2) {
+          String hostname = connectionHostname;
+          if (hostname == null) {
+            if (this.hostname == null) {
+              hostname = "localhost";
+            }
+            else {
+              hostname = this.hostname;
+            }
           }
-          catch (final IOException ignore) {}
+          serveHttp2(sslSocket, hostname);
         }
         else {
-          if (http2) {
-            if (hostname == null) {
-              if (this.hostname == null) {
-                hostname = "localhost";
-              }
-              else {
-                hostname = this.hostname;
-              }
-            }
-            serveHttp2(sslSocket, hostname);
-          }
-          else {
-            serveHttp1(sslSocket, true, false);
-          }
+          serveHttp1(sslSocket, true, false);
         }
       }
       else {
@@ -198,6 +238,16 @@ public abstract class SocketDispatcher extends Dispatcher<ServerSocket> {
       }
     }
 
+    /**
+     * Closes the connection without serving it.
+     */
+    void close() {
+      try {
+        socket.close();
+      }
+      catch (final IOException ignore) {}
+    }
+
     private void serveHttp1(final Socket socket, final boolean secure, final boolean insecureOnly) {
       try {
         Http11.serve(socket, secure, insecureOnly, maxRequestSize, keepAliveStrategy, requestHandler);
@@ -332,13 +382,22 @@ public abstract class SocketDispatcher extends Dispatcher<ServerSocket> {
   }
 
   /**
-   * Dispatcher implementation that uses a thread pool.
+   * Dispatcher implementation that uses a thread pool.<br>
+   * TLS handshakes (which are CPU-heavy when sessions are not resumed) are performed on a separate bounded
+   * pool, so that a burst of new secure connections doesn't starve the requests from the clients that are
+   * already connected. Established connections are then handed over to the request thread pool. Connections
+   * that can't be queued on the handshake pool, or that don't complete their handshake in time, are closed.
    * WARNING: most clients keep connections alive and therefore will keep the dispatch thread busy for a
    * little while even after the request has been served.
    */
   public static abstract class ThreadPoolDispatcher extends SocketDispatcher {
     private ExecutorService mExecutors = null;
+    private ExecutorService mHandshakeExecutors = null;
     private final AtomicBoolean mShutdown = new AtomicBoolean();
+    private final AtomicLong mHandshakes = new AtomicLong();
+    private final AtomicLong mRejectedHandshakes = new AtomicLong();
+    private final AtomicLong mHandshakeQueueTime = new AtomicLong();
+    private final AtomicLong mMaxHandshakeQueueTime = new AtomicLong();
 
     /**
      * Creates the thread pool that will be used to handle the server requests.
@@ -346,28 +405,133 @@ public abstract class SocketDispatcher extends Dispatcher<ServerSocket> {
      */
     protected abstract ExecutorService createThreadPool();
 
+    /**
+     * Creates the thread pool that will be used to perform the TLS handshakes. The default is a pool with
+     * one thread per available processor and a queue of 256 connections waiting for their handshake.
+     * @return the thread pool.
+     */
+    protected ExecutorService createHandshakeThreadPool() {
+      return createBoundedThreadPool(Runtime.getRuntime().availableProcessors(), 256);
+    }
+
+    /**
+     * Returns the maximum amount of time allowed for the TLS handshake (including reading the ClientHello),
+     * not counting the time spent waiting in the handshake pool queue. The default is 10 seconds.
+     * @return the timeout in milliseconds, or 0 for no timeout.
+     */
+    protected long handshakeTimeoutMillis() {
+      return 10000L;
+    }
+
+    /**
+     * Creates a thread pool with a fixed number of threads and a bounded queue. Tasks submitted when the
+     * queue is full are rejected.
+     * @param threadCount the number of threads.
+     * @param queueSize the maximum number of queued tasks.
+     * @return the thread pool.
+     */
+    protected static ExecutorService createBoundedThreadPool(final int threadCount, final int queueSize) {
+      final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        threadCount, threadCount, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize)
+      );
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+
+    /**
+     * Returns the number of secure connections that were taken from the handshake queue.
+     * @return the handshake count.
+     */
+    public long handshakeCount() {
+      return mHandshakes.get();
+    }
+
+    /**
+     * Returns the number of secure connections that were closed because the handshake queue was full.
+     * @return the rejected handshake count.
+     */
+    public long rejectedHandshakeCount() {
+      return mRejectedHandshakes.get();
+    }
+
+    /**
+     * Returns the total time spent by secure connections waiting for a handshake thread.
+     * @param unit the time unit of the result.
+     * @return the total queueing time.
+     */
+    public long handshakeQueueTime(final TimeUnit unit) {
+      return unit.convert(mHandshakeQueueTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the longest time spent by a secure connection waiting for a handshake thread.
+     * @param unit the time unit of the result.
+     * @return the maximum queueing time.
+     */
+    public long maxHandshakeQueueTime(final TimeUnit unit) {
+      return unit.convert(mMaxHandshakeQueueTime.get(), TimeUnit.NANOSECONDS);
+    }
+
     @Override public void start() {
       mShutdown.set(false);
       mExecutors = createThreadPool();
+      mHandshakeExecutors = createHandshakeThreadPool();
     }
     @Override public void dispatch(final Request request) {
-      mExecutors.execute(
-        new Runnable() {
-          @Override public void run() {
-            request.serve();
-          }
+      if (request.secure) {
+        try {
+          mHandshakeExecutors.execute(
+            new Runnable() {
+              @Override public void run() {
+                final long queueTime = System.nanoTime() - request.acceptedNanos();
+                mHandshakes.incrementAndGet();
+                mHandshakeQueueTime.addAndGet(queueTime);
+                long max;
+                while ((max = mMaxHandshakeQueueTime.get()) < queueTime) {
+                  if (mMaxHandshakeQueueTime.compareAndSet(max, queueTime)) break;
+                }
+                if (request.handshake(handshakeTimeoutMillis())) {
+                  serve(request);
+                }
+              }
+            }
+          );
         }
-      );
+        catch (final RejectedExecutionException e) {
+          mRejectedHandshakes.incrementAndGet();
+          request.close();
+        }
+      }
+      else {
+        serve(request);
+      }
+    }
+    private void serve(final Request request) {
+      try {
+        mExecutors.execute(
+          new Runnable() {
+            @Override public void run() {
+              request.serveConnection();
+            }
+          }
+        );
+      }
+      catch (final RejectedExecutionException e) {
+        request.close();
+      }
     }
     @Override public void shutdown() {
       if (mShutdown.getAndSet(true)) return;
+      mHandshakeExecutors.shutdownNow();
       mExecutors.shutdownNow();
       try {
-        if (!mExecutors.awaitTermination(15, TimeUnit.SECONDS)) {
+        if (!mHandshakeExecutors.awaitTermination(15, TimeUnit.SECONDS) ||
+            !mExecutors.awaitTermination(15, TimeUnit.SECONDS)) {
           throw new RuntimeException("Failed to stop request handler.");
         }
       }
       catch (final InterruptedException ignore) {}
+      mHandshakeExecutors = null;
       mExecutors = null;
     }
   }
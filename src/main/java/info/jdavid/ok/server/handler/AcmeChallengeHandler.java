@@ -7,9 +7,9 @@ import java.util.Map;
 
 import javax.annotation.Nullable;
 
+import info.jdavid.ok.server.RequestTarget;
 import info.jdavid.ok.server.Response;
 import info.jdavid.ok.server.StatusLines;
-import okhttp3.HttpUrl;
 import okio.Okio;
 
 
@@ -37,15 +37,15 @@ public class AcmeChallengeHandler implements Handler {
   }
 
   @Override
-  public @Nullable String[] matches(final String method, final HttpUrl url) {
-    final List<String> segments = url.pathSegments();
+  public @Nullable String[] matches(final String method, final RequestTarget target) {
+    final List<String> segments = target.pathSegments();
     return segments.toArray(new String[segments.size()]);
   }
 
   @Override
   public Response.Builder handle(final Request request, final String[] params) {
     //noinspection ConstantConditions
-    final File dir = directory == null ? domainDirectories.get(request.url.host()) : directory;
+    final File dir = directory == null ? domainDirectories.get(request.target.host()) : directory;
     if (dir == null) {
       return new Response.Builder().statusLine(StatusLines.NOT_FOUND).noBody();
     }
@@ -0,0 +1,24 @@
+package info.jdavid.ok.server.handler;
+
+import java.util.concurrent.CompletableFuture;
+
+import info.jdavid.ok.server.Response;
+
+
+/**
+ * Chainable request handler that creates its responses asynchronously, so that waiting for a database or a
+ * downstream service doesn't block a server thread in the handler.<br>
+ * The future is cancelled if the client disconnects, or if it takes longer than the chain timeout. The
+ * synchronous handle method is only used when the response can't be waited for (http 2 push promises).
+ */
+public interface AsyncHandler extends Handler {
+
+  /**
+   * Creates the response for an accepted request asynchronously.
+   * @param request the request object.
+   * @param params the params returned by the accept method.
+   * @return the future response builder.
+   */
+  public CompletableFuture<Response.Builder> handleAsync(final Request request, final String[] params);
+
+}
@@ -5,9 +5,9 @@ import java.util.prefs.BackingStoreException;
 
 import javax.annotation.Nullable;
 
+import info.jdavid.ok.server.RequestTarget;
 import info.jdavid.ok.server.Response;
 import info.jdavid.ok.server.header.CacheControl;
-import okhttp3.HttpUrl;
 import okio.Buffer;
 
 
@@ -35,8 +35,8 @@ public abstract class AuthHandler implements Handler {
   }
 
   @Override
-  public @Nullable String[] matches(final String method, final HttpUrl url) {
-    return delegate.matches(method, url);
+  public @Nullable String[] matches(final String method, final RequestTarget target) {
+    return delegate.matches(method, target);
   }
 
   /**
@@ -0,0 +1,168 @@
+package info.jdavid.ok.server.handler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import info.jdavid.ok.server.RequestTarget;
+import info.jdavid.ok.server.Response;
+import okhttp3.Headers;
+
+
+/**
+ * Handler wrapper that collapses identical concurrent requests (single flight). While a request is being
+ * handled by the delegate, the requests with the same key wait for its response instead of calling the
+ * delegate again, and they all get a copy of it.<br>
+ * The response is shared only if it can be kept in memory (a body of known length, under the size limit)
+ * and if it doesn't set cookies. A request that waits longer than the maximum wait, or whose shared response
+ * isn't available, is handled by the delegate.<br>
+ * The delegate is always called with its synchronous handle method.
+ */
+@SuppressWarnings({ "WeakerAccess", "unused" })
+public class CoalescingHandler implements IndexedHandler {
+
+  /**
+   * Function that computes the key of a request. Requests with the same key share the same response.
+   */
+  public interface KeyFunction {
+
+    /**
+     * Returns the key for the request.
+     * @param request the request.
+     * @return the key, or null if the request should not share its response with other requests.
+     */
+    public @Nullable String key(final Request request);
+
+  }
+
+  /**
+   * Creates a key function for GET requests, using the method, the url and the specified request headers.
+   * Requests with credentials (Authorization or Cookie headers) are not shared.
+   * @param headerNames the names of the request headers that the response depends on.
+   * @return the key function.
+   */
+  public static KeyFunction keyFunction(final Collection<String> headerNames) {
+    final List<String> names = new ArrayList<>(headerNames);
+    //noinspection Convert2Lambda
+    return new KeyFunction() {
+      @Override public @Nullable String key(final Request request) {
+        if (!"GET".equals(request.method)) return null;
+        final Headers headers = request.headers;
+        if (headers.get("Authorization") != null || headers.get("Cookie") != null) return null;
+        final StringBuilder key = new StringBuilder(request.method).append(' ').append(request.target);
+        for (final String name: names) {
+          key.append('\n');
+          for (final String value: headers.values(name)) {
+            key.append(value).append(',');
+          }
+        }
+        return key.toString();
+      }
+    };
+  }
+
+  private static final class Flight {
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile @Nullable Response.Snapshot snapshot = null;
+  }
+
+  final Handler delegate;
+  final KeyFunction keyFunction;
+  final long maxWaitMillis;
+  final long maxBytes;
+  private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * Creates a wrapper that collapses GET requests with the same url, with a maximum wait of 10 seconds and a
+   * size limit of 1MB.
+   * @param delegate the delegate handler.
+   */
+  public CoalescingHandler(final Handler delegate) {
+    this(delegate, keyFunction(Collections.<String>emptyList()), 10000L, 1024 * 1024L);
+  }
+
+  /**
+   * Creates a wrapper that collapses the requests with the same key.
+   * @param delegate the delegate handler.
+   * @param keyFunction the function that computes the request keys.
+   * @param maxWaitMillis the maximum time a request waits for the response of an identical request.
+   * @param maxBytes the maximum size of a response body that can be shared.
+   */
+  public CoalescingHandler(final Handler delegate, final KeyFunction keyFunction,
+                           final long maxWaitMillis, final long maxBytes) {
+    if (maxWaitMillis < 0 || maxBytes < 0) throw new IllegalArgumentException();
+    this.delegate = delegate;
+    this.keyFunction = keyFunction;
+    this.maxWaitMillis = maxWaitMillis;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the number of requests that got the response of an identical request.
+   * @return the number of coalesced requests.
+   */
+  public long coalescedCount() {
+    return coalesced.get();
+  }
+
+  @Override public Handler setup() {
+    delegate.setup();
+    return this;
+  }
+
+  @Override public @Nullable Collection<String> acceptedMethods() {
+    return delegate instanceof IndexedHandler ? ((IndexedHandler)delegate).acceptedMethods() : null;
+  }
+
+  @Override public String acceptedPathPrefix() {
+    return delegate instanceof IndexedHandler ? ((IndexedHandler)delegate).acceptedPathPrefix() : "";
+  }
+
+  @Override public @Nullable String acceptedHost() {
+    return delegate instanceof IndexedHandler ? ((IndexedHandler)delegate).acceptedHost() : null;
+  }
+
+  @Override public @Nullable String[] matches(final String method, final RequestTarget target) {
+    return delegate.matches(method, target);
+  }
+
+  @Override public Response.Builder handle(final Request request, final String[] params) {
+    final String key = keyFunction.key(request);
+    if (key == null) return delegate.handle(request, params);
+    final Flight flight = new Flight();
+    final Flight current = flights.putIfAbsent(key, flight);
+    if (current == null) {
+      try {
+        final Response.Builder response = delegate.handle(request, params);
+        if (response.header("Set-Cookie") == null) flight.snapshot = response.snapshot(maxBytes);
+        return response;
+      }
+      finally {
+        flights.remove(key, flight);
+        flight.done.countDown();
+      }
+    }
+    try {
+      if (current.done.await(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+        final Response.Snapshot snapshot = current.snapshot;
+        if (snapshot != null) {
+          coalesced.incrementAndGet();
+          return snapshot.newBuilder();
+        }
+      }
+    }
+    catch (final InterruptedException ignore) {
+      Thread.currentThread().interrupt();
+    }
+    return delegate.handle(request, params);
+  }
+
+}
@@ -70,7 +70,7 @@ public class DigestAuthHandler extends AuthHandler {
       return handleAuthenticated(request, params);
     }
     else {
-      final String realm = name + "@" + request.url.host();
+      final String realm = name + "@" + request.target.host();
       final String nonce = nonce(request, key, nonceIv);
       //noinspection UnnecessaryLocalVariable
       final String opaque = opaque(request);
@@ -103,14 +103,14 @@ public class DigestAuthHandler extends AuthHandler {
    * @return the opaque string.
    */
   protected String opaque(final Request request) {
-    return new Base64Helper().encode( name+ "@" + request.url.host());
+    return new Base64Helper().encode( name+ "@" + request.target.host());
   }
 
   private static String nonce(final Request request, final SecretKey key, final byte[] iv) {
     final String time = Hex.hex(BigInteger.valueOf(System.currentTimeMillis()));
     final String random = Hex.hex(new SecureRandom().generateSeed(8));
-    final String host = request.url.host();
-    final String path = request.url.encodedPath();
+    final String host = request.target.host();
+    final String path = request.target.encodedPath();
     return Crypto.encrypt(key, iv, bytes(time + random + host + path));
   }
 
@@ -152,11 +152,11 @@ public class DigestAuthHandler extends AuthHandler {
     final String password = getPassword(username);
     if (password == null) return false;
     final String realm = map.get("realm");
-    if (!(name + "@" + request.url.host()).equals(realm)) return false;
+    if (!(name + "@" + request.target.host()).equals(realm)) return false;
     final String nonce = map.get("nonce");
     if (nonce == null) return false;
     final String uri = map.get("uri");
-    if (!uri.equals(request.url.encodedPath())) return false;
+    if (!uri.equals(request.target.encodedPath())) return false;
     final String qop = map.get("qop");
     if (!qop.equals("auth")) return false;
     final String nc = map.get("nc");
@@ -171,7 +171,7 @@ public class DigestAuthHandler extends AuthHandler {
     final long time = Long.parseLong(decrypted.substring(0, 12), 16);
     if ((System.currentTimeMillis() - time) > 600000) return false; // 10 mins old at the most.
     final String hostAndPath = decrypted.substring(28);
-    if (!hostAndPath.equals(request.url.host() + request.url.encodedPath())) return false;
+    if (!hostAndPath.equals(request.target.host() + request.target.encodedPath())) return false;
 
     final String ha1 = Hex.hex(md5(username + ":" + realm + ":" + password));
     final String ha2 = Hex.hex(md5(request.method + ":" + uri));
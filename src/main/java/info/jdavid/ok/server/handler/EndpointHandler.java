@@ -1,27 +1,31 @@
 package info.jdavid.ok.server.handler;
 
-import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
+import info.jdavid.ok.server.RequestTarget;
 import info.jdavid.ok.server.Response;
-import okhttp3.HttpUrl;
 
 
 /**
- * Handler for implementing api endpoints.
+ * Handler for implementing api endpoints.<br>
+ * Routes can be regular expressions (the parameters are the captured groups), or path templates with
+ * parameters spanning whole segments: {@code /items/{id}}, {@code /items/{id:int}} (digits only) or
+ * {@code /items/{id:[a-z]+}} (matching the regular expression). Templates, and the regular expressions that
+ * are equivalent to a template, are matched with a tree in a single pass over the path. When several routes
+ * match a request, the first one that was added is used.
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class EndpointHandler implements Handler {
 
-  final Map<String, Map<String, Map.Entry<Pattern, Resolver<? extends ResourceAction>>>> resolvers =
-    new HashMap<>(6);
+  final Map<String, EndpointRouter<Resolver<? extends ResourceAction>>> routers = new HashMap<>(6);
+  // Route keys (the route index as a string), returned as the first param so that handle gets the route
+  // without having to match the path again.
+  private final List<String> keys = new ArrayList<>();
 
   @Override
   public Handler setup() {
@@ -30,30 +34,21 @@ public class EndpointHandler implements Handler {
 
   @Nullable
   @Override
-  public String[] matches(final String method, final HttpUrl url) {
-    final Map<String, Map.Entry<Pattern, Resolver<? extends ResourceAction>>> resolvers =
-      this.resolvers.get(method);
-    if (resolvers.size() > 0) {
-      final String path = url.encodedPath();
-      for (final Map.Entry<String, Map.Entry<Pattern, Resolver<? extends ResourceAction>>> entry :
-           resolvers.entrySet()) {
-        final Matcher matcher = entry.getValue().getKey().matcher(path);
-        if (matcher.find() && matcher.start() == 0 && matcher.end() == path.length()) {
-          final String[] params = new String[matcher.groupCount() + 1];
-          params[0] = entry.getKey();
-          for (int i=1; i<params.length; ++i) {
-            params[i] = matcher.group(i);
-          }
-          return params;
-        }
-      }
-    }
-    return null;
+  public String[] matches(final String method, final RequestTarget target) {
+    final EndpointRouter<Resolver<? extends ResourceAction>> router = routers.get(method);
+    if (router == null) return null;
+    final EndpointRouter.Match match = router.match(target.encodedPath());
+    if (match == null) return null;
+    final String[] params = new String[match.params.length + 1];
+    params[0] = keys.get(match.index);
+    System.arraycopy(match.params, 0, params, 1, match.params.length);
+    return params;
   }
 
   @Override
   public final Response.Builder handle(final Request request, final String[] params) {
-    final Resolver<? extends ResourceAction> resolver = resolvers.get(request.method).get(params[0]).getValue();
+    final Resolver<? extends ResourceAction> resolver =
+      routers.get(request.method).get(Integer.parseInt(params[0]));
     final String[] shifted = new String[params.length - 1];
     System.arraycopy(params, 1, shifted, 0, shifted.length);
     return resolver.resolve(shifted).response(request);
@@ -228,24 +223,19 @@ public class EndpointHandler implements Handler {
   }
 
   /**
-   * Adds a resolver for the specified method with the specified regex for the route.
+   * Adds a resolver for the specified method with the specified regex (or path template) for the route.
    * @param method the request method for the endpoint.
-   * @param regex the regular expression for the endpoint route.
+   * @param regex the regular expression or the path template for the endpoint route.
    * @param resolver the resolver.
    */
   protected void add(final String method, final String regex, final Resolver<? extends ResourceAction> resolver) {
-    Map<String, Map.Entry<Pattern, Resolver<? extends ResourceAction>>> map = resolvers.get(method);
-    if (map == null) {
-      map = new LinkedHashMap<>();
-      resolvers.put(method, map);
+    EndpointRouter<Resolver<? extends ResourceAction>> router = routers.get(method);
+    if (router == null) {
+      router = new EndpointRouter<>();
+      routers.put(method, router);
     }
-    map.put(
-      UUID.randomUUID().toString(),
-      new AbstractMap.SimpleEntry<Pattern, Resolver<? extends ResourceAction>>(
-        Pattern.compile(regex),
-        resolver
-      )
-    );
+    final int index = router.add(regex, resolver);
+    while (keys.size() <= index) keys.add(String.valueOf(keys.size()));
   }
 
   /**
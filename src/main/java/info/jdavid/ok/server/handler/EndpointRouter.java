@@ -0,0 +1,400 @@
+package info.jdavid.ok.server.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+
+/**
+ * Routes of an endpoint for one request method.<br>
+ * Routes made of literal segments and of path parameters ({@code {id}}, {@code {id:int}} or
+ * {@code {id:regex}}) are compiled into a radix tree, and so are the simple regular expressions that are
+ * equivalent ({@code ([^/]+)} and {@code (\d+)} capturing a whole segment, and an optional trailing slash).
+ * The other regular expressions are only evaluated if no route added before them matches.
+ * When several routes match, the first one that was added wins, as if they were all evaluated in order.
+ */
+final class EndpointRouter<T> {
+
+  static final class Match {
+    final int index;
+    final String[] params;
+
+    Match(final int index, final String[] params) {
+      this.index = index;
+      this.params = params;
+    }
+  }
+
+  private static final class RegexRoute {
+    final int index;
+    final Pattern pattern;
+
+    RegexRoute(final int index, final Pattern pattern) {
+      this.index = index;
+      this.pattern = pattern;
+    }
+  }
+
+  private static final int ANY = 0;
+  private static final int INT = 1;
+  private static final int REGEX = 2;
+
+  private static final class Param {
+    final int type;
+    final @Nullable Pattern pattern;
+    final Node child = new Node("");
+
+    Param(final int type, @Nullable final Pattern pattern) {
+      this.type = type;
+      this.pattern = pattern;
+    }
+
+    boolean accepts(final String path, final int start, final int end) {
+      if (type == ANY) return true;
+      if (type == INT) {
+        for (int i=start; i<end; ++i) {
+          final char c = path.charAt(i);
+          if (c < '0' || c > '9') return false;
+        }
+        return true;
+      }
+      assert pattern != null;
+      final Matcher matcher = pattern.matcher(path);
+      matcher.region(start, end);
+      return matcher.matches();
+    }
+
+    boolean sameAs(final int type, @Nullable final Pattern pattern) {
+      if (this.type != type) return false;
+      return type != REGEX || this.pattern != null && pattern != null &&
+                              this.pattern.pattern().equals(pattern.pattern());
+    }
+  }
+
+  private static final class Node {
+    String prefix;
+    Node[] children = new Node[0];
+    Param[] params = new Param[0];
+    // The index of the (first) route ending at this node.
+    int route = Integer.MAX_VALUE;
+    // The smallest route index in the subtree.
+    int min = Integer.MAX_VALUE;
+
+    Node(final String prefix) {
+      this.prefix = prefix;
+    }
+  }
+
+  private static final class Token {
+    final @Nullable String literal;
+    final int type;
+    final @Nullable Pattern pattern;
+
+    Token(final String literal) {
+      this.literal = literal;
+      this.type = -1;
+      this.pattern = null;
+    }
+
+    Token(final int type, @Nullable final Pattern pattern) {
+      this.literal = null;
+      this.type = type;
+      this.pattern = pattern;
+    }
+  }
+
+  private final Node root = new Node("");
+  private final List<T> values = new ArrayList<>();
+  private final List<RegexRoute> regexRoutes = new ArrayList<>();
+  private int maxParams = 0;
+
+  /**
+   * Adds a route.
+   * @param route the route (a path template or a regular expression).
+   * @param value the value associated with the route.
+   * @return the route index.
+   */
+  int add(final String route, final T value) {
+    final int index = values.size();
+    final List<Token> tokens = new ArrayList<>();
+    final int parsed = parse(route, tokens);
+    if (parsed == -1) {
+      regexRoutes.add(new RegexRoute(index, Pattern.compile(route)));
+    }
+    else {
+      int paramCount = 0;
+      for (final Token token: tokens) {
+        if (token.literal == null) ++paramCount;
+      }
+      maxParams = Math.max(maxParams, paramCount);
+      insert(tokens, index);
+      if (parsed == 1) {
+        // Optional trailing slash.
+        tokens.add(new Token("/"));
+        insert(tokens, index);
+      }
+    }
+    values.add(value);
+    return index;
+  }
+
+  /**
+   * Returns the value of the route at the given index.
+   * @param index the route index.
+   * @return the value.
+   */
+  T get(final int index) {
+    return values.get(index);
+  }
+
+  /**
+   * Finds the first route that matches the path.
+   * @param path the request path.
+   * @return the match, or null if no route matches.
+   */
+  @Nullable Match match(final String path) {
+    final int[] captures = new int[maxParams * 2];
+    final Best best = new Best();
+    match(root, path, 0, captures, 0, best);
+    for (final RegexRoute route: regexRoutes) {
+      if (route.index > best.index) break;
+      final Matcher matcher = route.pattern.matcher(path);
+      if (matcher.matches()) {
+        final String[] params = new String[matcher.groupCount()];
+        for (int i=0; i<params.length; ++i) {
+          params[i] = matcher.group(i + 1);
+        }
+        return new Match(route.index, params);
+      }
+    }
+    if (best.index == Integer.MAX_VALUE) return null;
+    final String[] params = new String[best.count];
+    for (int i=0; i<params.length; ++i) {
+      params[i] = path.substring(best.captures[i * 2], best.captures[i * 2 + 1]);
+    }
+    return new Match(best.index, params);
+  }
+
+  private static final class Best {
+    int index = Integer.MAX_VALUE;
+    int[] captures = null;
+    int count = 0;
+  }
+
+  private static void match(final Node node, final String path, final int position,
+                            final int[] captures, final int count, final Best best) {
+    if (node.min >= best.index) return;
+    final int length = path.length();
+    if (position == length) {
+      if (node.route < best.index) {
+        best.index = node.route;
+        best.captures = captures.clone();
+        best.count = count;
+      }
+      return;
+    }
+    final char c = path.charAt(position);
+    for (final Node child: node.children) {
+      final String prefix = child.prefix;
+      if (prefix.charAt(0) == c && path.startsWith(prefix, position)) {
+        match(child, path, position + prefix.length(), captures, count, best);
+        break;
+      }
+    }
+    if (node.params.length > 0 && c != '/') {
+      int end = path.indexOf('/', position);
+      if (end == -1) end = length;
+      for (final Param param: node.params) {
+        if (param.child.min < best.index && param.accepts(path, position, end)) {
+          captures[count * 2] = position;
+          captures[count * 2 + 1] = end;
+          match(param.child, path, end, captures, count + 1, best);
+        }
+      }
+    }
+  }
+
+  private void insert(final List<Token> tokens, final int index) {
+    Node node = root;
+    node.min = Math.min(node.min, index);
+    for (final Token token: tokens) {
+      if (token.literal != null) {
+        node = insertLiteral(node, token.literal, index);
+      }
+      else {
+        Param param = null;
+        for (final Param it: node.params) {
+          if (it.sameAs(token.type, token.pattern)) {
+            param = it;
+            break;
+          }
+        }
+        if (param == null) {
+          param = new Param(token.type, token.pattern);
+          final Param[] params = new Param[node.params.length + 1];
+          System.arraycopy(node.params, 0, params, 0, node.params.length);
+          params[node.params.length] = param;
+          node.params = params;
+        }
+        node = param.child;
+        node.min = Math.min(node.min, index);
+      }
+    }
+    node.route = Math.min(node.route, index);
+  }
+
+  private static Node insertLiteral(final Node parent, final String literal, final int index) {
+    Node node = parent;
+    String remaining = literal;
+    while (!remaining.isEmpty()) {
+      Node next = null;
+      for (final Node child: node.children) {
+        if (child.prefix.charAt(0) == remaining.charAt(0)) {
+          next = child;
+          break;
+        }
+      }
+      if (next == null) {
+        next = new Node(remaining);
+        final Node[] children = new Node[node.children.length + 1];
+        System.arraycopy(node.children, 0, children, 0, node.children.length);
+        children[node.children.length] = next;
+        node.children = children;
+        next.min = index;
+        return next;
+      }
+      final String prefix = next.prefix;
+      int common = 0;
+      final int max = Math.min(prefix.length(), remaining.length());
+      while (common < max && prefix.charAt(common) == remaining.charAt(common)) ++common;
+      if (common < prefix.length()) {
+        // Splits the edge.
+        final Node split = new Node(prefix.substring(common));
+        split.children = next.children;
+        split.params = next.params;
+        split.route = next.route;
+        split.min = next.min;
+        next.prefix = prefix.substring(0, common);
+        next.children = new Node[] { split };
+        next.params = new Param[0];
+        next.route = Integer.MAX_VALUE;
+      }
+      next.min = Math.min(next.min, index);
+      node = next;
+      remaining = remaining.substring(common);
+    }
+    return node;
+  }
+
+  private static boolean isMeta(final char c) {
+    return ".^$|?*+()[]{}\\".indexOf(c) != -1;
+  }
+
+  /**
+   * Parses a route into literal and parameter tokens.
+   * @param route the route.
+   * @param tokens the list the tokens are added to.
+   * @return -1 if the route is a regular expression that can't be compiled into the tree, 1 if the route
+   * ends with an optional trailing slash, and 0 otherwise.
+   */
+  private static int parse(final String route, final List<Token> tokens) {
+    final StringBuilder literal = new StringBuilder();
+    final int length = route.length();
+    int i = 0;
+    while (i < length) {
+      final char c = route.charAt(i);
+      if (i == length - 2 && c == '/' && route.charAt(i + 1) == '?') {
+        if (literal.length() > 0) tokens.add(new Token(literal.toString()));
+        return 1;
+      }
+      final boolean segmentStart = i > 0 && route.charAt(i - 1) == '/';
+      final int type;
+      final Pattern pattern;
+      final int end;
+      if (c == '{') {
+        int depth = 1;
+        int j = i + 1;
+        while (j < length && depth > 0) {
+          final char d = route.charAt(j++);
+          if (d == '{') ++depth;
+          else if (d == '}') --depth;
+        }
+        if (depth > 0) throw new IllegalArgumentException("Invalid route: " + route);
+        final String param = route.substring(i + 1, j - 1);
+        final int colon = param.indexOf(':');
+        final String name = colon == -1 ? param : param.substring(0, colon);
+        if (!isName(name)) {
+          // Not a parameter: this is a regular expression quantifier.
+          return -1;
+        }
+        final String kind = colon == -1 ? null : param.substring(colon + 1);
+        if (kind == null) {
+          type = ANY;
+          pattern = null;
+        }
+        else if ("int".equals(kind)) {
+          type = INT;
+          pattern = null;
+        }
+        else {
+          type = REGEX;
+          pattern = Pattern.compile(kind);
+        }
+        end = j;
+      }
+      else if (route.startsWith("([^/]+)", i)) {
+        type = ANY;
+        pattern = null;
+        end = i + 7;
+      }
+      else if (route.startsWith("(\\d+)", i)) {
+        type = INT;
+        pattern = null;
+        end = i + 5;
+      }
+      else {
+        if (c == '\\' && i + 1 < length && isMeta(route.charAt(i + 1))) {
+          literal.append(route.charAt(i + 1));
+          i += 2;
+          continue;
+        }
+        if (isMeta(c)) return -1;
+        literal.append(c);
+        ++i;
+        continue;
+      }
+      // Parameters have to span a whole segment.
+      final boolean segmentEnd = end == length || route.charAt(end) == '/';
+      if (!segmentStart || !segmentEnd) {
+        if (c == '{') {
+          throw new IllegalArgumentException("Path parameters should span a whole segment: " + route);
+        }
+        return -1;
+      }
+      if (literal.length() > 0) {
+        tokens.add(new Token(literal.toString()));
+        literal.setLength(0);
+      }
+      tokens.add(new Token(type, pattern));
+      i = end;
+    }
+    if (literal.length() > 0) tokens.add(new Token(literal.toString()));
+    return 0;
+  }
+
+  private static boolean isName(final String name) {
+    final int length = name.length();
+    if (length == 0) return false;
+    for (int i=0; i<length; ++i) {
+      final char c = name.charAt(i);
+      if (c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) continue;
+      if (i > 0 && c >= '0' && c <= '9') continue;
+      return false;
+    }
+    return true;
+  }
+
+}
@@ -4,13 +4,25 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Deflater;
 
 import javax.annotation.Nullable;
 
+import info.jdavid.ok.server.FileChannelCache;
+import info.jdavid.ok.server.MappedFileCache;
 import info.jdavid.ok.server.MediaTypes;
 import info.jdavid.ok.server.Response;
 import info.jdavid.ok.server.StatusLines;
@@ -20,6 +32,7 @@ import info.jdavid.ok.server.header.ETag;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okio.Buffer;
+import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.GzipSink;
 import okio.Okio;
@@ -37,6 +50,13 @@ public class FileHandler extends RegexHandler {
   final File webRoot;
   final Collection<MediaType> allowedMediaTypes = new ArrayList<>(48);
   final List<String> indexNames;
+  @Nullable MappedFileCache mappings = null;
+  @Nullable FileChannelCache channels = null;
+  @Nullable FileMetadataCache metadataCache = null;
+  @Nullable File compressedDirectory = null;
+  private final ConcurrentHashMap<String, FutureTask<File>> compressions = new ConcurrentHashMap<>();
+  // Compressed variant names by file path (only the latest version of each file).
+  private final ConcurrentHashMap<String, Variant> variants = new ConcurrentHashMap<>();
 
   /**
    * Media Type configuration settings (enable compression, enable range requests, immutable
@@ -76,6 +96,40 @@ public class FileHandler extends RegexHandler {
     }
   }
 
+  /**
+   * BufferedSource container for a region of a file that hasn't been loaded in memory. The response body
+   * uses the file directly, so that plain http connections can send it without copying it (sendfile), and
+   * large files can be read from a mapping shared by the concurrent responses. Smaller files are read with
+   * positional reads from a file channel shared by the concurrent responses.
+   */
+  public static class FileRegion extends BufferedSourceWithSize {
+    public final File file;
+    public final long start;
+    public final @Nullable MappedFileCache mappings;
+    public final @Nullable FileChannelCache channels;
+    public final @Nullable String etag;
+
+    public FileRegion(final File file, final long start, final long size) {
+      this(file, start, size, null, null, null);
+    }
+
+    public FileRegion(final File file, final long start, final long size,
+                      @Nullable final MappedFileCache mappings, @Nullable final String etag) {
+      this(file, start, size, mappings, null, etag);
+    }
+
+    public FileRegion(final File file, final long start, final long size,
+                      @Nullable final MappedFileCache mappings, @Nullable final FileChannelCache channels,
+                      @Nullable final String etag) {
+      super(new Response.FileBody(null, file, start, size, mappings, channels, etag).source(), size);
+      this.file = file;
+      this.start = start;
+      this.mappings = mappings;
+      this.channels = channels;
+      this.etag = etag;
+    }
+  }
+
   /**
    * Gets the web root directory.
    * @return the web root directory.
@@ -208,10 +262,76 @@ public class FileHandler extends RegexHandler {
     return MediaTypes.defaultAllowedMediaTypes();
   }
 
+  /**
+   * Returns the minimum size of the files that are read from a memory mapping (shared by the concurrent
+   * responses for the same file) rather than from the file.
+   * @return the size in bytes, or -1 to disable mappings.
+   */
+  protected long mapThreshold() {
+    return 1024 * 1024;
+  }
+
+  /**
+   * Returns the maximum number of file channels kept open for the files that are not mapped, when no response
+   * is using them. Channels are shared by the concurrent responses for the same file (the ranges of a
+   * multipart response for instance), and read with positional reads.
+   * @return the number of idle channels, or -1 to open the file for each response.
+   */
+  protected int maxIdleFileChannels() {
+    return 16;
+  }
+
+  /**
+   * Returns whether the metadata resolved for a request path (index file, media type, length, E-Tag and
+   * media type config) should be cached, to avoid the file system calls for the following requests. Entries
+   * are invalidated when the files change (or after {@link #metadataCacheTtlMillis()} if the file system
+   * can't be watched). The default is false.<br>
+   * When enabled, {@link #file(String, Request)}, {@link #mediaType(File, Request)} and
+   * {@link #etag(Request, File, File)} should only depend on the path, and not on the rest of the request.
+   * @return true to enable the metadata cache.
+   */
+  protected boolean cacheMetadata() {
+    return false;
+  }
+
+  /**
+   * Returns how long the cached metadata stays valid when the file system can't be watched for changes
+   * (5 seconds by default).
+   * @return the time to live in milliseconds.
+   */
+  protected long metadataCacheTtlMillis() {
+    return 5000L;
+  }
+
+  /**
+   * Returns the directory where the gzip compressed variants of the files are stored, so that each version of
+   * a file is compressed only once (with the maximum compression level). The default is a directory under
+   * java.io.tmpdir, specific to the web root. With null (no directory), files without an up-to-date .gz file
+   * next to them are compressed for each request.
+   * @return the directory, or null.
+   */
+  protected @Nullable File compressedCacheDirectory() {
+    final String path = webRoot.getAbsolutePath();
+    final String name = "okserver-gz-" + Hex.hex(Md5.md5(path.getBytes(Charset.forName("UTF-8"))));
+    return new File(System.getProperty("java.io.tmpdir"), name);
+  }
+
   @Override
   public Handler setup() {
     super.setup();
     allowedMediaTypes.addAll(allowedMediaTypes());
+    final long mapThreshold = mapThreshold();
+    mappings = mapThreshold < 0 ? null : new MappedFileCache(mapThreshold);
+    final int maxIdleFileChannels = maxIdleFileChannels();
+    channels = maxIdleFileChannels < 0 ? null : new FileChannelCache(maxIdleFileChannels);
+    final FileMetadataCache previous = metadataCache;
+    if (previous != null) previous.close();
+    metadataCache = cacheMetadata() ? new FileMetadataCache(webRoot, metadataCacheTtlMillis()) : null;
+    final File directory = compressedCacheDirectory();
+    //noinspection ResultOfMethodCallIgnored
+    if (directory != null) directory.mkdirs();
+    compressedDirectory = directory;
+    variants.clear();
     return this;
   }
 
@@ -260,162 +380,251 @@ public class FileHandler extends RegexHandler {
     this.indexNames = indexNames;
   }
 
-  @Override
-  public Response.Builder handle(final Request request, final String[] params) {
-    final int n = params.length;
-    if (n < 1) return new Response.Builder().statusLine(StatusLines.INTERNAL_SERVER_ERROR).noBody();
-    final String path = params[n-1];
+  /**
+   * File metadata resolved for a request path.
+   */
+  static final class Metadata {
+    static final int FILE = 0;
+    static final int NOT_FOUND = 1;
+    static final int FORBIDDEN = 2;
+    static final int DIRECTORY_REDIRECT = 3;
+    static final int INDEX_REDIRECT = 4;
+
+    final int kind;
+    final boolean directory;
+    final @Nullable File file;
+    final @Nullable MediaType mediaType;
+    final @Nullable String etag;
+    final boolean exists;
+    final long length;
+    final @Nullable MediaTypeConfig config;
+
+    Metadata(final int kind, final boolean directory) {
+      this(kind, directory, null, null, null, false, 0L, null);
+    }
+
+    Metadata(final int kind, final boolean directory,
+             @Nullable final File file, @Nullable final MediaType mediaType, @Nullable final String etag,
+             final boolean exists, final long length, @Nullable final MediaTypeConfig config) {
+      this.kind = kind;
+      this.directory = directory;
+      this.file = file;
+      this.mediaType = mediaType;
+      this.etag = etag;
+      this.exists = exists;
+      this.length = length;
+      this.config = config;
+    }
+  }
+
+  final Metadata metadata(final String path, final Request request) {
+    final FileMetadataCache cache = metadataCache;
+    if (cache == null) return resolve(path, file(path, request), request);
+    final Metadata cached = cache.get(path);
+    if (cached != null) return cached;
+    final long generation = cache.generation();
     final File file = file(path, request);
-    if (file.isDirectory()) {
+    final boolean watched = cache.watch(file);
+    final Metadata metadata = resolve(path, file, request);
+    cache.put(path, file, metadata, generation, watched);
+    return metadata;
+  }
+
+  private Metadata resolve(final String path, final File file, final Request request) {
+    final boolean directory = file.isDirectory();
+    if (directory) {
       final int pathLength = path.length();
       if (pathLength > 0 && path.charAt(pathLength - 1) != '/') {
-        final File index = index(file);
-        if (index == null) {
-          return new Response.Builder().
-            statusLine(StatusLines.FORBIDDEN).
-            noBody();
-        }
-        else {
-          return new Response.Builder().
-            statusLine(StatusLines.MOVED_PERMANENTLY).
-            location(request.url.newBuilder().addPathSegment("").build()).
-            noBody();
-        }
+        return new Metadata(index(file) == null ? Metadata.FORBIDDEN : Metadata.DIRECTORY_REDIRECT, true);
       }
     }
-    if (isIndexFile(file)) {
-      //noinspection ConstantConditions
-      final HttpUrl redirectUrl = request.url.newBuilder("./").build();
-      return new Response.Builder().
-        statusLine(StatusLines.MOVED_PERMANENTLY).
-        location(redirectUrl).
-        noBody();
-    }
+    if (isIndexFile(file)) return new Metadata(Metadata.INDEX_REDIRECT, directory);
     final MediaType mediaType = mediaType(file, request);
-    if (mediaType == null) {
-      return new Response.Builder().statusLine(StatusLines.NOT_FOUND).noBody();
+    if (mediaType == null) return new Metadata(Metadata.NOT_FOUND, directory);
+    final MediaType m;
+    final File f;
+    if (mediaType == MediaTypes.DIRECTORY) {
+      f = index(file);
+      if (f == null) return new Metadata(Metadata.NOT_FOUND, directory);
+      m = mediaType(f, request);
+      assert(m != null);
     }
     else {
-      final MediaType m;
-      final File f;
-      if (mediaType == MediaTypes.DIRECTORY) {
-        f = index(file);
-        if (f == null) return new Response.Builder().statusLine(StatusLines.NOT_FOUND).noBody();
-        m = mediaType(f, request);
-        assert(m != null);
-      }
-      else {
-        f = file;
-        if (!isAllowed(mediaType)) {
-          return new Response.Builder().statusLine(StatusLines.FORBIDDEN).noBody();
+      f = file;
+      if (!isAllowed(mediaType)) return new Metadata(Metadata.FORBIDDEN, directory);
+      m = mediaType;
+    }
+    final String etag = etag(request, f, webRoot);
+    final boolean exists = f.exists();
+    return new Metadata(Metadata.FILE, directory, f, m, etag, exists,
+                        exists ? f.length() : 0L, exists ? config(mediaType) : null);
+  }
+
+  @Override
+  public Response.Builder handle(final Request request, final String[] params) {
+    final int n = params.length;
+    if (n < 1) return new Response.Builder().statusLine(StatusLines.INTERNAL_SERVER_ERROR).noBody();
+    final Metadata metadata = metadata(params[n-1], request);
+    switch (metadata.kind) {
+      case Metadata.NOT_FOUND:
+        return new Response.Builder().statusLine(StatusLines.NOT_FOUND).noBody();
+      case Metadata.FORBIDDEN:
+        return new Response.Builder().statusLine(StatusLines.FORBIDDEN).noBody();
+      case Metadata.DIRECTORY_REDIRECT:
+        return new Response.Builder().
+          statusLine(StatusLines.MOVED_PERMANENTLY).
+          location(request.target.url().newBuilder().addPathSegment("").build()).
+          noBody();
+      case Metadata.INDEX_REDIRECT:
+        //noinspection ConstantConditions
+        final HttpUrl redirectUrl = request.target.url().newBuilder("./").build();
+        return new Response.Builder().
+          statusLine(StatusLines.MOVED_PERMANENTLY).
+          location(redirectUrl).
+          noBody();
+    }
+    final File f = metadata.file;
+    final MediaType m = metadata.mediaType;
+    assert f != null && m != null;
+    final String etag = metadata.etag;
+    if (etag != null && etag.equalsIgnoreCase(request.headers.get(ETag.IF_NONE_MATCH))) {
+        return new Response.Builder().statusLine(StatusLines.NOT_MODIFIED).noBody();
+    }
+    if (metadata.exists) {
+      try {
+        final MediaTypeConfig config = metadata.config;
+        if (config == null) {
+          return new Response.Builder().statusLine(StatusLines.INTERNAL_SERVER_ERROR).noBody();
         }
-        m = mediaType;
-      }
-      final String etag = etag(request, f, webRoot);
-      if (etag != null && etag.equalsIgnoreCase(request.headers.get(ETag.IF_NONE_MATCH))) {
-          return new Response.Builder().statusLine(StatusLines.NOT_MODIFIED).noBody();
-      }
-      if (f.exists()) {
-        try {
-          final MediaTypeConfig config = config(mediaType);
-          if (config == null) {
-            return new Response.Builder().statusLine(StatusLines.INTERNAL_SERVER_ERROR).noBody();
-          }
-          final boolean compress = config.compress;
-          final boolean gzip = compress && AcceptEncoding.supportsGZipEncoding(request.headers);
-          final Response.Builder response = new Response.Builder().etag(etag);
-          switch (config.maxAge) {
-            case -1:
-              response.noStore();
-              break;
-            case 0:
-              response.noCache(etag);
-              break;
-            default:
-              if (etag != null) response.etag(etag);
-              response.maxAge(config.maxAge, config.immutable);
-              break;
+        final boolean compress = config.compress;
+        final boolean gzip = compress && AcceptEncoding.supportsGZipEncoding(request.headers);
+        final Response.Builder response = new Response.Builder().etag(etag);
+        switch (config.maxAge) {
+          case -1:
+            response.noStore();
+            break;
+          case 0:
+            response.noCache(etag);
+            break;
+          default:
+            if (etag != null) response.etag(etag);
+            response.maxAge(config.maxAge, config.immutable);
+            break;
+        }
+        if (config.ranges) {
+          response.header(AcceptRanges.HEADER, AcceptRanges.BYTES);
+          final String rangeHeaderValue = request.headers.get(AcceptRanges.RANGE);
+          if (rangeHeaderValue == null) {
+            final BufferedSourceWithSize buffered = source(request, f, etag, compress, gzip);
+            if (gzip) response.header(AcceptEncoding.CONTENT_ENCODING, AcceptEncoding.GZIP);
+            return body(response.statusLine(StatusLines.OK), m, buffered);
           }
-          if (config.ranges) {
-            response.header(AcceptRanges.HEADER, AcceptRanges.BYTES);
-            final String rangeHeaderValue = request.headers.get(AcceptRanges.RANGE);
-            if (rangeHeaderValue == null) {
-              final BufferedSourceWithSize buffered = source(request, f, etag, compress, gzip);
-              if (gzip) response.header(AcceptEncoding.CONTENT_ENCODING, AcceptEncoding.GZIP);
-              return response.statusLine(StatusLines.OK).body(m, buffered.source, buffered.size);
+          else {
+            if (!rangeHeaderValue.startsWith(AcceptRanges.BYTES)) {
+              return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
             }
-            else {
-              if (!rangeHeaderValue.startsWith(AcceptRanges.BYTES)) {
-                return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
+            if (etag != null) {
+              if (!ifMatch(request, etag)) {
+                return response.statusLine(StatusLines.REQUEST_RANGE_NOT_SATISFIABLE).noBody();
               }
-              if (etag != null) {
-                if (!ifMatch(request, etag)) {
-                  return response.statusLine(StatusLines.REQUEST_RANGE_NOT_SATISFIABLE).noBody();
-                }
-                if (!ifRangeMatch(request, etag)) {
-                  final BufferedSourceWithSize buffered = source(request, f, etag, compress, gzip);
-                  if (gzip) response.header(AcceptEncoding.CONTENT_ENCODING, AcceptEncoding.GZIP);
-                  return response.statusLine(StatusLines.OK).body(m, buffered.source, buffered.size);
-                }
+              if (!ifRangeMatch(request, etag)) {
+                final BufferedSourceWithSize buffered = source(request, f, etag, compress, gzip);
+                if (gzip) response.header(AcceptEncoding.CONTENT_ENCODING, AcceptEncoding.GZIP);
+                return body(response.statusLine(StatusLines.OK), m, buffered);
+              }
+            }
+            final String bytesRanges = rangeHeaderValue.substring(AcceptRanges.BYTES.length() + 1);
+            final String[] ranges = bytesRanges.split(", ");
+            if (ranges.length == 0) {
+              return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
+            }
+            final long fileLength = metadata.length;
+            // Start and end (exclusive) byte indices, each range is only parsed once.
+            final long[] parsed = new long[ranges.length * 2];
+            for (int i=0; i<ranges.length; ++i) {
+              final String range = ranges[i];
+              final int dashIndex = range.indexOf('-');
+              if (dashIndex == -1) {
+                return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
               }
-              final String bytesRanges = rangeHeaderValue.substring(AcceptRanges.BYTES.length() + 1);
-              final String[] ranges = bytesRanges.split(", ");
-              if (ranges.length == 0) {
+              if (range.indexOf('-', dashIndex + 1) != -1) { // negative number.
                 return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
               }
-              if (ranges.length == 1) {
-                final String range = ranges[0];
-                final int dashIndex = range.indexOf('-');
-                if (dashIndex == -1) {
-                  return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
+              final long start;
+              if (dashIndex == 0) {
+                start = 0;
+              }
+              else {
+                try {
+                  start = Long.parseLong(range.substring(0, dashIndex));
                 }
-                if (range.indexOf('-', dashIndex + 1) != -1) { // negative number.
+                catch (final NumberFormatException ignore) {
                   return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
                 }
-                final long fileLength = f.length();
-                final long start;
-                if (dashIndex == 0) {
-                  start = 0;
+                if (start > fileLength) {
+                  return new Response.Builder().
+                    statusLine(StatusLines.REQUEST_RANGE_NOT_SATISFIABLE).noBody();
                 }
-                else {
-                  try {
-                    start = Long.parseLong(range.substring(0, dashIndex));
-                  }
-                  catch (final NumberFormatException ignore) {
-                    return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
-                  }
-                  if (start > fileLength) {
-                    return new Response.Builder().
-                      statusLine(StatusLines.REQUEST_RANGE_NOT_SATISFIABLE).noBody();
-                  }
-                }
-                final long end;
-                if (dashIndex == range.length() - 1) {
-                  end = fileLength;
-                }
-                else {
-                  try {
-                    end = Long.parseLong(range.substring(dashIndex + 1));
-                  }
-                  catch (final NumberFormatException ignore) {
-                    return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
-                  }
-                  if (end > fileLength) {
-                    return new Response.Builder().
-                      statusLine(StatusLines.REQUEST_RANGE_NOT_SATISFIABLE).noBody();
-                  }
+              }
+              final long end;
+              if (dashIndex == range.length() - 1) {
+                end = fileLength;
+              }
+              else {
+                try {
+                  end = Long.parseLong(range.substring(dashIndex + 1));
                 }
-                if (start > end) {
+                catch (final NumberFormatException ignore) {
                   return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
                 }
+                if (end > fileLength) {
+                  return new Response.Builder().
+                    statusLine(StatusLines.REQUEST_RANGE_NOT_SATISFIABLE).noBody();
+                }
+              }
+              if (start > end) {
+                return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
+              }
+              parsed[i * 2] = start;
+              parsed[i * 2 + 1] = end;
+            }
+            final long[] bounds = coalesce(parsed);
+            if (bounds.length / 2 > AcceptRanges.ByteRangesBody.MAX_RANGES) {
+              // Too many ranges: the full content is cheaper to send than that many parts.
+              final BufferedSourceWithSize buffered = source(request, f, etag, compress, gzip);
+              if (gzip) response.header(AcceptEncoding.CONTENT_ENCODING, AcceptEncoding.GZIP);
+              return body(response.statusLine(StatusLines.OK), m, buffered);
+            }
+            if (bounds.length == 2) {
+              final long start = bounds[0];
+              final long end = bounds[1];
+              try {
+                final BufferedSourceWithSize buffered =
+                  source(request, f, etag, start, end, compress, gzip);
+                if (gzip) response.header(AcceptEncoding.CONTENT_ENCODING, AcceptEncoding.GZIP);
+                response.statusLine(StatusLines.PARTIAL).
+                  header(AcceptRanges.CONTENT_RANGE,
+                         AcceptRanges.BYTES + " " + start + "-" + end + "/" + fileLength);
+                return body(response, m, buffered);
+              }
+              catch (final FileNotFoundException ignore) {
+                return new Response.Builder().statusLine(StatusLines.NOT_FOUND).noBody();
+              }
+              catch (final IOException ignored) {
+                return new Response.Builder().statusLine(StatusLines.INTERNAL_SERVER_ERROR).noBody();
+              }
+            }
+            else {
+              final AcceptRanges.ByteRangesBody.Builder multipart =
+                new AcceptRanges.ByteRangesBody.Builder(m);
+              for (int i=0; i<bounds.length; i+=2) {
+                final long start = bounds[i];
+                final long end = bounds[i + 1];
                 try {
+                  // never use gzip compression for multipart ranges.
                   final BufferedSourceWithSize buffered =
-                    source(request, f, etag, start, end, compress, gzip);
-                  if (gzip) response.header(AcceptEncoding.CONTENT_ENCODING, AcceptEncoding.GZIP);
-                  return response.statusLine(StatusLines.PARTIAL).
-                    header(AcceptRanges.CONTENT_RANGE,
-                           AcceptRanges.BYTES + " " + start + "-" + end + "/" + fileLength).
-                    body(m, buffered.source, buffered.size);
+                    source(request, f, etag, start, end, compress, false);
+                  multipart.addRange(buffered.source, start, end, fileLength);
                 }
                 catch (final FileNotFoundException ignore) {
                   return new Response.Builder().statusLine(StatusLines.NOT_FOUND).noBody();
@@ -424,111 +633,75 @@ public class FileHandler extends RegexHandler {
                   return new Response.Builder().statusLine(StatusLines.INTERNAL_SERVER_ERROR).noBody();
                 }
               }
-              else {
-                final long fileLength = f.length();
-                for (final String range: ranges) {
-                  final int dashIndex = range.indexOf('-');
-                  if (dashIndex == -1) {
-                    return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
-                  }
-                  if (range.indexOf('-', dashIndex + 1) != -1) { // negative number.
-                    return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
-                  }
-                  final long start;
-                  if (dashIndex != 0) {
-                    try {
-                      start = Long.parseLong(range.substring(0, dashIndex));
-                    }
-                    catch (final NumberFormatException ignore) {
-                      return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
-                    }
-                    if (start > fileLength) {
-                      return new Response.Builder().
-                        statusLine(StatusLines.REQUEST_RANGE_NOT_SATISFIABLE).noBody();
-                    }
-                  }
-                  else {
-                    start = 0;
-                  }
-                  final long end;
-                  if (dashIndex != range.length() - 1) {
-                    try {
-                      end = Long.parseLong(range.substring(dashIndex + 1));
-                    }
-                    catch (final NumberFormatException ignore) {
-                      return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
-                    }
-                    if (end > fileLength) {
-                      return new Response.Builder().
-                        statusLine(StatusLines.REQUEST_RANGE_NOT_SATISFIABLE).noBody();
-                    }
-                  }
-                  else {
-                    end = fileLength;
-                  }
-                  if (start > end) {
-                    return new Response.Builder().statusLine(StatusLines.BAD_REQUEST).noBody();
-                  }
-                }
-                final AcceptRanges.ByteRangesBody.Builder multipart =
-                  new AcceptRanges.ByteRangesBody.Builder(m);
-                for (final String range: ranges) {
-                  final int dashIndex = range.indexOf('-');
-                  final long start;
-                  if (dashIndex == 0) {
-                    start = 0;
-                  }
-                  else {
-                    try {
-                      start = Long.parseLong(range.substring(0, dashIndex));
-                    }
-                    catch (final NumberFormatException e) {
-                      throw new RuntimeException(e);
-                    }
-                  }
-                  final long end;
-                  if (dashIndex == range.length() - 1) {
-                    end = fileLength;
-                  }
-                  else {
-                    try {
-                      end = Long.parseLong(range.substring(dashIndex + 1));
-                    }
-                    catch (final NumberFormatException e) {
-                      throw new RuntimeException(e);
-                    }
-                  }
-                  try {
-                    // never use gzip compression for multipart ranges.
-                    final BufferedSourceWithSize buffered =
-                      source(request, f, etag, start, end, compress, false);
-                    multipart.addRange(buffered.source, start, end, fileLength);
-                  }
-                  catch (final FileNotFoundException ignore) {
-                    return new Response.Builder().statusLine(StatusLines.NOT_FOUND).noBody();
-                  }
-                  catch (final IOException ignored) {
-                    return new Response.Builder().statusLine(StatusLines.INTERNAL_SERVER_ERROR).noBody();
-                  }
-                }
-                return response.statusLine(StatusLines.PARTIAL).body(multipart.build());
-              }
+              return response.statusLine(StatusLines.PARTIAL).body(multipart.build());
             }
           }
-          else {
-            final BufferedSourceWithSize buffered = source(request, f, etag, compress, gzip);
-            if (gzip) response.header(AcceptEncoding.CONTENT_ENCODING, AcceptEncoding.GZIP);
-            return response.statusLine(StatusLines.OK).body(m, buffered.source, buffered.size);
-          }
         }
-        catch (final FileNotFoundException ignore) {
-          return new Response.Builder().statusLine(StatusLines.NOT_FOUND).noBody();
+        else {
+          final BufferedSourceWithSize buffered = source(request, f, etag, compress, gzip);
+          if (gzip) response.header(AcceptEncoding.CONTENT_ENCODING, AcceptEncoding.GZIP);
+          return body(response.statusLine(StatusLines.OK), m, buffered);
         }
       }
-      else {
+      catch (final FileNotFoundException ignore) {
         return new Response.Builder().statusLine(StatusLines.NOT_FOUND).noBody();
       }
     }
+    else {
+      return new Response.Builder().statusLine(StatusLines.NOT_FOUND).noBody();
+    }
+  }
+
+  /**
+   * Merges the ranges that overlap or are adjacent. The merged ranges are kept in the order of the first
+   * occurrence of one of their parts in the request.
+   * @param bounds the start and end (exclusive) byte indices of the requested ranges.
+   * @return the start and end (exclusive) byte indices of the merged ranges.
+   */
+  static long[] coalesce(final long[] bounds) {
+    final int count = bounds.length / 2;
+    if (count < 2) return bounds;
+    final Integer[] byStart = new Integer[count];
+    for (int i=0; i<count; ++i) byStart[i] = i;
+    //noinspection Convert2Lambda
+    Arrays.sort(byStart, new Comparator<Integer>() {
+      @Override public int compare(final Integer a, final Integer b) {
+        final int c = Long.compare(bounds[a * 2], bounds[b * 2]);
+        return c == 0 ? a.compareTo(b) : c;
+      }
+    });
+    // Merged ranges (by start), with the request index of their first part.
+    final long[] merged = new long[count * 2];
+    final int[] first = new int[count];
+    int n = 0;
+    for (final int i: byStart) {
+      final long start = bounds[i * 2];
+      final long end = bounds[i * 2 + 1];
+      if (n > 0 && start <= merged[n * 2 - 1]) {
+        if (end > merged[n * 2 - 1]) merged[n * 2 - 1] = end;
+        if (i < first[n - 1]) first[n - 1] = i;
+      }
+      else {
+        merged[n * 2] = start;
+        merged[n * 2 + 1] = end;
+        first[n++] = i;
+      }
+    }
+    if (n == count) return bounds;
+    final Integer[] byFirst = new Integer[n];
+    for (int i=0; i<n; ++i) byFirst[i] = i;
+    //noinspection Convert2Lambda
+    Arrays.sort(byFirst, new Comparator<Integer>() {
+      @Override public int compare(final Integer a, final Integer b) {
+        return Integer.compare(first[a], first[b]);
+      }
+    });
+    final long[] result = new long[n * 2];
+    for (int i=0; i<n; ++i) {
+      result[i * 2] = merged[byFirst[i] * 2];
+      result[i * 2 + 1] = merged[byFirst[i] * 2 + 1];
+    }
+    return result;
   }
 
   private @Nullable File index(final File file) {
@@ -578,6 +751,31 @@ public class FileHandler extends RegexHandler {
     return new File(webRoot, path.startsWith("/") ? path.substring(1) : path);
   }
 
+  private static Response.Builder body(final Response.Builder response, final MediaType mediaType,
+                                       final BufferedSourceWithSize buffered) {
+    if (buffered instanceof FileRegion) {
+      final FileRegion region = (FileRegion)buffered;
+      return response.body(
+        new Response.FileBody(mediaType, region.file, region.start, region.size,
+                              region.mappings, region.channels, region.etag)
+      );
+    }
+    return response.body(mediaType, buffered.source, buffered.size);
+  }
+
+  private FileRegion region(final File f, @Nullable final String etag, final long start, final long size) {
+    return region(f, etag, start, size, f.length());
+  }
+
+  private FileRegion region(final File f, @Nullable final String etag, final long start, final long size,
+                            final long length) {
+    final MappedFileCache mappings = this.mappings;
+    if (mappings != null && etag != null && mappings.accepts(length)) {
+      return new FileRegion(f, start, size, mappings, etag);
+    }
+    return new FileRegion(f, start, size, null, channels, etag);
+  }
+
   /**
    * Returns the source and its size for the requested file. This looks into the cache (and updates it)
    * if possible.
@@ -598,8 +796,10 @@ public class FileHandler extends RegexHandler {
     if (source1 != null) return source1;
     final BufferedSourceWithSize source2 = cache(f, etag, compress, gzip);
     if (source2 != null) return source2;
-    final RandomAccessFileSource source = new RandomAccessFileSource(f);
     if (gzip) {
+      final BufferedSourceWithSize compressed = compressed(f, etag);
+      if (compressed != null) return compressed;
+      final RandomAccessFileSource source = new RandomAccessFileSource(f);
       final ByteCountingSink counting = new ByteCountingSink();
       final BufferedSource buffered = Okio.buffer(new CompressedSource(source, false));
       try {
@@ -616,7 +816,177 @@ public class FileHandler extends RegexHandler {
       }
     }
     else {
-      return new BufferedSourceWithSize(Okio.buffer(source), f.length());
+      return region(f, etag, 0L, f.length());
+    }
+  }
+
+  private static final class Variant {
+    final @Nullable String etag;
+    // The metadata cache stamp of the directory of the file (see FileMetadataCache.stamp), or -1.
+    final long stamp;
+    // The up-to-date .gz file next to the file, if there is one.
+    final @Nullable File sidecar;
+    final @Nullable String sidecarVersion;
+    final long sidecarLength;
+    // The variant name in the compressed cache directory.
+    final @Nullable String prefix;
+    final @Nullable String name;
+    // The length of the variant in the compressed cache directory, once it's known.
+    volatile long length = 0L;
+
+    Variant(final File f, @Nullable final String etag, final long stamp, @Nullable final Variant previous) {
+      this.etag = etag;
+      this.stamp = stamp;
+      final File sidecar = new File(f.getPath() + ".gz");
+      final long sidecarLastModified = sidecar.isFile() ? sidecar.lastModified() : -1L;
+      if (sidecarLastModified >= 0L && sidecarLastModified >= f.lastModified()) {
+        this.sidecar = sidecar;
+        sidecarLength = sidecar.length();
+        // The .gz file is keyed by its own version rather than by the E-Tag of the file, so that the shared
+        // channel or mapping is not reused when only the .gz file is regenerated.
+        sidecarVersion = String.format("%012x-%x", sidecarLastModified, sidecarLength);
+        prefix = null;
+        name = null;
+      }
+      else {
+        this.sidecar = null;
+        sidecarVersion = null;
+        sidecarLength = 0L;
+        if (etag == null) {
+          prefix = null;
+          name = null;
+        }
+        else if (previous != null && previous.name != null && etag.equals(previous.etag)) {
+          // The md5s don't have to be computed again when only the stamp changed.
+          prefix = previous.prefix;
+          name = previous.name;
+          length = previous.length;
+        }
+        else {
+          final Charset utf8 = Charset.forName("UTF-8");
+          prefix = Hex.hex(Md5.md5(f.getAbsolutePath().getBytes(utf8))) + "-";
+          name = prefix + Hex.hex(Md5.md5(etag.getBytes(utf8))) + ".gz";
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the variant for the file version. When the metadata cache watches the directory of the file, the
+   * variant found by a previous request is reused as long as nothing changed, without any file system call.
+   * Otherwise, the .gz file next to the file is checked again.
+   */
+  private Variant variant(final File f, @Nullable final String etag) {
+    final String path = f.getAbsolutePath();
+    final FileMetadataCache metadataCache = this.metadataCache;
+    final Variant cached = variants.get(path);
+    if (cached != null && metadataCache != null && metadataCache.unchanged(cached.stamp) &&
+        (etag == null ? cached.etag == null : etag.equals(cached.etag))) {
+      return cached;
+    }
+    // The stamp is taken before the file system calls, so that a change made during the calls is not missed.
+    final long stamp = metadataCache == null ? -1L : metadataCache.stamp(f);
+    final Variant variant = new Variant(f, etag, stamp, cached);
+    variants.put(path, variant);
+    return variant;
+  }
+
+  /**
+   * Returns the gzip compressed variant of the file: either the .gz file next to it if it isn't older than
+   * the file, or the one in the compressed cache directory (it is created if it doesn't exist yet).
+   * @param f the file.
+   * @param etag the file E-Tag.
+   * @return the compressed variant, or null if there isn't any.
+   */
+  private @Nullable FileRegion compressed(final File f, @Nullable final String etag) {
+    final Variant v = variant(f, etag);
+    final File sidecar = v.sidecar;
+    if (sidecar != null) {
+      return region(sidecar, v.sidecarVersion, 0L, v.sidecarLength, v.sidecarLength);
+    }
+    final File directory = compressedDirectory;
+    final String prefix = v.prefix;
+    final String name = v.name;
+    if (directory == null || prefix == null || name == null) return null;
+    final File variant = new File(directory, name);
+    // Variants are never modified once they are stored, so the length is only read once. It is 0 if the
+    // variant doesn't exist (an empty file would still have a gzip header).
+    long length = v.length;
+    if (length == 0L) length = variant.length();
+    if (length == 0L) {
+      final long lastModified = f.lastModified();
+      // Concurrent requests for the same version wait for a single compression.
+      //noinspection Convert2Lambda
+      final FutureTask<File> task = new FutureTask<>(new Callable<File>() {
+        @Override public File call() throws IOException {
+          compress(f, lastModified, variant, prefix);
+          return variant;
+        }
+      });
+      final FutureTask<File> current = compressions.putIfAbsent(name, task);
+      if (current == null) {
+        try {
+          task.run();
+        }
+        finally {
+          compressions.remove(name, task);
+        }
+      }
+      try {
+        (current == null ? task : current).get();
+      }
+      catch (final ExecutionException ignore) {
+        return null;
+      }
+      catch (final InterruptedException ignore) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      length = variant.length();
+    }
+    v.length = length;
+    return region(variant, etag, 0L, length, length);
+  }
+
+  private static void compress(final File f, final long lastModified,
+                               final File variant, final String prefix) throws IOException {
+    final File directory = variant.getParentFile();
+    final File tmp = File.createTempFile(prefix, ".tmp", directory);
+    try {
+      final GzipSink gzip = new GzipSink(Okio.sink(tmp));
+      gzip.deflater().setLevel(Deflater.BEST_COMPRESSION);
+      final BufferedSink sink = Okio.buffer(gzip);
+      final Source source = Okio.source(f);
+      try {
+        sink.writeAll(source);
+      }
+      finally {
+        source.close();
+        sink.close();
+      }
+      // The file changed while it was compressed: the content doesn't match the E-Tag anymore.
+      if (f.lastModified() != lastModified) throw new IOException();
+      try {
+        Files.move(tmp.toPath(), variant.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (final AtomicMoveNotSupportedException ignore) {
+        Files.move(tmp.toPath(), variant.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    finally {
+      //noinspection ResultOfMethodCallIgnored
+      tmp.delete();
+    }
+    // Removes the variants of the previous versions.
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (final File file: files) {
+        final String name = file.getName();
+        if (name.startsWith(prefix) && name.endsWith(".gz") && !file.equals(variant)) {
+          //noinspection ResultOfMethodCallIgnored
+          file.delete();
+        }
+      }
     }
   }
 
@@ -643,8 +1013,8 @@ public class FileHandler extends RegexHandler {
     if (source1 != null) return source1;
     final BufferedSourceWithSize source2 = cache(f, etag, start, end, compress, gzip);
     if (source2 != null) return source2;
-    final RandomAccessFileSource source = new RandomAccessFileSource(f, start, end);
     if (gzip) {
+      final RandomAccessFileSource source = new RandomAccessFileSource(f, start, end);
       final ByteCountingSink counting = new ByteCountingSink();
       final BufferedSource buffered = Okio.buffer(new CompressedSource(source, false));
       try {
@@ -661,7 +1031,7 @@ public class FileHandler extends RegexHandler {
       }
     }
     else {
-      return new BufferedSourceWithSize(Okio.buffer(source), end - start);
+      return region(f, etag, start, end - start);
     }
   }
 
@@ -0,0 +1,330 @@
+package info.jdavid.ok.server.handler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import javax.annotation.Nullable;
+
+
+/**
+ * Cache for the file metadata resolved by FileHandler, keyed by request path.<br>
+ * Entries are invalidated when the directories they depend on change, using a WatchService. The watch events
+ * are processed lazily, before each lookup, so that no thread is needed. When the file system can't be
+ * watched, entries expire after a fixed time instead.<br>
+ * Entries are indexed by the directory they depend on, so that a watch event only visits the entries of that
+ * directory (and of its sub-directories if it is itself a watched directory). When the cache is full, a
+ * fraction of the entries is evicted, starting with the ones for files that don't exist. Paths under
+ * directories that don't exist are not cached at all, so that requests for random paths can't fill it.
+ */
+final class FileMetadataCache implements Closeable {
+
+  private static final int MAX_ENTRIES = 16384;
+  private static final int EVICTION_BATCH = MAX_ENTRIES / 16;
+
+  private static final class Entry {
+    final FileHandler.Metadata metadata;
+    // The file (or directory) that the request path resolves to.
+    final Path file;
+    // The directory whose content the metadata depends on (the file itself for directories).
+    final Path dir;
+    // 0 for entries that don't expire.
+    final long expires;
+
+    Entry(final FileHandler.Metadata metadata, final Path file, final Path dir, final long expires) {
+      this.metadata = metadata;
+      this.file = file;
+      this.dir = dir;
+      this.expires = expires;
+    }
+  }
+
+  private final Path webRoot;
+  private final long ttlNanos;
+  private final @Nullable WatchService watcher;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  // Request paths by entry dir, only updated inside a compute on the entry, so that both stay consistent.
+  // The sets are left in place when they become empty: they are bounded by the number of directories, as the
+  // watch keys are.
+  private final ConcurrentHashMap<Path, Set<String>> index = new ConcurrentHashMap<>();
+  private final Object evictionLock = new Object();
+  private final ConcurrentHashMap<Path, WatchKey> keys = new ConcurrentHashMap<>();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  FileMetadataCache(final File webRoot, final long ttlMillis) {
+    this.webRoot = path(webRoot);
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.watcher = watchService(this.webRoot);
+  }
+
+  private static @Nullable WatchService watchService(final Path webRoot) {
+    final WatchService service;
+    try {
+      service = webRoot.getFileSystem().newWatchService();
+    }
+    catch (final IOException | UnsupportedOperationException ignore) {
+      return null;
+    }
+    // The generic implementation polls the directories every few seconds, which is too slow.
+    if (service.getClass().getName().endsWith("PollingWatchService")) {
+      try { service.close(); } catch (final IOException ignore) {}
+      return null;
+    }
+    return service;
+  }
+
+  private static Path path(final File file) {
+    return file.getAbsoluteFile().toPath().normalize();
+  }
+
+  boolean isWatching() {
+    return watcher != null;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the current invalidation count, to be passed to put when the metadata has been resolved.
+   * @return the invalidation count.
+   */
+  long generation() {
+    processEvents();
+    return invalidations.get();
+  }
+
+  /**
+   * Returns a stamp for the content of the directory of the specified file, for values derived from that
+   * content (like whether a .gz file exists next to the file). The values stay valid while
+   * {@link #unchanged(long)} returns true for the stamp. Any change, in any watched directory, invalidates
+   * all the stamps.
+   * @param file the file.
+   * @return the stamp, or -1 if the directory is not watched.
+   */
+  long stamp(final File file) {
+    final long generation = generation();
+    final Path dir = path(file).getParent();
+    return dir != null && keys.containsKey(dir) ? generation : -1L;
+  }
+
+  /**
+   * Returns whether nothing changed in the watched directories since the stamp was taken.
+   * @param stamp the stamp returned by {@link #stamp(File)}.
+   * @return true if the values derived with the stamp are still valid.
+   */
+  boolean unchanged(final long stamp) {
+    return stamp >= 0L && generation() == stamp;
+  }
+
+  @Nullable FileHandler.Metadata get(final String path) {
+    processEvents();
+    final Entry entry = entries.get(path);
+    if (entry == null) return null;
+    if (entry.expires != 0L && System.nanoTime() - entry.expires > 0L) {
+      remove(path, entry);
+      return null;
+    }
+    return entry.metadata;
+  }
+
+  /**
+   * Starts watching the directories that the metadata of the specified file depends on. This should be called
+   * before the metadata is resolved, so that no change is missed.
+   * @param file the file.
+   * @return true if all the directories are watched, false if the entry should expire instead.
+   */
+  boolean watch(final File file) {
+    final WatchService watcher = this.watcher;
+    if (watcher == null) return false;
+    final Path path = path(file);
+    // The ancestors are watched too, so that renaming or deleting them invalidates the entry.
+    for (Path dir = path.getParent(); dir != null; dir = dir.getParent()) {
+      if (!watch(watcher, dir)) return false;
+      if (dir.equals(webRoot)) break;
+    }
+    return !file.isDirectory() || watch(watcher, path);
+  }
+
+  private boolean watch(final WatchService watcher, final Path dir) {
+    if (keys.containsKey(dir)) return true;
+    try {
+      final WatchKey key = dir.register(
+        watcher,
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_DELETE,
+        StandardWatchEventKinds.ENTRY_MODIFY
+      );
+      keys.put(dir, key);
+      return true;
+    }
+    catch (final IOException | ClosedWatchServiceException ignore) {
+      return false;
+    }
+  }
+
+  /**
+   * Adds an entry, unless a change was detected since the specified generation.
+   * @param path the request path.
+   * @param file the file the request path resolves to.
+   * @param metadata the metadata.
+   * @param generation the invalidation count before the file was watched.
+   * @param watched the result of {@link #watch(File)}.
+   */
+  void put(final String path, final File file, final FileHandler.Metadata metadata,
+           final long generation, final boolean watched) {
+    final long expires;
+    if (watched) {
+      expires = 0L;
+    }
+    else {
+      final long t = System.nanoTime() + ttlNanos;
+      expires = t == 0L ? 1L : t;
+    }
+    final Path p = path(file);
+    final Path parent = p.getParent();
+    if (missing(metadata) && parent != null && !Files.isDirectory(parent)) return;
+    final Entry entry = new Entry(metadata, p, metadata.directory || parent == null ? p : parent, expires);
+    if (entries.size() >= MAX_ENTRIES) evict();
+    //noinspection Convert2Lambda
+    entries.compute(path, new BiFunction<String, Entry, Entry>() {
+      @Override public Entry apply(final String key, @Nullable final Entry previous) {
+        if (previous != null) unindex(key, previous);
+        index(key, entry);
+        return entry;
+      }
+    });
+    // The metadata may have been resolved before a change that was processed in the mean time.
+    if (invalidations.get() != generation) remove(path, entry);
+  }
+
+  private static boolean missing(final FileHandler.Metadata metadata) {
+    return metadata.kind == FileHandler.Metadata.NOT_FOUND ||
+           metadata.kind == FileHandler.Metadata.FILE && !metadata.exists;
+  }
+
+  private void remove(final String path, final Entry entry) {
+    //noinspection Convert2Lambda
+    entries.computeIfPresent(path, new BiFunction<String, Entry, Entry>() {
+      @Override public @Nullable Entry apply(final String key, final Entry current) {
+        if (current != entry) return current;
+        unindex(key, current);
+        return null;
+      }
+    });
+  }
+
+  private void index(final String path, final Entry entry) {
+    Set<String> paths = index.get(entry.dir);
+    if (paths == null) {
+      final Set<String> created = ConcurrentHashMap.newKeySet();
+      paths = index.putIfAbsent(entry.dir, created);
+      if (paths == null) paths = created;
+    }
+    paths.add(path);
+  }
+
+  private void unindex(final String path, final Entry entry) {
+    final Set<String> paths = index.get(entry.dir);
+    if (paths != null) paths.remove(path);
+  }
+
+  // Evicts a batch of entries, the ones for missing files first, rather than clearing the whole cache.
+  private void evict() {
+    synchronized (evictionLock) {
+      if (entries.size() < MAX_ENTRIES) return;
+      int count = 0;
+      for (final boolean any: new boolean[] { false, true }) {
+        final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (count < EVICTION_BATCH && iterator.hasNext()) {
+          final Map.Entry<String, Entry> e = iterator.next();
+          final Entry entry = e.getValue();
+          if (any || missing(entry.metadata)) {
+            remove(e.getKey(), entry);
+            ++count;
+          }
+        }
+      }
+    }
+  }
+
+  private void processEvents() {
+    final WatchService watcher = this.watcher;
+    if (watcher == null) return;
+    WatchKey key;
+    try {
+      while ((key = watcher.poll()) != null) {
+        final Path dir = (Path)key.watchable();
+        for (final WatchEvent<?> event: key.pollEvents()) {
+          invalidations.incrementAndGet();
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            for (final Map.Entry<String, Entry> e: entries.entrySet()) remove(e.getKey(), e.getValue());
+          }
+          else {
+            invalidate(dir, dir.resolve((Path)event.context()));
+          }
+        }
+        if (!key.reset()) {
+          invalidations.incrementAndGet();
+          keys.remove(dir, key);
+          invalidate(dir, dir);
+        }
+      }
+    }
+    catch (final ClosedWatchServiceException ignore) {}
+  }
+
+  private void invalidate(final Path dir, final Path child) {
+    invalidate(dir);
+    // Entries for files under the child can only exist if the child is a directory. The ancestors of watched
+    // entries are all watched, so the child has a key unless it is the directory whose key was just cancelled
+    // (entries that aren't watched expire anyway).
+    if (child.equals(dir) || keys.containsKey(child)) {
+      for (final Path path: index.keySet()) {
+        if (path.startsWith(child)) invalidate(path);
+      }
+    }
+    else {
+      // The child itself, if it is a directory that isn't watched (e.g. an entry that expires).
+      invalidate(child);
+    }
+  }
+
+  private void invalidate(final Path dir) {
+    final Set<String> paths = index.get(dir);
+    if (paths == null) return;
+    //noinspection Convert2Lambda
+    final BiFunction<String, Entry, Entry> function = new BiFunction<String, Entry, Entry>() {
+      @Override public @Nullable Entry apply(final String key, final Entry current) {
+        if (!current.dir.equals(dir)) return current;
+        unindex(key, current);
+        return null;
+      }
+    };
+    for (final String path: paths) entries.computeIfPresent(path, function);
+  }
+
+  @Override public void close() {
+    entries.clear();
+    index.clear();
+    final WatchService watcher = this.watcher;
+    if (watcher != null) {
+      try { watcher.close(); } catch (final IOException ignore) {}
+    }
+  }
+
+}
@@ -2,8 +2,8 @@ package info.jdavid.ok.server.handler;
 
 import javax.annotation.Nullable;
 
+import info.jdavid.ok.server.RequestTarget;
 import info.jdavid.ok.server.Response;
-import okhttp3.HttpUrl;
 
 
 /**
@@ -20,13 +20,13 @@ public interface Handler {
   /**
    * Returns whether this handler accepts the request by returning either null (the request is not accepted
    * and should be handled by another one further down the chain) or an array of parameters extracted from
-   * the url. The array of parameters can be empty but not null for the request to be accepted.
+   * the request target. The array of parameters can be empty but not null for the request to be accepted.
    * @param method the request method.
-   * @param url the request url.
+   * @param target the request target.
    * @return null, or an array of parameters.
    */
   public @Nullable
-  String[] matches(final String method, final HttpUrl url);
+  String[] matches(final String method, final RequestTarget target);
 
   /**
    * Creates the response for an accepted request.
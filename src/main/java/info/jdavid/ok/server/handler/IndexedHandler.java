@@ -0,0 +1,34 @@
+package info.jdavid.ok.server.handler;
+
+import java.util.Collection;
+
+import javax.annotation.Nullable;
+
+
+/**
+ * Chainable request handler that declares static hints about the requests it can accept, so that the chain
+ * doesn't have to ask it about the requests that it would reject anyway.<br>
+ * The hints are read once when the server starts. They have to be consistent with the matches method: a
+ * request that doesn't satisfy them should never be accepted.
+ */
+public interface IndexedHandler extends Handler {
+
+  /**
+   * Returns the request methods that this handler can accept.
+   * @return the request methods, or null if the handler can accept any method.
+   */
+  public @Nullable Collection<String> acceptedMethods();
+
+  /**
+   * Returns a literal prefix that the (percent-encoded) path of the accepted requests always starts with.
+   * @return the path prefix, or an empty string if the handler can accept any path.
+   */
+  public String acceptedPathPrefix();
+
+  /**
+   * Returns the host (without the port) of the requests that this handler can accept.
+   * @return the host, or null if the handler can accept any host.
+   */
+  public @Nullable String acceptedHost();
+
+}
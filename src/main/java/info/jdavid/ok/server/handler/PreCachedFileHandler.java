@@ -5,13 +5,18 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.annotation.Nullable;
 
@@ -23,7 +28,12 @@ import okio.Okio;
 
 
 /**
- * Extension of FileHandler that precaches all files.
+ * Extension of FileHandler that precaches all files.<br>
+ * The cache is bounded by a total size (see {@link #maxCacheBytes()}); files are preloaded until it is full.
+ * When a file loaded later doesn't fit, the least recently used files are evicted (approximately: hits don't
+ * take any lock, and only record their time), and they are cached again the next time they are requested.
+ * Entries are weighted by their stored size (compressed or not, depending on the media type config).
+ * Concurrent requests for a file that is not in the cache wait for a single load of that file.
  */
 @SuppressWarnings({ "WeakerAccess", "unused" })
 public class PreCachedFileHandler extends FileHandler {
@@ -32,8 +42,8 @@ public class PreCachedFileHandler extends FileHandler {
 
   String etagPrefix = null;
 
-  final Map<String, Data> cache =
-    new LinkedHashMap<>(4096, 0.75f, true);
+  final DataCache cache = new DataCache();
+  private final ConcurrentHashMap<String, FutureTask<Data>> loads = new ConcurrentHashMap<>();
 
   /**
    * Creates a new file handler that will accept all requests.
@@ -82,7 +92,9 @@ public class PreCachedFileHandler extends FileHandler {
   @Override
   public Handler setup() {
     super.setup();
+    cache.maxBytes = maxCacheBytes();
     etagPrefix = etagPrefix(webRoot);
+    final long maxBytes = cache.maxBytes;
     final Deque<File> deque = new ArrayDeque<>();
     deque.push(webRoot);
     while (!deque.isEmpty()) {
@@ -98,9 +110,12 @@ public class PreCachedFileHandler extends FileHandler {
       else if (current.isFile()) {
         final MediaType mediaType = mediaType(current);
         if (mediaType != null && acceptMediaType(mediaType)) {
-          if (acceptFile(current)) {
-            final boolean compress = config(mediaType).compress;
-            cache(current, etag(current, webRoot), config(mediaType).compress, compress);
+          // Files that are larger than the whole budget are not even read.
+          if (acceptFile(current) && current.length() <= maxBytes) {
+            final String etag = etag(current, webRoot);
+            // Preloading stops once the budget is full, rather than evicting the files it just loaded.
+            if (etag != null &&
+                !preload(current, relativePath(etag), etag, config(mediaType).compress)) break;
           }
         }
       }
@@ -108,6 +123,46 @@ public class PreCachedFileHandler extends FileHandler {
     return this;
   }
 
+  /**
+   * Returns the maximum total size of the cached files (128MB by default).
+   * @return the cache size limit in bytes.
+   */
+  protected long maxCacheBytes() {
+    return 128 * 1024 * 1024L;
+  }
+
+  /**
+   * Returns the number of requests whose content was found in the cache.
+   * @return the cache hit count.
+   */
+  public final long cacheHitCount() {
+    return cache.hits.sum();
+  }
+
+  /**
+   * Returns the number of requests whose content was not in the cache.
+   * @return the cache miss count.
+   */
+  public final long cacheMissCount() {
+    return cache.misses.sum();
+  }
+
+  /**
+   * Returns the number of files that were evicted from the cache to stay under the size limit.
+   * @return the cache eviction count.
+   */
+  public final long cacheEvictionCount() {
+    return cache.evictions.sum();
+  }
+
+  /**
+   * Returns the total size of the cached files.
+   * @return the cache size in bytes.
+   */
+  public final long cacheByteCount() {
+    return cache.byteCount();
+  }
+
   protected String etagPrefix(final File webRoot) {
     try {
       return Hex.hex(Md5.md5(webRoot.getCanonicalPath().getBytes(UTF8)));
@@ -165,25 +220,13 @@ public class PreCachedFileHandler extends FileHandler {
   protected BufferedSourceWithSize fromCache(final File file, @Nullable final String etag,
                                              final boolean compress, final boolean gzip) {
     if (etag == null) return null;
-    final String relativePath = relativePath(etag);
-    final Data data = cache.get(relativePath);
+    final Data data = cache.get(relativePath(etag), etag);
     if (data != null) {
-      final byte[] bytes;
-      final Lock lock = data.lock.readLock();
-      lock.lock();
-      try {
-        bytes = etag.equals(data.etag) ? data.bytes : null;
-      }
-      finally {
-        lock.unlock();
-      }
-      if (bytes != null) {
-        final Buffer buffer = new Buffer();
-        if (gzip == data.compressed) buffer.write(bytes);
-        else if (data.compressed) return decompress(bytes);
-        else throw new RuntimeException();
-        return new BufferedSourceWithSize(buffer, buffer.size());
-      }
+      final Buffer buffer = new Buffer();
+      if (gzip == data.compressed) buffer.write(data.bytes);
+      else if (data.compressed) return decompress(data.bytes);
+      else throw new RuntimeException();
+      return new BufferedSourceWithSize(buffer, buffer.size());
     }
     return null;
   }
@@ -194,23 +237,11 @@ public class PreCachedFileHandler extends FileHandler {
                                              final boolean compress, final boolean gzip) {
     if (compress == gzip) {
       if (etag == null) return null;
-      final String relativePath = relativePath(etag);
-      final Data data = cache.get(relativePath);
+      final Data data = cache.get(relativePath(etag), etag);
       if (data != null) {
-        final byte[] bytes;
-        final Lock lock = data.lock.readLock();
-        lock.lock();
-        try {
-          bytes = etag.equals(data.etag) ? data.bytes : null;
-        }
-        finally {
-          lock.unlock();
-        }
-        if (bytes != null) {
-          final Buffer buffer = new Buffer();
-          buffer.write(bytes, (int)start, (int)(end - start));
-          return new BufferedSourceWithSize(buffer, buffer.size());
-        }
+        final Buffer buffer = new Buffer();
+        buffer.write(data.bytes, (int)start, (int)(end - start));
+        return new BufferedSourceWithSize(buffer, buffer.size());
       }
     }
     return null;
@@ -220,9 +251,7 @@ public class PreCachedFileHandler extends FileHandler {
   protected BufferedSourceWithSize cache(final File file, @Nullable final String etag,
                                          final boolean compress, final boolean gzip) {
     if (etag == null) return null;
-    final String relativePath = relativePath(etag);
-    final Data data = cache.get(relativePath);
-    final byte[] bytes = bytes(file, relativePath, etag, data, compress);
+    final byte[] bytes = load(file, relativePath(etag), etag, compress);
     if (bytes == null) return null;
     if (gzip == compress) {
       final Buffer buffer = new Buffer();
@@ -242,9 +271,7 @@ public class PreCachedFileHandler extends FileHandler {
                                          final long start, final long end,
                                          final boolean compress, final boolean gzip) {
     if (etag == null) return null;
-    final String relativePath = relativePath(etag);
-    final Data data = cache.get(relativePath);
-    final byte[] bytes = bytes(file, relativePath, etag, data, compress);
+    final byte[] bytes = load(file, relativePath(etag), etag, compress);
     if (bytes == null) return null;
     if (gzip == compress) {
       final Buffer buffer = new Buffer();
@@ -295,44 +322,56 @@ public class PreCachedFileHandler extends FileHandler {
     }
   }
 
-  private byte[] bytes(final File file, final String relativePath, final String etag,
-                       @Nullable final Data data, final boolean compress) {
-    final byte[] bytes;
-    if (data == null) {
-      try {
-        final Data d = new Data(file, etag, compress);
-        bytes = d.bytes;
-        cache.put(relativePath, d);
-      }
-      catch (final IOException ignore) {
-        return null;
-      }
+  private boolean preload(final File file, final String relativePath, final String etag,
+                          final boolean compress) {
+    final Data data;
+    try {
+      data = new Data(file, etag, compress);
     }
-    else {
+    catch (final IOException ignore) {
+      return true;
+    }
+    return cache.putIfRoom(relativePath, data);
+  }
+
+  private @Nullable byte[] load(final File file, final String relativePath, final String etag,
+                                final boolean compress) {
+    final Data cached = cache.peek(relativePath, etag);
+    if (cached != null) return cached.bytes;
+    final String key = relativePath + '\n' + etag;
+    //noinspection Convert2Lambda
+    final FutureTask<Data> task = new FutureTask<>(new Callable<Data>() {
+      @Override public Data call() throws IOException {
+        final Data data = new Data(file, etag, compress);
+        cache.put(relativePath, data);
+        return data;
+      }
+    });
+    final FutureTask<Data> current = loads.putIfAbsent(key, task);
+    if (current == null) {
       try {
-        bytes = bytes(file, compress);
-        final Lock lock = data.lock.writeLock();
-        lock.lock();
-        try {
-          data.etag = etag;
-          data.bytes = bytes;
-        }
-        finally {
-          lock.unlock();
-        }
+        task.run();
       }
-      catch (final IOException ignore) {
-        return null;
+      finally {
+        loads.remove(key, task);
       }
     }
-    return bytes;
+    try {
+      return (current == null ? task : current).get().bytes;
+    }
+    catch (final ExecutionException ignore) {
+      return null;
+    }
+    catch (final InterruptedException ignore) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
   }
 
   static class Data {
     final boolean compressed;
-    String etag;
-    byte[] bytes;
-    final ReadWriteLock lock = new ReentrantReadWriteLock();
+    final String etag;
+    final byte[] bytes;
 
     public Data(final File file, final String etag, final boolean compress) throws IOException {
       this.etag = etag;
@@ -340,6 +379,130 @@ public class PreCachedFileHandler extends FileHandler {
       this.bytes = bytes(file, compress);
     }
 
+    long weight(final String relativePath) {
+      return bytes.length + (relativePath.length() + etag.length()) * 2 + 64;
+    }
+
+  }
+
+  static final class DataCache {
+
+    private static final class Entry {
+      final Data data;
+      final long weight;
+      // Approximate recency: updated without any lock on each hit.
+      volatile long accessed;
+
+      Entry(final Data data, final long weight, final long accessed) {
+        this.data = data;
+        this.weight = weight;
+        this.accessed = accessed;
+      }
+    }
+
+    private static final class Candidate {
+      final String relativePath;
+      final Entry entry;
+      final long accessed;
+
+      Candidate(final String relativePath, final Entry entry) {
+        this.relativePath = relativePath;
+        this.entry = entry;
+        this.accessed = entry.accessed;
+      }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>(4096);
+    private final AtomicLong byteCount = new AtomicLong();
+    private final Object evictionLock = new Object();
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    volatile long maxBytes = Long.MAX_VALUE;
+
+    int size() {
+      return entries.size();
+    }
+
+    long byteCount() {
+      return byteCount.get();
+    }
+
+    @Nullable Data get(final String relativePath) {
+      final Entry entry = entries.get(relativePath);
+      if (entry == null) return null;
+      entry.accessed = System.nanoTime();
+      return entry.data;
+    }
+
+    @Nullable Data get(final String relativePath, final String etag) {
+      final Data data = peek(relativePath, etag);
+      (data == null ? misses : hits).increment();
+      return data;
+    }
+
+    @Nullable Data peek(final String relativePath, final String etag) {
+      final Data data = get(relativePath);
+      return data != null && etag.equals(data.etag) ? data : null;
+    }
+
+    void put(final String relativePath, final Data data) {
+      final long weight = data.weight(relativePath);
+      if (weight > maxBytes) {
+        final Entry previous = entries.remove(relativePath);
+        if (previous != null) byteCount.addAndGet(-previous.weight);
+        return;
+      }
+      final Entry previous = entries.put(relativePath, new Entry(data, weight, System.nanoTime()));
+      final long total = byteCount.addAndGet(previous == null ? weight : weight - previous.weight);
+      if (total > maxBytes) evict();
+    }
+
+    /**
+     * Adds an entry only if it fits in the remaining budget, without evicting anything.
+     * @param relativePath the file path relative to the web root.
+     * @param data the file data.
+     * @return true if the entry was added, false if the budget is full.
+     */
+    boolean putIfRoom(final String relativePath, final Data data) {
+      final long weight = data.weight(relativePath);
+      while (true) {
+        final long total = byteCount.get();
+        if (total + weight > maxBytes) return false;
+        if (byteCount.compareAndSet(total, total + weight)) break;
+      }
+      final Entry previous = entries.put(relativePath, new Entry(data, weight, System.nanoTime()));
+      if (previous != null) byteCount.addAndGet(-previous.weight);
+      return true;
+    }
+
+    // Evicts the least recently used entries (according to a snapshot of their access times) until the total
+    // size is back to 90% of the limit, so that the next loads don't each have to sort all the entries again.
+    private void evict() {
+      synchronized (evictionLock) {
+        final long maxBytes = this.maxBytes;
+        if (byteCount.get() <= maxBytes) return;
+        final List<Candidate> candidates = new ArrayList<>(entries.size());
+        for (final Map.Entry<String, Entry> entry: entries.entrySet()) {
+          candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+        }
+        //noinspection Convert2Lambda
+        Collections.sort(candidates, new Comparator<Candidate>() {
+          @Override public int compare(final Candidate a, final Candidate b) {
+            return Long.compare(a.accessed, b.accessed);
+          }
+        });
+        final long lowWater = maxBytes - maxBytes / 10;
+        for (final Candidate candidate: candidates) {
+          if (byteCount.get() <= lowWater) break;
+          if (entries.remove(candidate.relativePath, candidate.entry)) {
+            byteCount.addAndGet(-candidate.entry.weight);
+            evictions.increment();
+          }
+        }
+      }
+    }
+
   }
 
 }
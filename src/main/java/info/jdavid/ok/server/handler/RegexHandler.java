@@ -9,19 +9,23 @@ import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
+import info.jdavid.ok.server.RequestTarget;
 import info.jdavid.ok.server.Response;
-import okhttp3.HttpUrl;
 
 
 /**
  * Handler that accepts request based on the request method and a regular expression for the request url path.
- * The regex captured groups are passed as parameters to the handle method.
+ * The regex captured groups are passed as parameters to the handle method.<br>
+ * The methods and the literal start of the regular expression are used as hints by the handler chain, unless
+ * a subclass overrides the matches method (it could accept other requests). Subclasses whose override only
+ * rejects more requests can override {@link #indexable()} to keep the hints.
  */
 @SuppressWarnings({ "WeakerAccess", "unused" })
-public abstract class RegexHandler implements Handler {
+public abstract class RegexHandler implements IndexedHandler {
 
   final Pattern pattern;
   final List<String> methods;
+  final String prefix;
 
   /**
    * Creates an handler that will accept a request with the specified methods,
@@ -38,6 +42,7 @@ public abstract class RegexHandler implements Handler {
       list.add(method.toUpperCase());
     }
     pattern = Pattern.compile(regex);
+    prefix = literalPrefix(regex);
   }
 
   /**
@@ -49,15 +54,38 @@ public abstract class RegexHandler implements Handler {
   protected RegexHandler(final String method, final String regex) {
     methods = Collections.singletonList(method.toUpperCase());
     pattern = Pattern.compile(regex);
+    prefix = literalPrefix(regex);
   }
 
   @Override public Handler setup() { return this; }
 
+  /**
+   * Returns whether the methods and the regex literal prefix can be used as hints by the handler chain. The
+   * default is true unless the matches method is overridden by a subclass.
+   * @return true if the hints are consistent with the matches method.
+   */
+  protected boolean indexable() {
+    try {
+      final Class<?> c = getClass().getMethod("matches", String.class, RequestTarget.class).
+        getDeclaringClass();
+      return c == RegexHandler.class || c == RegexHandlerWrapper.class;
+    }
+    catch (final NoSuchMethodException ignore) {
+      return false;
+    }
+  }
+
+  @Override public @Nullable Collection<String> acceptedMethods() { return indexable() ? methods : null; }
+
+  @Override public String acceptedPathPrefix() { return indexable() ? prefix : ""; }
+
+  @Override public @Nullable String acceptedHost() { return null; }
+
   @Override
-  public @Nullable String[] matches(final String method, final HttpUrl url) {
+  public @Nullable String[] matches(final String method, final RequestTarget target) {
     if (methods.contains(method)) {
-      final String encodedPath = url.encodedPath();
-      final Matcher matcher = pattern.matcher(url.encodedPath());
+      final String encodedPath = target.encodedPath();
+      final Matcher matcher = pattern.matcher(target.encodedPath());
       if (matcher.find()) {
         if (matcher.start() > 0) return null;
         if (matcher.end() < encodedPath.length()) return null;
@@ -72,6 +100,61 @@ public abstract class RegexHandler implements Handler {
     return null;
   }
 
+  private static boolean isMeta(final char c) {
+    return ".^$|?*+()[]{}\\".indexOf(c) != -1;
+  }
+
+  /**
+   * Returns the literal string that all the matches of a regular expression start with.
+   * @param regex the regular expression.
+   * @return the literal prefix (possibly empty).
+   */
+  static String literalPrefix(final String regex) {
+    final int length = regex.length();
+    // An alternation at the top level means that there's no common prefix.
+    int depth = 0;
+    boolean inClass = false;
+    for (int i=0; i<length; ++i) {
+      final char c = regex.charAt(i);
+      if (c == '\\') ++i;
+      else if (inClass) { if (c == ']') inClass = false; }
+      else if (c == '[') inClass = true;
+      else if (c == '(') ++depth;
+      else if (c == ')') --depth;
+      else if (c == '|' && depth == 0) return "";
+    }
+    final StringBuilder prefix = new StringBuilder();
+    int i = regex.startsWith("^") ? 1 : 0;
+    while (i < length) {
+      final char c = regex.charAt(i);
+      final char literal;
+      final int next;
+      if (c == '\\') {
+        if (i + 1 == length || !isMeta(regex.charAt(i + 1))) break;
+        literal = regex.charAt(i + 1);
+        next = i + 2;
+      }
+      else {
+        if (isMeta(c)) break;
+        literal = c;
+        next = i + 1;
+      }
+      if (next < length) {
+        final char quantifier = regex.charAt(next);
+        // The character is optional.
+        if (quantifier == '?' || quantifier == '*' || quantifier == '{') break;
+        // The character is repeated.
+        if (quantifier == '+') {
+          prefix.append(literal);
+          break;
+        }
+      }
+      prefix.append(literal);
+      i = next;
+    }
+    return prefix.toString();
+  }
+
   /**
    * Adds a check on the request methods and path to the specified handler.
    * @param methods the accepted methods.
@@ -114,8 +197,8 @@ public abstract class RegexHandler implements Handler {
       return this;
     }
 
-    @Override public String[] matches(final String method, final HttpUrl url) {
-      return super.matches(method, url) == null ? null : delegate.matches(method, url);
+    @Override public String[] matches(final String method, final RequestTarget target) {
+      return super.matches(method, target) == null ? null : delegate.matches(method, target);
     }
 
     @Override public Response.Builder handle(final Request request, final String[] params) {
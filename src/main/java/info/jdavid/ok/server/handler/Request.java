@@ -2,8 +2,8 @@ package info.jdavid.ok.server.handler;
 
 import javax.annotation.Nullable;
 
+import info.jdavid.ok.server.RequestTarget;
 import okhttp3.Headers;
-import okhttp3.HttpUrl;
 import okio.Buffer;
 
 
@@ -25,9 +25,9 @@ public final class Request {
    */
   public final String method;
   /**
-   * The request url.
+   * The request target (path, query and authority). The full url is only built on demand.
    */
-  public final HttpUrl url;
+  public final RequestTarget target;
   /**
    * The request headers.
    */
@@ -38,12 +38,12 @@ public final class Request {
   public @Nullable final Buffer body;
 
   public Request(final String clientIp, final boolean http2,
-                 final String method, final HttpUrl url,
+                 final String method, final RequestTarget target,
                  final Headers headers, @Nullable final Buffer body) {
     this.clientIp = clientIp;
     this.method = method;
     this.http2 = http2;
-    this.url = url;
+    this.target = target;
     this.headers = headers;
     this.body = body;
   }
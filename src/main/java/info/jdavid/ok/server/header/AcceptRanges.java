@@ -47,6 +47,12 @@ public final class AcceptRanges {
 
   public static class ByteRangesBody extends ResponseBody {
 
+    /**
+     * Maximum number of ranges in a multipart body. Requests for more ranges than this (after merging the
+     * ones that overlap) should get the full content instead.
+     */
+    public static final int MAX_RANGES = 100;
+
     final String boundary;
     final List<Part> parts;
     final long length;
@@ -86,6 +92,7 @@ public final class AcceptRanges {
       final MediaType contentType;
       final List<Part> parts = new ArrayList<>(8);
       final ByteString boundary;
+      int ranges = 0;
 
       public Builder(final MediaType contentType) {
         this(contentType, null);
@@ -96,7 +103,17 @@ public final class AcceptRanges {
         this.boundary = ByteString.encodeUtf8(boundary == null ? UUID.randomUUID().toString() : boundary);
       }
 
+      /**
+       * Adds a part for the specified range.
+       * @param source the range content.
+       * @param start the range start byte index.
+       * @param end the range end byte index.
+       * @param total the total byte size.
+       * @throws IllegalStateException if the body already has {@link #MAX_RANGES} parts.
+       */
       public void addRange(final Source source, final long start, final long end, final long total) {
+        if (ranges == MAX_RANGES) throw new IllegalStateException("Too many ranges.");
+        ++ranges;
         final Buffer buffer = new Buffer();
         buffer.write(CRLF);
         buffer.write(DASHES);
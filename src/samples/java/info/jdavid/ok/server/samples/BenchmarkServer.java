@@ -6,12 +6,12 @@ import info.jdavid.ok.server.Dispatcher;
 import info.jdavid.ok.server.HttpServer;
 import info.jdavid.ok.server.MediaTypes;
 import info.jdavid.ok.server.RequestHandlerChain;
+import info.jdavid.ok.server.RequestTarget;
 import info.jdavid.ok.server.Response;
 import info.jdavid.ok.server.StatusLines;
 import info.jdavid.ok.server.handler.Handler;
 import info.jdavid.ok.server.handler.Request;
 import okhttp3.Headers;
-import okhttp3.HttpUrl;
 import okio.Buffer;
 
 
@@ -34,8 +34,8 @@ public class BenchmarkServer {
 
     @Nullable
     @Override
-    public String[] matches(final String method, final HttpUrl url) {
-      return "GET".equals(method) ? new String[] { url.encodedPath() } : null;
+    public String[] matches(final String method, final RequestTarget target) {
+      return "GET".equals(method) ? new String[] { target.encodedPath() } : null;
     }
 
     @Override
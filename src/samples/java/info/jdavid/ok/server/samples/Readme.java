@@ -13,13 +13,13 @@ import info.jdavid.ok.server.HttpServer;
 import info.jdavid.ok.server.Https;
 import info.jdavid.ok.server.RequestHandler;
 import info.jdavid.ok.server.RequestHandlerChain;
+import info.jdavid.ok.server.RequestTarget;
 import info.jdavid.ok.server.Response;
 import info.jdavid.ok.server.SocketDispatcher;
 import info.jdavid.ok.server.StatusLines;
 import info.jdavid.ok.server.handler.BasicAuthHandler;
 import info.jdavid.ok.server.handler.FileHandler;
 import okhttp3.Headers;
-import okhttp3.HttpUrl;
 import okio.Buffer;
 
 @SuppressWarnings({ "unused", "Convert2Lambda", "Anonymous2MethodRef" })
@@ -32,10 +32,10 @@ public class Readme {
           @Override
           public Response handle(final String clientIp, final boolean secure,
                                  final boolean insecureOnly, final boolean http2,
-                                 final String method, final HttpUrl url,
+                                 final String method, final RequestTarget target,
                                  final Headers requestHeaders,
                                  @Nullable final Buffer requestBody) {
-            final String path = url.encodedPath();
+            final String path = target.encodedPath();
             final Response.Builder builder = new Response.Builder();
             if ("GET".equals(method) && "/ok".equals(path)) {
               builder.statusLine(StatusLines.OK).body("ok");
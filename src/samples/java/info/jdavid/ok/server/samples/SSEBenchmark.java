@@ -0,0 +1,168 @@
+package info.jdavid.ok.server.samples;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import info.jdavid.ok.server.HttpServer;
+import info.jdavid.ok.server.RequestHandlerChain;
+import info.jdavid.ok.server.SSEWriterPool;
+import info.jdavid.ok.server.Response;
+import info.jdavid.ok.server.StatusLines;
+import info.jdavid.ok.server.handler.RegexHandler;
+import info.jdavid.ok.server.handler.Request;
+
+
+/**
+ * Measures how fast SSE messages are broadcast to many subscribers.<br>
+ * Usage: SSEBenchmark [subscribers] [messages] [message size] [queue capacity] [DROP|COALESCE|DISCONNECT]
+ *   [writer threads (0 to write from the connection threads)]
+ */
+public class SSEBenchmark {
+
+  private static final int PORT = 8080;
+
+  public static void main(final String[] args) throws IOException {
+    final int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    final int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    final int messageSize = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+    final int capacity = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+    final Response.EventSource.Overflow overflow =
+      args.length > 4 ? Response.EventSource.Overflow.valueOf(args[4]) : Response.EventSource.Overflow.DROP;
+
+    final int writerThreads = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+
+    final SSEWriterPool writers = writerThreads == 0 ? null : new SSEWriterPool(writerThreads, 10000L);
+    final Response.EventSource eventSource = new Response.EventSource(capacity, overflow, 0, 0L, writers);
+    final HttpServer server = new HttpServer().
+      requestHandler(
+        new RequestHandlerChain().add(new RegexHandler("GET", "/sse") {
+          @Override
+          public Response.Builder handle(final Request request, final String[] params) {
+            return new Response.Builder().statusLine(StatusLines.OK).sse(eventSource);
+          }
+        })
+      ).
+      port(PORT);
+    server.start();
+
+    final Selector selector = Selector.open();
+    try {
+      final byte[] request = ("GET /sse HTTP/1.1\r\nHost: localhost:" + PORT + "\r\n\r\n").
+        getBytes(Charset.forName("ASCII"));
+      for (int i=0; i<subscribers; ++i) {
+        final SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+        channel.write(ByteBuffer.wrap(request));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Subscriber());
+      }
+      final long connectDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60L);
+      while (eventSource.subscriberCount() < subscribers) {
+        if (System.nanoTime() > connectDeadline) throw new IOException("The subscribers failed to connect.");
+        selector.selectNow();
+        selector.selectedKeys().clear();
+        try { Thread.sleep(10L); } catch (final InterruptedException ignore) {}
+      }
+
+      final StringBuilder data = new StringBuilder(messageSize);
+      for (int i=0; i<messageSize; ++i) {
+        data.append((char)('a' + i % 26));
+      }
+      final String message = data.toString();
+      final long start = System.nanoTime();
+      final Thread sender = new Thread() {
+        @Override public void run() {
+          for (int i=0; i<messages; ++i) {
+            eventSource.send(message);
+          }
+          eventSource.close();
+        }
+      };
+      sender.start();
+
+      final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+      long received = 0L;
+      int open = subscribers;
+      while (open > 0) {
+        selector.select(1000L);
+        final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+          final SelectionKey key = iterator.next();
+          iterator.remove();
+          final Subscriber subscriber = (Subscriber)key.attachment();
+          final SocketChannel channel = (SocketChannel)key.channel();
+          buffer.clear();
+          final int read;
+          try {
+            read = channel.read(buffer);
+          }
+          catch (final IOException e) {
+            key.cancel();
+            channel.close();
+            --open;
+            continue;
+          }
+          if (read == -1) {
+            received += subscriber.messages;
+            key.cancel();
+            channel.close();
+            --open;
+            continue;
+          }
+          buffer.flip();
+          subscriber.parse(buffer);
+        }
+      }
+      final long elapsed = System.nanoTime() - start;
+
+      final double seconds = elapsed / 1e9;
+      System.out.println("subscribers: " + subscribers + ", messages: " + messages +
+                         ", message size: " + messageSize + ", overflow: " + overflow +
+                         ", writer threads: " + writerThreads);
+      System.out.println("elapsed: " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+      System.out.println("broadcasts/s: " + Math.round(messages / seconds));
+      System.out.println("deliveries/s: " + Math.round(received / seconds) +
+                         " (" + received + "/" + ((long)subscribers * messages) + " delivered)");
+      System.out.println("overflows: " + eventSource.overflowCount());
+    }
+    finally {
+      selector.close();
+      server.shutdown();
+      if (writers != null) writers.shutdown();
+    }
+  }
+
+  /**
+   * Counts the data messages of an SSE stream (heartbeats and headers are ignored).
+   */
+  private static class Subscriber {
+    long messages = 0L;
+    boolean lineStart = true;
+    boolean data = false;
+
+    void parse(final ByteBuffer buffer) {
+      while (buffer.hasRemaining()) {
+        final byte b = buffer.get();
+        if (b == '\r') continue;
+        if (b == '\n') {
+          if (lineStart) {
+            if (data) ++messages;
+            data = false;
+          }
+          lineStart = true;
+        }
+        else {
+          if (lineStart && b == 'd') data = true;
+          lineStart = false;
+        }
+      }
+    }
+  }
+
+}
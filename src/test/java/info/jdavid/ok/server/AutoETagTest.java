@@ -0,0 +1,94 @@
+package info.jdavid.ok.server;
+
+import java.io.IOException;
+
+import info.jdavid.ok.server.handler.RegexHandler;
+import info.jdavid.ok.server.handler.Request;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+@SuppressWarnings("ConstantConditions")
+public class AutoETagTest {
+
+  private static RequestHandlerChain chain(final long maxBytes) {
+    final RequestHandlerChain chain = new RequestHandlerChain() {
+      @Override protected long autoETagMaxBytes() {
+        return maxBytes;
+      }
+    };
+    chain.add(new RegexHandler("GET", "/([a-z]+)") {
+      @Override public Response.Builder handle(final Request request, final String[] params) {
+        final Response.Builder builder = new Response.Builder().statusLine(StatusLines.OK);
+        if ("etag".equals(params[0])) builder.etag("\"custom\"");
+        if ("stream".equals(params[0])) return builder.chunks("a", "b");
+        return builder.body(MediaTypes.JSON, "{\"name\":\"" + params[0] + "\"}");
+      }
+    });
+    chain.init();
+    return chain;
+  }
+
+  private static Response get(final RequestHandlerChain chain, final String path, final Headers headers) {
+    final RequestTarget target = RequestTarget.create(HttpUrl.parse("http://localhost:8080" + path));
+    return chain.handle("127.0.0.1", false, "GET", target, headers, null);
+  }
+
+  private static String body(final Response response) throws IOException {
+    final Buffer buffer = new Buffer();
+    response.writeBody(null, buffer);
+    return buffer.readUtf8();
+  }
+
+  @Test
+  public void testETag() throws IOException {
+    final RequestHandlerChain chain = chain(1024L);
+    final Response response = get(chain, "/a", Headers.of());
+    assertEquals(200, response.code());
+    final String etag = response.header("ETag");
+    assertNotNull(etag);
+    assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+    assertEquals("{\"name\":\"a\"}", body(response));
+    assertEquals(etag, get(chain, "/a", Headers.of()).header("ETag"));
+    assertNotEquals(etag, get(chain, "/b", Headers.of()).header("ETag"));
+
+    final Response notModified = get(chain, "/a", Headers.of("If-None-Match", "\"x\", W/" + etag));
+    assertEquals(304, notModified.code());
+    assertEquals(etag, notModified.header("ETag"));
+    assertEquals("0", notModified.header("Content-Length"));
+    assertNull(notModified.header("Content-Type"));
+    assertEquals("", body(notModified));
+
+    assertEquals(200, get(chain, "/b", Headers.of("If-None-Match", etag)).code());
+
+    // ETags set by the handler are kept, and used for conditional requests.
+    assertEquals("\"custom\"", get(chain, "/etag", Headers.of()).header("ETag"));
+    assertEquals(304, get(chain, "/etag", Headers.of("If-None-Match", "\"custom\"")).code());
+
+    // Bodies that aren't buffered.
+    assertNull(get(chain, "/stream", Headers.of()).header("ETag"));
+  }
+
+  @Test
+  public void testLimit() throws IOException {
+    final Response response = get(chain(4L), "/a", Headers.of());
+    assertNull(response.header("ETag"));
+    assertEquals("{\"name\":\"a\"}", body(response));
+    assertNull(get(chain(0L), "/a", Headers.of()).header("ETag"));
+  }
+
+  @Test
+  public void testHash() {
+    assertEquals("\"cbf29ce484222325-0\"", RequestHandlerChain.etag(ByteString.EMPTY));
+    assertEquals("\"af63dc4c8601ec8c-1\"", RequestHandlerChain.etag(ByteString.encodeUtf8("a")));
+    assertTrue(RequestHandlerChain.matches("*", "\"a\""));
+    assertTrue(RequestHandlerChain.matches("W/\"a\"", "\"a\""));
+    assertFalse(RequestHandlerChain.matches("\"b\"", "\"a\""));
+  }
+
+}
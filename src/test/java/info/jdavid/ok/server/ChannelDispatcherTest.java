@@ -0,0 +1,154 @@
+package info.jdavid.ok.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+@SuppressWarnings("ConstantConditions")
+public class ChannelDispatcherTest {
+
+  private static OkHttpClient client(final List<Protocol> protocols) {
+    return HttpsTest.client.newBuilder().
+      readTimeout(0, TimeUnit.SECONDS).
+      retryOnConnectionFailure(false).
+      connectTimeout(60, TimeUnit.SECONDS).
+      protocols(protocols).
+      connectionPool(new ConnectionPool(5, 1L, TimeUnit.SECONDS)).
+      build();
+  }
+
+  private static final HttpServer SERVER = new HttpServer();
+  private static Https https = null;
+  private static File file = null;
+
+  @BeforeClass
+  public static void startServer() throws IOException {
+    file = File.createTempFile("region", ".txt");
+    file.deleteOnExit();
+    final BufferedSink sink = Okio.buffer(Okio.sink(file));
+    for (int i=0; i<100000; ++i) {
+      sink.writeUtf8(String.valueOf(i % 10));
+    }
+    sink.close();
+    //noinspection Convert2Lambda
+    SERVER.
+      dispatcher(new ChannelDispatcher()).
+      ports(8080, 8181).
+      https(https = new Https.Builder().certificate(HttpsTest.cert, true).build()).
+      requestHandler(
+        new RequestHandler() {
+          @Override
+          public Response handle(final String clientIp, final boolean secure, final boolean insecureOnly,
+                                 final boolean http2, final String method, final RequestTarget target,
+                                 final Headers requestHeaders, final @Nullable Buffer requestBody) {
+            if ("/file".equals(target.encodedPath())) {
+              return new Response.Builder().statusLine(StatusLines.OK).
+                body(MediaTypes.TEXT, file, 3L, file.length() - 4L).build();
+            }
+            if (requestBody != null) {
+              return new Response.Builder().statusLine(StatusLines.OK).body(requestBody.readUtf8()).build();
+            }
+            final String s = target + "\n" + secure + "\n" + http2;
+            return new Response.Builder().statusLine(StatusLines.OK).body(s).build();
+          }
+        }
+      ).
+      start();
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    SERVER.shutdown();
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+
+  @Test
+  public void testHttp() throws IOException {
+    final String result = client(Collections.singletonList(Protocol.HTTP_1_1)).
+      newCall(new Request.Builder().url("http://localhost:8080").build()).execute().body().string();
+    assertEquals("http://localhost:8080/\nfalse\nfalse", result);
+  }
+
+  @Test
+  public void testHttps() throws IOException {
+    final long handshakes = https.fullHandshakeCount() + https.abbreviatedHandshakeCount();
+    final String result = client(Collections.singletonList(Protocol.HTTP_1_1)).
+      newCall(new Request.Builder().url("https://localhost:8181").build()).execute().body().string();
+    assertEquals("https://localhost:8181/\ntrue\nfalse", result);
+    assertEquals(handshakes + 1, https.fullHandshakeCount() + https.abbreviatedHandshakeCount());
+  }
+
+  @Test
+  public void testHttp2() throws IOException {
+    final okhttp3.Response response = client(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)).
+      newCall(new Request.Builder().url("https://localhost:8181/h2").build()).execute();
+    assertEquals(Protocol.HTTP_2, response.protocol());
+    assertEquals("https://localhost:8181/h2\ntrue\ntrue", response.body().string());
+  }
+
+  @Test
+  public void testLargeBody() throws IOException {
+    // Spans several TLS records in both directions.
+    final StringBuilder s = new StringBuilder(60000);
+    for (int i=0; i<6000; ++i) {
+      s.append("0123456789");
+    }
+    final String body = s.toString();
+    final OkHttpClient client = client(Collections.singletonList(Protocol.HTTP_1_1));
+    for (int i=0; i<3; ++i) {
+      final String result = client.newCall(
+        new Request.Builder().url("https://localhost:8181").
+          post(RequestBody.create(MediaType.parse("text/plain"), body)).build()
+      ).execute().body().string();
+      assertEquals(body, result);
+    }
+  }
+
+  @Test
+  public void testFileRegion() throws IOException {
+    final StringBuilder s = new StringBuilder(100000);
+    for (int i=3; i<99999; ++i) {
+      s.append(i % 10);
+    }
+    final String expected = s.toString();
+    final OkHttpClient client = client(Collections.singletonList(Protocol.HTTP_1_1));
+    for (int i=0; i<2; ++i) {
+      // Sent with sendfile.
+      assertEquals(expected, client.newCall(
+        new Request.Builder().url("http://localhost:8080/file").build()
+      ).execute().body().string());
+      // Copied through the tls engine.
+      assertEquals(expected, client.newCall(
+        new Request.Builder().url("https://localhost:8181/file").build()
+      ).execute().body().string());
+    }
+    final okhttp3.Response response = client(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)).
+      newCall(new Request.Builder().url("https://localhost:8181/file").build()).execute();
+    assertEquals(Protocol.HTTP_2, response.protocol());
+    assertEquals(expected, response.body().string());
+  }
+
+}
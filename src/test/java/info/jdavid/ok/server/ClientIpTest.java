@@ -9,7 +9,6 @@ import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
 import okhttp3.Headers;
-import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -60,7 +59,7 @@ public class ClientIpTest {
       new RequestHandler() {
         @Override
         public Response handle(final String clientIp, final boolean secure, final boolean insecureOnly,
-                               final boolean http2, final String method, final HttpUrl url,
+                               final boolean http2, final String method, final RequestTarget target,
                                final Headers requestHeaders, final @Nullable Buffer requestBody) {
           return new Response.Builder().statusLine(StatusLines.OK).body(clientIp).build();
         }
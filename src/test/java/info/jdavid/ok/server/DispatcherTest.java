@@ -8,7 +8,6 @@ import javax.annotation.Nullable;
 
 import okhttp3.ConnectionPool;
 import okhttp3.Headers;
-import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okio.Buffer;
@@ -27,7 +26,7 @@ public class DispatcherTest {
       new RequestHandler() {
         @Override
         public Response handle(final String clientIp, final boolean secure, final boolean insecureOnly,
-                               final boolean http2, final String method, final HttpUrl url,
+                               final boolean http2, final String method, final RequestTarget target,
                                final Headers requestHeaders, final @Nullable Buffer requestBody) {
           try { Thread.sleep(1000L); } catch (final InterruptedException ignore) {}
           return new Response.Builder().statusLine(StatusLines.OK).body("Test").build();
@@ -0,0 +1,115 @@
+package info.jdavid.ok.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class FileChannelCacheTest {
+
+  @Test
+  public void testReferences() throws IOException {
+    final File file = File.createTempFile("channel", ".txt");
+    try {
+      final BufferedSink sink = Okio.buffer(Okio.sink(file));
+      sink.writeUtf8("0123456789");
+      sink.close();
+      final FileChannelCache cache = new FileChannelCache(1);
+      final FileChannelCache.Channel channel1 = cache.acquire(file, "a");
+      final FileChannelCache.Channel channel2 = cache.acquire(file, "a");
+      assertSame(channel1, channel2);
+      assertEquals(1, cache.size());
+      final FileChannelCache.Channel channel3 = cache.acquire(file, "b");
+      assertNotSame(channel1, channel3);
+      assertEquals(2, cache.size());
+      cache.release(channel1);
+      cache.release(channel2);
+      // Idle channels stay open.
+      assertEquals(2, cache.size());
+      assertTrue(channel1.channel.isOpen());
+      assertSame(channel1, cache.acquire(file, "a"));
+      cache.release(channel1);
+      // Only one idle channel is kept, the oldest one is closed.
+      cache.release(channel3);
+      assertEquals(1, cache.size());
+      assertFalse(channel1.channel.isOpen());
+      assertTrue(channel3.channel.isOpen());
+      // Channels closed by an interrupt are replaced.
+      channel3.channel.close();
+      final FileChannelCache.Channel channel4 = cache.acquire(file, "b");
+      assertNotSame(channel3, channel4);
+      assertTrue(channel4.channel.isOpen());
+      assertEquals(1, cache.size());
+      cache.release(channel4);
+    }
+    finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testBody() throws IOException {
+    final File file = File.createTempFile("channel", ".txt");
+    try {
+      final BufferedSink sink = Okio.buffer(Okio.sink(file));
+      sink.writeUtf8("0123456789");
+      sink.close();
+      final FileChannelCache cache = new FileChannelCache(0);
+      final Response.FileBody body1 = new Response.FileBody(MediaTypes.TEXT, file, 1, 8, null, cache, "a");
+      final Response.FileBody body2 = new Response.FileBody(MediaTypes.TEXT, file, 3, 2, null, cache, "a");
+      final BufferedSource source1 = body1.source();
+      assertEquals("12", source1.readUtf8(2));
+      assertEquals(1, cache.size());
+      // Positional reads: the second body doesn't move the first one.
+      assertEquals("34", body2.source().readUtf8());
+      assertEquals(1, cache.size());
+      final Buffer buffer = new Buffer();
+      source1.readAll(buffer);
+      assertEquals("345678", buffer.readUtf8());
+      assertEquals(0, cache.size());
+      final Buffer transferred = new Buffer();
+      body2.transferTo(transferred);
+      assertEquals("34", transferred.readUtf8());
+      assertEquals(0, cache.size());
+    }
+    finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testClosedChannel() throws IOException {
+    final File file = File.createTempFile("channel", ".txt");
+    try {
+      final StringBuilder text = new StringBuilder();
+      for (int i=0; i<40000; ++i) text.append(i % 10);
+      final BufferedSink sink = Okio.buffer(Okio.sink(file));
+      sink.writeUtf8(text.toString());
+      sink.close();
+      final FileChannelCache cache = new FileChannelCache(1);
+      final Response.FileBody body = new Response.FileBody(MediaTypes.TEXT, file, 0, 40000, null, cache, "a");
+      final BufferedSource source = body.source();
+      assertEquals(text.substring(0, 10), source.readUtf8(10));
+      // Another reader is interrupted, which closes the shared channel.
+      final FileChannelCache.Channel channel = cache.acquire(file, "a");
+      channel.channel.close();
+      cache.release(channel);
+      assertEquals(text.substring(10), source.readUtf8());
+      assertEquals(1, cache.size());
+    }
+    finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+}
@@ -0,0 +1,216 @@
+package info.jdavid.ok.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import info.jdavid.ok.server.handler.Handler;
+import info.jdavid.ok.server.handler.IndexedHandler;
+import info.jdavid.ok.server.handler.RegexHandler;
+import info.jdavid.ok.server.handler.Request;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+@SuppressWarnings("ConstantConditions")
+public class HandlerIndexTest {
+
+  private static RequestTarget target(final String url) {
+    return RequestTarget.create(HttpUrl.parse(url));
+  }
+
+  private static class NamedHandler extends RegexHandler {
+    final String name;
+    final List<String> calls;
+
+    NamedHandler(final String name, final String method, final String regex, final List<String> calls) {
+      super(method, regex);
+      this.name = name;
+      this.calls = calls;
+    }
+
+    @Override public String[] matches(final String method, final RequestTarget target) {
+      calls.add(name);
+      return super.matches(method, target);
+    }
+
+    // The override only records the calls.
+    @Override protected boolean indexable() {
+      return true;
+    }
+
+    @Override public Response.Builder handle(final Request request, final String[] params) {
+      return new Response.Builder().statusLine(StatusLines.OK).body(name);
+    }
+  }
+
+  // Also accepts HEAD requests, and any path under /legacy/.
+  private static class WiderHandler extends NamedHandler {
+    WiderHandler(final String name, final String method, final String regex, final List<String> calls) {
+      super(name, method, regex, calls);
+    }
+
+    @Override public String[] matches(final String method, final RequestTarget target) {
+      if (target.encodedPath().startsWith("/legacy/")) return new String[0];
+      return super.matches("HEAD".equals(method) ? "GET" : method, target);
+    }
+
+    @Override protected boolean indexable() {
+      return false;
+    }
+  }
+
+  private static class OverridingHandler extends RegexHandler {
+    OverridingHandler() {
+      super("GET", "/api/(.*)");
+    }
+
+    @Override public String[] matches(final String method, final RequestTarget target) {
+      return target.encodedPath().startsWith("/v1/") ? new String[0] : super.matches(method, target);
+    }
+
+    @Override public Response.Builder handle(final Request request, final String[] params) {
+      return new Response.Builder().statusLine(StatusLines.OK).body("overriding");
+    }
+  }
+
+  private static class HostHandler implements IndexedHandler {
+    final String host;
+
+    HostHandler(final String host) {
+      this.host = host;
+    }
+
+    @Override public Handler setup() { return this; }
+
+    @Override public @Nullable Collection<String> acceptedMethods() { return null; }
+
+    @Override public String acceptedPathPrefix() { return "/"; }
+
+    @Override public @Nullable String acceptedHost() { return host; }
+
+    @Override public String[] matches(final String method, final RequestTarget target) {
+      return host.equals(target.host()) ? new String[0] : null;
+    }
+
+    @Override public Response.Builder handle(final Request request, final String[] params) {
+      return new Response.Builder().statusLine(StatusLines.OK).body(host);
+    }
+  }
+
+  private static String name(final @Nullable HandlerIndex.Match match) {
+    if (match == null) return null;
+    if (match.handler instanceof HostHandler) return ((HostHandler)match.handler).host;
+    return ((NamedHandler)match.handler).name;
+  }
+
+  @Test
+  public void testLiteralPrefix() {
+    final List<String> calls = Collections.emptyList();
+    assertEquals("/a/b/", new NamedHandler("", "GET", "/a/b/(.*)", calls).acceptedPathPrefix());
+    assertEquals("/a/b", new NamedHandler("", "GET", "^/a/b", calls).acceptedPathPrefix());
+    assertEquals("/a.b/", new NamedHandler("", "GET", "/a\\.b/\\d+", calls).acceptedPathPrefix());
+    assertEquals("/a", new NamedHandler("", "GET", "/ab?", calls).acceptedPathPrefix());
+    assertEquals("/a", new NamedHandler("", "GET", "/ab*", calls).acceptedPathPrefix());
+    assertEquals("/a", new NamedHandler("", "GET", "/ab{2}", calls).acceptedPathPrefix());
+    assertEquals("/ab", new NamedHandler("", "GET", "/ab+c", calls).acceptedPathPrefix());
+    assertEquals("", new NamedHandler("", "GET", "/a|/b", calls).acceptedPathPrefix());
+    assertEquals("/", new NamedHandler("", "GET", "/(a|b)", calls).acceptedPathPrefix());
+    assertEquals("/", new NamedHandler("", "GET", "/[|]", calls).acceptedPathPrefix());
+    assertEquals("", new NamedHandler("", "GET", "(?i)/a", calls).acceptedPathPrefix());
+  }
+
+  @Test
+  public void testOverriddenMatches() {
+    final List<String> calls = new ArrayList<>();
+    final OverridingHandler overriding = new OverridingHandler();
+    // Subclasses that override matches don't publish hints by default.
+    assertNull(overriding.acceptedMethods());
+    assertEquals("", overriding.acceptedPathPrefix());
+    final List<Handler> chain = Arrays.<Handler>asList(
+      new NamedHandler("a", "GET", "/api/(.*)", calls),
+      overriding,
+      new WiderHandler("w", "GET", "/items/(.*)", calls)
+    );
+    final HandlerIndex index = new HandlerIndex(chain);
+    assertSame(overriding, index.match("POST", target("http://localhost/v1/x")).handler);
+    assertEquals("w", name(index.match("HEAD", target("http://localhost/items/1"))));
+    assertEquals("w", name(index.match("POST", target("http://localhost/legacy/a"))));
+    assertEquals("a", name(index.match("GET", target("http://localhost/api/a"))));
+  }
+
+  @Test
+  public void testIndex() {
+    final List<String> calls = new ArrayList<>();
+    final List<Handler> chain = Arrays.<Handler>asList(
+      new NamedHandler("a", "GET", "/api/items/(\\d+)", calls),
+      new NamedHandler("b", "POST", "/api/items", calls),
+      new NamedHandler("c", "GET", "/api/(.+)", calls),
+      new HostHandler("example.com"),
+      new NamedHandler("d", "GET", "/static/(.*)", calls),
+      new NamedHandler("e", "GET", "/(.*)", calls)
+    );
+    final HandlerIndex index = new HandlerIndex(chain);
+
+    assertEquals("a", name(index.match("GET", target("http://localhost/api/items/12"))));
+    assertEquals(Collections.singletonList("a"), calls);
+    calls.clear();
+
+    // First match order is kept.
+    assertEquals("c", name(index.match("GET", target("http://localhost/api/items/x"))));
+    assertEquals(Arrays.asList("a", "c"), calls);
+    calls.clear();
+
+    assertEquals("d", name(index.match("GET", target("http://localhost/static/a.css"))));
+    assertEquals(Collections.singletonList("d"), calls);
+    calls.clear();
+
+    assertEquals("example.com", name(index.match("GET", target("http://example.com/static/a.css"))));
+    assertEquals(Collections.emptyList(), calls);
+
+    assertEquals("e", name(index.match("GET", target("http://localhost/"))));
+    assertEquals(Collections.singletonList("e"), calls);
+    calls.clear();
+
+    assertEquals("b", name(index.match("POST", target("http://localhost/api/items"))));
+    assertEquals(Collections.singletonList("b"), calls);
+    calls.clear();
+
+    assertNull(index.match("POST", target("http://localhost/api/other")));
+    assertEquals(Collections.emptyList(), calls);
+
+    // Unknown methods only go to the handlers that accept any method.
+    assertNull(index.match("PUT", target("http://localhost/api/items/12")));
+    assertEquals(Collections.emptyList(), calls);
+    assertEquals("example.com", name(index.match("PUT", target("http://example.com/"))));
+  }
+
+  @Test
+  public void testChain() {
+    final List<String> calls = new ArrayList<>();
+    final RequestHandlerChain chain = new RequestHandlerChain().
+      add(new NamedHandler("a", "GET", "/a", calls)).
+      add(new NamedHandler("b", "GET", "/b", calls));
+    chain.init();
+    final Headers headers = new Headers.Builder().build();
+    assertEquals(
+      200, chain.handle("127.0.0.1", false, "GET", target("http://localhost/b"), headers, null).code()
+    );
+    assertEquals(Collections.singletonList("b"), calls);
+    calls.clear();
+    // Handlers added later are still tried.
+    chain.add(new NamedHandler("c", "GET", "/c", calls));
+    assertEquals(
+      200, chain.handle("127.0.0.1", false, "GET", target("http://localhost/c"), headers, null).code()
+    );
+    assertEquals(Arrays.asList("a", "b", "c"), calls);
+  }
+
+}
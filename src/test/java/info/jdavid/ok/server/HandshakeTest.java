@@ -0,0 +1,117 @@
+package info.jdavid.ok.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class HandshakeTest {
+
+  private static ByteString clientHello(final String hostname, final boolean h2,
+                                        final boolean tls13) throws IOException {
+    final Buffer extensions = new Buffer();
+    final Buffer sni = new Buffer();
+    sni.writeShort(hostname.length() + 3).writeByte(0).writeShort(hostname.length()).writeUtf8(hostname);
+    extensions.writeShort(0x0000).writeShort((int)sni.size()).writeAll(sni);
+    final Buffer alpn = new Buffer();
+    final String[] protocols = h2 ? new String[] { "h2", "http/1.1" } : new String[] { "http/1.1" };
+    final Buffer list = new Buffer();
+    for (final String protocol: protocols) {
+      list.writeByte(protocol.length()).writeUtf8(protocol);
+    }
+    alpn.writeShort((int)list.size()).writeAll(list);
+    extensions.writeShort(0x0010).writeShort((int)alpn.size()).writeAll(alpn);
+    if (tls13) {
+      // A GREASE value first, then TLS 1.3 and TLS 1.2.
+      extensions.writeShort(0x002b).writeShort(7).writeByte(6).
+        writeShort(0x7a7a).writeShort(0x0304).writeShort(0x0303);
+    }
+    final Buffer body = new Buffer();
+    body.writeShort(0x0303);
+    body.write(new byte[32]);
+    body.writeByte(0);
+    body.writeShort(4).writeShort(0xc02f).writeShort(0x1301);
+    body.writeByte(1).writeByte(0);
+    body.writeShort((int)extensions.size()).writeAll(extensions);
+    final Buffer message = new Buffer();
+    message.writeByte(0x01).writeByte(0).writeShort((int)body.size()).writeAll(body);
+    return message.readByteString();
+  }
+
+  private static byte[] records(final ByteString message, final int... splits) {
+    final Buffer buffer = new Buffer();
+    int start = 0;
+    for (int i=0; i<=splits.length; ++i) {
+      final int end = i == splits.length ? message.size() : splits[i];
+      buffer.writeByte(0x16).writeShort(0x0301).writeShort(end - start).write(message.substring(start, end));
+      start = end;
+    }
+    return buffer.readByteArray();
+  }
+
+  private static Socket socket(final byte[] bytes) {
+    final InputStream in = new ByteArrayInputStream(bytes);
+    return new Socket() {
+      @Override public InputStream getInputStream() {
+        return in;
+      }
+    };
+  }
+
+  private static byte[] consumed(final Handshake handshake) throws IOException {
+    final Buffer buffer = new Buffer();
+    buffer.readFrom(handshake.consumed());
+    return buffer.readByteArray();
+  }
+
+  @Test
+  public void testSingleRecord() throws IOException {
+    final byte[] bytes = records(clientHello("example.com", true, true));
+    final Handshake handshake = Handshake.read(socket(bytes));
+    assertNotNull(handshake);
+    assertEquals("example.com", handshake.hostname);
+    assertTrue(handshake.http2);
+    assertEquals(Handshake.TLS13, handshake.version);
+    assertArrayEquals(new String[] { "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256" }, handshake.getCipherSuites());
+    assertArrayEquals(bytes, consumed(handshake));
+  }
+
+  @Test
+  public void testSplitRecords() throws IOException {
+    final ByteString message = clientHello("split.example.com", false, false);
+    final byte[] bytes = records(message, 2, 60, message.size() - 12);
+    final Handshake handshake = Handshake.read(socket(bytes));
+    assertNotNull(handshake);
+    assertEquals("split.example.com", handshake.hostname);
+    assertFalse(handshake.http2);
+    // Without supported_versions, the legacy version is used.
+    assertEquals(Handshake.TLS12, handshake.version);
+    assertArrayEquals(bytes, consumed(handshake));
+  }
+
+  @Test
+  public void testNotTls() throws IOException {
+    assertNull(Handshake.read(socket("GET / HTTP/1.1\r\n".getBytes())));
+    assertNull(Handshake.read(socket(new byte[0])));
+  }
+
+  @Test
+  public void testTruncated() throws IOException {
+    final byte[] bytes = records(clientHello("example.com", true, true));
+    final byte[] truncated = new byte[bytes.length - 10];
+    System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+    final Handshake handshake = Handshake.read(socket(truncated));
+    assertNotNull(handshake);
+    assertNull(handshake.hostname);
+    assertFalse(handshake.http2);
+    assertArrayEquals(truncated, consumed(handshake));
+  }
+
+}
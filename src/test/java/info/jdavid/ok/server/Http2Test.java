@@ -81,8 +81,9 @@ public class Http2Test {
         new RequestHandler() {
           @Override
           public Response handle(final String clientIp, final boolean secure, final boolean insecureOnly,
-                                 final boolean http2, final String method, final HttpUrl url,
+                                 final boolean http2, final String method, final RequestTarget target,
                                  final Headers requestHeaders, final @Nullable Buffer requestBody) {
+            final HttpUrl url = target.url();
             final List<String> path = url.pathSegments();
             if (path.isEmpty() || !path.get(path.size() - 1).equals("push")) {
               final String s = url + "\n" + secure + "\n" + insecureOnly + "\n" + http2;
@@ -1,6 +1,20 @@
 package info.jdavid.ok.server;
 
 import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.Headers;
+import okio.Buffer;
+import okio.Okio;
+import okio.Source;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -9,6 +23,25 @@ import static org.junit.Assert.*;
 //@FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class HttpsBuilderTest {
 
+  private static byte[] getEcCert() {
+    final Source source = Okio.source(HttpsBuilderTest.class.getResourceAsStream("/test-ec.p12"));
+    final Buffer buffer = new Buffer();
+    //noinspection TryFinallyCanBeTryWithResources
+    try {
+      buffer.writeAll(source);
+      return buffer.readByteArray();
+    }
+    catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+    finally {
+      try { source.close(); } catch (final IOException ignore) {}
+      buffer.close();
+    }
+  }
+
+  static final byte[] ecCert = getEcCert();
+
   @SuppressWarnings("ConstantConditions")
   @Test
   public void testMalformed() throws IOException {
@@ -17,6 +50,16 @@ public class HttpsBuilderTest {
       fail("Should have failed because no certificate has been set.");
     }
     catch (final IllegalStateException ignore) {}
+    try {
+      new Https.Builder().certificate(HttpsTest.cert).alternateCertificate(HttpsTest.cert).build();
+      fail("Should have failed because there are two RSA certificates for the primary host.");
+    }
+    catch (final IllegalStateException ignore) {}
+    try {
+      new Https.Builder().addCertificate("a.*.example.com", ecCert);
+      fail("Should have failed because the wildcard is not for a whole subdomain.");
+    }
+    catch (final IllegalArgumentException ignore) {}
   }
 
   @Test
@@ -26,7 +69,80 @@ public class HttpsBuilderTest {
     assertNotNull(https.protocols);
     assertNotNull(https.cipherSuites);
     assertTrue(https.http2);
-    assertNotNull(https.getContext("localhost"));
+    assertNotNull(https.context);
+  }
+
+  @Test
+  public void testHostIndex() {
+    final Https https = new Https.Builder().
+      certificate(HttpsTest.cert).
+      alternateCertificate(ecCert).
+      addCertificate("*.Example.com", ecCert).
+      addCertificate("exact.example.com", HttpsTest.cert).
+      addCertificate("exact.example.com", ecCert).
+      build();
+    final CertificateKeyManager keyManager = https.keyManager;
+    assertEquals(":RSA", keyManager.alias("RSA", null));
+    assertEquals(":EC", keyManager.alias("EC", null));
+    assertEquals(":EC", keyManager.alias("EC_RSA", "localhost"));
+    assertEquals("*.example.com:EC", keyManager.alias("EC", "a.example.com"));
+    assertNull(keyManager.alias("RSA", "a.example.com"));
+    assertEquals(":EC", keyManager.alias("EC", "example.com"));
+    assertEquals(":EC", keyManager.alias("EC", "a.b.example.com"));
+    assertEquals("exact.example.com:RSA", keyManager.alias("RSA", "EXACT.example.com"));
+    assertEquals("exact.example.com:EC", keyManager.alias("EC", "exact.example.com"));
+    assertNull(keyManager.alias("DSA", "exact.example.com"));
+  }
+
+  private static String serverKeyAlgorithm(final String cipherSuite) throws IOException {
+    final X509TrustManager trustManager = new X509TrustManager() {
+      @Override public void checkClientTrusted(final X509Certificate[] chain, final String s) {}
+      @Override public void checkServerTrusted(final X509Certificate[] chain, final String s) {}
+      @Override public X509Certificate[] getAcceptedIssuers() {
+        return new X509Certificate[0];
+      }
+    };
+    try {
+      final SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, new TrustManager[] { trustManager }, new SecureRandom());
+      final SSLSocket socket = (SSLSocket)context.getSocketFactory().createSocket("localhost", 8181);
+      try {
+        socket.setEnabledProtocols(new String[] { "TLSv1.2" });
+        socket.setEnabledCipherSuites(new String[] { cipherSuite });
+        socket.startHandshake();
+        return socket.getSession().getPeerCertificates()[0].getPublicKey().getAlgorithm();
+      }
+      finally {
+        socket.close();
+      }
+    }
+    catch (final GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testKeyType() throws IOException {
+    //noinspection Convert2Lambda
+    final HttpServer server = new HttpServer().
+      ports(0, 8181).
+      https(new Https.Builder().certificate(HttpsTest.cert, false).alternateCertificate(ecCert).build()).
+      requestHandler(new RequestHandler() {
+        @Override
+        public Response handle(final String clientIp, final boolean secure, final boolean insecureOnly,
+                               final boolean http2, final String method, final RequestTarget target,
+                               final Headers requestHeaders, final @Nullable Buffer requestBody) {
+          return new Response.Builder().statusLine(StatusLines.OK).noBody().build();
+        }
+      });
+    server.start();
+    try {
+      assertEquals("EC", serverKeyAlgorithm("TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256"));
+      assertEquals("RSA", serverKeyAlgorithm("TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"));
+    }
+    finally {
+      server.shutdown();
+    }
   }
 
 }
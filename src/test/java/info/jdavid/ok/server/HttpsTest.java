@@ -1,6 +1,7 @@
 package info.jdavid.ok.server;
 
 import java.io.IOException;
+import java.net.Socket;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
@@ -17,10 +18,10 @@ import javax.net.ssl.X509TrustManager;
 
 import okhttp3.ConnectionPool;
 import okhttp3.Headers;
-import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Protocol;
 import okhttp3.Request;
+import okhttp3.TlsVersion;
 import okio.Buffer;
 import okio.Okio;
 import okio.Source;
@@ -94,24 +95,32 @@ public class HttpsTest {
   }
 
   private static final HttpServer SERVER = new HttpServer(); //.dispatcher(new Dispatcher.Logged());
+  private static Https https = null;
+  private static final SocketDispatcher.Default dispatcher = new SocketDispatcher.Default() {
+    @Override protected long handshakeTimeoutMillis() {
+      return 1000L;
+    }
+  };
 
 //  public Response handle(final String clientIp, final boolean secure, final boolean insecureOnly,
-//                         final boolean http2, final String method, final HttpUrl url,
+//                         final boolean http2, final String method, final RequestTarget target,
 //                         final Headers requestHeaders, final @Nullable Buffer requestBody) {
 
   @BeforeClass
   public static void startServer() throws IOException {
     //noinspection Convert2Lambda
     SERVER.
+      dispatcher(dispatcher).
       ports(8080, 8181).
-      https(new Https.Builder().certificate(cert, false).build()).
+      https(https = new Https.Builder().certificate(cert, false).
+        sessionCacheSize(1024).sessionTimeout(3600).build()).
       requestHandler(
         new RequestHandler() {
           @Override
           public Response handle(final String clientIp, final boolean secure, final boolean insecureOnly,
-                                 final boolean http2, final String method, final HttpUrl url,
+                                 final boolean http2, final String method, final RequestTarget target,
                                  final Headers requestHeaders, final @Nullable Buffer requestBody) {
-            final String s = url + "\n" + secure + "\n" + insecureOnly;
+            final String s = target + "\n" + secure + "\n" + insecureOnly;
             return new Response.Builder().statusLine(StatusLines.OK).body(s).build();
           }
         }
@@ -146,6 +155,20 @@ public class HttpsTest {
     assertEquals("false", split[2]);
   }
 
+  @Test
+  public void testSessionResumption() throws IOException {
+    final long full = https.fullHandshakeCount();
+    final long abbreviated = https.abbreviatedHandshakeCount();
+    for (int i=0; i<3; ++i) {
+      final okhttp3.Response response =
+        client().newCall(new Request.Builder().url("https://localhost:8181").build()).execute();
+      assertEquals(200, response.code());
+      response.body().close();
+    }
+    assertEquals(3, https.fullHandshakeCount() - full + https.abbreviatedHandshakeCount() - abbreviated);
+    assertTrue(https.abbreviatedHandshakeCount() > abbreviated);
+  }
+
   @Test
   public void testHttp() throws IOException {
     final String result =
@@ -162,4 +185,43 @@ public class HttpsTest {
     catch (final IOException ignore) {}
   }
 
+  @Test
+  public void testTls13() throws IOException {
+    if (Float.parseFloat(System.getProperty("java.specification.version")) < 11) return;
+    final okhttp3.Response response =
+      client().newCall(new Request.Builder().url("https://localhost:8181").build()).execute();
+    assertEquals(200, response.code());
+    assertEquals(TlsVersion.TLS_1_3, response.handshake().tlsVersion());
+    response.body().close();
+  }
+
+  @Test
+  public void testHandshakePool() throws IOException {
+    final long handshakes = dispatcher.handshakeCount();
+    final long queueTime = dispatcher.handshakeQueueTime(TimeUnit.NANOSECONDS);
+    final okhttp3.Response response =
+      client().newCall(new Request.Builder().url("https://localhost:8181").build()).execute();
+    assertEquals(200, response.code());
+    response.body().close();
+    assertEquals(handshakes + 1, dispatcher.handshakeCount());
+    assertTrue(dispatcher.handshakeQueueTime(TimeUnit.NANOSECONDS) > queueTime);
+    assertTrue(dispatcher.maxHandshakeQueueTime(TimeUnit.NANOSECONDS) > 0);
+    assertEquals(0, dispatcher.rejectedHandshakeCount());
+  }
+
+  @Test
+  public void testHandshakeTimeout() throws IOException {
+    final Socket socket = new Socket("localhost", 8181);
+    try {
+      socket.setSoTimeout(5000);
+      final long start = System.currentTimeMillis();
+      // Nothing is sent: the server should give up on the handshake and close the connection.
+      assertEquals(-1, socket.getInputStream().read());
+      assertTrue(System.currentTimeMillis() - start < 4000);
+    }
+    finally {
+      socket.close();
+    }
+  }
+
 }
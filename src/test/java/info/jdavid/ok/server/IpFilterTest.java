@@ -0,0 +1,132 @@
+package info.jdavid.ok.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okio.Buffer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+@SuppressWarnings("ConstantConditions")
+public class IpFilterTest {
+
+  private static InetAddress address(final String ip) throws IOException {
+    return InetAddress.getByName(ip);
+  }
+
+  @Test
+  public void testIpv4() throws IOException {
+    final IpFilter filter = new IpFilter.Builder().
+      deny("10.0.0.0/8").
+      allow("10.1.0.0/16").
+      deny("10.1.2.3").
+      deny("192.168.1.128/25").
+      build();
+    assertEquals(4, filter.ruleCount());
+    assertTrue(filter.accept(address("127.0.0.1")));
+    assertFalse(filter.accept(address("10.0.0.1")));
+    assertFalse(filter.accept(address("10.255.255.255")));
+    assertTrue(filter.accept(address("10.1.0.1")));
+    assertFalse(filter.accept(address("10.1.2.3")));
+    assertTrue(filter.accept(address("10.1.2.4")));
+    assertTrue(filter.accept(address("192.168.1.127")));
+    assertFalse(filter.accept(address("192.168.1.128")));
+    assertFalse(filter.accept(address("192.168.1.255")));
+    assertTrue(filter.accept(address("11.0.0.0")));
+    // IPv4-mapped IPv6 addresses.
+    final byte[] mapped = new byte[16];
+    mapped[10] = mapped[11] = (byte)0xff;
+    mapped[12] = 10;
+    mapped[15] = 1;
+    assertFalse(filter.accept(mapped));
+  }
+
+  @Test
+  public void testIpv6() throws IOException {
+    final IpFilter filter = new IpFilter.Builder().
+      allowByDefault(false).
+      allow("2001:db8::/32").
+      deny("2001:db8:dead::/48").
+      allow("127.0.0.1").
+      build();
+    assertTrue(filter.accept(address("2001:db8::1")));
+    assertTrue(filter.accept(address("2001:db8:ffff::1")));
+    assertFalse(filter.accept(address("2001:db8:dead::1")));
+    assertFalse(filter.accept(address("2001:db9::1")));
+    assertFalse(filter.accept(address("::1")));
+    assertTrue(filter.accept(address("127.0.0.1")));
+    assertFalse(filter.accept(address("127.0.0.2")));
+    // A /0 rule matches everything.
+    assertFalse(new IpFilter.Builder().deny("0.0.0.0/0").build().accept(address("1.2.3.4")));
+    assertTrue(new IpFilter.Builder().deny("0.0.0.0/0").build().accept(address("::2")));
+  }
+
+  @Test
+  public void testInvalid() {
+    final String[] invalid = new String[] {
+      "", "localhost", "10.0.0.0/33", "10.0.0.0/-1", "10.0.0.0/a", "2001:db8::/129", "10.0.0/8x",
+      "300.1.1.1", "1.2.3.4.5", "1.2.3", "1..2.3", "1.2.3.", "0001.2.3.4", "::ffff:300.1.1.1"
+    };
+    for (final String cidr: invalid) {
+      try {
+        new IpFilter.Builder().deny(cidr);
+        fail(cidr);
+      }
+      catch (final IllegalArgumentException ignore) {}
+    }
+  }
+
+  private static void testServer(final Dispatcher<?> dispatcher) throws IOException {
+    final HttpServer server = new HttpServer().port(8091).securePort(0).dispatcher(dispatcher);
+    //noinspection Convert2Lambda
+    server.requestHandler(
+      new RequestHandler() {
+        @Override
+        public Response handle(final String clientIp, final boolean secure, final boolean insecureOnly,
+                               final boolean http2, final String method, final RequestTarget target,
+                               final Headers requestHeaders, final @Nullable Buffer requestBody) {
+          return new Response.Builder().statusLine(StatusLines.OK).body(clientIp).build();
+        }
+      }
+    );
+    server.ipFilter(new IpFilter.Builder().deny("127.0.0.0/8").build());
+    server.start();
+    try {
+      final OkHttpClient client = new OkHttpClient.Builder().
+        retryOnConnectionFailure(false).readTimeout(5, TimeUnit.SECONDS).build();
+      final Request request = new Request.Builder().url("http://127.0.0.1:8091").build();
+      try {
+        client.newCall(request).execute().close();
+        fail();
+      }
+      catch (final IOException ignore) {}
+      // The filter is replaced while the server is running.
+      server.ipFilter(new IpFilter.Builder().deny("10.0.0.0/8").build());
+      assertEquals("127.0.0.1", client.newCall(request).execute().body().string());
+      server.ipFilter(null);
+      assertEquals("127.0.0.1", client.newCall(request).execute().body().string());
+    }
+    finally {
+      server.shutdown();
+    }
+  }
+
+  @Test
+  public void testSocketDispatcher() throws IOException {
+    testServer(new SocketDispatcher.Default());
+  }
+
+  @Test
+  public void testChannelDispatcher() throws IOException {
+    testServer(new ChannelDispatcher());
+  }
+
+}
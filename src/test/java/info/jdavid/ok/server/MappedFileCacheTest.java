@@ -0,0 +1,109 @@
+package info.jdavid.ok.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class MappedFileCacheTest {
+
+  @Test
+  public void testReferences() throws IOException {
+    final File file = File.createTempFile("mapped", ".txt");
+    try {
+      final BufferedSink sink = Okio.buffer(Okio.sink(file));
+      sink.writeUtf8("0123456789");
+      sink.close();
+      final MappedFileCache cache = new MappedFileCache(10, 0);
+      assertTrue(cache.accepts(10));
+      assertFalse(cache.accepts(9));
+      final MappedFileCache.Mapping mapping1 = cache.acquire(file, "a");
+      final MappedFileCache.Mapping mapping2 = cache.acquire(file, "a");
+      assertSame(mapping1, mapping2);
+      assertEquals(1, cache.size());
+      final MappedFileCache.Mapping mapping3 = cache.acquire(file, "b");
+      assertNotSame(mapping1, mapping3);
+      assertEquals(2, cache.size());
+      final ByteBuffer slice = mapping1.slice(2, 3);
+      assertEquals(3, slice.remaining());
+      assertEquals('2', slice.get());
+      try {
+        mapping1.slice(8, 3);
+        fail("The region is outside the file.");
+      }
+      catch (final IOException ignore) {}
+      cache.release(mapping1);
+      cache.release(mapping3);
+      assertEquals(1, cache.size());
+      cache.release(mapping2);
+      assertEquals(0, cache.size());
+    }
+    finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testIdle() throws IOException {
+    final File file = File.createTempFile("mapped", ".txt");
+    try {
+      final BufferedSink sink = Okio.buffer(Okio.sink(file));
+      sink.writeUtf8("0123456789");
+      sink.close();
+      final MappedFileCache cache = new MappedFileCache(0, 1);
+      final MappedFileCache.Mapping mapping1 = cache.acquire(file, "a");
+      cache.release(mapping1);
+      // Kept for the next requests.
+      assertEquals(1, cache.size());
+      assertSame(mapping1, cache.acquire(file, "a"));
+      final MappedFileCache.Mapping mapping2 = cache.acquire(file, "b");
+      cache.release(mapping1);
+      assertEquals(2, cache.size());
+      // Only one idle mapping is kept, the oldest one is dropped.
+      cache.release(mapping2);
+      assertEquals(1, cache.size());
+      assertSame(mapping2, cache.acquire(file, "b"));
+      assertNotSame(mapping1, cache.acquire(file, "a"));
+    }
+    finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testBody() throws IOException {
+    final File file = File.createTempFile("mapped", ".txt");
+    try {
+      final BufferedSink sink = Okio.buffer(Okio.sink(file));
+      sink.writeUtf8("0123456789");
+      sink.close();
+      final MappedFileCache cache = new MappedFileCache(0, 0);
+      final Response.FileBody body1 = new Response.FileBody(MediaTypes.TEXT, file, 1, 8, cache, "a");
+      final Response.FileBody body2 = new Response.FileBody(MediaTypes.TEXT, file, 3, 2, cache, "a");
+      final BufferedSource source1 = body1.source();
+      assertEquals("12", source1.readUtf8(2));
+      assertEquals(1, cache.size());
+      assertEquals("34", body2.source().readUtf8());
+      assertEquals(1, cache.size());
+      final Buffer buffer = new Buffer();
+      source1.readAll(buffer);
+      assertEquals("345678", buffer.readUtf8());
+      assertEquals(0, cache.size());
+    }
+    finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+}
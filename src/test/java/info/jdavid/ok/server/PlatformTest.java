@@ -0,0 +1,35 @@
+package info.jdavid.ok.server;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PlatformTest {
+
+  @Test
+  public void testSupported() {
+    final List<String> preferred = Arrays.asList("c", "a", "b");
+    assertEquals(Arrays.asList("c", "b"), Platform.supported(preferred, new String[] { "b", "c", "d" }));
+    assertEquals(preferred, Platform.supported(preferred, null));
+    assertEquals(Collections.<String>emptyList(), Platform.supported(preferred, new String[0]));
+  }
+
+  @Test
+  public void testDefaults() {
+    final Platform platform = Platform.findPlatform();
+    final List<String> protocols = platform.defaultProtocols();
+    assertTrue(protocols.contains("TLSv1.2"));
+    if (Float.parseFloat(System.getProperty("java.specification.version")) >= 11) {
+      assertEquals("TLSv1.3", protocols.get(0));
+      final List<String> cipherSuites = platform.defaultCipherSuites();
+      assertEquals(Platform.hasAesIntrinsics() ? "TLS_AES_128_GCM_SHA256" : "TLS_CHACHA20_POLY1305_SHA256",
+                   cipherSuites.get(0));
+    }
+  }
+
+}
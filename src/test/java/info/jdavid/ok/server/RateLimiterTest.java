@@ -0,0 +1,140 @@
+package info.jdavid.ok.server;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import info.jdavid.ok.server.handler.RegexHandler;
+import info.jdavid.ok.server.handler.Request;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+@SuppressWarnings("ConstantConditions")
+public class RateLimiterTest {
+
+  private static final Headers NO_HEADERS = new Headers.Builder().build();
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1L);
+
+  @Test
+  public void testBurst() {
+    final RateLimiter limiter = new RateLimiter.Builder().limit(3, 1.0).build();
+    final long now = System.nanoTime();
+    for (int i=0; i<3; ++i) {
+      assertEquals(0L, limiter.acquire("1.1.1.1", "/", NO_HEADERS, now));
+    }
+    assertEquals(1L, limiter.acquire("1.1.1.1", "/", NO_HEADERS, now));
+    assertEquals(1L, limiter.rejectedCount());
+    // Other clients have their own bucket.
+    assertEquals(0L, limiter.acquire("2.2.2.2", "/", NO_HEADERS, now));
+    // One token per second.
+    assertEquals(0L, limiter.acquire("1.1.1.1", "/", NO_HEADERS, now + SECOND));
+    assertEquals(1L, limiter.acquire("1.1.1.1", "/", NO_HEADERS, now + SECOND));
+    // The bucket never holds more than its capacity.
+    final long later = now + 60 * SECOND;
+    for (int i=0; i<3; ++i) {
+      assertEquals(0L, limiter.acquire("1.1.1.1", "/", NO_HEADERS, later));
+    }
+    assertEquals(1L, limiter.acquire("1.1.1.1", "/", NO_HEADERS, later));
+  }
+
+  @Test
+  public void testRetryAfter() {
+    final RateLimiter limiter = new RateLimiter.Builder().limit(1, 0.1).build();
+    final long now = System.nanoTime();
+    assertEquals(0L, limiter.acquire("1.1.1.1", "/", NO_HEADERS, now));
+    assertEquals(10L, limiter.acquire("1.1.1.1", "/", NO_HEADERS, now));
+    assertEquals(6L, limiter.acquire("1.1.1.1", "/", NO_HEADERS, now + 4 * SECOND + 1));
+    assertEquals(0L, limiter.acquire("1.1.1.1", "/", NO_HEADERS, now + 10 * SECOND));
+  }
+
+  @Test
+  public void testRoutes() {
+    final RateLimiter limiter = new RateLimiter.Builder().route("/api/", 1, 1.0).build();
+    final long now = System.nanoTime();
+    assertEquals(0L, limiter.acquire("1.1.1.1", "/api/a", NO_HEADERS, now));
+    assertEquals(1L, limiter.acquire("1.1.1.1", "/api/b", NO_HEADERS, now));
+    // No limit for the other paths.
+    for (int i=0; i<10; ++i) {
+      assertEquals(0L, limiter.acquire("1.1.1.1", "/index.html", NO_HEADERS, now));
+    }
+
+    final RateLimiter limiter2 = new RateLimiter.Builder().
+      route("/login", 1, 1.0).limit(2, 1.0).build();
+    assertEquals(0L, limiter2.acquire("1.1.1.1", "/login", NO_HEADERS, now));
+    assertEquals(1L, limiter2.acquire("1.1.1.1", "/login", NO_HEADERS, now));
+    assertEquals(0L, limiter2.acquire("1.1.1.1", "/", NO_HEADERS, now));
+    assertEquals(0L, limiter2.acquire("1.1.1.1", "/", NO_HEADERS, now));
+    assertEquals(1L, limiter2.acquire("1.1.1.1", "/", NO_HEADERS, now));
+  }
+
+  @Test
+  public void testKeyHeader() {
+    final RateLimiter limiter = new RateLimiter.Builder().limit(1, 1.0).keyHeader("X-Real-IP").build();
+    final long now = System.nanoTime();
+    assertEquals(0L, limiter.acquire("10.0.0.1", "/", Headers.of("X-Real-IP", "1.1.1.1"), now));
+    assertEquals(0L, limiter.acquire("10.0.0.1", "/", Headers.of("X-Real-IP", "2.2.2.2"), now));
+    assertEquals(1L, limiter.acquire("10.0.0.2", "/", Headers.of("X-Real-IP", "1.1.1.1"), now));
+    assertEquals(0L, limiter.acquire("10.0.0.1", "/", NO_HEADERS, now));
+    assertEquals(1L, limiter.acquire("10.0.0.1", "/", NO_HEADERS, now));
+  }
+
+  @Test
+  public void testMaxKeys() {
+    final RateLimiter limiter = new RateLimiter.Builder().limit(2, 1.0).maxKeys(10).build();
+    final long now = System.nanoTime();
+    for (int i=0; i<100; ++i) {
+      assertEquals(0L, limiter.acquire("10.0.0." + i, "/", NO_HEADERS, now));
+      assertTrue(limiter.keyCount() <= 11);
+    }
+    // Buckets are evicted down to 90% of the limit.
+    final RateLimiter limiter1 = new RateLimiter.Builder().limit(2, 1.0).maxKeys(100).build();
+    for (int i=0; i<100; ++i) {
+      limiter1.acquire("10.0.0." + i, "/", NO_HEADERS, now);
+    }
+    assertEquals(100, limiter1.keyCount());
+    limiter1.acquire("10.0.1.0", "/", NO_HEADERS, now);
+    assertEquals(90, limiter1.keyCount());
+    // Idle buckets are forgotten.
+    final RateLimiter limiter2 = new RateLimiter.Builder().limit(2, 1.0).idleTimeout(1000L).build();
+    for (int i=0; i<10; ++i) {
+      limiter2.acquire("10.0.0." + i, "/", NO_HEADERS, now);
+    }
+    assertEquals(10, limiter2.keyCount());
+    limiter2.acquire("10.0.1.0", "/", NO_HEADERS, now + 10 * SECOND);
+    assertEquals(1, limiter2.keyCount());
+  }
+
+  private static Response get(final RequestHandlerChain chain, final String clientIp,
+                              final RequestTarget target) {
+    return chain.handle(clientIp, true, false, false, "GET", target, NO_HEADERS, null);
+  }
+
+  @Test
+  public void testChain() {
+    final RateLimiter limiter = new RateLimiter.Builder().limit(2, 0.5).build();
+    final RequestHandlerChain chain = new RequestHandlerChain() {
+      @Override protected @Nullable RateLimiter rateLimiter() {
+        return limiter;
+      }
+    };
+    chain.add(new RegexHandler("GET", "/") {
+      @Override public Response.Builder handle(final Request request, final String[] params) {
+        return new Response.Builder().statusLine(StatusLines.OK).body("ok");
+      }
+    });
+    chain.init();
+    final RequestTarget target = RequestTarget.create(HttpUrl.parse("http://localhost:8080/"));
+    assertEquals(200, get(chain, "127.0.0.1", target).code());
+    assertEquals(200, get(chain, "127.0.0.1", target).code());
+    final Response response = get(chain, "127.0.0.1", target);
+    assertEquals(429, response.code());
+    final long retryAfter = Long.parseLong(response.header("Retry-After"));
+    assertTrue(retryAfter >= 1L && retryAfter <= 2L);
+    assertEquals(200, get(chain, "127.0.0.2", target).code());
+  }
+
+}
@@ -10,7 +10,6 @@ import javax.annotation.Nullable;
 
 import okhttp3.ConnectionPool;
 import okhttp3.Headers;
-import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -31,7 +30,7 @@ public class RequestHandlerTest {
     new RequestHandler() {
       @Override
       public Response handle(final String clientIp, final boolean secure, final boolean insecureOnly,
-                             final boolean http2, final String method, final HttpUrl url,
+                             final boolean http2, final String method, final RequestTarget target,
                              final Headers requestHeaders, final @Nullable Buffer requestBody) {
         final Buffer buffer = new Buffer();
         System.out.println(clientIp);
@@ -40,8 +39,8 @@ public class RequestHandlerTest {
         buffer.writeByte(secure ? 0x01 : 0x00);
         buffer.writeByte(byteLength(method));
         buffer.writeUtf8(method);
-        buffer.writeByte(byteLength(url.toString()));
-        buffer.writeUtf8(url.toString());
+        buffer.writeByte(byteLength(target.toString()));
+        buffer.writeUtf8(target.toString());
         buffer.writeByte(requestHeaders.size());
         for (int i = 0; i < requestHeaders.size(); ++i) {
           final String name = requestHeaders.name(i);
@@ -0,0 +1,71 @@
+package info.jdavid.ok.server;
+
+import java.util.Arrays;
+
+import okhttp3.HttpUrl;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class RequestTargetTest {
+
+  @Test
+  public void testCanonical() {
+    final RequestTarget target = new RequestTarget(false, "localhost:8080", "/a/b.html?x=1&y=2");
+    assertEquals("/a/b.html", target.encodedPath());
+    assertEquals("x=1&y=2", target.encodedQuery());
+    assertEquals("localhost", target.host());
+    assertEquals(8080, target.port());
+    assertEquals("http", target.scheme());
+    assertEquals("http://localhost:8080/a/b.html?x=1&y=2", target.url().toString());
+    assertEquals(Arrays.asList("a", "b.html"), target.pathSegments());
+
+    final RequestTarget root = new RequestTarget(true, "example.com", "/");
+    assertEquals("/", root.encodedPath());
+    assertNull(root.encodedQuery());
+    assertEquals("example.com", root.host());
+    assertEquals(443, root.port());
+    assertEquals("https://example.com/", root.toString());
+  }
+
+  @Test
+  public void testNonCanonical() {
+    assertEquals(-1, RequestTarget.canonicalPathEnd("/a/../b"));
+    assertEquals(-1, RequestTarget.canonicalPathEnd("/a/./b"));
+    assertEquals(-1, RequestTarget.canonicalPathEnd("/.."));
+    assertEquals(-1, RequestTarget.canonicalPathEnd("/a%20b"));
+    assertEquals(-1, RequestTarget.canonicalPathEnd("/a b"));
+    assertEquals(-1, RequestTarget.canonicalPathEnd("*"));
+    assertEquals(2, RequestTarget.canonicalPathEnd("/a?../b"));
+    assertEquals(5, RequestTarget.canonicalPathEnd("/.a/b"));
+
+    assertEquals("/b", new RequestTarget(false, "localhost", "/a/../b").encodedPath());
+    assertEquals("/b", new RequestTarget(false, "localhost", "/../b").encodedPath());
+    assertEquals("/a%20b", new RequestTarget(false, "localhost", "/a b").encodedPath());
+    assertEquals("::1", new RequestTarget(false, "[::1]:8080", "/").host());
+    assertEquals(8080, new RequestTarget(false, "[::1]:8080", "/").port());
+    assertEquals("example.com", new RequestTarget(false, "EXAMPLE.com", "/").host());
+
+    final RequestTarget invalid = new RequestTarget(false, "local host", "/a");
+    assertEquals("http://local host/a", invalid.toString());
+    try {
+      invalid.url();
+      fail();
+    }
+    catch (final IllegalArgumentException ignore) {}
+  }
+
+  @Test
+  public void testFromUrl() {
+    final HttpUrl url = HttpUrl.parse("https://localhost:8181/a/b?c=d");
+    final RequestTarget target = RequestTarget.create(url);
+    assertSame(url, target.url());
+    assertEquals("/a/b", target.encodedPath());
+    assertEquals("c=d", target.encodedQuery());
+    assertEquals("localhost", target.host());
+    assertEquals(8181, target.port());
+    assertTrue(target.isHttps());
+  }
+
+}
@@ -2,6 +2,7 @@ package info.jdavid.ok.server;
 
 import okhttp3.internal.http.StatusLine;
 import okio.Buffer;
+import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.ForwardingTimeout;
 import okio.Okio;
@@ -13,6 +14,7 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.net.ProtocolException;
+import java.util.Collections;
 import java.util.List;
 
 
@@ -52,6 +54,13 @@ public class ResponseBuilderTest {
       fail("Should have failed because both body and chunks were specified.");
     }
     catch (final IllegalStateException ignore) {}
+    try {
+      new Response.Builder().body("body").stream(MediaTypes.TEXT, new Response.StreamWriter() {
+        @Override public void write(final BufferedSink sink) {}
+      }).build();
+      fail("Should have failed because both body and stream were specified.");
+    }
+    catch (final IllegalStateException ignore) {}
   }
 
   @Test
@@ -154,6 +163,101 @@ public class ResponseBuilderTest {
     buffer.readByteArray();
   }
 
+  @Test
+  public void testStream() throws IOException {
+    final Buffer buffer = new Buffer();
+    //noinspection Convert2Lambda
+    response(200).stream(MediaTypes.TEXT, new Response.StreamWriter() {
+      @Override public void write(final BufferedSink sink) throws IOException {
+        sink.writeUtf8("1").emit();
+        sink.writeUtf8("23").flush();
+        for (int i=0; i<10000; ++i) {
+          sink.writeUtf8("4");
+        }
+      }
+    }).build().writeBody(null, buffer);
+    final String body = Okio.buffer(new ChunkedSource(buffer)).readUtf8();
+    assertEquals(10003, body.length());
+    assertTrue(body.startsWith("1234"));
+  }
+
+  private String sse(final Response.EventSource.Overflow overflow) throws IOException {
+    final Response.EventSource eventSource = new Response.EventSource(2, overflow, 0, 0L);
+    final Response response = response(200).sse(eventSource, 5).build();
+    assertEquals(1, eventSource.subscriberCount());
+    eventSource.send("a");
+    eventSource.send("b");
+    eventSource.send("c");
+    eventSource.close();
+    final Buffer buffer = new Buffer();
+    response.writeBody(null, buffer);
+    assertEquals(0, eventSource.subscriberCount());
+    assertEquals(1, eventSource.overflowCount());
+    return buffer.readUtf8();
+  }
+
+  @Test
+  public void testSSE() throws IOException {
+    final Response.EventSource eventSource = new Response.EventSource();
+    final Response response = response(200).sse(eventSource, 3).build();
+    eventSource.send("1\n2", Collections.singletonMap("event", "update"));
+    eventSource.close();
+    final Buffer buffer = new Buffer();
+    response.writeBody(null, buffer);
+    assertEquals("retry: 3\nevent: update\ndata: 1\ndata: 2\n\n", buffer.readUtf8());
+    // Without history, the ids can be set by the caller.
+    final Response.EventSource withIds = new Response.EventSource();
+    final Response response2 = response(200).sse(withIds, 3).build();
+    withIds.send("a", Collections.singletonMap("id", "1"));
+    withIds.close();
+    response2.writeBody(null, buffer);
+    assertEquals("retry: 3\nid: 1\ndata: a\n\n", buffer.readUtf8());
+    assertEquals("retry: 5\ndata: a\n\ndata: b\n\n", sse(Response.EventSource.Overflow.DROP));
+    assertEquals("retry: 5\ndata: c\n\n", sse(Response.EventSource.Overflow.COALESCE));
+    assertEquals("retry: 5\n", sse(Response.EventSource.Overflow.DISCONNECT));
+  }
+
+  @Test
+  public void testSSEReplay() throws IOException {
+    final Response.EventSource eventSource =
+      new Response.EventSource(16, Response.EventSource.Overflow.DISCONNECT, 3, 1024L);
+    final String prefix = eventSource.idPrefix;
+    final Response first = response(200).sse(eventSource, 5).build();
+    for (final String data: new String[] { "a", "b", "c", "d", "e" }) {
+      eventSource.send(data);
+    }
+    final Response missed = response(200).sse(eventSource, 5, prefix + "3").build();
+    final Response agedOut = response(200).sse(eventSource, 5, prefix + "1").build();
+    final Response upToDate = response(200).sse(eventSource, 5, prefix + "5").build();
+    final Response other = response(200).sse(eventSource, 5, "other-5").build();
+    eventSource.send("f");
+    eventSource.close();
+    final String reset = "id: " + prefix + "5\nevent: reset\ndata\n\n";
+    final String f = "id: " + prefix + "6\ndata: f\n\n";
+    final Buffer buffer = new Buffer();
+    first.writeBody(null, buffer);
+    final StringBuilder all = new StringBuilder("retry: 5\n");
+    for (int i=0; i<5; ++i) {
+      all.append("id: ").append(prefix).append(i + 1).append("\n");
+      all.append("data: ").append((char)('a' + i)).append("\n\n");
+    }
+    assertEquals(all.append(f).toString(), buffer.readUtf8());
+    missed.writeBody(null, buffer);
+    assertEquals("retry: 5\nid: " + prefix + "4\ndata: d\n\nid: " + prefix + "5\ndata: e\n\n" + f,
+                 buffer.readUtf8());
+    agedOut.writeBody(null, buffer);
+    assertEquals("retry: 5\n" + reset + f, buffer.readUtf8());
+    upToDate.writeBody(null, buffer);
+    assertEquals("retry: 5\n" + f, buffer.readUtf8());
+    other.writeBody(null, buffer);
+    assertEquals("retry: 5\n" + reset + f, buffer.readUtf8());
+    try {
+      eventSource.send("g", Collections.singletonMap("id", "1"));
+      fail("Should have failed because the id is set by the event source.");
+    }
+    catch (final IllegalArgumentException ignore) {}
+  }
+
   private static class ChunkedSource implements Source {
     private static final long NO_CHUNK_YET = -1L;
     private long bytesRemainingInChunk = NO_CHUNK_YET;
@@ -0,0 +1,133 @@
+package info.jdavid.ok.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okio.Buffer;
+import okio.BufferedSource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+@SuppressWarnings("ConstantConditions")
+public class SSEWriterPoolTest {
+
+  private static OkHttpClient client(final List<Protocol> protocols) {
+    return HttpsTest.client.newBuilder().
+      readTimeout(5, TimeUnit.SECONDS).
+      retryOnConnectionFailure(false).
+      protocols(protocols).
+      connectionPool(new ConnectionPool(5, 1L, TimeUnit.SECONDS)).
+      build();
+  }
+
+  private static final HttpServer SERVER = new HttpServer();
+  private static final SSEWriterPool WRITERS = new SSEWriterPool(1, 2000L);
+  private static final Response.EventSource EVENT_SOURCE = new Response.EventSource(WRITERS);
+
+  @BeforeClass
+  public static void startServer() throws IOException {
+    //noinspection Convert2Lambda
+    SERVER.
+      ports(8080, 8181).
+      https(new Https.Builder().certificate(HttpsTest.cert, true).build()).
+      // Fewer threads than subscribers.
+      dispatcher(new SocketDispatcher.MultiThreadsDispatcher(2)).
+      requestHandler(
+        new RequestHandler() {
+          @Override
+          public Response handle(final String clientIp, final boolean secure, final boolean insecureOnly,
+                                 final boolean http2, final String method, final RequestTarget target,
+                                 final Headers requestHeaders, final @Nullable Buffer requestBody) {
+            if ("/sse".equals(target.encodedPath())) {
+              return new Response.Builder().
+                sse(EVENT_SOURCE, 5, requestHeaders.get("Last-Event-ID")).build();
+            }
+            return new Response.Builder().statusLine(StatusLines.OK).body("ok").build();
+          }
+        }
+      ).
+      start();
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    SERVER.shutdown();
+    WRITERS.shutdown();
+  }
+
+  private static void await(final int subscriberCount) {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L);
+    while (WRITERS.subscriberCount() != subscriberCount) {
+      assertTrue(System.nanoTime() < deadline);
+      // Writing to the closed connections is how they are found out.
+      EVENT_SOURCE.send("ping");
+      try { Thread.sleep(50L); } catch (final InterruptedException ignore) {}
+    }
+  }
+
+  private static void read(final BufferedSource source, final String data) throws IOException {
+    while (true) {
+      final String line = source.readUtf8LineStrict();
+      if (line.equals("data: " + data)) break;
+    }
+  }
+
+  @Test
+  public void testDetached() throws IOException {
+    await(0);
+    final OkHttpClient client = client(Collections.singletonList(Protocol.HTTP_1_1));
+    final List<okhttp3.Response> responses = new ArrayList<>();
+    for (int i=0; i<6; ++i) {
+      final String url = i % 2 == 0 ? "http://localhost:8080/sse" : "https://localhost:8181/sse";
+      final okhttp3.Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+      assertEquals(200, response.code());
+      assertEquals("retry: 5", response.body().source().readUtf8LineStrict());
+      responses.add(response);
+    }
+    assertEquals(6, WRITERS.subscriberCount());
+    // The dispatcher threads are available for other requests.
+    assertEquals("ok", client.newCall(
+      new Request.Builder().url("http://localhost:8080/ok").build()
+    ).execute().body().string());
+    EVENT_SOURCE.send("test");
+    for (final okhttp3.Response response: responses) {
+      read(response.body().source(), "test");
+    }
+    for (final okhttp3.Response response: responses) {
+      response.close();
+    }
+    await(0);
+    assertEquals(0, EVENT_SOURCE.subscriberCount());
+  }
+
+  @Test
+  public void testHttp2() throws IOException {
+    await(0);
+    final okhttp3.Response response = client(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)).
+      newCall(new Request.Builder().url("https://localhost:8181/sse").build()).execute();
+    assertEquals(Protocol.HTTP_2, response.protocol());
+    final BufferedSource source = response.body().source();
+    assertEquals("retry: 5", source.readUtf8LineStrict());
+    assertEquals(1, WRITERS.subscriberCount());
+    EVENT_SOURCE.send("test2");
+    read(source, "test2");
+    response.close();
+    await(0);
+  }
+
+}
@@ -0,0 +1,129 @@
+package info.jdavid.ok.server;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+@SuppressWarnings("ConstantConditions")
+public class StreamResponseTest {
+
+  private static OkHttpClient client(final List<Protocol> protocols) {
+    return HttpsTest.client.newBuilder().
+      readTimeout(10, TimeUnit.SECONDS).
+      retryOnConnectionFailure(false).
+      protocols(protocols).
+      connectionPool(new ConnectionPool(5, 1L, TimeUnit.SECONDS)).
+      build();
+  }
+
+  private static final HttpServer SERVER = new HttpServer();
+  private static volatile CountDownLatch received = new CountDownLatch(1);
+
+  @BeforeClass
+  public static void startServer() throws IOException {
+    //noinspection Convert2Lambda
+    SERVER.
+      ports(8080, 8181).
+      https(new Https.Builder().certificate(HttpsTest.cert, true).build()).
+      requestHandler(
+        new RequestHandler() {
+          @Override
+          public Response handle(final String clientIp, final boolean secure, final boolean insecureOnly,
+                                 final boolean http2, final String method, final RequestTarget target,
+                                 final Headers requestHeaders, final @Nullable Buffer requestBody) {
+            if ("/chunks".equals(target.encodedPath())) {
+              return new Response.Builder().statusLine(StatusLines.OK).chunks("1", "23", "", "4").build();
+            }
+            return new Response.Builder().statusLine(StatusLines.OK).stream(
+              MediaTypes.TEXT,
+              new Response.StreamWriter() {
+                @Override public void write(final BufferedSink sink) throws IOException {
+                  sink.writeUtf8("first\n").flush();
+                  try {
+                    // The client should get the first line before the rest of the body is written.
+                    if (!received.await(5L, TimeUnit.SECONDS)) throw new IOException("Not received.");
+                  }
+                  catch (final InterruptedException e) {
+                    throw new IOException(e);
+                  }
+                  for (int i=0; i<10000; ++i) {
+                    sink.writeUtf8(String.valueOf(i % 10));
+                  }
+                }
+              },
+              4096L, 50L
+            ).build();
+          }
+        }
+      ).
+      start();
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    SERVER.shutdown();
+  }
+
+  private static void test(final OkHttpClient client, final String url,
+                           @Nullable final Protocol protocol) throws IOException {
+    received = new CountDownLatch(1);
+    final okhttp3.Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+    if (protocol != null) assertEquals(protocol, response.protocol());
+    assertEquals(200, response.code());
+    assertNull(response.header("Content-Length"));
+    final BufferedSource source = response.body().source();
+    assertEquals("first", source.readUtf8LineStrict());
+    received.countDown();
+    final String rest = source.readUtf8();
+    assertEquals(10000, rest.length());
+    for (int i=0; i<10000; ++i) {
+      assertEquals('0' + i % 10, rest.charAt(i));
+    }
+    response.close();
+  }
+
+  @Test
+  public void testHttp() throws IOException {
+    final OkHttpClient client = client(Collections.singletonList(Protocol.HTTP_1_1));
+    for (int i=0; i<2; ++i) {
+      test(client, "http://localhost:8080/stream", null);
+      test(client, "https://localhost:8181/stream", null);
+    }
+    assertEquals("1234", client.newCall(
+      new Request.Builder().url("http://localhost:8080/chunks").build()
+    ).execute().body().string());
+  }
+
+  @Test
+  public void testHttp2() throws IOException {
+    final OkHttpClient client = client(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+    test(client, "https://localhost:8181/stream", Protocol.HTTP_2);
+    final okhttp3.Response response = client.newCall(
+      new Request.Builder().url("https://localhost:8181/chunks").build()
+    ).execute();
+    assertEquals(Protocol.HTTP_2, response.protocol());
+    assertNull(response.header("Transfer-Encoding"));
+    assertEquals("1234", response.body().string());
+  }
+
+}
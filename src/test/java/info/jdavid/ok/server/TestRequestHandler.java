@@ -3,7 +3,6 @@ package info.jdavid.ok.server;
 import javax.annotation.Nullable;
 
 import okhttp3.Headers;
-import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okio.Buffer;
 
@@ -16,11 +15,11 @@ public class TestRequestHandler implements RequestHandler {
                                    final boolean insecureOnly,
                                    final boolean http2,
                                    final String method,
-                                   final HttpUrl url,
+                                   final RequestTarget target,
                                    final Headers requestHeaders,
                                    @Nullable final Buffer requestBody) {
     final Response.Builder builder = new Response.Builder();
-    if ("/test".equals(url.encodedPath())) {
+    if ("/test".equals(target.encodedPath())) {
       builder.statusLine(StatusLines.OK);
       builder.headers(requestHeaders);
       if (requestBody != null) {
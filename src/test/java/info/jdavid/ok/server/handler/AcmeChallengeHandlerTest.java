@@ -10,6 +10,7 @@ import info.jdavid.ok.server.HttpServer;
 import info.jdavid.ok.server.Https;
 import info.jdavid.ok.server.HttpsTest;
 import info.jdavid.ok.server.RequestHandlerChain;
+import info.jdavid.ok.server.RequestTarget;
 import okhttp3.ConnectionPool;
 import okhttp3.Headers;
 import okhttp3.HttpUrl;
@@ -49,8 +50,8 @@ public class AcmeChallengeHandlerTest {
       maxRequestSize(4096).
       requestHandler(new RequestHandlerChain(new AcmeChallengeHandler(root)) {
         @Override
-        protected boolean allowInsecure(final String method, final HttpUrl url, final Headers requestHeaders,
-                                        final boolean insecureOnly) {
+        protected boolean allowInsecure(final String method, final RequestTarget target,
+                                        final Headers requestHeaders, final boolean insecureOnly) {
           return true;
         }
       }.add(new FileHandler(root))).
@@ -0,0 +1,217 @@
+package info.jdavid.ok.server.handler;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nullable;
+
+import info.jdavid.ok.server.ChannelDispatcher;
+import info.jdavid.ok.server.HttpServer;
+import info.jdavid.ok.server.Https;
+import info.jdavid.ok.server.HttpsTest;
+import info.jdavid.ok.server.RequestHandlerChain;
+import info.jdavid.ok.server.RequestTarget;
+import info.jdavid.ok.server.Response;
+import info.jdavid.ok.server.StatusLines;
+import okhttp3.ConnectionPool;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okio.BufferedSource;
+import okio.Okio;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+@SuppressWarnings("ConstantConditions")
+public class AsyncHandlerTest {
+
+  private static final HttpServer SERVER = new HttpServer();
+  private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+  private static volatile CountDownLatch cancelled = new CountDownLatch(1);
+  private static volatile String decoratingThread = null;
+
+  private static class DelayHandler extends RegexHandler implements AsyncHandler {
+
+    DelayHandler() {
+      super("GET", "/(delay|never)");
+    }
+
+    @Override
+    public Response.Builder handle(final Request request, final String[] params) {
+      return handleAsync(request, params).join();
+    }
+
+    @Override
+    public CompletableFuture<Response.Builder> handleAsync(final Request request, final String[] params) {
+      final CompletableFuture<Response.Builder> future = new CompletableFuture<>();
+      future.whenComplete(new BiConsumer<Response.Builder, Throwable>() {
+        @Override public void accept(@Nullable final Response.Builder builder,
+                                     @Nullable final Throwable error) {
+          if (future.isCancelled()) cancelled.countDown();
+        }
+      });
+      if ("delay".equals(params[0])) {
+        EXECUTOR.schedule(new Runnable() {
+          @Override public void run() {
+            future.complete(new Response.Builder().statusLine(StatusLines.OK).body("ok"));
+          }
+        }, 200L, TimeUnit.MILLISECONDS);
+      }
+      return future;
+    }
+
+  }
+
+  @BeforeClass
+  public static void startServer() throws IOException {
+    final BufferedSource source =
+      Okio.buffer(Okio.source(AsyncHandlerTest.class.getResourceAsStream("/test.p12")));
+    final byte[] cert;
+    try {
+      cert = source.readByteArray();
+    }
+    finally {
+      source.close();
+    }
+    SERVER.
+      ports(8080, 8181).
+      https(new Https.Builder().certificate(cert, true).build()).
+      requestHandler(new RequestHandlerChain() {
+        @Override
+        protected boolean allowInsecure(final String method, final RequestTarget target,
+                                        final Headers requestHeaders, final boolean insecureOnly) {
+          return true;
+        }
+        @Override
+        protected long asyncTimeoutMillis() {
+          return 3000L;
+        }
+        @Override
+        protected void decorateResponse(final Response.Builder responseBuilder,
+                                        final String clientIp, final boolean http2,
+                                        final String method, final RequestTarget target,
+                                        final Headers requestHeaders) {
+          decoratingThread = Thread.currentThread().getName();
+          super.decorateResponse(responseBuilder, clientIp, http2, method, target, requestHeaders);
+        }
+      }.add(new DelayHandler())).
+      start();
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    SERVER.shutdown();
+    EXECUTOR.shutdownNow();
+  }
+
+  private static OkHttpClient client(final List<Protocol> protocols, final long readTimeoutMillis) {
+    return HttpsTest.client.newBuilder().
+      readTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS).
+      retryOnConnectionFailure(false).
+      protocols(protocols).
+      connectionPool(new ConnectionPool(5, 1L, TimeUnit.SECONDS)).
+      build();
+  }
+
+  @Test
+  public void testAsync() throws IOException {
+    final OkHttpClient client = client(Collections.singletonList(Protocol.HTTP_1_1), 5000L);
+    for (final String url: new String[] { "http://localhost:8080/delay", "https://localhost:8181/delay" }) {
+      final okhttp3.Response response =
+        client.newCall(new okhttp3.Request.Builder().url(url).build()).execute();
+      assertEquals(200, response.code());
+      assertEquals("ok", response.body().string());
+    }
+    final okhttp3.Response response = client(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1), 5000L).
+      newCall(new okhttp3.Request.Builder().url("https://localhost:8181/delay").build()).execute();
+    assertEquals(Protocol.HTTP_2, response.protocol());
+    assertEquals("ok", response.body().string());
+    // Not accepted by the async handler.
+    assertEquals(404, client.newCall(
+      new okhttp3.Request.Builder().url("http://localhost:8080/other").build()
+    ).execute().code());
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    cancelled = new CountDownLatch(1);
+    final okhttp3.Response response = client(Collections.singletonList(Protocol.HTTP_1_1), 10000L).
+      newCall(new okhttp3.Request.Builder().url("http://localhost:8080/never").build()).execute();
+    assertEquals(503, response.code());
+    response.close();
+    assertTrue(cancelled.await(1L, TimeUnit.SECONDS));
+    // The timeout response is not created on the okio watchdog thread, shared by all the timeouts.
+    assertNotEquals("Okio Watchdog", decoratingThread);
+  }
+
+  private static void testDisconnect(final List<Protocol> protocols, final String url) throws Exception {
+    cancelled = new CountDownLatch(1);
+    final long start = System.nanoTime();
+    try {
+      client(protocols, 300L).newCall(new okhttp3.Request.Builder().url(url).build()).execute();
+      fail("The request should have timed out.");
+    }
+    catch (final IOException ignore) {}
+    assertTrue(cancelled.await(2L, TimeUnit.SECONDS));
+    // Cancelled because of the disconnection, before the handler timeout.
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2500L);
+  }
+
+  @Test
+  public void testDisconnect() throws Exception {
+    testDisconnect(Collections.singletonList(Protocol.HTTP_1_1), "http://localhost:8080/never");
+  }
+
+  @Test
+  public void testDisconnectHttps() throws Exception {
+    testDisconnect(Collections.singletonList(Protocol.HTTP_1_1), "https://localhost:8181/never");
+  }
+
+  @Test
+  public void testDisconnectChannelDispatcher() throws Exception {
+    final BufferedSource source =
+      Okio.buffer(Okio.source(AsyncHandlerTest.class.getResourceAsStream("/test.p12")));
+    final byte[] cert;
+    try {
+      cert = source.readByteArray();
+    }
+    finally {
+      source.close();
+    }
+    final HttpServer server = new HttpServer().
+      ports(8092, 8192).
+      dispatcher(new ChannelDispatcher()).
+      https(new Https.Builder().certificate(cert, true).build()).
+      requestHandler(new RequestHandlerChain() {
+        @Override
+        protected long asyncTimeoutMillis() {
+          return 3000L;
+        }
+      }.add(new DelayHandler()));
+    server.start();
+    try {
+      testDisconnect(Collections.singletonList(Protocol.HTTP_1_1), "https://localhost:8192/never");
+    }
+    finally {
+      server.shutdown();
+    }
+  }
+
+  @Test
+  public void testDisconnectHttp2() throws Exception {
+    testDisconnect(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1), "https://localhost:8181/never");
+  }
+
+}
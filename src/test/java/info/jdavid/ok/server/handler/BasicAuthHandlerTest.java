@@ -12,12 +12,12 @@ import info.jdavid.ok.server.HttpServer;
 import info.jdavid.ok.server.Https;
 import info.jdavid.ok.server.HttpsTest;
 import info.jdavid.ok.server.RequestHandlerChain;
+import info.jdavid.ok.server.RequestTarget;
 import info.jdavid.ok.server.Response;
 import info.jdavid.ok.server.StatusLines;
 import okhttp3.ConnectionPool;
 import okhttp3.Credentials;
 import okhttp3.Headers;
-import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Protocol;
 import org.junit.AfterClass;
@@ -50,7 +50,7 @@ public class BasicAuthHandlerTest {
 //    }
     final Handler handler = new Handler() {
       @Override public Handler setup() { return this; }
-      @Override public String[] matches(final String method, final HttpUrl url) {
+      @Override public String[] matches(final String method, final RequestTarget target) {
         return new String[0];
       }
       @Override public Response.Builder handle(final Request request, final String[] params) {
@@ -66,8 +66,8 @@ public class BasicAuthHandlerTest {
       maxRequestSize(4096).
       requestHandler(new RequestHandlerChain() {
         @Override
-        protected boolean allowInsecure(final String method, final HttpUrl url, final Headers requestHeaders,
-                                        final boolean insecureOnly) {
+        protected boolean allowInsecure(final String method, final RequestTarget target,
+                                        final Headers requestHeaders, final boolean insecureOnly) {
           return true;
         }
       }.add(new BasicAuthHandler(credentials, handler))).
@@ -0,0 +1,144 @@
+package info.jdavid.ok.server.handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import info.jdavid.ok.server.RequestTarget;
+import info.jdavid.ok.server.Response;
+import info.jdavid.ok.server.StatusLines;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+@SuppressWarnings("ConstantConditions")
+public class CoalescingHandlerTest {
+
+  private static class SlowHandler extends RegexHandler {
+    final AtomicInteger count = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+
+    SlowHandler() {
+      super("GET", "/(.*)");
+    }
+
+    @Override public Response.Builder handle(final Request request, final String[] params) {
+      final int n = count.incrementAndGet();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      }
+      catch (final InterruptedException ignore) {}
+      final Response.Builder builder = new Response.Builder().statusLine(StatusLines.OK);
+      if ("cookie".equals(params[0])) builder.header("Set-Cookie", "a=b");
+      return builder.header("X-Count", String.valueOf(n)).body(params[0] + " " + n);
+    }
+  }
+
+  private static Request request(final String path, final Headers headers) {
+    final RequestTarget target = RequestTarget.create(HttpUrl.parse("http://localhost:8080" + path));
+    return new Request("127.0.0.1", false, "GET", target, headers, null);
+  }
+
+  private static List<String> run(final CoalescingHandler handler, final SlowHandler slow,
+                                  final List<String> paths, final Headers headers) throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(paths.size());
+    try {
+      final List<Future<String>> futures = new ArrayList<>();
+      for (final String path: paths) {
+        //noinspection Convert2Lambda
+        futures.add(executor.submit(new Callable<String>() {
+          @Override public String call() {
+            final String[] params = handler.matches("GET", request(path, headers).target);
+            final Response response = handler.handle(request(path, headers), params).build();
+            assertEquals(String.valueOf(path.length() + 1), response.header("Content-Length"));
+            return response.header("X-Count");
+          }
+        }));
+      }
+      // Lets the requests reach the handler before the first response is created.
+      Thread.sleep(300L);
+      slow.release.countDown();
+      final List<String> results = new ArrayList<>();
+      for (final Future<String> future: futures) {
+        results.add(future.get(5, TimeUnit.SECONDS));
+      }
+      return results;
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCoalescing() throws Exception {
+    final SlowHandler slow = new SlowHandler();
+    final CoalescingHandler handler = new CoalescingHandler(slow);
+    assertEquals(Collections.singletonList("GET"), handler.acceptedMethods());
+    assertEquals("/", handler.acceptedPathPrefix());
+    final List<String> results = run(handler, slow, Collections.nCopies(8, "/a"), Headers.of());
+    assertEquals(Collections.nCopies(8, "1"), results);
+    assertEquals(1, slow.count.get());
+    assertEquals(7, handler.coalescedCount());
+  }
+
+  @Test
+  public void testKeys() throws Exception {
+    final SlowHandler slow = new SlowHandler();
+    final CoalescingHandler handler = new CoalescingHandler(
+      slow, CoalescingHandler.keyFunction(Collections.singletonList("Accept-Language")), 5000L, 1024L
+    );
+    final List<String> results = run(handler, slow, Arrays.asList("/a", "/b", "/a", "/b"), Headers.of());
+    assertEquals(2, slow.count.get());
+    assertEquals(results.get(0), results.get(2));
+    assertEquals(results.get(1), results.get(3));
+    assertNotEquals(results.get(0), results.get(1));
+  }
+
+  @Test
+  public void testNotShared() throws Exception {
+    // Responses that set cookies.
+    final SlowHandler slow = new SlowHandler();
+    final CoalescingHandler handler = new CoalescingHandler(slow);
+    run(handler, slow, Collections.nCopies(3, "/cookie"), Headers.of());
+    assertEquals(3, slow.count.get());
+    assertEquals(0, handler.coalescedCount());
+
+    // Requests with credentials.
+    final SlowHandler slow2 = new SlowHandler();
+    final CoalescingHandler handler2 = new CoalescingHandler(slow2);
+    run(handler2, slow2, Collections.nCopies(3, "/a"), Headers.of("Authorization", "Basic YTpi"));
+    assertEquals(3, slow2.count.get());
+
+    // Responses larger than the limit.
+    final SlowHandler slow3 = new SlowHandler();
+    final CoalescingHandler handler3 = new CoalescingHandler(
+      slow3, CoalescingHandler.keyFunction(Collections.<String>emptyList()), 5000L, 2L
+    );
+    run(handler3, slow3, Collections.nCopies(3, "/a"), Headers.of());
+    assertEquals(3, slow3.count.get());
+  }
+
+  @Test
+  public void testMaxWait() throws Exception {
+    final SlowHandler slow = new SlowHandler();
+    final CoalescingHandler handler = new CoalescingHandler(
+      slow, CoalescingHandler.keyFunction(Collections.<String>emptyList()), 50L, 1024L
+    );
+    // The requests stop waiting before the first response is ready.
+    run(handler, slow, Collections.nCopies(3, "/a"), Headers.of());
+    assertEquals(3, slow.count.get());
+    assertEquals(0, handler.coalescedCount());
+  }
+
+}
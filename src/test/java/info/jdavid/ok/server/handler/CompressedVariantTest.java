@@ -0,0 +1,199 @@
+package info.jdavid.ok.server.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import info.jdavid.ok.server.RequestTarget;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.GzipSink;
+import okio.GzipSource;
+import okio.Okio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+@SuppressWarnings("ConstantConditions")
+public class CompressedVariantTest {
+
+  private File root;
+  private File cacheDir;
+  private FileHandler handler;
+  private Request request;
+
+  private static String text(final int lines) {
+    final StringBuilder s = new StringBuilder();
+    for (int i=0; i<lines; ++i) s.append("var line").append(i).append(" = ").append(i * i).append(";\n");
+    return s.toString();
+  }
+
+  private static void write(final File file, final String text, final boolean gzip) throws IOException {
+    final BufferedSink sink = Okio.buffer(gzip ? new GzipSink(Okio.sink(file)) : Okio.sink(file));
+    try {
+      sink.writeUtf8(text);
+    }
+    finally {
+      sink.close();
+    }
+  }
+
+  private static String gunzip(final FileHandler.BufferedSourceWithSize buffered) throws IOException {
+    final BufferedSource source = Okio.buffer(new GzipSource(buffered.source));
+    try {
+      return source.readUtf8();
+    }
+    finally {
+      source.close();
+    }
+  }
+
+  private static void delete(final File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (final File child: children) delete(child);
+    }
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    root = Files.createTempDirectory("variants").toFile();
+    cacheDir = new File(root.getParentFile(), root.getName() + "-gz");
+    handler = new FileHandler(root) {
+      @Override protected File compressedCacheDirectory() {
+        return cacheDir;
+      }
+    };
+    handler.setup();
+    final RequestTarget target = RequestTarget.create(HttpUrl.parse("http://localhost:8080/app.js"));
+    request = new Request("127.0.0.1", false, "GET", target, Headers.of("Accept-Encoding", "gzip"), null);
+  }
+
+  @After
+  public void tearDown() {
+    delete(root);
+    delete(cacheDir);
+  }
+
+  @Test
+  public void testCachedVariant() throws IOException {
+    final File file = new File(root, "app.js");
+    final String text = text(1000);
+    write(file, text, false);
+    assertTrue(file.setLastModified(System.currentTimeMillis() - 60000L));
+    final String etag = handler.etag(file, root);
+    final FileHandler.BufferedSourceWithSize first = handler.source(request, file, etag, true, true);
+    assertTrue(first instanceof FileHandler.FileRegion);
+    final File variant = ((FileHandler.FileRegion)first).file;
+    assertEquals(cacheDir, variant.getParentFile());
+    assertEquals(variant.length(), first.size);
+    assertTrue(first.size < text.length() / 2);
+    assertEquals(text, gunzip(first));
+
+    // The same variant is used until the file changes.
+    final long variantModified = variant.lastModified();
+    final FileHandler.BufferedSourceWithSize second = handler.source(request, file, etag, true, true);
+    assertEquals(variant, ((FileHandler.FileRegion)second).file);
+    assertEquals(variantModified, variant.lastModified());
+    assertEquals(text, gunzip(second));
+
+    final String text2 = text(500);
+    write(file, text2, false);
+    final String etag2 = handler.etag(file, root);
+    assertNotEquals(etag, etag2);
+    final FileHandler.BufferedSourceWithSize third = handler.source(request, file, etag2, true, true);
+    assertNotEquals(variant, ((FileHandler.FileRegion)third).file);
+    assertEquals(text2, gunzip(third));
+    // The previous variant is removed.
+    assertFalse(variant.exists());
+    assertEquals(1, cacheDir.listFiles().length);
+  }
+
+  @Test
+  public void testDefaultDirectory() {
+    final File directory = new FileHandler(root).compressedCacheDirectory();
+    assertNotNull(directory);
+    assertEquals(new File(System.getProperty("java.io.tmpdir")).getAbsoluteFile(),
+                 directory.getParentFile().getAbsoluteFile());
+    assertEquals(directory, new FileHandler(root).compressedCacheDirectory());
+  }
+
+  @Test
+  public void testWatched() throws IOException, InterruptedException {
+    final FileHandler watching = new FileHandler(root) {
+      @Override protected File compressedCacheDirectory() {
+        return cacheDir;
+      }
+      @Override protected boolean cacheMetadata() {
+        return true;
+      }
+    };
+    watching.setup();
+    try {
+      final File file = new File(root, "app.js");
+      write(file, text(100), false);
+      assertTrue(file.setLastModified(System.currentTimeMillis() - 60000L));
+      final String etag = watching.etag(file, root);
+      assertTrue(watching.metadataCache.watch(file));
+      final FileHandler.BufferedSourceWithSize first = watching.source(request, file, etag, true, true);
+      assertEquals(cacheDir, ((FileHandler.FileRegion)first).file.getParentFile());
+      assertEquals(text(100), gunzip(first));
+      // A .gz file added next to the file is picked up once the change is seen by the metadata cache.
+      final File sidecar = new File(root, "app.js.gz");
+      write(sidecar, "sidecar", true);
+      final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15L);
+      while (true) {
+        final FileHandler.BufferedSourceWithSize buffered = watching.source(request, file, etag, true, true);
+        if (sidecar.equals(((FileHandler.FileRegion)buffered).file)) {
+          assertEquals("sidecar", gunzip(buffered));
+          break;
+        }
+        buffered.source.close();
+        assertTrue(System.nanoTime() < deadline);
+        Thread.sleep(20L);
+      }
+    }
+    finally {
+      watching.metadataCache.close();
+    }
+  }
+
+  @Test
+  public void testSidecar() throws IOException {
+    final File file = new File(root, "app.js");
+    final File sidecar = new File(root, "app.js.gz");
+    write(file, text(100), false);
+    write(sidecar, "sidecar", true);
+    final long now = System.currentTimeMillis();
+    assertTrue(file.setLastModified(now - 60000L));
+    assertTrue(sidecar.setLastModified(now - 30000L));
+    final String etag = handler.etag(file, root);
+    final FileHandler.BufferedSourceWithSize buffered = handler.source(request, file, etag, true, true);
+    assertEquals(sidecar, ((FileHandler.FileRegion)buffered).file);
+    assertEquals(sidecar.length(), buffered.size);
+    assertEquals("sidecar", gunzip(buffered));
+
+    // Regenerated sidecars are not confused with the previous version.
+    write(sidecar, "regenerated sidecar", true);
+    assertTrue(sidecar.setLastModified(now - 20000L));
+    final FileHandler.BufferedSourceWithSize regenerated = handler.source(request, file, etag, true, true);
+    assertNotEquals(((FileHandler.FileRegion)buffered).etag, ((FileHandler.FileRegion)regenerated).etag);
+    assertEquals(sidecar.length(), regenerated.size);
+    assertEquals("regenerated sidecar", gunzip(regenerated));
+
+    // Sidecars older than the file are ignored.
+    assertTrue(sidecar.setLastModified(now - 90000L));
+    final FileHandler.BufferedSourceWithSize stale = handler.source(request, file, etag, true, true);
+    assertNotEquals(sidecar, ((FileHandler.FileRegion)stale).file);
+    assertEquals(text(100), gunzip(stale));
+  }
+
+}
@@ -16,6 +16,7 @@ import com.gargoylesoftware.htmlunit.WebClientOptions;
 import info.jdavid.ok.server.HttpServer;
 import info.jdavid.ok.server.Https;
 import info.jdavid.ok.server.RequestHandlerChain;
+import info.jdavid.ok.server.RequestTarget;
 import info.jdavid.ok.server.Response;
 import info.jdavid.ok.server.StatusLines;
 import okhttp3.ConnectionPool;
@@ -54,7 +55,7 @@ public class DigestAuthHandlerTest {
 //    }
     final Handler handler = new Handler() {
       @Override public Handler setup() { return this; }
-      @Override public String[] matches(final String method, final HttpUrl url) {
+      @Override public String[] matches(final String method, final RequestTarget target) {
         return new String[0];
       }
       @Override public Response.Builder handle(final Request request, final String[] params) {
@@ -70,8 +71,8 @@ public class DigestAuthHandlerTest {
       maxRequestSize(4096).
       requestHandler(new RequestHandlerChain() {
         @Override
-        protected boolean allowInsecure(final String method, final HttpUrl url, final Headers requestHeaders,
-                                        final boolean insecureOnly) {
+        protected boolean allowInsecure(final String method, final RequestTarget target,
+                                        final Headers requestHeaders, final boolean insecureOnly) {
           return true;
         }
       }.add(new DigestAuthHandler(credentials, "Test", "DigestAuthTest".getBytes(), handler))).
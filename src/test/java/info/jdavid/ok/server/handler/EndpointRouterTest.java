@@ -0,0 +1,101 @@
+package info.jdavid.ok.server.handler;
+
+import javax.annotation.Nullable;
+
+import info.jdavid.ok.server.RequestTarget;
+import info.jdavid.ok.server.Response;
+import okhttp3.HttpUrl;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+@SuppressWarnings("ConstantConditions")
+public class EndpointRouterTest {
+
+  private static @Nullable String match(final EndpointRouter<String> router, final String path) {
+    final EndpointRouter.Match match = router.match(path);
+    if (match == null) return null;
+    final StringBuilder s = new StringBuilder(router.get(match.index));
+    for (final String param: match.params) {
+      s.append(' ').append(param);
+    }
+    return s.toString();
+  }
+
+  @Test
+  public void testTemplates() {
+    final EndpointRouter<String> router = new EndpointRouter<>();
+    router.add("/items", "list");
+    router.add("/items/new", "new");
+    router.add("/items/{id:int}", "int");
+    router.add("/items/{id:[a-z]+}", "regex");
+    router.add("/items/{id}", "any");
+    router.add("/items/{id}/parts/{part}", "part");
+    router.add("/i", "i");
+    assertEquals("list", match(router, "/items"));
+    assertNull(match(router, "/items/"));
+    assertEquals("new", match(router, "/items/new"));
+    assertEquals("int 12", match(router, "/items/12"));
+    assertEquals("regex abc", match(router, "/items/abc"));
+    assertEquals("any a-1", match(router, "/items/a-1"));
+    assertEquals("part 12 x", match(router, "/items/12/parts/x"));
+    assertEquals("i", match(router, "/i"));
+    assertNull(match(router, "/it"));
+    assertNull(match(router, "/items//parts/x"));
+    assertNull(match(router, "/items/12/parts/"));
+  }
+
+  @Test
+  public void testOrder() {
+    final EndpointRouter<String> router = new EndpointRouter<>();
+    router.add("/a/{x}", "param");
+    router.add("/a/b", "static");
+    router.add("/c/.*", "regex");
+    router.add("/c/{x}", "param2");
+    router.add("/d/([^/]+)/?", "simple");
+    router.add("/d/(x|y)", "regex2");
+    // The first route added wins.
+    assertEquals("param b", match(router, "/a/b"));
+    assertEquals("regex", match(router, "/c/d"));
+    assertEquals("simple x", match(router, "/d/x"));
+    assertEquals("simple x", match(router, "/d/x/"));
+    assertNull(match(router, "/d/x/y"));
+    assertEquals("regex", match(router, "/c/d/e"));
+  }
+
+  @Test
+  public void testInvalid() {
+    final EndpointRouter<String> router = new EndpointRouter<>();
+    try {
+      router.add("/a{id}", "invalid");
+      fail("Should have failed because the parameter doesn't span a whole segment.");
+    }
+    catch (final IllegalArgumentException ignore) {}
+    // Quantifier, not a parameter.
+    router.add("/b{2}", "regex");
+    assertEquals("regex", match(router, "/bb"));
+  }
+
+  @Test
+  public void testEndpointHandler() {
+    final EndpointHandler.ResourceAction action = new EndpointHandler.ResourceAction() {
+      @Override public Response.Builder response(final Request request) {
+        return new Response.Builder();
+      }
+    };
+    final EndpointHandler handler = new EndpointHandler().
+      get("/resources/?", action).
+      get("/resources/{id}", action).
+      delete("/resources/([^/]+)", action);
+    final RequestTarget target = RequestTarget.create(HttpUrl.parse("http://localhost/resources/a"));
+    assertArrayEquals(new String[] { "1", "a" }, handler.matches("GET", target));
+    assertArrayEquals(new String[] { "0", "a" }, handler.matches("DELETE", target));
+    assertNull(handler.matches("PUT", target));
+    assertArrayEquals(
+      new String[] { "0" },
+      handler.matches("GET", RequestTarget.create(HttpUrl.parse("http://localhost/resources/")))
+    );
+  }
+
+}
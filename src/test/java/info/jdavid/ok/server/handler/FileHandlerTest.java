@@ -22,6 +22,8 @@ import info.jdavid.ok.server.Https;
 import info.jdavid.ok.server.HttpsTest;
 import info.jdavid.ok.server.MediaTypes;
 import info.jdavid.ok.server.RequestHandlerChain;
+import info.jdavid.ok.server.RequestTarget;
+import info.jdavid.ok.server.Response;
 import info.jdavid.ok.server.header.AcceptRanges;
 import okhttp3.ConnectionPool;
 import okhttp3.Headers;
@@ -66,11 +68,15 @@ public class FileHandlerTest {
       maxRequestSize(512).
       requestHandler(new RequestHandlerChain() {
         @Override
-        protected boolean allowInsecure(final String method, final HttpUrl url, final Headers requestHeaders,
-                                        final boolean insecureOnly) {
+        protected boolean allowInsecure(final String method, final RequestTarget target,
+                                        final Headers requestHeaders, final boolean insecureOnly) {
           return true;
         }
-      }.add(new FileHandler(root))).
+      }.add(new FileHandler(root) {
+        @Override protected long mapThreshold() {
+          return 65536; // video.mp4 is served from a mapping.
+        }
+      })).
       start();
   }
 
@@ -457,6 +463,53 @@ public class FileHandlerTest {
     assertEquals("", source2.readUtf8LineStrict());
     assertEquals("--" + boundary2 + "--", source2.readUtf8LineStrict());
     response8.close();
+
+    // Overlapping and adjacent ranges are merged.
+    final okhttp3.Response response9 =
+      client.newCall(new Request.Builder().url(url.newBuilder("/video.mp4").build()).
+        header("Range", "bytes=250-400, 200-300, 400-500").
+        get().build()).execute();
+    assertEquals(206, response9.code());
+    assertEquals("300", response9.header("Content-Length"));
+    assertEquals("bytes 200-500/" + bytes.length, response9.header("Content-Range"));
+    assertEquals(ByteString.of(bytes, 200, 300), response9.body().source().readByteString());
+    response9.close();
+  }
+
+  private static Response.Builder range(final FileHandler handler, final String value) {
+    final RequestTarget target = RequestTarget.create(HttpUrl.parse("http://localhost:8080/video.mp4"));
+    final Headers headers = Headers.of("Range", value);
+    return handler.handle(
+      new info.jdavid.ok.server.handler.Request("127.0.0.1", false, "GET", target, headers, null),
+      new String[] { "/video.mp4" }
+    );
+  }
+
+  @Test
+  public void testTooManyRanges() throws IOException {
+    final File file = new File(getWebRoot(), "video.mp4");
+    final FileHandler handler = new FileHandler(getWebRoot());
+    handler.setup();
+    final StringBuilder ranges = new StringBuilder("bytes=0-1");
+    for (int i=1; i<AcceptRanges.ByteRangesBody.MAX_RANGES; ++i) {
+      ranges.append(", ").append(i * 10).append('-').append(i * 10 + 1);
+    }
+    assertEquals(206, range(handler, ranges.toString()).code());
+    final Response.Builder response = range(handler, ranges + ", 5000-5001");
+    assertEquals(200, response.code());
+    assertEquals(String.valueOf(file.length()), response.header("Content-Length"));
+    // Merged ranges are counted once.
+    assertEquals(206, range(handler, ranges + ", 1-2").code());
+  }
+
+  @Test
+  public void testCoalesce() {
+    assertArrayEquals(new long[] { 0, 10 }, FileHandler.coalesce(new long[] { 0, 10 }));
+    assertArrayEquals(new long[] { 20, 30, 0, 10 }, FileHandler.coalesce(new long[] { 20, 30, 0, 10 }));
+    assertArrayEquals(new long[] { 0, 30 }, FileHandler.coalesce(new long[] { 10, 20, 0, 10, 15, 30 }));
+    assertArrayEquals(new long[] { 50, 70, 0, 25 },
+                      FileHandler.coalesce(new long[] { 50, 60, 20, 25, 55, 70, 0, 20 }));
+    assertArrayEquals(new long[] { 5, 5, 0, 4 }, FileHandler.coalesce(new long[] { 5, 5, 0, 4 }));
   }
 
   private static WebRequest req(final String url) {
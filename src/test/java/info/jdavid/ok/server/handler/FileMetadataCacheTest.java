@@ -0,0 +1,139 @@
+package info.jdavid.ok.server.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import info.jdavid.ok.server.MediaTypes;
+import info.jdavid.ok.server.RequestTarget;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okio.BufferedSink;
+import okio.Okio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+@SuppressWarnings("ConstantConditions")
+public class FileMetadataCacheTest {
+
+  private File root;
+  private FileHandler handler;
+
+  private static void write(final File file, final String text) throws IOException {
+    final BufferedSink sink = Okio.buffer(Okio.sink(file));
+    try {
+      sink.writeUtf8(text);
+    }
+    finally {
+      sink.close();
+    }
+  }
+
+  private static void delete(final File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (final File child: children) delete(child);
+    }
+    //noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+
+  private FileHandler.Metadata metadata(final String path) {
+    final RequestTarget target = RequestTarget.create(HttpUrl.parse("http://localhost:8080" + path));
+    final Request request = new Request("127.0.0.1", false, "GET", target, Headers.of(), null);
+    return handler.metadata(path, request);
+  }
+
+  private FileHandler.Metadata awaitChange(final String path,
+                                           final FileHandler.Metadata previous) throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15L);
+    while (true) {
+      final FileHandler.Metadata metadata = metadata(path);
+      if (metadata != previous) return metadata;
+      assertTrue(System.nanoTime() < deadline);
+      Thread.sleep(20L);
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    root = Files.createTempDirectory("metadata").toFile();
+    write(new File(root, "style.css"), "body {}");
+    assertTrue(new File(root, "dir").mkdir());
+    handler = new FileHandler(root) {
+      @Override protected boolean cacheMetadata() {
+        return true;
+      }
+      @Override protected long metadataCacheTtlMillis() {
+        return 100L;
+      }
+    };
+    handler.setup();
+  }
+
+  @After
+  public void tearDown() {
+    handler.metadataCache.close();
+    delete(root);
+  }
+
+  @Test
+  public void testCached() {
+    final FileHandler.Metadata metadata = metadata("/style.css");
+    assertEquals(FileHandler.Metadata.FILE, metadata.kind);
+    assertEquals(MediaTypes.CSS, metadata.mediaType);
+    assertEquals(7L, metadata.length);
+    assertNotNull(metadata.etag);
+    assertNotNull(metadata.config);
+    assertSame(metadata, metadata("/style.css"));
+    assertEquals(FileHandler.Metadata.NOT_FOUND, metadata("/dir/").kind);
+    assertSame(metadata("/dir/"), metadata("/dir/"));
+    assertEquals(2, handler.metadataCache.size());
+    // Paths under directories that don't exist are not cached.
+    assertFalse(metadata("/missing/style.css").exists);
+    assertEquals(2, handler.metadataCache.size());
+  }
+
+  @Test
+  public void testEviction() {
+    final FileHandler.Metadata css = metadata("/style.css");
+    for (int i=0; i<16384; ++i) metadata("/missing" + i + ".css");
+    // Only a fraction of the entries is evicted when the cache is full, missing files first.
+    final int size = handler.metadataCache.size();
+    assertTrue(size < 16384);
+    assertTrue(size > 8192);
+    assertSame(css, metadata("/style.css"));
+  }
+
+  @Test
+  public void testInvalidation() throws IOException, InterruptedException {
+    final FileHandler.Metadata css = metadata("/style.css");
+    final FileHandler.Metadata dir = metadata("/dir/");
+    final FileHandler.Metadata missing = metadata("/missing.css");
+    assertEquals(FileHandler.Metadata.NOT_FOUND, dir.kind);
+    assertFalse(missing.exists);
+
+    // Files that change.
+    write(new File(root, "style.css"), "body { margin: 0 }");
+    final FileHandler.Metadata updated = awaitChange("/style.css", css);
+    assertEquals(18L, updated.length);
+
+    // Files that are added.
+    write(new File(root, "missing.css"), "a {}");
+    assertTrue(awaitChange("/missing.css", missing).exists);
+    write(new File(new File(root, "dir"), "index.html"), "<html></html>");
+    final FileHandler.Metadata index = awaitChange("/dir/", dir);
+    assertEquals(FileHandler.Metadata.FILE, index.kind);
+    assertEquals(MediaTypes.HTML, index.mediaType);
+
+    // Files that are deleted.
+    assertTrue(new File(root, "style.css").delete());
+    assertFalse(awaitChange("/style.css", updated).exists);
+  }
+
+}
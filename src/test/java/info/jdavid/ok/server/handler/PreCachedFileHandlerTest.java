@@ -7,8 +7,8 @@ import java.io.RandomAccessFile;
 import info.jdavid.ok.server.HttpServer;
 import info.jdavid.ok.server.Https;
 import info.jdavid.ok.server.RequestHandlerChain;
+import info.jdavid.ok.server.RequestTarget;
 import okhttp3.Headers;
-import okhttp3.HttpUrl;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -50,8 +50,8 @@ public class PreCachedFileHandlerTest {
       maxRequestSize(512).
       requestHandler(new RequestHandlerChain() {
         @Override
-        protected boolean allowInsecure(final String method, final HttpUrl url, final Headers requestHeaders,
-                                        final boolean insecureOnly) {
+        protected boolean allowInsecure(final String method, final RequestTarget target,
+                                        final Headers requestHeaders, final boolean insecureOnly) {
           return true;
         }
       }.add(handler = new PreCachedFileHandler(root))).
@@ -84,6 +84,63 @@ public class PreCachedFileHandlerTest {
     assertTrue(textData.bytes.length > 0);
   }
 
+  @Test
+  public void testCacheLimit() throws IOException {
+    final File root = getWebRoot();
+    final PreCachedFileHandler limited = new PreCachedFileHandler(root) {
+      @Override protected long maxCacheBytes() {
+        return 4096L;
+      }
+    };
+    limited.setup();
+    assertTrue(limited.cacheByteCount() <= 4096L);
+    // Preloading stops when the budget is full instead of evicting.
+    assertEquals(0, limited.cacheEvictionCount());
+    // Files larger than the limit are not cached.
+    assertNull(limited.cache.get("/video.mp4"));
+
+    final File file = new File(root, "img.png");
+    final String etag = limited.etag(file, root);
+    final long hits = limited.cacheHitCount();
+    final long misses = limited.cacheMissCount();
+    if (limited.fromCache(file, etag, false, false) == null) {
+      assertEquals(misses + 1, limited.cacheMissCount());
+      assertNotNull(limited.cache(file, etag, false, false));
+    }
+    final FileHandler.BufferedSourceWithSize source = limited.fromCache(file, etag, false, false);
+    assertNotNull(source);
+    assertEquals(file.length(), source.size);
+    assertTrue(limited.cacheHitCount() > hits);
+    assertTrue(limited.cacheByteCount() <= 4096L);
+    // Entries for a different etag (the file changed) are misses.
+    final String changed = etag.substring(0, etag.length() - 1) + (etag.endsWith("0") ? "1" : "0");
+    assertNull(limited.fromCache(file, changed, false, false));
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    final File root = getWebRoot();
+    final File file = new File(root, "img.png");
+    final PreCachedFileHandler.Data data = new PreCachedFileHandler.Data(file, "etag", false);
+    final PreCachedFileHandler.DataCache cache = new PreCachedFileHandler.DataCache();
+    cache.maxBytes = data.weight("/a") * 3;
+    cache.put("/a", data);
+    cache.put("/b", data);
+    cache.put("/c", data);
+    assertEquals(3, cache.size());
+    assertFalse(cache.putIfRoom("/d", data));
+    assertEquals(3, cache.size());
+    assertNotNull(cache.get("/a", "etag"));
+    cache.put("/d", data);
+    // The least recently used entries are evicted, down to 90% of the limit.
+    assertEquals(2, cache.evictions.sum());
+    assertNull(cache.get("/b"));
+    assertNull(cache.get("/c"));
+    assertNotNull(cache.get("/a"));
+    assertNotNull(cache.get("/d"));
+    assertTrue(cache.byteCount() <= cache.maxBytes);
+  }
+
   @Test
   public void testWebHttp() throws Exception {
     testWeb("http://localhost:8080/");